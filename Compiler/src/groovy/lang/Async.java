@@ -26,10 +26,27 @@ import java.lang.annotation.ElementType;
 /**
  * Methods annotated by @Async will lead to creating another one, which can be called asynchronously
  * New method will always return void and have same parameters plus one additional parameter of type 
+ *
+ * - executor names field or property of the class, which will be used instead of additional Executor parameter
+ *   (listener parameter has no default value in this case)
+ * - maxInFlight limits number of calls scheduled but not completed yet (0 means no limit)
+ *     - when limit reached caller blocks or, if rejectWhenFull is true, gets future bound to RejectedExecutionException
+ * - coalesce names method taking List of argument tuples (argument itself for one-parameter methods,
+ *   Pair, Trio etc. otherwise). Calls arriving while previous batch is still queued are executed
+ *   by one invocation of that method. The method returns list with one result per call or any non-list
+ *   value, which binds all calls to null; list of other size fails all calls with IllegalStateException
  */
 @Retention(RetentionPolicy.SOURCE)
 @Target(ElementType.METHOD)
 @GroovyASTTransformationClass("org.mbte.groovypp.compiler.AsyncASTTransform")
 public @interface Async {
     public abstract String  messageClassName  () default "";
+
+    public abstract String  executor () default "";
+
+    public abstract int     maxInFlight () default 0;
+
+    public abstract boolean rejectWhenFull () default false;
+
+    public abstract String  coalesce () default "";
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovy.lang;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Results of method annotated by @Memoized are cached in groovypp.util.MemoCache created per method
+ * (per object for instance methods) and reused for equal arguments
+ *
+ * - maxSize limits number of cached results, least recently used ones are evicted first (0 means no limit)
+ * - expireAfterWrite is time in milliseconds after which cached result is recalculated (0 means never)
+ * - soft makes cached results softly reachable, so they can be collected under memory pressure
+ *
+ * Cache with hit/miss statistics is available via generated get<MethodName>Cache () method
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Memoized {
+    public abstract int     maxSize () default 0;
+
+    public abstract long    expireAfterWrite () default 0L;
+
+    public abstract boolean soft () default true;
+}
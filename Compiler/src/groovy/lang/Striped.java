@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovy.lang;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * int or long field annotated by @Striped is replaced by groovypp.concurrent.StripedCounter,
+ * so concurrent updates do not contend on single memory location.
+ *
+ * For field 'hits' following methods are generated
+ * - void incrementHits ()
+ * - void addHits (long delta)
+ * - long getHits () (int for int field), returning sum of all cells
+ *
+ * Field itself is removed, so it can't be assigned directly
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Striped {
+}
@@ -40,6 +40,9 @@ import org.codehaus.groovy.ast.expr.MethodCallExpression
 import org.codehaus.groovy.ast.expr.ArgumentListExpression
 import org.codehaus.groovy.ast.expr.TernaryExpression
 import org.codehaus.groovy.ast.expr.BooleanExpression
+import org.codehaus.groovy.ast.expr.ConstructorCallExpression
+import org.codehaus.groovy.ast.expr.Expression
+import org.codehaus.groovy.syntax.SyntaxException
 
 @Typed
 @GroovyASTTransformation (phase = CompilePhase.CONVERSION)
@@ -49,10 +52,14 @@ class AsyncASTTransform implements ASTTransformation, Opcodes {
     static final ClassNode BIND_LATER  = ClassHelper.makeWithoutCaching("BindLater")
     static final ClassNode LISTENER    = ClassHelper.makeWithoutCaching("BindLater.Listener")
     static final ClassNode EXECUTOR    = ClassHelper.makeWithoutCaching("Executor")
+    static final ClassNode SUPPORT     = ClassHelper.makeWithoutCaching("AsyncSupport")
+    static final ClassNode BATCH       = ClassHelper.makeWithoutCaching("AsyncSupport.Batch")
+
+    static final String [] TUPLES = ["Pair", "Trio", "Quartet", "Quintet", "Sixtet"]
 
     void visit(ASTNode[] nodes, SourceUnit source) {
 
-        List<MethodNode> toProcess = []
+        Map<MethodNode,AnnotationNode> toProcess = new LinkedHashMap<MethodNode,AnnotationNode>()
 
         ModuleNode module = (ModuleNode) nodes[0];
         module.addStarImport("groovypp.concurrent.")
@@ -61,75 +68,70 @@ class AsyncASTTransform implements ASTTransformation, Opcodes {
             for (MethodNode methodNode: classNode.getMethods()) {
                 for (AnnotationNode ann : methodNode.getAnnotations()) {
                     if (ann.getClassNode().getNameWithoutPackage().equals("Async")) {
-                        toProcess << methodNode
+                        toProcess[methodNode] = ann
                     }
                 }
             }
         }
 
-        for (methodNode in toProcess)
+        int index = 0
+        for (e in toProcess.entrySet())
         {
+            def methodNode = e.key
+            def ann = e.value
+
+            String executorName = stringMember(ann, "executor")
+            String coalesce = stringMember(ann, "coalesce")
+            int maxInFlight = intMember(ann, "maxInFlight")
+            boolean rejectWhenFull = booleanMember(ann, "rejectWhenFull")
+
             final ClassNode ret = ClassHelper.getWrapper(methodNode.getReturnType())
 
             def args = new ArgumentListExpression();
 
             def origParams = methodNode.parameters
-            def params = new Parameter[origParams.length + 2]
+            if (coalesce && origParams.length > TUPLES.length + 1) {
+                source.addError(new SyntaxException("@Async(coalesce) supports methods with at most ${TUPLES.length + 1} parameters", methodNode.lineNumber, methodNode.columnNumber))
+                continue
+            }
+
+            def params = new Parameter[origParams.length + (executorName ? 1 : 2)]
             for (i in 0..<origParams.length) {
                 def name = "p\$" + i
                 params[i] = [origParams[i].type, name]
                 args.addExpression(new VariableExpression(params[i]))
             }
-            params[-2] = [EXECUTOR, "executor"]
-            params[-1] = [TypeUtil.withGenericTypes(LISTENER, ret), "listener", ConstantExpression.NULL]
-
-            def code = new BlockStatement()
-            code.setVariableScope(new VariableScope())
+            Expression executor
+            if (executorName) {
+                executor = new VariableExpression(executorName)
+                params[-1] = [TypeUtil.withGenericTypes(LISTENER, ret), "listener"]
+            }
+            else {
+                params[-2] = [EXECUTOR, "executor"]
+                params[-1] = [TypeUtil.withGenericTypes(LISTENER, ret), "listener", ConstantExpression.NULL]
+                executor = new VariableExpression(params[-2])
+            }
 
-            def innerCode = new BlockStatement()
-            innerCode.setVariableScope(new VariableScope(code.getVariableScope()))
-            innerCode.addStatement(
-                    new ExpressionStatement(
-                            new MethodCallExpression(
-                                    VariableExpression.THIS_EXPRESSION,
-                                    methodNode.getName(),
-                                    args
-                            )
-                    )
-            )
+            VariableExpression support = null
+            if (coalesce || maxInFlight > 0) {
+                def field = methodNode.getDeclaringClass().addField(
+                        "\$async\$" + methodNode.getName() + "\$" + index++,
+                        ACC_PRIVATE|ACC_FINAL|ACC_SYNTHETIC|(methodNode.getModifiers() & ACC_STATIC),
+                        SUPPORT,
+                        new ConstructorCallExpression(
+                                SUPPORT,
+                                new ArgumentListExpression(
+                                        new ConstantExpression(maxInFlight),
+                                        new ConstantExpression(rejectWhenFull)
+                                )
+                        )
+                )
+                support = new VariableExpression(field.name)
+            }
 
-            def futureDecl = new DeclarationExpression(
-                    new VariableExpression("future"),
-                    Token.newSymbol(Types.EQUAL, -1, -1),
-                    new CastExpression(
-                            CALL_LATER,
-                            new ClosureExpression(null, innerCode)
-                    )
-            )
-            code.addStatement(new ExpressionStatement(futureDecl))
-            code.addStatement(
-                    new ExpressionStatement(
-                            new MethodCallExpression(
-                                    new VariableExpression(params[-2]),
-                                    "execute",
-                                    new ArgumentListExpression(
-                                            new TernaryExpression(
-                                                    new BooleanExpression(new VariableExpression(params[-1])),
-                                                    new CastExpression(
-                                                            CALL_LATER,
-                                                            new MethodCallExpression(
-                                                                    new VariableExpression("future"),
-                                                                    "whenBound",
-                                                                    new ArgumentListExpression(new VariableExpression(params[-1]))
-                                                            )
-                                                    ),
-                                                    new VariableExpression("future")
-                                            )
-                                    )
-                            )
-                    )
-            )
-            code.addStatement(new ReturnStatement(new VariableExpression("future")))
+            def code = coalesce ?
+                coalescingCode(args, executor, support, coalesce, ret, new VariableExpression(params[-1])) :
+                executingCode(methodNode, args, executor, support, new VariableExpression(params[-1]))
 
             methodNode.getDeclaringClass().addMethod(
                     methodNode.getName(),
@@ -141,4 +143,147 @@ class AsyncASTTransform implements ASTTransformation, Opcodes {
             )
         }
     }
+
+    private BlockStatement executingCode(MethodNode methodNode, ArgumentListExpression args, Expression executor, Expression support, Expression listener) {
+        def code = new BlockStatement()
+        code.setVariableScope(new VariableScope())
+
+        def innerCode = new BlockStatement()
+        innerCode.setVariableScope(new VariableScope(code.getVariableScope()))
+        innerCode.addStatement(
+                new ExpressionStatement(
+                        new MethodCallExpression(
+                                VariableExpression.THIS_EXPRESSION,
+                                methodNode.getName(),
+                                args
+                        )
+                )
+        )
+
+        def futureDecl = new DeclarationExpression(
+                new VariableExpression("future"),
+                Token.newSymbol(Types.EQUAL, -1, -1),
+                new CastExpression(
+                        CALL_LATER,
+                        new ClosureExpression(null, innerCode)
+                )
+        )
+        code.addStatement(new ExpressionStatement(futureDecl))
+
+        def task = new TernaryExpression(
+                new BooleanExpression(listener),
+                new CastExpression(
+                        CALL_LATER,
+                        new MethodCallExpression(
+                                new VariableExpression("future"),
+                                "whenBound",
+                                new ArgumentListExpression(listener)
+                        )
+                ),
+                new VariableExpression("future")
+        )
+
+        code.addStatement(
+                new ExpressionStatement(
+                        support ?
+                            new MethodCallExpression(
+                                    support,
+                                    "execute",
+                                    new ArgumentListExpression(executor, task)
+                            ) :
+                            new MethodCallExpression(
+                                    executor,
+                                    "execute",
+                                    new ArgumentListExpression(task)
+                            )
+                )
+        )
+        code.addStatement(new ReturnStatement(new VariableExpression("future")))
+        code
+    }
+
+    private BlockStatement coalescingCode(ArgumentListExpression args, Expression executor, Expression support, String coalesce, ClassNode ret, Expression listener) {
+        def code = new BlockStatement()
+        code.setVariableScope(new VariableScope())
+
+        Expression tuple
+        switch (args.expressions.size()) {
+            case 0:
+                tuple = ConstantExpression.NULL
+                break
+
+            case 1:
+                tuple = args.expressions[0]
+                break
+
+            default:
+                tuple = new ConstructorCallExpression(ClassHelper.makeWithoutCaching(TUPLES[args.expressions.size() - 2]), args)
+                break
+        }
+
+        def batchParams = new Parameter[1]
+        batchParams[0] = [ClassHelper.LIST_TYPE, "batch"]
+
+        def batchCode = new BlockStatement()
+        batchCode.setVariableScope(new VariableScope(code.getVariableScope()))
+        batchCode.addStatement(
+                new ExpressionStatement(
+                        new MethodCallExpression(
+                                VariableExpression.THIS_EXPRESSION,
+                                coalesce,
+                                new ArgumentListExpression(new VariableExpression(batchParams[0]))
+                        )
+                )
+        )
+
+        def futureDecl = new DeclarationExpression(
+                new VariableExpression("future", TypeUtil.withGenericTypes(BIND_LATER, ret)),
+                Token.newSymbol(Types.EQUAL, -1, -1),
+                new CastExpression(
+                        TypeUtil.withGenericTypes(BIND_LATER, ret),
+                        new MethodCallExpression(
+                                support,
+                                "coalesce",
+                                new ArgumentListExpression(
+                                        executor,
+                                        tuple,
+                                        new CastExpression(
+                                                BATCH,
+                                                new ClosureExpression(batchParams, batchCode)
+                                        )
+                                )
+                        )
+                )
+        )
+        code.addStatement(new ExpressionStatement(futureDecl))
+        code.addStatement(
+                new ReturnStatement(
+                        new TernaryExpression(
+                                new BooleanExpression(listener),
+                                new MethodCallExpression(
+                                        new VariableExpression("future"),
+                                        "whenBound",
+                                        new ArgumentListExpression(listener)
+                                ),
+                                new VariableExpression("future")
+                        )
+                )
+        )
+        code
+    }
+
+    private static String stringMember(AnnotationNode ann, String name) {
+        def member = ann.getMember(name)
+        member instanceof ConstantExpression ? ((ConstantExpression)member).value?.toString() : null
+    }
+
+    private static boolean booleanMember(AnnotationNode ann, String name) {
+        def member = ann.getMember(name)
+        member instanceof ConstantExpression && ((ConstantExpression)member).value == Boolean.TRUE
+    }
+
+    private static int intMember(AnnotationNode ann, String name) {
+        def member = ann.getMember(name)
+        member instanceof ConstantExpression && ((ConstantExpression)member).value instanceof Number ? ((Number)((ConstantExpression)member).value).intValue() : 0
+    }
 }
@@ -97,6 +97,9 @@ public class CompileASTTransform implements ASTTransformation, Opcodes {
             improveMethodTypes(mn);
         }
 
+        // mutually tail recursive methods become one method, so tail calls can be compiled as jumps
+        new MutualRecursionMerger(source).merge(toProcess);
+
         SourceUnitContext context = new SourceUnitContext();
         for (Map.Entry<MethodNode, TypePolicy> entry : toProcess.entrySet()) {
             MethodNode mn = entry.getKey();
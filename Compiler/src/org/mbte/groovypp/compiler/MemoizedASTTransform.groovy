@@ -0,0 +1,218 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbte.groovypp.compiler
+
+import org.codehaus.groovy.transform.GroovyASTTransformation
+import org.codehaus.groovy.transform.ASTTransformation
+import org.codehaus.groovy.control.CompilePhase
+import org.codehaus.groovy.control.SourceUnit
+import org.codehaus.groovy.ast.*
+import org.codehaus.groovy.ast.expr.*
+import org.codehaus.groovy.ast.stmt.*
+
+import org.objectweb.asm.Opcodes
+
+import org.codehaus.groovy.syntax.Types
+import org.codehaus.groovy.syntax.Token
+import org.codehaus.groovy.syntax.SyntaxException
+
+/**
+ * Body of method annotated by @Memoized is moved to private method, original method looks up
+ * result in MemoCache and calls that method only on cache miss
+ */
+@Typed
+@GroovyASTTransformation (phase = CompilePhase.CONVERSION)
+class MemoizedASTTransform implements ASTTransformation, Opcodes {
+
+    static final ClassNode MEMO_CACHE = ClassHelper.makeWithoutCaching("groovypp.util.MemoCache")
+
+    static final String [] TUPLES = ["Pair", "Trio", "Quartet", "Quintet", "Sixtet"]
+
+    void visit(ASTNode[] nodes, SourceUnit source) {
+
+        Map<MethodNode,AnnotationNode> toProcess = new LinkedHashMap<MethodNode,AnnotationNode>()
+
+        ModuleNode module = (ModuleNode) nodes[0];
+        for (ClassNode classNode: module.getClasses()) {
+            for (MethodNode methodNode: classNode.getMethods()) {
+                for (AnnotationNode ann : methodNode.getAnnotations()) {
+                    if (ann.getClassNode().getNameWithoutPackage().equals("Memoized")) {
+                        toProcess[methodNode] = ann
+                    }
+                }
+            }
+        }
+
+        int index = 0
+        for (e in toProcess.entrySet())
+        {
+            def methodNode = e.key
+            def ann = e.value
+
+            if (methodNode.isVoidMethod() || methodNode.isAbstract() || methodNode instanceof ConstructorNode || !methodNode.code) {
+                source.addError(new SyntaxException("@Memoized can be applied only to non-abstract methods returning value", methodNode.lineNumber, methodNode.columnNumber))
+                continue
+            }
+
+            def maxSize = ann.getMember("maxSize")
+            def expireAfterWrite = ann.getMember("expireAfterWrite")
+            def soft = ann.getMember("soft")
+
+            def classNode = methodNode.getDeclaringClass()
+            def isStatic = methodNode.getModifiers() & ACC_STATIC
+            def suffix = "\$" + methodNode.getName() + "\$" + index++
+
+            def cache = classNode.addField(
+                    "\$memo" + suffix,
+                    ACC_PRIVATE|ACC_FINAL|ACC_SYNTHETIC|isStatic,
+                    MEMO_CACHE,
+                    new ConstructorCallExpression(
+                            MEMO_CACHE,
+                            new ArgumentListExpression(
+                                    maxSize ?: new ConstantExpression(0),
+                                    expireAfterWrite ?: new ConstantExpression(0L),
+                                    soft ?: ConstantExpression.TRUE
+                            )
+                    )
+            )
+
+            def origParams = methodNode.parameters
+            def implParams = new Parameter[origParams.length]
+            for (i in 0..<origParams.length) {
+                implParams[i] = [origParams[i].type, origParams[i].name]
+            }
+
+            def impl = classNode.addMethod(
+                    "\$memoized" + suffix,
+                    ACC_PRIVATE|ACC_SYNTHETIC|isStatic,
+                    methodNode.getReturnType(),
+                    implParams,
+                    methodNode.getExceptions(),
+                    methodNode.getCode()
+            )
+            impl.setSourcePosition(methodNode)
+
+            methodNode.setCode(cachingCode(methodNode, cache, impl))
+
+            def getterName = "get" + Character.toUpperCase(methodNode.getName().charAt(0)) + methodNode.getName().substring(1) + "Cache"
+            if (!classNode.getDeclaredMethod(getterName, Parameter.EMPTY_ARRAY)) {
+                classNode.addMethod(
+                        getterName,
+                        ACC_PUBLIC|isStatic,
+                        MEMO_CACHE,
+                        Parameter.EMPTY_ARRAY,
+                        ClassNode.EMPTY_ARRAY,
+                        new ReturnStatement(new VariableExpression(cache.name))
+                )
+            }
+        }
+    }
+
+    private BlockStatement cachingCode(MethodNode methodNode, FieldNode cache, MethodNode impl) {
+        def code = new BlockStatement()
+        code.setVariableScope(new VariableScope())
+
+        def params = methodNode.parameters
+        Expression key
+        boolean primitiveKey = false
+        switch (params.length) {
+            case 0:
+                key = new ConstantExpression(0L)
+                primitiveKey = true
+                break
+
+            case 1:
+                def type = params[0].type
+                primitiveKey = type == ClassHelper.int_TYPE || type == ClassHelper.long_TYPE
+                key = new VariableExpression(params[0])
+                break
+
+            default:
+                key = params.length <= TUPLES.length + 1 ?
+                    new ConstructorCallExpression(ClassHelper.makeWithoutCaching(TUPLES[params.length - 2]), arguments(params)) :
+                    new ListExpression(arguments(params).expressions)
+                break
+        }
+
+        code.addStatement(
+                new ExpressionStatement(
+                        new DeclarationExpression(
+                                new VariableExpression("\$key", primitiveKey ? ClassHelper.long_TYPE : ClassHelper.OBJECT_TYPE),
+                                Token.newSymbol(Types.EQUAL, -1, -1),
+                                key
+                        )
+                )
+        )
+
+        code.addStatement(
+                new ExpressionStatement(
+                        new DeclarationExpression(
+                                new VariableExpression("\$value", ClassHelper.OBJECT_TYPE),
+                                Token.newSymbol(Types.EQUAL, -1, -1),
+                                new MethodCallExpression(
+                                        new VariableExpression(cache.name),
+                                        primitiveKey ? "getLong" : "get",
+                                        new ArgumentListExpression(new VariableExpression("\$key"))
+                                )
+                        )
+                )
+        )
+
+        def implCall = new MethodCallExpression(
+                isStatic(methodNode) ? new ClassExpression(methodNode.getDeclaringClass()) : VariableExpression.THIS_EXPRESSION,
+                impl.getName(),
+                arguments(params)
+        )
+        code.addStatement(
+                new IfStatement(
+                        new BooleanExpression(
+                                new BinaryExpression(
+                                        new VariableExpression("\$value"),
+                                        Token.newSymbol(Types.COMPARE_IDENTICAL, -1, -1),
+                                        new PropertyExpression(new ClassExpression(MEMO_CACHE), "MISS")
+                                )
+                        ),
+                        new ExpressionStatement(
+                                new BinaryExpression(
+                                        new VariableExpression("\$value"),
+                                        Token.newSymbol(Types.EQUAL, -1, -1),
+                                        new MethodCallExpression(
+                                                new VariableExpression(cache.name),
+                                                primitiveKey ? "putLong" : "put",
+                                                new ArgumentListExpression(new VariableExpression("\$key"), implCall)
+                                        )
+                                )
+                        ),
+                        EmptyStatement.INSTANCE
+                )
+        )
+
+        code.addStatement(new ReturnStatement(new CastExpression(methodNode.getReturnType(), new VariableExpression("\$value"))))
+        code
+    }
+
+    private static ArgumentListExpression arguments(Parameter [] params) {
+        def args = new ArgumentListExpression()
+        for (p in params)
+            args.addExpression(new VariableExpression(p))
+        args
+    }
+
+    private static boolean isStatic(MethodNode methodNode) {
+        (methodNode.getModifiers() & ACC_STATIC) != 0
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbte.groovypp.compiler;
+
+import groovy.lang.TypePolicy;
+import org.codehaus.groovy.ast.*;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.*;
+import org.codehaus.groovy.classgen.BytecodeSequence;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.syntax.Token;
+import org.codehaus.groovy.syntax.Types;
+import org.objectweb.asm.Opcodes;
+
+import java.util.*;
+
+/**
+ * Merges private, static or final methods of the same class, which call each other in tail position,
+ * in to one synthetic method dispatching on entry index.
+ *
+ * Original methods delegate to the merged one and calls between them become calls of merged method itself,
+ * so StaticCompiler replaces tail calls by jumps to the beginning of the method.
+ */
+class MutualRecursionMerger implements Opcodes {
+    private final SourceUnit source;
+
+    MutualRecursionMerger(SourceUnit source) {
+        this.source = source;
+    }
+
+    void merge(Map<MethodNode, TypePolicy> toProcess) {
+        Map<ClassNode, List<MethodNode>> candidates = new LinkedHashMap<ClassNode, List<MethodNode>>();
+        for (Map.Entry<MethodNode, TypePolicy> e : toProcess.entrySet()) {
+            final MethodNode mn = e.getKey();
+            if (e.getValue() != TypePolicy.DYNAMIC && isCandidate(mn)) {
+                List<MethodNode> list = candidates.get(mn.getDeclaringClass());
+                if (list == null) {
+                    list = new ArrayList<MethodNode>();
+                    candidates.put(mn.getDeclaringClass(), list);
+                }
+                list.add(mn);
+            }
+        }
+
+        Map<MethodNode, TypePolicy> merged = new LinkedHashMap<MethodNode, TypePolicy>();
+        for (Map.Entry<ClassNode, List<MethodNode>> e : candidates.entrySet()) {
+            if (e.getValue().size() < 2)
+                continue;
+
+            for (List<MethodNode> group : findGroups(e.getValue(), toProcess)) {
+                merged.put(mergeGroup(e.getKey(), group), toProcess.get(group.get(0)));
+            }
+        }
+        toProcess.putAll(merged);
+    }
+
+    private static boolean isCandidate(MethodNode mn) {
+        if (mn instanceof ConstructorNode || mn.isAbstract() || mn.isStaticConstructor())
+            return false;
+
+        final Statement code = mn.getCode();
+        if (code == null || code instanceof BytecodeSequence)
+            return false;
+
+        if ((mn.getModifiers() & (ACC_PRIVATE | ACC_STATIC | ACC_FINAL)) == 0 || (mn.getModifiers() & ACC_SYNTHETIC) != 0)
+            return false;
+
+        if (mn.getGenericsTypes() != null || mn.getReturnType() == ClassHelper.DYNAMIC_TYPE || mn.getReturnType() == TypeUtil.IMPROVE_TYPE)
+            return false;
+
+        for (Parameter p : mn.getParameters()) {
+            if (p.hasInitialExpression() || p.getType() == ClassHelper.DYNAMIC_TYPE)
+                return false;
+        }
+
+        if (mn.getDeclaringClass().getMethods(mn.getName()).size() != 1)
+            return false;
+
+        final boolean[] hasClosures = new boolean[1];
+        code.visit(new CodeVisitorSupport() {
+            public void visitClosureExpression(ClosureExpression expression) {
+                hasClosures[0] = true;
+            }
+        });
+        return !hasClosures[0];
+    }
+
+    /**
+     * Finds strongly connected components of graph of tail calls
+     */
+    private static List<List<MethodNode>> findGroups(List<MethodNode> methods, Map<MethodNode, TypePolicy> toProcess) {
+        final Map<MethodNode, Set<MethodNode>> calls = new HashMap<MethodNode, Set<MethodNode>>();
+        for (MethodNode mn : methods) {
+            final Set<MethodNode> targets = new HashSet<MethodNode>();
+            collectTailCalls(mn.getCode(), true, mn, methods, targets);
+            calls.put(mn, targets);
+        }
+
+        List<List<MethodNode>> groups = new ArrayList<List<MethodNode>>();
+        Set<MethodNode> grouped = new HashSet<MethodNode>();
+        for (MethodNode mn : methods) {
+            if (grouped.contains(mn))
+                continue;
+
+            final Set<MethodNode> reachable = reachable(mn, calls);
+            List<MethodNode> group = new ArrayList<MethodNode>();
+            for (MethodNode other : methods) {
+                if (reachable.contains(other) && reachable(other, calls).contains(mn))
+                    group.add(other);
+            }
+
+            if (group.size() < 2 || !compatible(group, toProcess))
+                continue;
+
+            grouped.addAll(group);
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static boolean compatible(List<MethodNode> group, Map<MethodNode, TypePolicy> toProcess) {
+        final MethodNode first = group.get(0);
+        for (MethodNode mn : group) {
+            if (mn.isStatic() != first.isStatic()
+             || !mn.getReturnType().equals(first.getReturnType())
+             || toProcess.get(mn) != toProcess.get(first))
+                return false;
+        }
+        return true;
+    }
+
+    private static Set<MethodNode> reachable(MethodNode from, Map<MethodNode, Set<MethodNode>> calls) {
+        Set<MethodNode> res = new HashSet<MethodNode>();
+        LinkedList<MethodNode> queue = new LinkedList<MethodNode>(calls.get(from));
+        while (!queue.isEmpty()) {
+            final MethodNode mn = queue.removeFirst();
+            if (res.add(mn))
+                queue.addAll(calls.get(mn));
+        }
+        return res;
+    }
+
+    private static void collectTailCalls(Statement statement, boolean last, MethodNode caller, List<MethodNode> methods, Set<MethodNode> targets) {
+        if (statement instanceof ReturnStatement) {
+            collectTailCalls(((ReturnStatement) statement).getExpression(), caller, methods, targets);
+        } else if (statement instanceof ExpressionStatement) {
+            if (last)
+                collectTailCalls(((ExpressionStatement) statement).getExpression(), caller, methods, targets);
+        } else if (statement instanceof BlockStatement) {
+            final List<Statement> list = ((BlockStatement) statement).getStatements();
+            for (int i = 0; i != list.size(); ++i)
+                collectTailCalls(list.get(i), last && i == list.size() - 1, caller, methods, targets);
+        } else if (statement instanceof IfStatement) {
+            collectTailCalls(((IfStatement) statement).getIfBlock(), last, caller, methods, targets);
+            collectTailCalls(((IfStatement) statement).getElseBlock(), last, caller, methods, targets);
+        } else if (statement instanceof LoopingStatement) {
+            collectTailCalls(((LoopingStatement) statement).getLoopBlock(), false, caller, methods, targets);
+        } else if (statement instanceof SwitchStatement) {
+            for (CaseStatement caseStatement : ((SwitchStatement) statement).getCaseStatements())
+                collectTailCalls(caseStatement.getCode(), false, caller, methods, targets);
+            collectTailCalls(((SwitchStatement) statement).getDefaultStatement(), false, caller, methods, targets);
+        }
+        // jumps out of try/finally or synchronized blocks are not tail calls
+    }
+
+    private static void collectTailCalls(Expression expression, MethodNode caller, List<MethodNode> methods, Set<MethodNode> targets) {
+        if (expression instanceof TernaryExpression) {
+            collectTailCalls(((TernaryExpression) expression).getTrueExpression(), caller, methods, targets);
+            collectTailCalls(((TernaryExpression) expression).getFalseExpression(), caller, methods, targets);
+        } else if (expression instanceof MethodCallExpression) {
+            final MethodNode target = findTarget((MethodCallExpression) expression, methods);
+            if (target != null && target.isStatic() == caller.isStatic())
+                targets.add(target);
+        }
+    }
+
+    private static MethodNode findTarget(MethodCallExpression call, List<MethodNode> methods) {
+        if (!(call.getObjectExpression() instanceof VariableExpression) || !((VariableExpression) call.getObjectExpression()).isThisExpression()
+                || call.isSafe() || call.isSpreadSafe())
+            return null;
+
+        final String name = call.getMethodAsString();
+        if (name == null || !(call.getArguments() instanceof TupleExpression))
+            return null;
+
+        final List<Expression> args = ((TupleExpression) call.getArguments()).getExpressions();
+        for (MethodNode mn : methods) {
+            if (mn.getName().equals(name) && mn.getParameters().length == args.size()) {
+                for (Expression arg : args) {
+                    if (arg instanceof SpreadExpression || arg instanceof MapExpression)
+                        return null;
+                }
+                return mn;
+            }
+        }
+        return null;
+    }
+
+    private MethodNode mergeGroup(ClassNode classNode, final List<MethodNode> group) {
+        final MethodNode first = group.get(0);
+
+        StringBuilder name = new StringBuilder("$tailcall");
+        final List<Parameter> params = new ArrayList<Parameter>();
+        params.add(new Parameter(ClassHelper.int_TYPE, "$entry"));
+        final List<Map<String, Parameter>> renames = new ArrayList<Map<String, Parameter>>();
+        for (int i = 0; i != group.size(); ++i) {
+            final MethodNode mn = group.get(i);
+            name.append('$').append(mn.getName());
+
+            Map<String, Parameter> rename = new HashMap<String, Parameter>();
+            for (Parameter p : mn.getParameters()) {
+                final Parameter np = new Parameter(p.getType(), p.getName() + "$" + i);
+                params.add(np);
+                rename.put(p.getName(), np);
+            }
+            renames.add(rename);
+        }
+
+        final String mergedName = name.toString();
+        final boolean isVoid = first.isVoidMethod();
+
+        Statement dispatch = null;
+        for (int i = group.size() - 1; i >= 0; --i) {
+            final MethodNode mn = group.get(i);
+            final Statement body = mn.getCode();
+            body.visit(new CallRewriter(group, renames, renames.get(i), mergedName));
+            if (dispatch == null) {
+                dispatch = body;
+            } else {
+                final BinaryExpression isEntry = new BinaryExpression(
+                        new VariableExpression(params.get(0)),
+                        Token.newSymbol(Types.COMPARE_EQUAL, -1, -1),
+                        new ConstantExpression(i));
+                dispatch = new IfStatement(new BooleanExpression(isEntry), body, dispatch);
+            }
+
+            ArgumentListExpression args = new ArgumentListExpression();
+            for (Parameter p : mn.getParameters())
+                args.addExpression(new VariableExpression(p));
+            final Expression call = callMerged(group, i, args, mergedName);
+            final Statement delegate = isVoid ? new ExpressionStatement(call) : new ReturnStatement(call);
+            delegate.setSourcePosition(mn);
+            mn.setCode(delegate);
+        }
+
+        final MethodNode merged = classNode.addMethod(
+                mergedName,
+                ACC_PRIVATE | ACC_SYNTHETIC | (first.isStatic() ? ACC_STATIC : 0),
+                first.getReturnType(),
+                params.toArray(new Parameter[params.size()]),
+                ClassNode.EMPTY_ARRAY,
+                dispatch);
+        merged.setVariableScope(new VariableScope());
+        merged.setSourcePosition(first);
+        ClassNodeCache.clearCache(classNode);
+        return merged;
+    }
+
+    private static Expression callMerged(List<MethodNode> group, int index, ArgumentListExpression args, String mergedName) {
+        final ArgumentListExpression mergedArgs = new ArgumentListExpression();
+        mergedArgs.addExpression(new ConstantExpression(index));
+        for (int i = 0; i != group.size(); ++i) {
+            final Parameter[] parameters = group.get(i).getParameters();
+            for (int k = 0; k != parameters.length; ++k) {
+                mergedArgs.addExpression(i == index ? args.getExpression(k) : defaultValue(parameters[k].getType()));
+            }
+        }
+        final MethodCallExpression call = new MethodCallExpression(VariableExpression.THIS_EXPRESSION, mergedName, mergedArgs);
+        call.setImplicitThis(true);
+        call.setSourcePosition(args);
+        return call;
+    }
+
+    private static Expression defaultValue(ClassNode type) {
+        if (type == ClassHelper.boolean_TYPE)
+            return new CastExpression(type, ConstantExpression.FALSE);
+
+        if (ClassHelper.isPrimitiveType(type))
+            return new CastExpression(type, new ConstantExpression(0));
+
+        return new CastExpression(type, ConstantExpression.NULL);
+    }
+
+    private class CallRewriter extends ClassCodeExpressionTransformer {
+        private final List<MethodNode> group;
+        private final List<Map<String, Parameter>> renames;
+        private final Map<String, Parameter> rename;
+        private final String mergedName;
+
+        CallRewriter(List<MethodNode> group, List<Map<String, Parameter>> renames, Map<String, Parameter> rename, String mergedName) {
+            this.group = group;
+            this.renames = renames;
+            this.rename = rename;
+            this.mergedName = mergedName;
+        }
+
+        protected SourceUnit getSourceUnit() {
+            return source;
+        }
+
+        public Expression transform(Expression exp) {
+            if (exp instanceof VariableExpression) {
+                final Parameter np = rename.get(((VariableExpression) exp).getName());
+                if (np != null) {
+                    final VariableExpression ve = new VariableExpression(np);
+                    ve.setSourcePosition(exp);
+                    return ve;
+                }
+                return exp;
+            }
+
+            if (exp instanceof MethodCallExpression) {
+                final MethodNode target = findTarget((MethodCallExpression) exp, group);
+                if (target != null) {
+                    final ArgumentListExpression args = new ArgumentListExpression();
+                    for (Expression arg : ((TupleExpression) ((MethodCallExpression) exp).getArguments()).getExpressions())
+                        args.addExpression(transform(arg));
+                    args.setSourcePosition(exp);
+                    return callMerged(group, group.indexOf(target), args, mergedName);
+                }
+            }
+
+            return exp.transformExpression(this);
+        }
+    }
+}
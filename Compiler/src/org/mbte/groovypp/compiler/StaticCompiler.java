@@ -54,6 +54,11 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
     ClassNode calculatedReturnType = TypeUtil.NULL_TYPE;
     private Label startLabel = new Label ();
 
+    // accumulator of tail calls like 'return a + f(x)', -1 if method is not compiled in accumulator mode
+    private int accumulator = -1;
+    private int accumulatorOp;
+    private Label loopLabel;
+
     public StaticCompiler(SourceUnit su, SourceUnitContext context, StaticMethodBytecode methodBytecode, StackAwareMethodAdapter mv, org.mbte.groovypp.compiler.CompilerStack compileStack, int debug, boolean fastArrays, TypePolicy policy, String baseClosureName) {
         super(su, methodBytecode.methodNode.getDeclaringClass(), methodBytecode.methodNode, mv, compileStack, debug, fastArrays, policy, baseClosureName, context);
         this.methodBytecode = methodBytecode;
@@ -694,6 +699,19 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
         visitStatement(statement);
 
         Expression returnExpression = statement.getExpression();
+        if (hasTailCallBranch(returnExpression)) {
+            // return c ? f(x) : y is compiled as if (c) return f(x) else return y, so tail call can become jump
+            final TernaryExpression ternary = (TernaryExpression) returnExpression;
+            final ReturnStatement ifReturn = new ReturnStatement(ternary.getTrueExpression());
+            ifReturn.setSourcePosition(ternary.getTrueExpression());
+            final ReturnStatement elseReturn = new ReturnStatement(ternary.getFalseExpression());
+            elseReturn.setSourcePosition(ternary.getFalseExpression());
+            final IfStatement ifStatement = new IfStatement(ternary.getBooleanExpression(), ifReturn, elseReturn);
+            ifStatement.setSourcePosition(statement);
+            ifStatement.visit(this);
+            return;
+        }
+
         if (!methodNode.getReturnType().equals(ClassHelper.VOID_TYPE) && 
         		!methodNode.getReturnType().equals(ClassHelper.DYNAMIC_TYPE)) {
             if (!shouldImproveReturnType) {
@@ -708,19 +726,16 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
             }
         }
 
+        if (accumulator != -1) {
+            accumulatingReturn(statement.getExpression());
+            return;
+        }
+
         BytecodeExpr bytecodeExpr = (BytecodeExpr) transformToGround(returnExpression);
 
-        if (bytecodeExpr instanceof ResolvedMethodBytecodeExpr) {
-            ResolvedMethodBytecodeExpr resolvedMethodBytecodeExpr = (ResolvedMethodBytecodeExpr) bytecodeExpr;
-            if (resolvedMethodBytecodeExpr.getMethodNode() == methodNode) {
-                if (methodNode.isStatic()
-                || resolvedMethodBytecodeExpr.getObject().isThis()
-                || methodNode.isPrivate()
-                || (methodNode.getModifiers() & ACC_FINAL) != 0) {
-                    tailRecursive(resolvedMethodBytecodeExpr);
-                    return;
-                }
-            }
+        if (isTailCall(bytecodeExpr)) {
+            tailRecursive((ResolvedMethodBytecodeExpr) bytecodeExpr);
+            return;
         }
 
         bytecodeExpr.visit(mv);
@@ -759,6 +774,229 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
         bytecodeExpr.doReturn(returnType, mv);
     }
 
+    private boolean hasTailCallBranch(Expression expression) {
+        if (!(expression instanceof TernaryExpression) || expression instanceof ElvisOperatorExpression)
+            return false;
+
+        final TernaryExpression ternary = (TernaryExpression) expression;
+        return isTailCallCandidate(ternary.getTrueExpression()) || isTailCallCandidate(ternary.getFalseExpression());
+    }
+
+    private boolean isTailCallCandidate(Expression expression) {
+        return isSelfCall(expression) || hasTailCallBranch(expression)
+            || (accumulator != -1 && getAccumulatingExpression(expression) != null);
+    }
+
+    private boolean isTailCall(BytecodeExpr bytecodeExpr) {
+        if (!(bytecodeExpr instanceof ResolvedMethodBytecodeExpr))
+            return false;
+
+        ResolvedMethodBytecodeExpr resolvedMethodBytecodeExpr = (ResolvedMethodBytecodeExpr) bytecodeExpr;
+        return resolvedMethodBytecodeExpr.getMethodNode() == methodNode
+            && (methodNode.isStatic()
+                || resolvedMethodBytecodeExpr.getObject().isThis()
+                || methodNode.isPrivate()
+                || (methodNode.getModifiers() & ACC_FINAL) != 0);
+    }
+
+    /**
+     * Return in accumulator mode: 'return a OP f(x)' folds a in to accumulator and jumps to the beginning of the method,
+     * any other 'return e' returns 'accumulator OP e'
+     */
+    private void accumulatingReturn(Expression returnExpression) {
+        final ClassNode returnType = methodNode.getReturnType();
+
+        final BinaryExpression be = getAccumulatingExpression(returnExpression);
+        if (be != null) {
+            final boolean callOnLeft = isSelfCall(be.getLeftExpression());
+            final Expression operand = callOnLeft ? be.getRightExpression() : be.getLeftExpression();
+            final BytecodeExpr operandExpr = (BytecodeExpr) transformToGround(operand);
+            if (operandExpr.getType().equals(returnType)) {
+                operandExpr.visit(mv);
+                foldAccumulator();
+
+                final Expression call = callOnLeft ? be.getLeftExpression() : be.getRightExpression();
+                final CastExpression cast = new CastExpression(returnType, call);
+                cast.setSourcePosition(call);
+                final BytecodeExpr callExpr = (BytecodeExpr) transformToGround(cast);
+                if (isTailCall(callExpr)) {
+                    tailRecursive((ResolvedMethodBytecodeExpr) callExpr);
+                }
+                else {
+                    callExpr.visit(mv);
+                    foldAccumulatorAndReturn(callExpr.getType());
+                }
+                return;
+            }
+        }
+
+        final CastExpression cast = new CastExpression(returnType, returnExpression);
+        cast.setSourcePosition(returnExpression);
+        final BytecodeExpr bytecodeExpr = (BytecodeExpr) transformToGround(cast);
+        if (isTailCall(bytecodeExpr)) {
+            tailRecursive((ResolvedMethodBytecodeExpr) bytecodeExpr);
+            return;
+        }
+
+        bytecodeExpr.visit(mv);
+        foldAccumulatorAndReturn(bytecodeExpr.getType());
+    }
+
+    private void foldAccumulatorAndReturn(ClassNode exprType) {
+        final ClassNode returnType = methodNode.getReturnType();
+        if (!exprType.equals(returnType)) {
+            BytecodeExpr.box(exprType, mv);
+            BytecodeExpr.cast(TypeUtil.wrapSafely(exprType), TypeUtil.wrapSafely(returnType), mv);
+            BytecodeExpr.unbox(returnType, mv);
+        }
+        BytecodeExpr.load(returnType, accumulator, mv);
+        final boolean isLong = returnType == long_TYPE;
+        mv.visitInsn(accumulatorOp == Types.PLUS ? (isLong ? LADD : IADD) : (isLong ? LMUL : IMUL));
+        BytecodeExpr.doReturn(mv, returnType);
+    }
+
+    private void foldAccumulator() {
+        final ClassNode returnType = methodNode.getReturnType();
+        BytecodeExpr.load(returnType, accumulator, mv);
+        final boolean isLong = returnType == long_TYPE;
+        mv.visitInsn(accumulatorOp == Types.PLUS ? (isLong ? LADD : IADD) : (isLong ? LMUL : IMUL));
+        BytecodeExpr.store(returnType, accumulator, mv);
+    }
+
+    /**
+     * @return 'a OP f(x)' or 'f(x) OP a', where f is this method and OP is + or *
+     */
+    private BinaryExpression getAccumulatingExpression(Expression expression) {
+        if (!(expression instanceof BinaryExpression))
+            return null;
+
+        final BinaryExpression be = (BinaryExpression) expression;
+        final int op = be.getOperation().getType();
+        if (op != Types.PLUS && op != Types.MULTIPLY)
+            return null;
+
+        if (isSelfCall(be.getRightExpression()) && !isSelfCall(be.getLeftExpression()))
+            return be;
+
+        // operand is evaluated before arguments of the call, so it should not depend on them
+        if (isSelfCall(be.getLeftExpression())
+         && (be.getRightExpression() instanceof ConstantExpression || be.getRightExpression() instanceof VariableExpression))
+            return be;
+
+        return null;
+    }
+
+    private boolean isSelfCall(Expression expression) {
+        if (!(expression instanceof MethodCallExpression))
+            return false;
+
+        final MethodCallExpression call = (MethodCallExpression) expression;
+        return call.isImplicitThis()
+            && methodNode.getName().equals(call.getMethodAsString())
+            && call.getArguments() instanceof TupleExpression
+            && ((TupleExpression) call.getArguments()).getExpressions().size() == methodNode.getParameters().length;
+    }
+
+    /**
+     * Accumulator mode is used for int or long methods without try/synchronized blocks and closures,
+     * where all accumulating tail calls use the same operation
+     */
+    private void initAccumulator() {
+        final ClassNode returnType = methodNode.getReturnType();
+        if (shouldImproveReturnType || (returnType != int_TYPE && returnType != long_TYPE))
+            return;
+
+        if (methodNode instanceof ConstructorNode || methodNode.getName().equals("doCall") || methodNode.getName().equals("$doCall"))
+            return;
+
+        final int [] op = new int[1];
+        final boolean [] bad = new boolean[1];
+        getCode().visit(new CodeVisitorSupport() {
+            public void visitReturnStatement(ReturnStatement statement) {
+                checkReturn(statement.getExpression());
+                super.visitReturnStatement(statement);
+            }
+
+            private void checkReturn(Expression expression) {
+                if (expression instanceof TernaryExpression && !(expression instanceof ElvisOperatorExpression)) {
+                    checkReturn(((TernaryExpression) expression).getTrueExpression());
+                    checkReturn(((TernaryExpression) expression).getFalseExpression());
+                    return;
+                }
+
+                final BinaryExpression be = getAccumulatingExpression(expression);
+                if (be != null) {
+                    final int type = be.getOperation().getType();
+                    if (op[0] != 0 && op[0] != type)
+                        bad[0] = true;
+                    op[0] = type;
+                }
+            }
+
+            public void visitTryCatchFinally(TryCatchStatement statement) {
+                bad[0] = true;
+            }
+
+            public void visitSynchronizedStatement(SynchronizedStatement statement) {
+                bad[0] = true;
+            }
+
+            public void visitClosureExpression(ClosureExpression expression) {
+                bad[0] = true;
+            }
+        });
+
+        if (op[0] == 0 || bad[0])
+            return;
+
+        accumulatorOp = op[0];
+        accumulator = compileStack.defineTemporaryVariable("$accumulator", returnType, false);
+        if (returnType == long_TYPE)
+            mv.visitInsn(accumulatorOp == Types.PLUS ? LCONST_0 : LCONST_1);
+        else
+            mv.visitInsn(accumulatorOp == Types.PLUS ? ICONST_0 : ICONST_1);
+        BytecodeExpr.store(returnType, accumulator, mv);
+
+        loopLabel = new Label();
+        mv.visitLabel(loopLabel);
+    }
+
+    /**
+     * Pushes argument of tail call converted to parameter type, primitives are converted without boxing
+     */
+    private void pushTailCallArgument(BytecodeExpr be, ClassNode paramType) {
+        be.visit(mv);
+        final ClassNode type = be.getType();
+        if (type.equals(paramType))
+            return;
+
+        if (ClassHelper.isPrimitiveType(type) && ClassHelper.isPrimitiveType(paramType)) {
+            final boolean intLike = type == int_TYPE || type == short_TYPE || type == byte_TYPE || type == char_TYPE;
+            if (intLike && paramType == int_TYPE)
+                return;
+            if (intLike && paramType == long_TYPE) {
+                mv.visitInsn(I2L);
+                return;
+            }
+            if (intLike && paramType == double_TYPE) {
+                mv.visitInsn(I2D);
+                return;
+            }
+            if (type == long_TYPE && paramType == double_TYPE) {
+                mv.visitInsn(L2D);
+                return;
+            }
+            if (type == float_TYPE && paramType == double_TYPE) {
+                mv.visitInsn(F2D);
+                return;
+            }
+        }
+
+        BytecodeExpr.box(type, mv);
+        BytecodeExpr.cast(TypeUtil.wrapSafely(type), TypeUtil.wrapSafely(paramType), mv);
+        BytecodeExpr.unbox(paramType, mv);
+    }
+
     private void tailRecursive(ResolvedMethodBytecodeExpr resolvedMethodBytecodeExpr) {
         Parameter[] parameters = methodNode.getParameters();
 
@@ -768,12 +1006,8 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
         }
         for (int i = 0; i != parameters.length; ++i) {
             BytecodeExpr be = (BytecodeExpr) resolvedMethodBytecodeExpr.getBargs().getExpressions().get(i);
-            be.visit(mv);
             final ClassNode paramType = parameters[i].getType();
-            final ClassNode type = be.getType();
-            BytecodeExpr.box(type, mv);
-            BytecodeExpr.cast(TypeUtil.wrapSafely(type), TypeUtil.wrapSafely(paramType), mv);
-            BytecodeExpr.unbox(paramType, mv);
+            pushTailCallArgument(be, paramType);
 
             varIndex += (paramType == ClassHelper.long_TYPE || paramType == ClassHelper.double_TYPE) ? 2 : 1;
         }
@@ -781,29 +1015,13 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
         for (int i = parameters.length-1; i >= 0; --i) {
             final ClassNode paramType = parameters[i].getType();
             varIndex -= (paramType == ClassHelper.long_TYPE || paramType == ClassHelper.double_TYPE) ? 2 : 1;
-
-            if (paramType == double_TYPE) {
-                mv.visitVarInsn(Opcodes.DSTORE, varIndex);
-            } else if (paramType == float_TYPE) {
-                mv.visitVarInsn(Opcodes.FSTORE, varIndex);
-            } else if (paramType == long_TYPE) {
-                mv.visitVarInsn(Opcodes.LSTORE, varIndex);
-            } else if (
-                   paramType == boolean_TYPE
-                || paramType == char_TYPE
-                || paramType == byte_TYPE
-                || paramType == int_TYPE
-                || paramType == short_TYPE) {
-                mv.visitVarInsn(Opcodes.ISTORE, varIndex);
-            } else {
-                mv.visitVarInsn(Opcodes.ASTORE, varIndex);
-            }
+            BytecodeExpr.store(paramType, varIndex, mv);
         }
 
         if (!methodNode.isStatic()) {
             mv.visitVarInsn(ASTORE, 0);
         }
-        mv.visitJumpInsn(GOTO, startLabel);
+        mv.visitJumpInsn(GOTO, loopLabel != null ? loopLabel : startLabel);
         return;
     }
 
@@ -1209,6 +1427,7 @@ public class StaticCompiler extends CompilerTransformer implements Opcodes {
         LogicalExpressionRewriter.normalize(getCode());
 
         compileStack.init(methodNode.getVariableScope(), methodNode.getParameters(), mv, methodNode.getDeclaringClass());
+        initAccumulator();
         getCode().visit(this);
         compileStack.clear();
         for (Runnable runnable : exceptionBlocks) {
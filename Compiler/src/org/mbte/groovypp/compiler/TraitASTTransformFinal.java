@@ -19,6 +19,7 @@ package org.mbte.groovypp.compiler;
 import groovy.lang.TypePolicy;
 import org.codehaus.groovy.ast.*;
 import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
 import static org.codehaus.groovy.ast.ClassHelper.*;
 import org.codehaus.groovy.ast.expr.*;
 import org.codehaus.groovy.classgen.BytecodeInstruction;
@@ -38,8 +39,10 @@ import org.objectweb.asm.Opcodes;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 @GroovyASTTransformation(phase = CompilePhase.INSTRUCTION_SELECTION)
@@ -77,7 +80,7 @@ public class TraitASTTransformFinal implements ASTTransformation, Opcodes {
                  source.getErrorCollector().addError(new SyntaxErrorMessage(new SyntaxException(t.getMessage() + '\n', line, col), source), true);
              }
 
-            improveAbstractMethods(classNode);
+            improveAbstractMethods(classNode, classPolicy != TypePolicy.DYNAMIC);
         }
     }
 
@@ -130,11 +133,24 @@ public class TraitASTTransformFinal implements ASTTransformation, Opcodes {
 
 
     public static void improveAbstractMethods(final ClassNode classNode) {
+        improveAbstractMethods(classNode, false);
+    }
+
+    /**
+     * @param inlineTraitMethods if true and class is final, bodies of default implementations available as source
+     *                           will be copied in to the class instead of forwarding to static methods of $TraitImpl
+     */
+    public static void improveAbstractMethods(final ClassNode classNode, boolean inlineTraitMethods) {
         if ((classNode.getModifiers() & ACC_ABSTRACT) != 0)
             return;
 
+        inlineTraitMethods &= (classNode.getModifiers() & ACC_FINAL) != 0;
+
         List<MethodNode> abstractMethods = getAbstractMethods(classNode);
         boolean addInit = false;
+        List<MethodNode[]> toInline = new ArrayList<MethodNode[]>();
+        Set<String> plainAccessors = new HashSet<String>();
+        Set<String> traitFields = new HashSet<String>();
         if (abstractMethods != null) {
             for (final MethodNode method : abstractMethods) {
                 List<AnnotationNode> list = method.getAnnotations(TypeUtil.HAS_DEFAULT_IMPLEMENTATION);
@@ -148,7 +164,10 @@ public class TraitASTTransformFinal implements ASTTransformation, Opcodes {
                         System.arraycopy(oldParams, 0, params, 1, oldParams.length);
                         final MethodNode found = klazz.getType().getMethod(method.getName(), params);
                         if (found != null) {
-                            addImplMethod(classNode, method, oldParams, found);
+                            if (inlineTraitMethods && canInline(method, found))
+                                toInline.add(new MethodNode[]{method, found});
+                            else
+                                addImplMethod(classNode, method, oldParams, found);
                         }
                     } else {
                         if ((classNode.getModifiers() & Opcodes.ACC_ABSTRACT) != 0)
@@ -180,6 +199,8 @@ public class TraitASTTransformFinal implements ASTTransformation, Opcodes {
                         }
 
                         createGetterSetter(classNode, method, fieldType, parameters, getter, fieldName);
+                        plainAccessors.add(method.getName());
+                        traitFields.add(fieldName);
                     }
                 }
                 else {
@@ -200,12 +221,79 @@ public class TraitASTTransformFinal implements ASTTransformation, Opcodes {
             }
         }
 
+        if (!toInline.isEmpty()) {
+            final Map<String, String> directProperties = getDirectProperties(plainAccessors, traitFields);
+            for (MethodNode[] pair : toInline) {
+                if (!addInlinedMethod(classNode, pair[0], pair[1], directProperties))
+                    addImplMethod(classNode, pair[0], pair[0].getParameters(), pair[1]);
+            }
+        }
+
         if (addInit && !classNode.getDeclaredConstructors().isEmpty()) {
             CleaningVerifier.getCleaningVerifier().addInitialization(classNode);
             classNode.getObjectInitializerStatements().clear();
         }
     }
 
+    private static boolean canInline(MethodNode method, MethodNode found) {
+        final ClassNode trait = method.getDeclaringClass();
+        if (trait.getGenericsTypes() != null || method.getGenericsTypes() != null)
+            return false;
+
+        // static methods of trait live in $TraitCategory, which is visible only inside trait
+        for (ClassNode inner : trait.redirect().getInnerClasses()) {
+            if (inner.getName().endsWith("$TraitCategory"))
+                return false;
+        }
+
+        return found.getDeclaringClass().getModule() != null;
+    }
+
+    /**
+     * Maps property names used by trait implementation to fields of the class.
+     * Property is direct only if both getter and setter simply access the field.
+     */
+    private static Map<String, String> getDirectProperties(Set<String> plainAccessors, Set<String> traitFields) {
+        final Map<String, String> res = new HashMap<String, String>();
+        for (String field : traitFields) {
+            if (plainAccessors.contains("get$" + field) && plainAccessors.contains("set$" + field))
+                res.put("$" + field, field);
+
+            final String capitalized = Verifier.capitalize(field);
+            if (plainAccessors.contains("get" + capitalized) && plainAccessors.contains("set" + capitalized))
+                res.put(field, field);
+        }
+        return res;
+    }
+
+    /**
+     * Adds method with copy of implementation body. Returns false if the body can't be copied
+     */
+    private static boolean addInlinedMethod(ClassNode classNode, MethodNode method, MethodNode impl, Map<String, String> directProperties) {
+        final ClassNode returnType = TypeUtil.mapTypeFromSuper(method.getReturnType(), method.getDeclaringClass(), classNode);
+        final Parameter[] oldParams = method.getParameters();
+        Parameter[] newParams = new Parameter[oldParams.length];
+        for (int i = 0; i < oldParams.length; i++) {
+            ClassNode t = TypeUtil.mapTypeFromSuper(oldParams[i].getType(), method.getDeclaringClass(), classNode);
+            newParams[i] = new Parameter(t, oldParams[i].getName());
+        }
+        ClassNode[] oldExns = method.getExceptions();
+        ClassNode[] newExns = new ClassNode[oldExns.length];
+        for (int i = 0; i < oldExns.length; i++) {
+            newExns[i] = TypeUtil.mapTypeFromSuper(oldExns[i], method.getDeclaringClass(), classNode);
+        }
+
+        final VariableScope scope = new VariableScope();
+        final Statement code = TraitMethodInliner.inline(impl, newParams, scope, directProperties);
+        if (code == null)
+            return false;
+
+        final MethodNode added = classNode.addMethod(method.getName(), Opcodes.ACC_PUBLIC, returnType, newParams, newExns, code);
+        added.setVariableScope(scope);
+        added.addAnnotation(new AnnotationNode(TypeUtil.TYPED));
+        return true;
+    }
+
     private static void createGetterSetter(final ClassNode classNode, MethodNode method, final ClassNode fieldType, Parameter[] parameters, final boolean getter, final String fieldName) {
         classNode.addMethod(method.getName(), ACC_PUBLIC, getter ? fieldType : ClassHelper.VOID_TYPE, parameters, ClassNode.EMPTY_ARRAY,
                 new BytecodeSequence(new BytecodeInstruction() {
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbte.groovypp.compiler;
+
+import org.codehaus.groovy.ast.*;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.*;
+import org.codehaus.groovy.classgen.BytecodeSequence;
+
+import java.util.*;
+
+/**
+ * Copies body of trait's default implementation (static method of $TraitImpl with $self parameter)
+ * so it can be compiled as regular method of implementing class.
+ *
+ * $self becomes this and properties backed by fields of implementing class become direct field accesses,
+ * both for $self.x and for plain references to trait's fields.
+ * Copied variables refer to parameters of the new method and to copied declarations, blocks get
+ * new variable scopes. Only plain statements and expressions are copied - anything else (closures, inner classes,
+ * references to static fields of $TraitImpl) makes inlining impossible and caller keeps forwarding method.
+ */
+class TraitMethodInliner implements ExpressionTransformer {
+    private static final Set<Class> COPYABLE = new HashSet<Class>(Arrays.<Class>asList(
+            VariableExpression.class,
+            ConstantExpression.class,
+            ClassExpression.class,
+            EmptyExpression.class,
+            PropertyExpression.class,
+            AttributeExpression.class,
+            MethodCallExpression.class,
+            StaticMethodCallExpression.class,
+            ConstructorCallExpression.class,
+            ArgumentListExpression.class,
+            TupleExpression.class,
+            BinaryExpression.class,
+            DeclarationExpression.class,
+            BooleanExpression.class,
+            NotExpression.class,
+            TernaryExpression.class,
+            ElvisOperatorExpression.class,
+            CastExpression.class,
+            ListExpression.class,
+            MapExpression.class,
+            MapEntryExpression.class,
+            PostfixExpression.class,
+            PrefixExpression.class,
+            UnaryMinusExpression.class,
+            UnaryPlusExpression.class,
+            BitwiseNegationExpression.class,
+            GStringExpression.class,
+            RangeExpression.class,
+            ArrayExpression.class,
+            ClosureListExpression.class
+    ));
+
+    private final Map<String, String> directProperties;
+
+    // variables of implementation method mapped to their copies
+    private final Map<Variable, Variable> variables = new IdentityHashMap<Variable, Variable>();
+
+    private VariableScope scope;
+
+    private TraitMethodInliner(Map<String, String> directProperties, VariableScope scope) {
+        this.directProperties = directProperties;
+        this.scope = scope;
+    }
+
+    /**
+     * @param impl static implementation method
+     * @param params parameters of the new method, same as parameters of impl except $self
+     * @param scope variable scope of the new method, parameters are declared in it
+     * @param directProperties names of properties of $self, which can be replaced by fields of implementing class
+     * @return copy of the body or null if the body can't be inlined
+     */
+    static Statement inline(MethodNode impl, Parameter[] params, VariableScope scope, Map<String, String> directProperties) {
+        final Statement code = impl.getCode();
+        if (code == null || code instanceof BytecodeSequence || !impl.isStatic())
+            return null;
+
+        final Parameter[] implParams = impl.getParameters();
+        if (implParams.length != params.length + 1)
+            return null;
+
+        final TraitMethodInliner inliner = new TraitMethodInliner(directProperties, scope);
+        for (int i = 0; i != params.length; ++i) {
+            inliner.variables.put(implParams[i + 1], params[i]);
+            scope.putDeclaredVariable(params[i]);
+        }
+
+        try {
+            return inliner.copy(code);
+        }
+        catch (NotCopyable e) {
+            return null;
+        }
+    }
+
+    public Expression transform(Expression exp) {
+        if (exp == null)
+            return null;
+
+        if (!COPYABLE.contains(exp.getClass()))
+            throw NotCopyable.INSTANCE;
+
+        if (exp instanceof VariableExpression) {
+            final VariableExpression ve = (VariableExpression) exp;
+            if (isSelf(ve))
+                return VariableExpression.THIS_EXPRESSION;
+
+            if (ve.isThisExpression() || ve.isSuperExpression())
+                return ve;
+
+            final Variable accessed = ve.getAccessedVariable();
+            final String fieldName = directField(accessed);
+            if (fieldName != null) {
+                final AttributeExpression ae = new AttributeExpression(VariableExpression.THIS_EXPRESSION, new ConstantExpression(fieldName));
+                ae.setSourcePosition(ve);
+                return ae;
+            }
+
+            if (accessed != null && !(accessed instanceof Parameter) && !(accessed instanceof VariableExpression))
+                throw NotCopyable.INSTANCE;
+
+            Variable mapped = null;
+            if (accessed != null) {
+                mapped = variables.get(accessed);
+                if (mapped == null)
+                    throw NotCopyable.INSTANCE;
+            }
+
+            final VariableExpression copy = new VariableExpression(ve.getName(), ve.getOriginType());
+            copy.setAccessedVariable(mapped);
+            copy.setSourcePosition(ve);
+            return copy;
+        }
+
+        if (exp instanceof DeclarationExpression) {
+            final DeclarationExpression de = (DeclarationExpression) exp;
+            if (!(de.getLeftExpression() instanceof VariableExpression))
+                throw NotCopyable.INSTANCE;
+
+            final Expression right = transform(de.getRightExpression());
+
+            final VariableExpression left = (VariableExpression) de.getLeftExpression();
+            final VariableExpression variable = new VariableExpression(left.getName(), left.getOriginType());
+            variable.setAccessedVariable(variable);
+            variable.setSourcePosition(left);
+            variables.put(left, variable);
+            scope.putDeclaredVariable(variable);
+
+            final DeclarationExpression copy = new DeclarationExpression(variable, de.getOperation(), right);
+            copy.setSourcePosition(de);
+            return copy;
+        }
+
+        if (exp.getClass() == PropertyExpression.class) {
+            final PropertyExpression pe = (PropertyExpression) exp;
+            if (pe.getObjectExpression() instanceof VariableExpression && isSelf((VariableExpression) pe.getObjectExpression())
+                    && !pe.isSafe() && !pe.isSpreadSafe()) {
+                final String fieldName = directProperties.get(pe.getPropertyAsString());
+                if (fieldName != null) {
+                    final AttributeExpression ae = new AttributeExpression(VariableExpression.THIS_EXPRESSION, new ConstantExpression(fieldName));
+                    ae.setSourcePosition(pe);
+                    return ae;
+                }
+            }
+        }
+
+        final Expression copy = exp.transformExpression(this);
+        copy.setSourcePosition(exp);
+        if (copy instanceof ClosureListExpression)
+            ((ClosureListExpression) copy).setVariableScope(scope);
+        return copy;
+    }
+
+    /**
+     * Field of implementing class, which replaces reference to trait's property,
+     * or null if the variable is not such a property
+     */
+    private String directField(Variable accessed) {
+        if (accessed instanceof DynamicVariable)
+            return directProperties.get(accessed.getName());
+
+        final ClassNode owner;
+        if (accessed instanceof FieldNode)
+            owner = ((FieldNode) accessed).getOwner();
+        else if (accessed instanceof PropertyNode)
+            owner = ((PropertyNode) accessed).getField().getOwner();
+        else
+            return null;
+
+        // fields of trait are moved to its $TraitImpl
+        if (owner == null || accessed.isInStaticContext() || !owner.getName().endsWith("$TraitImpl"))
+            return null;
+
+        return directProperties.get(accessed.getName());
+    }
+
+    private static boolean isSelf(VariableExpression ve) {
+        return "$self".equals(ve.getName());
+    }
+
+    private Statement copy(Statement s) {
+        if (s == null)
+            return null;
+
+        final Statement res = doCopy(s);
+        res.setSourcePosition(s);
+        res.setStatementLabel(s.getStatementLabel());
+        return res;
+    }
+
+    private VariableScope pushScope() {
+        scope = new VariableScope(scope);
+        return scope;
+    }
+
+    private void popScope() {
+        scope = scope.getParent();
+    }
+
+    private Parameter copyVariable(Parameter variable) {
+        final Parameter copy = new Parameter(variable.getOriginType(), variable.getName());
+        copy.setSourcePosition(variable);
+        variables.put(variable, copy);
+        scope.putDeclaredVariable(copy);
+        return copy;
+    }
+
+    private Statement doCopy(Statement s) {
+        if (s.getClass() == BlockStatement.class) {
+            final BlockStatement block = (BlockStatement) s;
+            final List<Statement> statements = new ArrayList<Statement>(block.getStatements().size());
+            final VariableScope blockScope = pushScope();
+            for (Statement statement : block.getStatements())
+                statements.add(copy(statement));
+            popScope();
+            return new BlockStatement(statements, blockScope);
+        }
+
+        if (s.getClass() == ExpressionStatement.class)
+            return new ExpressionStatement(transform(((ExpressionStatement) s).getExpression()));
+
+        if (s.getClass() == ReturnStatement.class)
+            return new ReturnStatement(transform(((ReturnStatement) s).getExpression()));
+
+        if (s.getClass() == ThrowStatement.class)
+            return new ThrowStatement(transform(((ThrowStatement) s).getExpression()));
+
+        if (s.getClass() == EmptyStatement.class)
+            return new EmptyStatement();
+
+        if (s.getClass() == BreakStatement.class)
+            return new BreakStatement(((BreakStatement) s).getLabel());
+
+        if (s.getClass() == ContinueStatement.class)
+            return new ContinueStatement(((ContinueStatement) s).getLabel());
+
+        if (s.getClass() == IfStatement.class) {
+            final IfStatement is = (IfStatement) s;
+            return new IfStatement((BooleanExpression) transform(is.getBooleanExpression()), copy(is.getIfBlock()), copy(is.getElseBlock()));
+        }
+
+        if (s.getClass() == WhileStatement.class) {
+            final WhileStatement ws = (WhileStatement) s;
+            return new WhileStatement((BooleanExpression) transform(ws.getBooleanExpression()), copy(ws.getLoopBlock()));
+        }
+
+        if (s.getClass() == DoWhileStatement.class) {
+            final DoWhileStatement ws = (DoWhileStatement) s;
+            return new DoWhileStatement((BooleanExpression) transform(ws.getBooleanExpression()), copy(ws.getLoopBlock()));
+        }
+
+        if (s.getClass() == ForStatement.class) {
+            final ForStatement fs = (ForStatement) s;
+            final VariableScope forScope = pushScope();
+            final Parameter variable = fs.getVariable() == ForStatement.FOR_LOOP_DUMMY ?
+                    ForStatement.FOR_LOOP_DUMMY :
+                    copyVariable(fs.getVariable());
+            final Expression collection = transform(fs.getCollectionExpression());
+            final ForStatement res = new ForStatement(variable, collection, copy(fs.getLoopBlock()));
+            popScope();
+            res.setVariableScope(forScope);
+            return res;
+        }
+
+        if (s.getClass() == SynchronizedStatement.class) {
+            final SynchronizedStatement ss = (SynchronizedStatement) s;
+            return new SynchronizedStatement(transform(ss.getExpression()), copy(ss.getCode()));
+        }
+
+        if (s.getClass() == AssertStatement.class) {
+            final AssertStatement as = (AssertStatement) s;
+            return new AssertStatement((BooleanExpression) transform(as.getBooleanExpression()), transform(as.getMessageExpression()));
+        }
+
+        if (s.getClass() == TryCatchStatement.class) {
+            final TryCatchStatement ts = (TryCatchStatement) s;
+            final TryCatchStatement res = new TryCatchStatement(copy(ts.getTryStatement()), copy(ts.getFinallyStatement()));
+            for (CatchStatement cs : ts.getCatchStatements()) {
+                pushScope();
+                final Parameter variable = copyVariable(cs.getVariable());
+                final CatchStatement catchCopy = new CatchStatement(variable, copy(cs.getCode()));
+                popScope();
+                catchCopy.setSourcePosition(cs);
+                res.addCatch(catchCopy);
+            }
+            return res;
+        }
+
+        if (s.getClass() == SwitchStatement.class) {
+            final SwitchStatement ss = (SwitchStatement) s;
+            final List<CaseStatement> cases = new ArrayList<CaseStatement>(ss.getCaseStatements().size());
+            for (CaseStatement cs : ss.getCaseStatements()) {
+                final CaseStatement caseCopy = new CaseStatement(transform(cs.getExpression()), copy(cs.getCode()));
+                caseCopy.setSourcePosition(cs);
+                cases.add(caseCopy);
+            }
+            return new SwitchStatement(transform(ss.getExpression()), cases, copy(ss.getDefaultStatement()));
+        }
+
+        throw NotCopyable.INSTANCE;
+    }
+
+    private static class NotCopyable extends RuntimeException {
+        static final NotCopyable INSTANCE = new NotCopyable();
+
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
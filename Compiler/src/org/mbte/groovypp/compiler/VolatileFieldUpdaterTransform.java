@@ -17,13 +17,11 @@
 package org.mbte.groovypp.compiler;
 
 import com.sun.org.apache.xpath.internal.compiler.OpCodes;
-import org.codehaus.groovy.ast.ClassNode;
-import org.codehaus.groovy.ast.FieldNode;
-import org.codehaus.groovy.ast.ClassHelper;
-import org.codehaus.groovy.ast.expr.StaticMethodCallExpression;
-import org.codehaus.groovy.ast.expr.ArgumentListExpression;
-import org.codehaus.groovy.ast.expr.ClassExpression;
-import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.*;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
 import org.mbte.groovypp.compiler.TypeUtil;
 import org.objectweb.asm.Opcodes;
 
@@ -31,7 +29,11 @@ import java.util.List;
 import java.util.LinkedList;
 
 public class VolatileFieldUpdaterTransform {
+    private static final ClassNode STRIPED_COUNTER = ClassHelper.makeWithoutCaching("groovypp.concurrent.StripedCounter");
+
     public static void addUpdaterForVolatileFields(ClassNode classNode) {
+        addStripedCounters(classNode);
+
         List<FieldNode> toAdd = null;
         for (FieldNode fieldNode : classNode.getFields()) {
             if((fieldNode.getModifiers() & Opcodes.ACC_VOLATILE) != 0) {
@@ -105,4 +107,74 @@ public class VolatileFieldUpdaterTransform {
                 classNode.addField(fieldNode);
             }
     }
+
+    /**
+     * Replaces int and long fields annotated by @Striped with StripedCounter and accessor methods
+     */
+    private static void addStripedCounters(ClassNode classNode) {
+        List<FieldNode> striped = null;
+        for (FieldNode fieldNode : classNode.getFields()) {
+            if (isStriped(fieldNode)) {
+                if (striped == null)
+                    striped = new LinkedList<FieldNode>();
+                striped.add(fieldNode);
+            }
+        }
+
+        if (striped == null)
+            return;
+
+        for (FieldNode fieldNode : striped) {
+            final String name = fieldNode.getName();
+            final ClassNode type = fieldNode.getType();
+            final int isStatic = fieldNode.getModifiers() & Opcodes.ACC_STATIC;
+
+            classNode.removeField(name);
+            final PropertyNode propertyNode = classNode.getProperty(name);
+            if (propertyNode != null)
+                classNode.getProperties().remove(propertyNode);
+
+            final String cellsName = name + "$cells";
+            final FieldNode cells = new FieldNode(cellsName, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC | isStatic,
+                    STRIPED_COUNTER, classNode, new ConstructorCallExpression(STRIPED_COUNTER, ArgumentListExpression.EMPTY_ARGUMENTS));
+            cells.setSourcePosition(fieldNode);
+            classNode.addField(cells);
+
+            final String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+            addAccessor(classNode, fieldNode, "increment" + capitalized, isStatic, ClassHelper.VOID_TYPE, Parameter.EMPTY_ARRAY,
+                    new ExpressionStatement(counterCall(cellsName, "increment", ArgumentListExpression.EMPTY_ARGUMENTS)));
+
+            final Parameter delta = new Parameter(ClassHelper.long_TYPE, "delta");
+            addAccessor(classNode, fieldNode, "add" + capitalized, isStatic, ClassHelper.VOID_TYPE, new Parameter[]{delta},
+                    new ExpressionStatement(counterCall(cellsName, "add", new ArgumentListExpression(new VariableExpression(delta)))));
+
+            final Expression sum = counterCall(cellsName, "sum", ArgumentListExpression.EMPTY_ARGUMENTS);
+            addAccessor(classNode, fieldNode, "get" + capitalized, isStatic, type, Parameter.EMPTY_ARRAY,
+                    new ReturnStatement(type.equals(ClassHelper.long_TYPE) ? sum : new CastExpression(type, sum)));
+        }
+    }
+
+    private static boolean isStriped(FieldNode fieldNode) {
+        if (!fieldNode.getType().equals(ClassHelper.int_TYPE) && !fieldNode.getType().equals(ClassHelper.long_TYPE))
+            return false;
+
+        for (AnnotationNode ann : fieldNode.getAnnotations()) {
+            if (ann.getClassNode().getNameWithoutPackage().equals("Striped"))
+                return true;
+        }
+        return false;
+    }
+
+    private static Expression counterCall(String cellsName, String method, Expression args) {
+        return new MethodCallExpression(new VariableExpression(cellsName), method, args);
+    }
+
+    private static void addAccessor(ClassNode classNode, FieldNode fieldNode, String name, int isStatic, ClassNode returnType, Parameter[] params, Statement code) {
+        if (classNode.getDeclaredMethod(name, params) != null)
+            return;
+
+        final MethodNode method = classNode.addMethod(name, Opcodes.ACC_PUBLIC | isStatic, returnType, params, ClassNode.EMPTY_ARRAY, code);
+        method.setSourcePosition(fieldNode);
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.concurrent.BindLater
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Cost of BindLater completion in request fan-out style usage: many short living BindLaters
+ * with one or two listeners, and chains built by thenApply
+ */
+class BindLaterBenchmark {
+    static final int COUNT = 1000000
+
+    static final int ROUNDS = 5
+
+    static void main(String[] args) {
+        for (int round = 0; round != ROUNDS; ++round) {
+            println "listeners: ${listeners()} ms, thenApply: ${thenApply()} ms, allOf: ${allOf()} ms"
+        }
+    }
+
+    static long listeners() {
+        AtomicLong sum = []
+        long start = System.nanoTime()
+        for (int i = 0; i != COUNT; ++i) {
+            BindLater<Integer> bl = []
+            bl.whenBound { b -> sum.addAndGet(1L) }
+            bl.whenBound { b -> sum.addAndGet(2L) }
+            bl.set(i)
+        }
+        assert sum.get() == 3L * COUNT
+        (long)(System.nanoTime() - start).intdiv(1000000L)
+    }
+
+    static long thenApply() {
+        long start = System.nanoTime()
+        long sum = 0L
+        for (int i = 0; i != COUNT; ++i) {
+            BindLater<Integer> bl = []
+            def mapped = bl.thenApply { Integer v -> v + 1 }
+            bl.set(i)
+            sum += mapped.get()
+        }
+        assert sum > 0L
+        (long)(System.nanoTime() - start).intdiv(1000000L)
+    }
+
+    static long allOf() {
+        long start = System.nanoTime()
+        for (int i = 0; i != COUNT.intdiv(10); ++i) {
+            def all = new BindLater[10]
+            for (int j = 0; j != all.length; ++j)
+                all[j] = new BindLater<Integer>()
+            def joined = BindLater.allOf(all)
+            for (bl in all)
+                bl.set(i)
+            assert joined.get().size() == 10
+        }
+        (long)(System.nanoTime() - start).intdiv(1000000L)
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.concurrent.BindLater
+import groovypp.concurrent.CallLaterExecutors
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Runs TASKS tasks, each blocking for BLOCK_MS, on fixed pool and on thread per task executor
+ * (virtual threads if JVM supports them).
+ *
+ * Tasks block either in BindLater.get (parks via LockSupport) or in Object.wait
+ * inside synchronized block. On virtual threads the latter pins carrier thread, so it scales
+ * no better than a pool with as many threads as there are carriers.
+ */
+class BlockingHandlersBenchmark {
+    static final int TASKS = 10000
+
+    static final long BLOCK_MS = 10L
+
+    static final int ROUNDS = 3
+
+    static void main(String[] args) {
+        println "virtual threads: ${CallLaterExecutors.newVirtualThreadPerTaskExecutor().virtual}"
+
+        int threads = 2 * Runtime.runtime.availableProcessors()
+        measure("fixed pool, BindLater.get", CallLaterExecutors.newFixedThreadPool(threads), false)
+        measure("fixed pool, synchronized wait", CallLaterExecutors.newFixedThreadPool(threads), true)
+        measure("thread per task, BindLater.get", CallLaterExecutors.newVirtualThreadPerTaskExecutor(), false)
+        measure("thread per task, synchronized wait", CallLaterExecutors.newVirtualThreadPerTaskExecutor(), true)
+    }
+
+    static void measure(String name, ExecutorService executor, boolean monitor) {
+        long time = 0
+        for (int round = 0; round != ROUNDS; ++round) {
+            def done = new CountDownLatch(TASKS)
+            long start = System.nanoTime()
+            for (int i = 0; i != TASKS; ++i) {
+                executor.execute {
+                    if (monitor) {
+                        def lock = new Object()
+                        synchronized (lock) {
+                            lock.wait(BLOCK_MS)
+                        }
+                    }
+                    else {
+                        try {
+                            new BindLater().get(BLOCK_MS, TimeUnit.MILLISECONDS)
+                        }
+                        catch (TimeoutException e) {
+                        }
+                    }
+                    done.countDown()
+                }
+            }
+            done.await()
+            time = System.nanoTime() - start
+        }
+        executor.shutdown()
+        println "$name: ${time / 1000000} ms"
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@Typed package benchmarks
+
+import groovypp.concurrent.DivideAndConquerProblemSolver
+import groovypp.concurrent.Lockable
+import groovypp.concurrent.SelfRecurringProblem
+import groovypp.concurrent.WorkStealingPool
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * DivideAndConquerProblemSolver on WorkStealingPool compared with previous implementation
+ * (thread per worker, locked job lists), kept below as LegacyDivideAndConquerSolver.
+ *
+ * Workloads are tree height calculation as in DivideAndConquerTest, fibonacci numbers with trivial leaves
+ * and fibonacci numbers with leaves doing some arithmetic
+ */
+class DivideAndConquerBenchmark {
+    static final int ROUNDS = 5
+
+    static final int WORKERS = Runtime.runtime.availableProcessors()
+
+    static class Node {
+        List<Node> children = []
+    }
+
+    static void main(String[] args) {
+        def random = new Random(17)
+        def tree = createTree(random, 1, 30)
+        def pool = new WorkStealingPool(WORKERS)
+
+        for (int round = 0; round != ROUNDS; ++round) {
+            measure("tree height", pool) { heightProblem(tree) }
+            measure("fib(27)", pool) { fibProblem(27, 0) }
+            measure("fib(20), heavy leaves", pool) { fibProblem(20, 2000) }
+        }
+        pool.shutdown()
+    }
+
+    static void measure(String name, WorkStealingPool pool, Function0<SelfRecurringProblem> problem) {
+        long start = System.nanoTime()
+        def legacy = new LegacyDivideAndConquerSolver(problem.call(), WORKERS).solve()
+        long legacyTime = System.nanoTime() - start
+
+        start = System.nanoTime()
+        def own = new DivideAndConquerProblemSolver(problem.call(), WORKERS).solve()
+        long ownTime = System.nanoTime() - start
+
+        start = System.nanoTime()
+        def shared = new DivideAndConquerProblemSolver(problem.call(), pool).solve()
+        long sharedTime = System.nanoTime() - start
+
+        assert legacy == own && own == shared
+        println "$name: legacy ${legacyTime.intdiv(1000000L)} ms, own pool ${ownTime.intdiv(1000000L)} ms, shared pool ${sharedTime.intdiv(1000000L)} ms"
+    }
+
+    static Node createTree(Random random, int height, int depth) {
+        def node = new Node()
+        int nChildren = (int)(random.nextDouble() * depth / height)
+        for (int i = 0; i != nChildren; ++i)
+            node.children << createTree(random, height + 1, depth)
+        node
+    }
+
+    static SelfRecurringProblem heightProblem(Node node) {
+        [
+            complex : { !node.children.empty },
+            sub     : { node.children.map { heightProblem(it) } },
+            solve   : { 1 },
+            combine : { Collection results ->
+                int max = 0
+                for (r in results)
+                    max = Math.max(max, (Integer)r)
+                max + 1
+            }
+        ]
+    }
+
+    static SelfRecurringProblem fibProblem(int n, int leafWork) {
+        [
+            complex : { n > 1 },
+            sub     : { [fibProblem(n - 1, leafWork), fibProblem(n - 2, leafWork)] },
+            solve   : {
+                long x = n
+                for (int i = 0; i != leafWork; ++i)
+                    x = (x * 6364136223846793005L + 1442695040888963407L) >>> 1
+                leafWork ? (x & 1L) + n : (long)n
+            },
+            combine : { Collection results ->
+                long sum = 0L
+                for (r in results)
+                    sum += (Long)r
+                sum
+            }
+        ]
+    }
+}
+
+@Typed
+class LegacyDivideAndConquerSolver {
+
+  def LegacyDivideAndConquerSolver(SelfRecurringProblem problem, int nWorkers) {
+    workers = (1..nWorkers).map{ new Worker(it - 1) }.asList ()
+
+    // Prevent work stealing happening immediately, distribute the work.
+    root = new Job(problem, null)
+    List<Job> jobs = [root]
+    List<Job> atomics = []
+    while (jobs.size() > 0 && jobs.size() < nWorkers) {
+      jobs = removeAtomic(jobs, atomics)
+      jobs = jobs.map{ job -> job.problem.sub().map{ new Job(it, job) } }.flatten().asList()
+    }
+    for (int i = 0; i < jobs.size(); ++i) workers[i % nWorkers].jobs.addFirst(jobs[i])
+    for (int i = 0; i < atomics.size(); ++i) workers[i % nWorkers].jobs.addFirst(atomics[i])
+  }
+
+  def solve() {
+    workers.map {
+      def t = new Thread(it)
+      t.start()
+      t
+    }.each { it.join() }
+    root.result
+  }
+
+  List<Job> removeAtomic(List<Job> jobs, List atomics) {
+    def result = []
+    for (job in jobs) {
+      (job.problem.complex() ? result : atomics) << job
+    }
+    result
+  }
+
+  class Job {
+    final SelfRecurringProblem problem
+    final Job parent
+    volatile ConcurrentLinkedQueue<Job> children = []
+    volatile Object result
+
+    Job(SelfRecurringProblem problem, Job parent) {
+      this.problem = problem
+      this.parent = parent
+      if (parent) parent.children << this
+    }
+
+    void setResult(Object result) {
+      this.result = result
+      if(parent === this)
+         throw new AssertionError("parent != this")
+      if (parent) {
+        synchronized (parent) {
+          def children = parent.children
+          if (children != null) {
+            if(children.isEmpty())
+              throw new AssertionError("!children.isEmpty()")
+            if (!children.any{it.result == null}) {
+              parent.setResult(problem.combine(children.map{it.result}))
+              parent.children = null
+            }
+          }
+        }
+      }
+    }
+  }
+
+  class Worker implements Runnable{
+    Worker(int num) { this.num = num }
+
+    int num
+
+    // TODO(ven): maybe can do non locking?
+    class JobList extends Lockable {
+      LinkedList<Job> list = []
+
+      def void addFirst(Job e) {
+        withLock {
+          list.addFirst e
+        }
+      }
+
+      Job removeFirst() {
+        withLock {
+          list.isEmpty() ? null : list.removeFirst()
+        }
+      }
+
+      Job removeLast() {
+        withLock {
+          list.isEmpty() ? null : list.removeLast()
+        }
+      }
+    }
+
+    JobList jobs = []
+
+    void run() {
+      Job job = null
+      while (true) {
+        if ((job = jobs.removeFirst()) == null) {
+          // Steal work from someone else.
+          int nWorkers = workers.size()
+          int i = (num + 1) % nWorkers
+          while (i != num) {
+            if ((job = workers[i].jobs.removeLast()) != null) break
+            i = (i + 1) % nWorkers
+          }
+        }
+        if (!job) break
+        if (job.problem.complex()) {
+          job.problem.sub().each {
+            jobs.addFirst(new Job(it, job))
+          }
+        } else {
+          job.result = job.problem.solve()
+        }
+      }
+    }
+  }
+
+  final List<Worker> workers
+  final Job root
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.concurrent.FHashMap
+
+/**
+ * Compares heap footprint and iteration speed of FHashMap and HashMap with the same entries
+ *
+ * Footprint is measured as difference of used heap after full gc, keys and values are shared by all maps
+ */
+class FHashMapMemoryBenchmark {
+    static final int SIZE = 100000
+
+    static final int COPIES = 10
+
+    static final int ROUNDS = 10
+
+    static void main(String[] args) {
+        def keys = new Integer[SIZE]
+        for (int i = 0; i != SIZE; ++i)
+            keys[i] = i * 31
+
+        def maps = new Object[COPIES]
+
+        long base = usedHeap()
+        for (int c = 0; c != COPIES; ++c) {
+            def map = new HashMap<Integer, Integer>()
+            for (int i = 0; i != SIZE; ++i)
+                map.put(keys[i], keys[i])
+            maps[c] = map
+        }
+        report("HashMap", usedHeap() - base)
+        HashMap<Integer, Integer> hashMap = maps[0]
+        maps = new Object[COPIES]
+
+        base = usedHeap()
+        for (int c = 0; c != COPIES; ++c) {
+            def map = FHashMap.emptyMap.asTransient()
+            for (int i = 0; i != SIZE; ++i)
+                map.put(keys[i], keys[i])
+            maps[c] = map.persistent()
+        }
+        report("FHashMap", usedHeap() - base)
+        FHashMap<Integer, Integer> fmap = maps[0]
+
+        measure("HashMap iterate") {
+            long sum = 0
+            for (e in hashMap.entrySet())
+                sum += e.value
+            sum
+        }
+
+        measure("FHashMap iterate") {
+            long sum = 0
+            for (e in fmap)
+                sum += (Integer)e.value
+            sum
+        }
+
+        measure("FHashMap equals") {
+            fmap == (FHashMap)maps[1] ? 1L : 0L
+        }
+    }
+
+    static long usedHeap() {
+        def runtime = Runtime.runtime
+        for (int i = 0; i != 5; ++i) {
+            System.gc()
+            Thread.sleep(100)
+        }
+        runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    static void report(String name, long bytes) {
+        println "$name: ${bytes >> 10} KB, ${bytes / (COPIES * SIZE)} bytes per entry"
+    }
+
+    static void measure(String name, Function0<Long> op) {
+        long time = 0, res = 0
+        for (int round = 0; round != ROUNDS; ++round) {
+            long start = System.nanoTime()
+            res = op.call()
+            time = System.nanoTime() - start
+        }
+        println "$name: ${time / 1000000} ms (checksum $res)"
+    }
+}
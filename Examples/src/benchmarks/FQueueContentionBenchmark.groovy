@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.concurrent.FQueue
+import java.util.concurrent.CountDownLatch
+
+/**
+ * Several threads move elements through shared FQueue.Ref: each removes first element and adds it back as last.
+ *
+ * Prints throughput and the worst removeFirst latency (including failed compareAndSet attempts)
+ * for default and real-time queue. Default queue occasionally reverses its whole input list,
+ * which shows up as latency spikes growing with queue size.
+ */
+class FQueueContentionBenchmark {
+    static final int SIZE = 100000
+
+    static final int OPS = 1000000
+
+    static final int ROUNDS = 10
+
+    static void main(String[] args) {
+        int threads = args.length ? Integer.parseInt(args[0]) : Runtime.runtime.availableProcessors()
+        for (int round = 0; round != ROUNDS; ++round) {
+            boolean last = round == ROUNDS - 1
+            run("FQueue", FQueue.emptyQueue, threads, last)
+            run("real-time FQueue", FQueue.emptyRealTimeQueue, threads, last)
+        }
+    }
+
+    static void run(String name, FQueue<Integer> empty, int threads, boolean print) {
+        def q = empty
+        for (int i = 0; i != SIZE; ++i)
+            q = q + i
+        FQueue.Ref<Integer> ref = [q]
+
+        int perThread = OPS.intdiv(threads)
+        def maxLatency = new long[threads]
+        def done = new CountDownLatch(threads)
+        long start = System.nanoTime()
+        for (int t = 0; t != threads; ++t) {
+            int index = t
+            new Thread({
+                long max = 0
+                for (int i = 0; i != perThread; ++i) {
+                    long opStart = System.nanoTime()
+                    def removed = ref.removeFirst()
+                    long latency = System.nanoTime() - opStart
+                    if (latency > max)
+                        max = latency
+                    ref.addLastAndGet(removed.first)
+                }
+                maxLatency[index] = max
+                done.countDown()
+            }).start()
+        }
+        done.await()
+        long time = System.nanoTime() - start
+
+        if (print) {
+            long max = 0
+            for (l in maxLatency)
+                max = Math.max(max, l)
+            println "$name, $threads threads: ${time / 1000000} ms, worst removeFirst ${max / 1000} us"
+        }
+    }
+}
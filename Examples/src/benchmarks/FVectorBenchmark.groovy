@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.concurrent.FVector
+
+/**
+ * Compares random and sequential access of FVector and ArrayList
+ *
+ * Each measurement is repeated several times to let JIT warm up, last result is printed
+ */
+class FVectorBenchmark {
+    static final int SIZE = 1000000
+
+    static final int ROUNDS = 10
+
+    static void main(String[] args) {
+        def list = new ArrayList<Integer>(SIZE)
+        for (int i = 0; i != SIZE; ++i)
+            list.add(i)
+
+        FVector<Integer> vector = FVector.emptyVector.addAll(list)
+
+        int[] indexes = new int[SIZE]
+        def random = new Random(239)
+        for (int i = 0; i != SIZE; ++i)
+            indexes[i] = random.nextInt(SIZE)
+
+        measure("ArrayList random get") {
+            long sum = 0
+            for (int i = 0; i != SIZE; ++i)
+                sum += list.get(indexes[i])
+            sum
+        }
+
+        measure("FVector random getAt") {
+            long sum = 0
+            for (int i = 0; i != SIZE; ++i)
+                sum += vector[indexes[i]]
+            sum
+        }
+
+        measure("ArrayList sequential get") {
+            long sum = 0
+            for (int i = 0; i != SIZE; ++i)
+                sum += list.get(i)
+            sum
+        }
+
+        measure("FVector sequential getAt") {
+            long sum = 0
+            for (int i = 0; i != SIZE; ++i)
+                sum += vector[i]
+            sum
+        }
+
+        measure("ArrayList iterator") {
+            long sum = 0
+            for (e in list)
+                sum += e
+            sum
+        }
+
+        measure("FVector iterator") {
+            long sum = 0
+            for (e in vector)
+                sum += e
+            sum
+        }
+
+        measure("FVector chunks") {
+            long sum = 0
+            for (chunk in vector.chunkIterator())
+                for (int j = 0; j != chunk.length; ++j)
+                    sum += (Integer)chunk[j]
+            sum
+        }
+
+        measure("FVector foldLeft") {
+            vector.foldLeft(0L) { e, sum -> sum + e }
+        }
+    }
+
+    static void measure(String name, Function0<Long> op) {
+        long time = 0, res = 0
+        for (int round = 0; round != ROUNDS; ++round) {
+            long start = System.nanoTime()
+            res = op.call()
+            time = System.nanoTime() - start
+        }
+        println "$name: ${time / 1000000} ms (checksum $res)"
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.channels.ExecutingChannel
+import groovypp.concurrent.CallLaterExecutors
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+
+/**
+ * Throughput of ExecutingChannel with FQueue based queue and with LinkedMailbox
+ * for different numbers of producer threads and consuming channels.
+ *
+ * Allocation pressure is shown as number and time of garbage collections during the run
+ */
+class MailboxBenchmark {
+    static final int MESSAGES = 1000000
+
+    static final int ROUNDS = 5
+
+    static void main(String[] args) {
+        def pool = CallLaterExecutors.newFixedThreadPool()
+        for (int producers = 1; producers <= 8; producers <<= 1) {
+            for (int consumers = 1; consumers <= 4; consumers <<= 2) {
+                measure("FQueue", pool, producers, consumers, false)
+                measure("LinkedMailbox", pool, producers, consumers, true)
+            }
+        }
+        pool.shutdown()
+    }
+
+    static void measure(String name, Executor pool, int producers, int consumers, boolean linked) {
+        long time = 0, gcCount = 0, gcTime = 0
+        for (int round = 0; round != ROUNDS; ++round) {
+            def done = new CountDownLatch(MESSAGES)
+            def channels = new ExecutingChannel[consumers]
+            for (int c = 0; c != consumers; ++c) {
+                ExecutingChannel channel = [onMessage: { done.countDown() }, executor: pool, linkedMailbox: linked]
+                channels[c] = channel
+            }
+
+            long gcCountBefore = gcCount(), gcTimeBefore = gcTime()
+            long start = System.nanoTime()
+            int perProducer = MESSAGES.intdiv(producers)
+            for (int p = 0; p != producers; ++p) {
+                int first = p
+                new Thread({
+                    for (int i = 0; i != perProducer; ++i)
+                        channels[(first + i) % consumers].post(i)
+                }).start()
+            }
+            done.await()
+            time = System.nanoTime() - start
+            gcCount = gcCount() - gcCountBefore
+            gcTime = gcTime() - gcTimeBefore
+        }
+        println "$name, $producers producers x $consumers channels: ${time / 1000000} ms, $gcCount gc, $gcTime ms in gc"
+    }
+
+    static long gcCount() {
+        long res = 0
+        for (gc in ManagementFactory.garbageCollectorMXBeans)
+            res += gc.collectionCount
+        res
+    }
+
+    static long gcTime() {
+        long res = 0
+        for (gc in ManagementFactory.garbageCollectorMXBeans)
+            res += gc.collectionTime
+        res
+    }
+}
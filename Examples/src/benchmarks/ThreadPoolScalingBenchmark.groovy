@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@Typed package benchmarks
+
+import groovypp.concurrent.FThreadPool
+import groovypp.concurrent.WorkStealingPool
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ExecutorService
+
+/**
+ * Compares throughput of FThreadPool, WorkStealingPool and fixed ThreadPoolExecutor for growing number of threads.
+ *
+ * Each chain is a task, which does a bit of work and submits itself again from the pool thread
+ * (like ExecutingChannel does) until it ran LENGTH times. Chains are started from outside of the pool.
+ * ForkJoinPool is not part of the JDK this library targets, so it is not included.
+ */
+class ThreadPoolScalingBenchmark {
+    static final int CHAINS_PER_THREAD = 16
+
+    static final int LENGTH = 10000
+
+    static final int ROUNDS = 5
+
+    static void main(String[] args) {
+        int max = Runtime.runtime.availableProcessors()
+        for (int threads = 1; threads <= max; threads <<= 1) {
+            def fpool = new FThreadPool(threads)
+            measure("FThreadPool", threads, fpool)
+            fpool.shutdown()
+
+            def wspool = new WorkStealingPool(threads)
+            measure("WorkStealingPool", threads, wspool)
+            wspool.shutdown()
+
+            ExecutorService tpe = Executors.newFixedThreadPool(threads)
+            measure("ThreadPoolExecutor", threads, tpe)
+            tpe.shutdown()
+        }
+    }
+
+    static void measure(String name, int threads, Executor executor) {
+        long time = 0
+        int chains = threads * CHAINS_PER_THREAD
+        for (int round = 0; round != ROUNDS; ++round) {
+            def done = new CountDownLatch(chains)
+            long start = System.nanoTime()
+            for (int c = 0; c != chains; ++c)
+                executor.execute(new Chain(executor: executor, done: done))
+            done.await()
+            time = System.nanoTime() - start
+        }
+        long tasks = (long)chains * LENGTH
+        println "$name, $threads threads: ${time / 1000000} ms, ${(tasks * 1000000000L).intdiv(time)} tasks/s"
+    }
+
+    static class Chain implements Runnable {
+        Executor executor
+        CountDownLatch done
+        int count
+        long sum
+
+        void run() {
+            for (int i = 0; i != 100; ++i)
+                sum += i * count
+            if (++count == LENGTH)
+                done.countDown()
+            else
+                executor.execute(this)
+        }
+    }
+}
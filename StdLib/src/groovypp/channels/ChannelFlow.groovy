@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.channels
+
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+
+/**
+ * Reactive streams interfaces with the same contract as java.util.concurrent.Flow, which is not available
+ * on every JVM we run on.
+ *
+ * When java.util.concurrent.Flow is present (looked up reflectively) toFlow/fromFlow methods adapt
+ * these interfaces to it and back. Adapters call through directly, no signal is queued or moved to other thread.
+ */
+@Typed final class ChannelFlow {
+    static interface Publisher<T> {
+        void subscribe(Subscriber<T> subscriber)
+    }
+
+    static interface Subscriber<T> {
+        void onSubscribe(Subscription subscription)
+
+        void onNext(T item)
+
+        void onError(Throwable throwable)
+
+        void onComplete()
+    }
+
+    static interface Subscription {
+        void request(long n)
+
+        void cancel()
+    }
+
+    private static final Class flowPublisher    = findClass("java.util.concurrent.Flow\$Publisher")
+    private static final Class flowSubscriber   = findClass("java.util.concurrent.Flow\$Subscriber")
+    private static final Class flowSubscription = findClass("java.util.concurrent.Flow\$Subscription")
+
+    private static final Method subscribeMethod   = findMethod(flowPublisher, "subscribe")
+    private static final Method onSubscribeMethod = findMethod(flowSubscriber, "onSubscribe")
+    private static final Method onNextMethod      = findMethod(flowSubscriber, "onNext")
+    private static final Method onErrorMethod     = findMethod(flowSubscriber, "onError")
+    private static final Method onCompleteMethod  = findMethod(flowSubscriber, "onComplete")
+    private static final Method requestMethod     = findMethod(flowSubscription, "request")
+    private static final Method cancelMethod      = findMethod(flowSubscription, "cancel")
+
+    private ChannelFlow() {}
+
+    /**
+     * Whether JVM has java.util.concurrent.Flow
+     */
+    static boolean isAvailable() {
+        flowPublisher != null
+    }
+
+    /**
+     * java.util.concurrent.Flow.Publisher delegating to the publisher
+     */
+    static Object toFlowPublisher(Publisher publisher) {
+        proxy(flowPublisher, publisher) { String name, Object[] args ->
+            publisher.subscribe(fromFlowSubscriber(args[0]))
+        }
+    }
+
+    static <T> Publisher<T> fromFlowPublisher(Object publisher) {
+        check(flowPublisher, publisher)
+        Publisher<T> res = { Subscriber<T> subscriber ->
+            invoke(subscribeMethod, publisher, toFlowSubscriber(subscriber))
+        }
+        res
+    }
+
+    /**
+     * java.util.concurrent.Flow.Subscriber delegating to the subscriber,
+     * for example ChannelFlow.toFlowSubscriber(channel.asSubscriber())
+     */
+    static Object toFlowSubscriber(Subscriber subscriber) {
+        proxy(flowSubscriber, subscriber) { String name, Object[] args ->
+            switch (name) {
+                case "onSubscribe":
+                    subscriber.onSubscribe(fromFlowSubscription(args[0]))
+                    break
+                case "onNext":
+                    subscriber.onNext(args[0])
+                    break
+                case "onError":
+                    subscriber.onError((Throwable)args[0])
+                    break
+                case "onComplete":
+                    subscriber.onComplete()
+                    break
+            }
+            null
+        }
+    }
+
+    static <T> Subscriber<T> fromFlowSubscriber(Object subscriber) {
+        check(flowSubscriber, subscriber)
+        [
+            onSubscribe: { Subscription s -> invoke(onSubscribeMethod, subscriber, toFlowSubscription(s)) },
+            onNext: { T item -> invoke(onNextMethod, subscriber, item) },
+            onError: { Throwable t -> invoke(onErrorMethod, subscriber, t) },
+            onComplete: { -> invoke(onCompleteMethod, subscriber) }
+        ]
+    }
+
+    static Object toFlowSubscription(Subscription subscription) {
+        proxy(flowSubscription, subscription) { String name, Object[] args ->
+            if (name == "request")
+                subscription.request((Long)args[0])
+            else if (name == "cancel")
+                subscription.cancel()
+            null
+        }
+    }
+
+    static Subscription fromFlowSubscription(Object subscription) {
+        check(flowSubscription, subscription)
+        [
+            request: { long n -> invoke(requestMethod, subscription, n) },
+            cancel: { -> invoke(cancelMethod, subscription) }
+        ]
+    }
+
+    private static Object proxy(Class iface, Object target, Function2<String, Object[], Object> handler) {
+        if (iface == null)
+            throw new UnsupportedOperationException("java.util.concurrent.Flow is not available")
+
+        InvocationHandler invocationHandler = { Object proxy, Method method, Object[] args ->
+            if (method.declaringClass == Object) {
+                switch (method.name) {
+                    case "equals":
+                        return proxy === args[0]
+                    case "hashCode":
+                        return System.identityHashCode(proxy)
+                    default:
+                        return "Flow adapter of " + target
+                }
+            }
+            handler.call(method.name, args)
+        }
+        Proxy.newProxyInstance(iface.classLoader, [iface] as Class[], invocationHandler)
+    }
+
+    private static void check(Class iface, Object object) {
+        if (iface == null)
+            throw new UnsupportedOperationException("java.util.concurrent.Flow is not available")
+        if (!iface.isInstance(object))
+            throw new IllegalArgumentException("${object} is not ${iface.name}")
+    }
+
+    private static Object invoke(Method method, Object target, Object ... args) {
+        try {
+            method.invoke(target, args)
+        }
+        catch (InvocationTargetException e) {
+            throw e.cause
+        }
+    }
+
+    private static Method findMethod(Class iface, String name) {
+        if (iface == null)
+            return null
+
+        for (m in iface.methods)
+            if (m.name == name)
+                return m
+        null
+    }
+
+    private static Class findClass(String name) {
+        try {
+            Class.forName(name)
+        }
+        catch (Throwable ignored) {
+            null
+        }
+    }
+}
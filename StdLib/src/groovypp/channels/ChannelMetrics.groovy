@@ -0,0 +1,321 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.channels
+
+import groovypp.concurrent.LatencyHistogram
+import groovypp.concurrent.StripedCounter
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import javax.management.ObjectName
+
+/**
+ * Instrumentation of a channel: posted, processed and failed messages, high water mark of queue depth,
+ * histograms of time spent in queue and of processing time and recently sampled traces.
+ *
+ * Channels, which support metrics (ExecutingChannel, SelectorChannel and Agent), have metrics property,
+ * which is null by default, so not instrumented channel pays only for null check.
+ * Metrics should be set before first message posted.
+ *
+ * Queued channels wrap posted messages to remember posting time and trace, so time in queue is known
+ * when message is taken for processing. Handlers always see original messages.
+ */
+@Typed class ChannelMetrics implements ChannelMetricsMBean {
+    private static final Timer reportTimer = [true]
+
+    private static final ThreadLocal<Random> samplers = []
+
+    private static final class Stamped {
+        final Object message
+        final long postedNanos
+        final MessageTrace trace
+
+        Stamped(Object message, long postedNanos, MessageTrace trace) {
+            this.message = message
+            this.postedNanos = postedNanos
+            this.trace = trace
+        }
+    }
+
+    /**
+     * Copy of metrics taken at some moment
+     */
+    static class Snapshot {
+        final String name
+        final long timeMillis
+        final long posted
+        final long processed
+        final long failed
+        final int queueDepthHighWater
+        final LatencyHistogram timeInQueue
+        final LatencyHistogram processingTime
+
+        Snapshot(ChannelMetrics metrics) {
+            name = metrics.name
+            timeMillis = System.currentTimeMillis()
+            posted = metrics.postedCount
+            processed = metrics.processedCount
+            failed = metrics.failedCount
+            queueDepthHighWater = metrics.queueDepthHighWater
+            timeInQueue = metrics.timeInQueue.copy()
+            processingTime = metrics.processingTime.copy()
+        }
+
+        String toString() {
+            "$name: posted=$posted processed=$processed failed=$failed depth<=$queueDepthHighWater " +
+            "queued(ns) {$timeInQueue} processing(ns) {$processingTime}"
+        }
+    }
+
+    final String name
+
+    /**
+     * One of that many posted messages starts new trace, 0 means no sampling.
+     * Messages posted while processing traced message continue its trace regardless of sampling
+     */
+    final int sampleEvery
+
+    final LatencyHistogram timeInQueue = []
+
+    final LatencyHistogram processingTime = []
+
+    private final StripedCounter posted = []
+
+    private final StripedCounter processed = []
+
+    private final AtomicLong failed = []
+
+    private final AtomicInteger depthHighWater = []
+
+    private final AtomicReferenceArray<MessageTrace> traces
+
+    private final AtomicInteger traceIndex = []
+
+    ChannelMetrics(String name, int sampleEvery = 0, int keepTraces = 16) {
+        if (sampleEvery < 0 || keepTraces <= 0)
+            throw new IllegalArgumentException("sampleEvery should be non-negative and keepTraces positive")
+
+        this.name = name
+        this.sampleEvery = sampleEvery
+        this.traces = new AtomicReferenceArray<MessageTrace>(keepTraces)
+    }
+
+    long getPostedCount() {
+        posted.sum()
+    }
+
+    long getProcessedCount() {
+        processed.sum()
+    }
+
+    long getFailedCount() {
+        failed.get()
+    }
+
+    int getQueueDepthHighWater() {
+        depthHighWater.get()
+    }
+
+    long getTimeInQueueMeanMicros() {
+        micros(timeInQueue.mean)
+    }
+
+    long getTimeInQueue99Micros() {
+        micros(timeInQueue.percentile(99d))
+    }
+
+    long getTimeInQueueMaxMicros() {
+        micros(timeInQueue.max)
+    }
+
+    long getProcessingMeanMicros() {
+        micros(processingTime.mean)
+    }
+
+    long getProcessing99Micros() {
+        micros(processingTime.percentile(99d))
+    }
+
+    long getProcessingMaxMicros() {
+        micros(processingTime.max)
+    }
+
+    /**
+     * Traces recently seen by the channel, latest first
+     */
+    List<MessageTrace> getRecentTraces() {
+        List<MessageTrace> res = []
+        int n = traces.length()
+        int last = traceIndex.get()
+        for (int i = 1; i <= n; ++i) {
+            def t = traces.get(((last - i) & Integer.MAX_VALUE) % n)
+            if (t != null)
+                res << t
+        }
+        res
+    }
+
+    String[] getSampledTraces() {
+        def recent = recentTraces
+        def res = new String[recent.size()]
+        for (int i = 0; i != res.length; ++i)
+            res[i] = recent[i].toString()
+        res
+    }
+
+    /**
+     * Clears all counters. Messages recorded concurrently with reset may be partially counted
+     */
+    void reset() {
+        posted.reset()
+        processed.reset()
+        failed.set(0L)
+        depthHighWater.set(0)
+        timeInQueue.reset()
+        processingTime.reset()
+        for (int i = 0; i != traces.length(); ++i)
+            traces.set(i, null)
+    }
+
+    Snapshot snapshot() {
+        new Snapshot(this)
+    }
+
+    /**
+     * Passes snapshot to the sink every period milliseconds until returned task cancelled
+     */
+    TimerTask report(long period, Function1<Snapshot, Object> sink) {
+        TimerTask task = { sink.call(snapshot()) }
+        reportTimer.schedule(task, period, period)
+        task
+    }
+
+    /**
+     * Registers metrics in platform MBean server under groovypp.channels:type=ChannelMetrics,name=<name>
+     */
+    ObjectName register() {
+        def objectName = objectName()
+        ManagementFactory.platformMBeanServer.registerMBean(this, objectName)
+        objectName
+    }
+
+    void unregister() {
+        ManagementFactory.platformMBeanServer.unregisterMBean(objectName())
+    }
+
+    private ObjectName objectName() {
+        new ObjectName("groovypp.channels:type=ChannelMetrics,name=" + ObjectName.quote(name))
+    }
+
+    /**
+     * Counts posted message and wraps it with posting time and trace. Used by queued channels
+     */
+    Object stamp(Object message) {
+        posted.increment()
+        new Stamped(message, System.nanoTime(), traceForPost())
+    }
+
+    /**
+     * Original message of possibly stamped one
+     */
+    static Object unwrap(Object message) {
+        message instanceof Stamped ? ((Stamped)message).message : message
+    }
+
+    /**
+     * Counts posted message, which is processed synchronously or stamped by the channel itself
+     */
+    void countPosted() {
+        posted.increment()
+    }
+
+    /**
+     * Trace, which message posted by current thread should carry, or null
+     */
+    MessageTrace traceForPost() {
+        def trace = MessageTrace.current
+        if (trace == null && sampleEvery > 0 && sample())
+            trace = MessageTrace.start()
+        trace
+    }
+
+    void recordDepth(int depth) {
+        for (;;) {
+            def d = depthHighWater.get()
+            if (depth <= d || depthHighWater.compareAndSet(d, depth))
+                return
+        }
+    }
+
+    /**
+     * To be called before message processed. Records time in queue and makes message trace current.
+     * Returns previously current trace to be passed to exit()
+     */
+    MessageTrace enter(Object message) {
+        if (message instanceof Stamped) {
+            def s = (Stamped)message
+            return enter(s.postedNanos, s.trace)
+        }
+        enter(0L, traceForPost())
+    }
+
+    /**
+     * Same as enter(Object) for channels, which keep posting time and trace themselves.
+     * postedNanos is 0 if not known
+     */
+    MessageTrace enter(long postedNanos, MessageTrace trace) {
+        long queued = 0L
+        if (postedNanos) {
+            queued = System.nanoTime() - postedNanos
+            timeInQueue.record(queued)
+        }
+
+        if (trace != null) {
+            trace = trace.hop(name, queued)
+            traces.set((traceIndex.getAndIncrement() & Integer.MAX_VALUE) % traces.length(), trace)
+        }
+        MessageTrace.replaceCurrent(trace)
+    }
+
+    /**
+     * To be called after message processed, start is System.nanoTime() when processing started
+     */
+    void exit(MessageTrace previous, long start) {
+        processingTime.record(System.nanoTime() - start)
+        processed.increment()
+        MessageTrace.replaceCurrent(previous)
+    }
+
+    void countFailed() {
+        failed.incrementAndGet()
+    }
+
+    private static long micros(long nanos) {
+        (long)nanos.intdiv(1000L)
+    }
+
+    private boolean sample() {
+        def random = samplers.get()
+        if (random == null) {
+            random = new Random()
+            samplers.set(random)
+        }
+        random.nextInt(sampleEvery) == 0
+    }
+}
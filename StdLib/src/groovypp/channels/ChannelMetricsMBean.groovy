@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.channels
+
+/**
+ * Attributes of ChannelMetrics exported via JMX. Times are in microseconds
+ */
+interface ChannelMetricsMBean {
+    String getName()
+
+    long getPostedCount()
+
+    long getProcessedCount()
+
+    long getFailedCount()
+
+    int getQueueDepthHighWater()
+
+    long getTimeInQueueMeanMicros()
+
+    long getTimeInQueue99Micros()
+
+    long getTimeInQueueMaxMicros()
+
+    long getProcessingMeanMicros()
+
+    long getProcessing99Micros()
+
+    long getProcessingMaxMicros()
+
+    String[] getSampledTraces()
+
+    void reset()
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.channels
+
+import groovypp.concurrent.FQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Channel publishing posted messages to single subscriber as demand allows.
+ *
+ * Messages not requested yet stay in the queue, so with bound set producers get backpressure
+ * from MailboxBound policy (wait, drop or signal via offer()). Signals to subscriber are serialized
+ * and sent by the executor. complete() lets subscriber receive queued messages before onComplete,
+ * fail() signals onError immediately.
+ *
+ * Use ChannelFlow.toFlowPublisher() to get java.util.concurrent.Flow.Publisher
+ */
+@Typed class ChannelPublisher<M> extends QueuedChannel<M> implements ChannelFlow.Publisher<M>, Runnable {
+    private static final ChannelFlow.Subscription rejected = [request: { long n -> }, cancel: { -> }]
+
+    private static class PublisherSubscription<M> implements ChannelFlow.Subscription {
+        final ChannelPublisher<M> publisher
+
+        final ChannelFlow.Subscriber<M> subscriber
+
+        final AtomicLong demand = []
+
+        volatile boolean cancelled
+
+        // no signals to subscriber until onSubscribe returns
+        volatile boolean ready
+
+        volatile Throwable invalidRequest
+
+        PublisherSubscription(ChannelPublisher<M> publisher, ChannelFlow.Subscriber<M> subscriber) {
+            this.publisher = publisher
+            this.subscriber = subscriber
+        }
+
+        void request(long n) {
+            if (n <= 0L)
+                invalidRequest = new IllegalArgumentException("request should be positive, got $n")
+            else {
+                for (;;) {
+                    def d = demand.get()
+                    def updated = d + n
+                    if (updated < 0L)
+                        updated = Long.MAX_VALUE
+                    if (demand.compareAndSet(d, updated))
+                        break
+                }
+            }
+            publisher.drain()
+        }
+
+        void cancel() {
+            cancelled = true
+        }
+    }
+
+    /**
+     * non volatile. should be effectively final
+     */
+    Executor executor
+
+    private volatile PublisherSubscription<M> subscription
+
+    private volatile boolean completed
+
+    private volatile Throwable failure
+
+    // number of drain requests, executor task is scheduled or running while it is positive
+    private final AtomicInteger wip = []
+
+    void subscribe(ChannelFlow.Subscriber<M> subscriber) {
+        PublisherSubscription<M> s = [this, subscriber]
+        if (!subscription.compareAndSet(null, s)) {
+            subscriber.onSubscribe(rejected)
+            subscriber.onError(new IllegalStateException("ChannelPublisher allows only one subscriber"))
+            return
+        }
+
+        subscriber.onSubscribe(s)
+        s.ready = true
+        drain()
+    }
+
+    /**
+     * Subscriber gets onComplete after messages queued so far
+     */
+    void complete() {
+        completed = true
+        drain()
+    }
+
+    /**
+     * Subscriber gets onError after message it is processing now
+     */
+    void fail(Throwable cause) {
+        failure = cause
+        drain()
+    }
+
+    protected void signalPost(FQueue<M> oldQueue, FQueue<M> newQueue) {
+        drain()
+    }
+
+    protected final void onMessage(M message) {
+        subscription.subscriber.onNext(message)
+    }
+
+    private void drain() {
+        if (!wip.getAndIncrement())
+            executor.execute(this)
+    }
+
+    final void run() {
+        def b = bound
+        b?.enterConsumer()
+        try {
+            int missed = 1
+            for (;;) {
+                def s = subscription
+                if (s != null && s.ready && !s.cancelled) {
+                    try {
+                        emit(s)
+                    }
+                    catch (Throwable t) {
+                        // subscriber is not supposed to throw
+                        s.cancelled = true
+                        s.subscriber.onError(t)
+                    }
+                }
+
+                missed = wip.addAndGet(-missed)
+                if (!missed)
+                    return
+            }
+        }
+        finally {
+            b?.exitConsumer()
+        }
+    }
+
+    private void emit(PublisherSubscription<M> s) {
+        long demand = s.demand.get()
+        long emitted = 0L
+        while (emitted != demand) {
+            if (terminate(s, false))
+                return
+
+            def q = queue
+            if (q.empty)
+                break
+
+            def removed = q.removeFirst()
+            if (queue.compareAndSet(q, removed.second)) {
+                released()
+                ++emitted
+                onMessage(removed.first)
+            }
+        }
+
+        if (emitted && demand != Long.MAX_VALUE)
+            s.demand.addAndGet(-emitted)
+
+        terminate(s, queue.empty)
+    }
+
+    private boolean terminate(PublisherSubscription<M> s, boolean drained) {
+        if (s.cancelled)
+            return true
+
+        Throwable error = s.invalidRequest ?: failure
+        if (error == null && !(drained && completed))
+            return false
+
+        s.cancelled = true
+        if (error != null)
+            s.subscriber.onError(error)
+        else
+            s.subscriber.onComplete()
+        true
+    }
+}
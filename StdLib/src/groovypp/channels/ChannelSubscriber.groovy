@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.channels
+
+import groovypp.concurrent.BindLater
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Subscriber posting received items to message channel.
+ *
+ * Requests batch items at start and more when half of the batch is consumed. Items are offered
+ * to ExecutingChannel and QueuedChannel, so with bound set item is consumed only when it got
+ * to the queue or was dropped, which gives backpressure to publisher. Other channels consume items immediately.
+ *
+ * Use ChannelFlow.toFlowSubscriber() to get java.util.concurrent.Flow.Subscriber
+ */
+@Typed class ChannelSubscriber<T> implements ChannelFlow.Subscriber<T>, BindLater.Listener<Boolean> {
+    final MessageChannel<T> channel
+
+    final int batch
+
+    /**
+     * Called when publisher completes
+     */
+    Function0 afterComplete
+
+    /**
+     * Called when publisher fails
+     */
+    Function1<Throwable, Object> afterError
+
+    private final int refill
+
+    private final AtomicInteger consumed = []
+
+    private volatile ChannelFlow.Subscription subscription
+
+    ChannelSubscriber(MessageChannel<T> channel, int batch = 16) {
+        if (batch <= 0)
+            throw new IllegalArgumentException("batch should be positive")
+
+        this.channel = channel
+        this.batch = batch
+        this.refill = Math.max(1, batch >> 1)
+    }
+
+    void onSubscribe(ChannelFlow.Subscription subscription) {
+        if (!this.subscription.compareAndSet(null, subscription)) {
+            subscription.cancel()
+            return
+        }
+        subscription.request(batch)
+    }
+
+    void onNext(T item) {
+        def c = channel
+        if (c instanceof ExecutingChannel)
+            ((ExecutingChannel<T>)c).offer(item).whenBound(this)
+        else if (c instanceof QueuedChannel)
+            ((QueuedChannel<T>)c).offer(item).whenBound(this)
+        else {
+            c.post(item)
+            consume()
+        }
+    }
+
+    void onError(Throwable throwable) {
+        afterError?.call(throwable)
+    }
+
+    void onComplete() {
+        afterComplete?.call()
+    }
+
+    /**
+     * Cancels subscription, items already requested may still arrive
+     */
+    void cancel() {
+        subscription?.cancel()
+    }
+
+    void onBound(BindLater<Boolean> offered) {
+        consume()
+    }
+
+    private void consume() {
+        for (;;) {
+            def c = consumed.get()
+            if (c + 1 < refill) {
+                if (consumed.compareAndSet(c, c + 1))
+                    return
+            }
+            else if (consumed.compareAndSet(c, 0)) {
+                subscription.request(refill)
+                return
+            }
+        }
+    }
+}
@@ -18,8 +18,12 @@ package groovypp.channels
 
 import java.util.concurrent.Executor
 
+import groovypp.concurrent.FList
 import groovypp.concurrent.FQueue
+import groovypp.concurrent.LinkedMailbox
+import groovypp.concurrent.BindLater
 import groovypp.concurrent.CallLater
+import groovypp.concurrent.CallLaterExecutors
 
 /**
  * Channel, which asynchronously schedule incoming messages for processing.
@@ -30,6 +34,45 @@ import groovypp.concurrent.CallLater
 
     protected volatile FQueue<M> queue = FQueue.emptyQueue
 
+    /**
+     * Empty queue, which incoming messages are added to
+     */
+    protected FQueue<M> emptyQueue = FQueue.emptyQueue
+
+    /**
+     * If not null, messages are posted to this mailbox instead of the queue
+     */
+    protected LinkedMailbox<M> mailbox
+
+    /**
+     * Messages posted by postFirst to linked mailbox, latest first.
+     * Consumer delivers them before next message of the mailbox
+     */
+    private volatile FList<M> urgent = FList.emptyList
+
+    // put to linked mailbox by postFirst to make sure consumer is scheduled
+    private static final Object URGENT = new Object()
+
+    /**
+     * If not null, limits size of the queue. Not supported with linked mailbox
+     *
+     * non volatile. should be effectively final
+     */
+    MailboxBound<M> bound
+
+    void setBound(MailboxBound<M> bound) {
+        if (bound != null && mailbox != null)
+            throw new IllegalStateException("bound is not supported by linked mailbox")
+        this.bound = bound
+    }
+
+    /**
+     * If not null, collects metrics and traces of the channel
+     *
+     * non volatile. should be effectively final
+     */
+    ChannelMetrics metrics
+
     /**
      * non volatile. should be effectively final
      */
@@ -40,6 +83,84 @@ import groovypp.concurrent.CallLater
      */
     boolean  runFair
 
+    /**
+     * Batched mode: if positive, no more than quantum messages are processed per activation,
+     * after that the channel schedules itself again. Takes precedence over runFair
+     *
+     * non volatile. should be effectively final
+     */
+    int quantum
+
+    /**
+     * Batched mode: if positive, number of messages processed per activation is adapted
+     * (but not above quantum if it is set) so that activation takes about that many microseconds.
+     * Cost of a message is measured per activation, as moving average
+     *
+     * non volatile. should be effectively final
+     */
+    long quantumMicros
+
+    // messages per activation in batched mode, 0 until first activation
+    private int batchLimit
+
+    // moving average of message processing time in batched mode
+    private long messageNanos
+
+    /**
+     * Selects queue implementation, for example FQueue.emptyRealTimeQueue to avoid occasional O(n)
+     * work in runFair under contention. Should be called before first message posted
+     */
+    void setEmptyQueue(FQueue<M> emptyQueue) {
+        this.emptyQueue = emptyQueue
+        queue = emptyQueue
+    }
+
+    /**
+     * Selects linked mailbox, where post costs one getAndSet regardless of contention,
+     * instead of persistent queue. Should be called before first message posted
+     */
+    void setLinkedMailbox(boolean linked) {
+        if (linked && bound != null)
+            throw new IllegalStateException("bound is not supported by linked mailbox")
+        mailbox = linked ? new LinkedMailbox<M>() : null
+    }
+
+    boolean isLinkedMailbox() {
+        mailbox != null
+    }
+
+    /**
+     * Number of queued messages, -1 for linked mailbox
+     */
+    int getQueueDepth() {
+        if (mailbox != null)
+            return -1
+        def q = queue
+        q === busyEmptyQueue ? 0 : q.size()
+    }
+
+    /**
+     * Number of messages dropped or conflated because of bound
+     */
+    long getDroppedCount() {
+        bound == null ? 0L : bound.droppedCount
+    }
+
+    /**
+     * Posts message and returns BindLater bound to true when message got to the queue
+     * or to false if it was dropped. Without bound it is the same as post
+     */
+    final BindLater<Boolean> offer(M message) {
+        def result = new BindLater<Boolean>()
+        if (bound != null)
+            postBounded(metrics == null ? message : (M)metrics.stamp(message), result)
+        else {
+            post(message)
+            result.set(true)
+        }
+        result
+    }
+
     /**
      * Special tag saying that processing thread(reader) is processing last message in the queue.
      * This is kind of protocol between writers to QueuedChannel and reader.
@@ -47,10 +168,31 @@ import groovypp.concurrent.CallLater
     protected static final FQueue busyEmptyQueue = FQueue.emptyQueue + null
 
     final void post(M message) {
+        def mt = metrics
+        if (mt != null)
+            message = (M)mt.stamp(message)
+
+        def mb = mailbox
+        if (mb != null) {
+            if (mb.add(message))
+                executor.execute(this)
+            return
+        }
+
+        if (bound != null) {
+            postBounded(message, null)
+            return
+        }
+
+        enqueue(message)
+    }
+
+    private void enqueue(M message) {
         for (;;) {
             def oldQueue = queue
-            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addLast(message)
+            def newQueue = (oldQueue === busyEmptyQueue ? emptyQueue : oldQueue).addLast(message)
             if (queue.compareAndSet(oldQueue, newQueue)) {
+                metrics?.recordDepth(newQueue.size())
                 if(oldQueue.empty)
                     executor.execute(this)
                 return
@@ -58,11 +200,90 @@ import groovypp.concurrent.CallLater
         }
     }
 
+    private void postBounded(M message, BindLater<Boolean> result) {
+        def b = bound
+        for (;;) {
+            def oldQueue = queue
+            def base = oldQueue === busyEmptyQueue ? emptyQueue : oldQueue
+            // with SIGNAL message can not overtake messages put aside before it
+            def newQueue = b.overflow == MailboxBound.Overflow.SIGNAL && b.hasPending() ? null : b.add(base, message)
+            if (newQueue == null && b.admitsOverflow())
+                newQueue = base.addLast(message)
+            if (newQueue == null) {
+                if (b.handleOverflow(message, result, { queueDepth >= b.capacity }))
+                    continue
+
+                // consumer might free the space before message was put aside
+                if (b.overflow == MailboxBound.Overflow.SIGNAL)
+                    drainPending()
+                return
+            }
+
+            if (queue.compareAndSet(oldQueue, newQueue)) {
+                b.added(base, newQueue)
+                metrics?.recordDepth(newQueue.size())
+                result?.set(true)
+                if(oldQueue.empty)
+                    executor.execute(this)
+                return
+            }
+        }
+    }
+
+    /**
+     * Called after message taken from the queue
+     */
+    private void released() {
+        def b = bound
+        if (b != null) {
+            b.released()
+            if (b.hasPending())
+                drainPending()
+        }
+    }
+
+    private void drainPending() {
+        def b = bound
+        // pending messages are moved to the queue by one thread at a time to keep their order
+        synchronized (b) {
+            while (queueDepth < b.capacity) {
+                // message stays pending until it is in the queue, so producers keep routing new messages after it
+                def p = b.peekPending()
+                if (p == null)
+                    return
+                enqueue(p.first)
+                b.pollPending()
+                p.second?.set(true)
+            }
+        }
+    }
+
+    /**
+     * Puts message in front of the queue. Bound is not applied: message is never dropped or blocked
+     * and may exceed capacity
+     */
     final void postFirst(M message) {
+        def mt = metrics
+        if (mt != null)
+            message = (M)mt.stamp(message)
+
+        def mb = mailbox
+        if (mb != null) {
+            for (;;) {
+                def u = urgent
+                if (urgent.compareAndSet(u, u + message))
+                    break
+            }
+            if (mb.add((M)URGENT))
+                executor.execute(this)
+            return
+        }
+
         for (;;) {
             def oldQueue = queue
-            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addFirst(message)
+            def newQueue = (oldQueue === busyEmptyQueue ? emptyQueue : oldQueue).addFirst(message)
             if (queue.compareAndSet(oldQueue, newQueue)) {
+                metrics?.recordDepth(newQueue.size())
                 if(oldQueue.empty)
                     executor.execute(this)
                 return
@@ -71,7 +292,121 @@ import groovypp.concurrent.CallLater
     }
 
     final void run() {
-        runFair ? runFair () : runNonfair ()
+        if (mailbox != null) {
+            runMailbox ()
+            return
+        }
+
+        def b = bound
+        b?.enterConsumer()
+        try {
+            if (quantum > 0 || quantumMicros > 0L)
+                runBatched ()
+            else
+                // with thread per task executor rescheduling after every message only costs new thread
+                runFair && !CallLaterExecutors.isThreadPerTask(executor) ? runFair () : runNonfair ()
+        }
+        finally {
+            b?.exitConsumer()
+        }
+    }
+
+    private void runMailbox () {
+        def mb = mailbox
+        boolean batched = quantum > 0 || quantumMicros > 0L
+        int limit = batched ?
+            (batchLimit ?: (quantum > 0 ? quantum : 1)) :
+            runFair && !CallLaterExecutors.isThreadPerTask(executor) ? 1 : Integer.MAX_VALUE
+        long start = quantumMicros > 0L ? System.nanoTime() : 0L
+        int processed = 0
+        for (;;) {
+            processed += deliverUrgent()
+            def message = mb.first
+            if (message !== URGENT) {
+                deliver message
+                ++processed
+            }
+            if (!mb.advance())
+                break
+
+            if (processed >= limit) {
+                if (batched)
+                    adaptQuantum(start, processed)
+                executor.execute this
+                return
+            }
+        }
+        if (batched)
+            adaptQuantum(start, Math.max(processed, 1))
+    }
+
+    private int deliverUrgent () {
+        int delivered = 0
+        for (;;) {
+            def u = urgent
+            if (u.empty)
+                return delivered
+            if (urgent.compareAndSet(u, u.tail)) {
+                deliver u.head
+                ++delivered
+            }
+        }
+    }
+
+    private void runBatched () {
+        int limit = batchLimit ?: (quantum > 0 ? quantum : 1)
+        long start = quantumMicros > 0L ? System.nanoTime() : 0L
+        int processed = 0
+        for (;;) {
+            def q = queue
+            def removed = q.removeFirst()
+            if (q.size() == 1) {
+                if (queue.compareAndSet(q, busyEmptyQueue)) {
+                    released()
+                    deliver removed.first
+                    ++processed
+                    if (queue.compareAndSet(busyEmptyQueue, emptyQueue)) {
+                        adaptQuantum(start, processed)
+                        return
+                    }
+
+                    // new messages came while we were processing
+                    if (processed < limit)
+                        continue
+
+                    adaptQuantum(start, processed)
+                    executor.execute this
+                    return
+                }
+            }
+            else {
+                if (queue.compareAndSet(q, removed.second)) {
+                    released()
+                    deliver removed.first
+                    if (++processed < limit)
+                        continue
+
+                    adaptQuantum(start, processed)
+                    executor.execute this
+                    return
+                }
+            }
+        }
+    }
+
+    private void adaptQuantum (long start, int processed) {
+        if (quantumMicros <= 0L) {
+            batchLimit = quantum
+            return
+        }
+
+        long perMessage = (long)(System.nanoTime() - start).intdiv(processed)
+        messageNanos = messageNanos ? (messageNanos * 7L + perMessage) >> 3 : perMessage
+
+        long fit = (long)(quantumMicros * 1000L).intdiv(Math.max(messageNanos, 1L))
+        if (quantum > 0 && fit > quantum)
+            fit = quantum
+        batchLimit = (int)Math.min(Math.max(fit, 1L), (long)Integer.MAX_VALUE)
     }
 
     private void runFair () {
@@ -80,8 +415,9 @@ import groovypp.concurrent.CallLater
             def removed = q.removeFirst()
             if (q.size() == 1) {
                 if (queue.compareAndSet(q, busyEmptyQueue)) {
-                    onMessage removed.first
-                    if (!queue.compareAndSet(busyEmptyQueue, FQueue.emptyQueue)) {
+                    released()
+                    deliver removed.first
+                    if (!queue.compareAndSet(busyEmptyQueue, emptyQueue)) {
                         executor.execute this
                     }
                     return
@@ -89,7 +425,8 @@ import groovypp.concurrent.CallLater
             }
             else {
                 if (queue.compareAndSet(q, removed.second)) {
-                    onMessage removed.first
+                    released()
+                    deliver removed.first
                     executor.execute this
                     return
                 }
@@ -101,10 +438,11 @@ import groovypp.concurrent.CallLater
         for (;;) {
             def q = queue
             if (queue.compareAndSet(q, busyEmptyQueue)) {
+                released()
                 for(m in q) {
-                    onMessage m
+                    deliver m
                 }
-                if(!queue.compareAndSet(busyEmptyQueue, FQueue.emptyQueue)) {
+                if(!queue.compareAndSet(busyEmptyQueue, emptyQueue)) {
                     continue
                 }
                 break
@@ -112,6 +450,27 @@ import groovypp.concurrent.CallLater
         }
     }
 
+    private void deliver(M message) {
+        def mt = metrics
+        if (mt == null) {
+            onMessage message
+            return
+        }
+
+        def previous = mt.enter(message)
+        long start = System.nanoTime()
+        try {
+            onMessage((M)ChannelMetrics.unwrap(message))
+        }
+        catch (Throwable t) {
+            mt.countFailed()
+            throw t
+        }
+        finally {
+            mt.exit(previous, start)
+        }
+    }
+
     protected void onMessage(M message) {
         if(message instanceof ExecuteCommand) {
             ((ExecuteCommand)message).run ()
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.BindLater
+import groovypp.concurrent.FQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Capacity of channel queue and policy for messages posted to full queue.
+ *
+ * Capacity is checked against the same queue snapshot, which is then compareAndSet by producer, so it is never
+ * exceeded with DROP_NEWEST, DROP_OLDEST and CONFLATE. Messages let in after BLOCK or SIGNAL waiting
+ * may exceed it by number of concurrently released producers.
+ *
+ * Two kinds of messages bypass the capacity check:
+ * messages of postFirst (control commands of scheduleFirst, which can't be dropped or delayed)
+ * and BLOCK messages posted by the consumer thread to its own channel, for example by onMessage or by pending
+ * calls of Agent, because nobody else would free the space. Only such direct self posts are recognized -
+ * consumers of two full BLOCK channels posting to each other still deadlock.
+ */
+@Typed class MailboxBound<M> {
+    static enum Overflow {
+        /**
+         * producer waits until consumer takes a message, except consumer thread itself, whose message is admitted
+         */
+        BLOCK,
+
+        /**
+         * posted message is dropped
+         */
+        DROP_NEWEST,
+
+        /**
+         * oldest queued message is dropped
+         */
+        DROP_OLDEST,
+
+        /**
+         * queued message with the same key is replaced by posted one, which goes to the end of the queue.
+         * If there is no such message oldest one is dropped. Costs O(queue size) per message
+         */
+        CONFLATE,
+
+        /**
+         * message is put aside and BindLater returned by offer() is bound when message gets to the queue
+         */
+        SIGNAL
+    }
+
+    final int capacity
+
+    final Overflow overflow
+
+    /**
+     * Key of message for CONFLATE policy
+     */
+    final Function1<M, Object> conflationKey
+
+    private final AtomicLong dropped = []
+
+    private final ConcurrentLinkedQueue<Pair<M, BindLater<Boolean>>> pending = []
+
+    private final Object lock = new Object()
+
+    private volatile int blocked
+
+    // thread delivering messages of the channel now
+    private volatile Thread consumer
+
+    MailboxBound(int capacity, Overflow overflow, Function1<M, Object> conflationKey = null) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity should be positive")
+        if (overflow == Overflow.CONFLATE && conflationKey == null)
+            throw new IllegalArgumentException("CONFLATE policy needs conflationKey")
+
+        this.capacity = capacity
+        this.overflow = overflow
+        this.conflationKey = conflationKey
+    }
+
+    /**
+     * Number of messages dropped or replaced by conflation
+     */
+    long getDroppedCount() {
+        dropped.get()
+    }
+
+    /**
+     * Number of messages put aside by SIGNAL policy
+     */
+    int getPendingCount() {
+        pending.size()
+    }
+
+    /**
+     * Queue with message added or null if queue is full and message has to be passed to handleOverflow()
+     */
+    FQueue<M> add(FQueue<M> queue, M message) {
+        if (overflow == Overflow.CONFLATE) {
+            // messages of instrumented channel are stamped
+            def key = conflationKey.call((M)ChannelMetrics.unwrap(message))
+            for (m in queue) {
+                if (conflationKey.call((M)ChannelMetrics.unwrap(m)) == key)
+                    return queue.remove(m).addLast(message)
+            }
+        }
+
+        if (queue.size() < capacity)
+            return queue.addLast(message)
+
+        overflow == Overflow.DROP_OLDEST || overflow == Overflow.CONFLATE ?
+            queue.removeFirst().second.addLast(message) :
+            null
+    }
+
+    /**
+     * To be called after queue returned by add() successfully replaced previous one
+     */
+    void added(FQueue<M> before, FQueue<M> after) {
+        if (after.size() <= before.size())
+            dropped.incrementAndGet()
+    }
+
+    /**
+     * True if message, which did not fit in to the queue, should be queued anyway instead of handleOverflow():
+     * BLOCK producer is the consumer of the channel and waiting would deadlock it
+     */
+    boolean admitsOverflow() {
+        overflow == Overflow.BLOCK && consumer === Thread.currentThread()
+    }
+
+    /**
+     * To be called by consumer before it starts delivering messages
+     */
+    void enterConsumer() {
+        consumer = Thread.currentThread()
+    }
+
+    /**
+     * To be called by consumer after it stopped delivering messages.
+     * Channel may be already rescheduled to other thread, which stays the consumer
+     */
+    void exitConsumer() {
+        consumer.compareAndSet(Thread.currentThread(), null)
+    }
+
+    /**
+     * Handles message, which did not fit in to the queue. Returns true if producer should try again
+     *
+     * @param result bound to false if message dropped, to true if it got to the queue later; may be null
+     * @param full checks if queue is still full
+     */
+    boolean handleOverflow(M message, BindLater<Boolean> result, Function0<Boolean> full) {
+        switch (overflow) {
+            case Overflow.BLOCK:
+                synchronized (lock) {
+                    blocked++
+                    try {
+                        // consumer reads blocked after taking message, so either we see free space or it notifies us
+                        if (full.call())
+                            lock.wait()
+                    }
+                    finally {
+                        blocked--
+                    }
+                }
+                return true
+
+            case Overflow.SIGNAL:
+                pending.add(new Pair<M, BindLater<Boolean>>(message, result))
+                return false
+
+            default:
+                dropped.incrementAndGet()
+                result?.set(false)
+                return false
+        }
+    }
+
+    /**
+     * To be called by consumer after message taken from the queue
+     */
+    void released() {
+        if (blocked) {
+            synchronized (lock) {
+                lock.notifyAll()
+            }
+        }
+    }
+
+    /**
+     * Removes and returns oldest message put aside by SIGNAL policy or null
+     */
+    Pair<M, BindLater<Boolean>> pollPending() {
+        pending.poll()
+    }
+
+    /**
+     * Oldest message put aside by SIGNAL policy or null
+     */
+    Pair<M, BindLater<Boolean>> peekPending() {
+        pending.peek()
+    }
+
+    boolean hasPending() {
+        !pending.empty
+    }
+}
@@ -78,6 +78,13 @@ import java.util.concurrent.Executor
         ]
     }
 
+    /**
+     * Subscriber posting received items to this channel
+     */
+    final ChannelSubscriber<T> asSubscriber(int batch = 16) {
+        new ChannelSubscriber<T>(this, batch)
+    }
+
     static class ReplyRequiringMessage {
         MessageChannel replyTo
     }
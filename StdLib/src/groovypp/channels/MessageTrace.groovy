@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.channels
+
+import groovypp.concurrent.FList
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Path of sampled message through instrumented channels.
+ *
+ * Trace is started when ChannelMetrics samples posted message and is carried by the message.
+ * While the message is processed trace is current for processing thread, so messages posted by the handler
+ * continue the same trace. Traces are immutable, every hop creates new one sharing previous hops
+ */
+@Typed final class MessageTrace {
+    private static final AtomicLong ids = []
+
+    private static final ThreadLocal<MessageTrace> current = []
+
+    static class Hop {
+        final String channel
+
+        /**
+         * Time spent in channel queue, 0 for channels without queue
+         */
+        final long queuedNanos
+
+        Hop(String channel, long queuedNanos) {
+            this.channel = channel
+            this.queuedNanos = queuedNanos
+        }
+
+        String toString() {
+            queuedNanos ? "$channel(${queuedNanos.intdiv(1000L)}us)" : channel
+        }
+    }
+
+    final long id
+
+    // latest hop first
+    private final FList<Hop> hops
+
+    private MessageTrace(long id, FList<Hop> hops) {
+        this.id = id
+        this.hops = hops
+    }
+
+    static MessageTrace start() {
+        new MessageTrace(ids.incrementAndGet(), FList.emptyList)
+    }
+
+    /**
+     * Trace of message processed by current thread or null
+     */
+    static MessageTrace getCurrent() {
+        current.get()
+    }
+
+    /**
+     * Makes trace current and returns previously current one
+     */
+    static MessageTrace replaceCurrent(MessageTrace trace) {
+        def previous = current.get()
+        if (previous !== trace)
+            current.set(trace)
+        previous
+    }
+
+    MessageTrace hop(String channel, long queuedNanos) {
+        new MessageTrace(id, hops + new Hop(channel, queuedNanos))
+    }
+
+    /**
+     * Hops from the first one
+     */
+    List<Hop> getPath() {
+        List<Hop> res = []
+        for (h in hops.reverse())
+            res << h
+        res
+    }
+
+    long getQueuedNanos() {
+        long res = 0L
+        for (h in hops)
+            res += h.queuedNanos
+        res
+    }
+
+    String toString() {
+        def sb = new StringBuilder("trace#").append(id).append(':')
+        for (h in hops.reverse())
+            sb.append(' ').append(h)
+        sb.toString()
+    }
+}
@@ -16,6 +16,7 @@
 
 package groovypp.channels
 
+import groovypp.concurrent.BindLater
 import groovypp.concurrent.FQueue
 
 /**
@@ -31,7 +32,54 @@ import groovypp.concurrent.FQueue
      */
     protected static final FQueue busyEmptyQueue = FQueue.emptyQueue + null
 
+    /**
+     * If not null, limits size of the queue. Subclasses taking messages from the queue should call released()
+     * and bracket delivery with bound.enterConsumer()/exitConsumer()
+     *
+     * non volatile. should be effectively final
+     */
+    MailboxBound<M> bound
+
+    /**
+     * Number of queued messages
+     */
+    int getQueueDepth() {
+        def q = queue
+        q === busyEmptyQueue ? 0 : q.size()
+    }
+
+    /**
+     * Number of messages dropped or conflated because of bound
+     */
+    long getDroppedCount() {
+        bound == null ? 0L : bound.droppedCount
+    }
+
+    /**
+     * Posts message and returns BindLater bound to true when message got to the queue
+     * or to false if it was dropped. Without bound it is the same as post
+     */
+    final BindLater<Boolean> offer(M message) {
+        def result = new BindLater<Boolean>()
+        if (bound != null)
+            postBounded(message, result)
+        else {
+            post(message)
+            result.set(true)
+        }
+        result
+    }
+
     final void post(M message) {
+        if (bound != null) {
+            postBounded(message, null)
+            return
+        }
+
+        enqueue(message)
+    }
+
+    private void enqueue(M message) {
         for (;;) {
             def oldQueue = queue
             def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue) + message
@@ -42,6 +90,64 @@ import groovypp.concurrent.FQueue
         }
     }
 
+    private void postBounded(M message, BindLater<Boolean> result) {
+        def b = bound
+        for (;;) {
+            def oldQueue = queue
+            def base = oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue
+            // with SIGNAL message can not overtake messages put aside before it
+            def newQueue = b.overflow == MailboxBound.Overflow.SIGNAL && b.hasPending() ? null : b.add(base, message)
+            if (newQueue == null && b.admitsOverflow())
+                newQueue = base + message
+            if (newQueue == null) {
+                if (b.handleOverflow(message, result, { queueDepth >= b.capacity }))
+                    continue
+
+                // consumer might free the space before message was put aside
+                if (b.overflow == MailboxBound.Overflow.SIGNAL)
+                    released()
+                return
+            }
+
+            if (queue.compareAndSet(oldQueue, newQueue)) {
+                b.added(base, newQueue)
+                result?.set(true)
+                signalPost(oldQueue, newQueue)
+                return
+            }
+        }
+    }
+
+    /**
+     * To be called by subclasses after message taken from the queue, when queue is bounded
+     */
+    protected final void released() {
+        def b = bound
+        if (b == null)
+            return
+
+        b.released()
+        if (!b.hasPending())
+            return
+
+        // pending messages are moved to the queue by one thread at a time to keep their order
+        synchronized (b) {
+            while (queueDepth < b.capacity) {
+                // message stays pending until it is in the queue, so producers keep routing new messages after it
+                def p = b.peekPending()
+                if (p == null)
+                    return
+                enqueue(p.first)
+                b.pollPending()
+                p.second?.set(true)
+            }
+        }
+    }
+
+    /**
+     * Puts message in front of the queue. Bound is not applied: message is never dropped or blocked
+     * and may exceed capacity
+     */
     final void postFirst(M message) {
         for (;;) {
             def oldQueue = queue
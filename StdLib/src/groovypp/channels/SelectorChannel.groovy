@@ -25,7 +25,37 @@ package groovypp.channels
  */
 @Typed abstract class SelectorChannel<M> extends MessageChannel<M> {
 
+  /**
+   * If not null, collects metrics of the channel. Time in queue is not applicable, processing time includes
+   * posting to all selected channels
+   *
+   * non volatile. should be effectively final
+   */
+  ChannelMetrics metrics
+
   final void post(M message) {
+    def mt = metrics
+    if (mt == null) {
+      forward(message)
+      return
+    }
+
+    mt.countPosted()
+    def previous = mt.enter(message)
+    long start = System.nanoTime()
+    try {
+      forward(message)
+    }
+    catch (Throwable t) {
+      mt.countFailed()
+      throw t
+    }
+    finally {
+      mt.exit(previous, start)
+    }
+  }
+
+  private void forward(M message) {
     for (c in selectInterested(message))
       c.post(message)
   }
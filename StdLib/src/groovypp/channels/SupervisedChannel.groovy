@@ -136,6 +136,7 @@ import groovypp.concurrent.FList
             doOnMessage(message)
         }
         catch (Throwable cause) {
+            metrics?.countFailed()
             cause.printStackTrace()
             crash(cause)
         }
@@ -16,6 +16,9 @@
 
 package groovypp.concurrent
 
+import groovypp.channels.ChannelMetrics
+import groovypp.channels.MailboxBound
+import groovypp.channels.MessageTrace
 import java.util.concurrent.Executor
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -40,6 +43,11 @@ import java.util.concurrent.atomic.AtomicInteger
 
     private Runnable andContinue
 
+    // set when agent has metrics
+    private long postedNanos
+
+    private MessageTrace trace
+
     Object clone() {
       super.clone()
     }
@@ -49,6 +57,51 @@ import java.util.concurrent.atomic.AtomicInteger
 
   protected volatile FQueue<Operation<T>> queue = FQueue.emptyQueue
 
+  protected FQueue<Operation<T>> emptyQueue = FQueue.emptyQueue
+
+  // if not null, operations are scheduled via this mailbox instead of the queue
+  protected LinkedMailbox<Operation<T>> mailbox
+
+  /**
+   * If not null, limits number of scheduled operations. All policies except SIGNAL are supported.
+   * Not supported with linked mailbox
+   *
+   * non volatile. should be effectively final
+   */
+  MailboxBound<Operation<T>> bound
+
+  void setBound(MailboxBound<Operation<T>> bound) {
+    if (bound?.overflow == MailboxBound.Overflow.SIGNAL)
+      throw new IllegalArgumentException("SIGNAL policy is not supported by Agent")
+    if (bound != null && mailbox != null)
+      throw new IllegalStateException("bound is not supported by linked mailbox")
+    this.bound = bound
+  }
+
+  /**
+   * If not null, collects metrics of the agent, operations are counted as messages
+   *
+   * non volatile. should be effectively final
+   */
+  ChannelMetrics metrics
+
+  /**
+   * Number of scheduled operations, -1 for linked mailbox
+   */
+  int getQueueDepth() {
+    if (mailbox != null)
+      return -1
+    def q = queue
+    q === busyEmptyQueue ? 0 : q.size()
+  }
+
+  /**
+   * Number of operations dropped because of bound
+   */
+  long getDroppedCount() {
+    bound == null ? 0L : bound.droppedCount
+  }
+
   final Executor executor
 
   Agent(T ref = null, Executor executor) {
@@ -62,6 +115,29 @@ import java.util.concurrent.atomic.AtomicInteger
 
   protected static final FQueue busyEmptyQueue = FQueue.emptyQueue + null
 
+  /**
+   * Selects linked mailbox, where scheduling costs one getAndSet regardless of contention,
+   * instead of persistent queue. Should be called before first operation scheduled
+   */
+  void setLinkedMailbox(boolean linked) {
+    if (linked && bound != null)
+      throw new IllegalStateException("bound is not supported by linked mailbox")
+    mailbox = linked ? new LinkedMailbox<Operation<T>>() : null
+  }
+
+  boolean isLinkedMailbox() {
+    mailbox != null
+  }
+
+  /**
+   * Selects queue implementation, for example FQueue.emptyRealTimeQueue to avoid occasional O(n)
+   * work in run() under contention. Should be called before first operation scheduled
+   */
+  void setEmptyQueue(FQueue<Operation<T>> emptyQueue) {
+    this.emptyQueue = emptyQueue
+    queue = emptyQueue
+  }
+
   final void set(T newValue) {
     this.call { oldValue ->
       newValue
@@ -73,6 +149,12 @@ import java.util.concurrent.atomic.AtomicInteger
 
     operation = operation.clone ()
     operation.andContinue = andContinue
+    def mt = metrics
+    if (mt != null) {
+      mt.countPosted()
+      operation.postedNanos = System.nanoTime()
+      operation.trace = mt.traceForPost()
+    }
     def pending = pendingCalls.get()
     if (pending != null) {
       pendingCalls.set(pending + [agent: this, operation: operation])
@@ -94,10 +176,30 @@ import java.util.concurrent.atomic.AtomicInteger
   }
 
   private void schedule(Operation<T> operation) {
+    def mb = mailbox
+    if (mb != null) {
+      if (mb.add(operation))
+        executor.execute(this)
+      return
+    }
+
+    def b = bound
     for (;;) {
       def oldQueue = queue
-      def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addLast(operation)
+      def base = oldQueue === busyEmptyQueue ? emptyQueue : oldQueue
+      def newQueue = b == null ? base.addLast(operation) : b.add(base, operation)
+      // operation scheduled by agent to itself is admitted, blocking would deadlock
+      if (newQueue == null && b.admitsOverflow())
+        newQueue = base.addLast(operation)
+      if (newQueue == null) {
+        if (b.handleOverflow(operation, null, { queueDepth >= b.capacity }))
+          continue
+        return
+      }
+
       if (queue.compareAndSet(oldQueue, newQueue)) {
+        b?.added(base, newQueue)
+        metrics?.recordDepth(newQueue.size())
         if (oldQueue.empty)
           executor.execute(this)
         return
@@ -106,6 +208,23 @@ import java.util.concurrent.atomic.AtomicInteger
   }
 
   private void doOperation(Operation<T> operation) {
+    def mt = metrics
+    if (mt == null) {
+      perform(operation)
+      return
+    }
+
+    def previous = mt.enter(operation.postedNanos, operation.trace)
+    long start = System.nanoTime()
+    try {
+      perform(operation)
+    }
+    finally {
+      mt.exit(previous, start)
+    }
+  }
+
+  private void perform(Operation<T> operation) {
     pendingCalls.set(FList.emptyList)
 
     Throwable error
@@ -165,6 +284,7 @@ import java.util.concurrent.atomic.AtomicInteger
       }
     }
     else {
+      metrics?.countFailed()
       try {
         onError(error)
       }
@@ -182,13 +302,38 @@ import java.util.concurrent.atomic.AtomicInteger
   }
 
   void run() {
+    def mb = mailbox
+    if (mb != null) {
+      for (;;) {
+        doOperation mb.first
+        if (!mb.advance())
+          return
+        if (!CallLaterExecutors.isThreadPerTask(executor)) {
+          executor.execute this
+          return
+        }
+      }
+    }
+
+    def b = bound
+    b?.enterConsumer()
+    try {
+      runQueue()
+    }
+    finally {
+      b?.exitConsumer()
+    }
+  }
+
+  private void runQueue() {
     for (;;) {
       def q = queue
       def removed = q.removeFirst()
       if (q.size() == 1) {
         if (queue.compareAndSet(q, busyEmptyQueue)) {
+          bound?.released()
           doOperation removed.first
-          if (!queue.compareAndSet(busyEmptyQueue, FQueue.emptyQueue)) {
+          if (!queue.compareAndSet(busyEmptyQueue, emptyQueue)) {
             executor.execute this
           }
           return
@@ -196,7 +341,11 @@ import java.util.concurrent.atomic.AtomicInteger
       }
       else {
         if (queue.compareAndSet(q, removed.second)) {
+          bound?.released()
           doOperation removed.first
+          // every task has own thread anyway, so there is nobody to be fair to
+          if (CallLaterExecutors.isThreadPerTask(executor))
+            continue
           executor.execute this
           return
         }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.*
+
+/**
+ * Runtime support for methods generated by @Async with maxInFlight or coalesce attributes
+ *
+ * One instance is created per annotated method (per object for instance methods)
+ */
+@Typed class AsyncSupport {
+    private final Semaphore permits
+
+    private final boolean rejectWhenFull
+
+    /**
+     * Calls waiting for batch to start. Null means that no batch is scheduled at the moment.
+     */
+    private volatile FQueue<Pair<Object,BindLater>> queued = null
+
+    AsyncSupport (int maxInFlight = 0, boolean rejectWhenFull = false) {
+        if (maxInFlight > 0)
+            permits = [maxInFlight]
+        this.rejectWhenFull = rejectWhenFull
+    }
+
+    /**
+     * Schedules future for execution respecting in-flight limit
+     *
+     * If limit reached either blocks calling thread or binds future to RejectedExecutionException
+     */
+    final <V> BindLater<V> execute (Executor executor, CallLater<V> future) {
+        if (!acquire()) {
+            future.setException(new RejectedExecutionException("Too many asynchronous calls in flight"))
+            return future
+        }
+
+        if (permits)
+            future.whenBound { bl -> permits.release() }
+
+        try {
+            executor.execute future
+        }
+        catch (RejectedExecutionException e) {
+            future.setException(e)
+        }
+        future
+    }
+
+    /**
+     * Adds call arguments to the batch waiting for execution or schedules new batch.
+     *
+     * If batch returns list with one element per call, each call's future is bound to corresponding element,
+     * list of other size binds all futures to IllegalStateException and any other result binds them to null.
+     * If batch can not be scheduled all queued futures get the exception, which prevented scheduling
+     */
+    final BindLater coalesce (Executor executor, Object args, Batch batch) {
+        BindLater future = []
+        for (;;) {
+            def q = queued
+            if (queued.compareAndSet(q, (q == null ? FQueue.emptyQueue : q) + new Pair(args, future))) {
+                if (q == null) {
+                    def task = execute(executor, (CallLater){ runBatch(batch) })
+                    if (task.exception) {
+                        try {
+                            task.get()
+                        }
+                        catch (ExecutionException e) {
+                            failQueued(e.cause)
+                        }
+                    }
+                }
+                return future
+            }
+        }
+    }
+
+    private FQueue<Pair<Object,BindLater>> takeQueued () {
+        for (;;) {
+            def calls = queued
+            if (calls == null || queued.compareAndSet(calls, null))
+                return calls
+        }
+    }
+
+    private void failQueued (Throwable t) {
+        def calls = takeQueued()
+        if (calls != null) {
+            for (call in calls)
+                call.second.setException(t)
+        }
+    }
+
+    private Object runBatch (Batch batch) {
+        def calls = takeQueued()
+
+        List args = new ArrayList(calls.size())
+        for (call in calls)
+            args << call.first
+
+        try {
+            def res = batch.call(args)
+            if (res instanceof List && ((List)res).size() != args.size())
+                throw new IllegalStateException("Batch returned ${((List)res).size()} results for ${args.size()} calls")
+
+            int i = 0
+            for (call in calls) {
+                call.second.set(res instanceof List ? ((List)res)[i++] : null)
+            }
+        }
+        catch (Throwable t) {
+            for (call in calls)
+                call.second.setException(t)
+        }
+        null
+    }
+
+    private boolean acquire () {
+        if (!permits)
+            return true
+
+        if (rejectWhenFull)
+            return permits.tryAcquire()
+
+        permits.acquire()
+        true
+    }
+
+    /**
+     * Invocation of batch method with list of argument tuples
+     */
+    abstract static interface Batch {
+        abstract Object call (List args)
+    }
+}
@@ -14,15 +14,21 @@
  * limitations under the License.
  */
 
+
 package groovypp.concurrent
 
 import java.util.concurrent.atomic.AtomicInteger
-import java.util.concurrent.locks.AbstractQueuedSynchronizer
+import java.util.concurrent.locks.LockSupport
 import java.util.concurrent.*
 
 /**
+ * Future, which value is bound later by set() or setException() and which can notify listeners when it happens.
+ *
+ * Completion is single compareAndSet of state word. Listeners are kept in single field, first listener
+ * inline and list only if there are more of them. Threads blocked in get() are parked as special listeners,
+ * so nothing is allocated for them unless get() actually has to wait.
  */
-@Typed class BindLater<V> extends AbstractQueuedSynchronizer implements Future<V> {
+@Typed class BindLater<V> implements Future<V> {
     // any of this bits mean that calculation either completed or (with S_RUNNING) about to complete
     protected static final int S_SET           = 1
     protected static final int S_EXCEPTION     = 2
@@ -32,47 +38,53 @@ import java.util.concurrent.*
 
     protected static final int S_DONE = S_SET|S_EXCEPTION|S_CANCELLED
 
+    // value of listeners after they were notified
+    private static final Object NOTIFIED = new Object()
+
+    private volatile int state
+
     // contains either null or running thread or result or exception
     private volatile def internalData
 
-    private volatile FList boundListeners = FList.emptyList
+    // null, single listener, FList of listeners (latest first) or NOTIFIED
+    private volatile Object listeners
 
     final boolean isRunning() {
-        getState() & S_RUNNING
+        state & S_RUNNING
     }
 
     final boolean isCancelled() {
-        def s = getState()
+        def s = state
         (s & S_CANCELLED) && !(s & S_RUNNING)
     }
 
     final boolean isException() {
-        def s = getState()
+        def s = state
         (s & S_EXCEPTION) && !(s & S_RUNNING)
     }
 
     final boolean isSet() {
-        def s = getState()
+        def s = state
         (s & S_SET) && !(s & S_RUNNING)
     }
 
     final boolean isDone() {
-        def s = getState()
+        def s = state
         (s & S_DONE) && !(s & S_RUNNING)
     }
 
     final boolean cancel(boolean mayInterruptIfRunning) {
         for (;;) {
-            def s = getState()
+            def s = state
             if (s & S_DONE)
                 return false
-            if (compareAndSetState(s, S_CANCELLED|S_RUNNING)) {
+            if (state.compareAndSet(s, S_CANCELLED|S_RUNNING)) {
                 if (mayInterruptIfRunning) {
                     Thread r = internalData
                     if (r)
                         r.interrupt()
                 }
-                releaseShared(S_CANCELLED)
+                state = S_CANCELLED
                 done()
                 return true
             }
@@ -80,21 +92,19 @@ import java.util.concurrent.*
     }
 
     V get() throws InterruptedException, ExecutionException {
-        acquireSharedInterruptibly(0)
-        def s = getState()
-        if (s == S_CANCELLED)
-            throw new CancellationException()
-        if (s == S_EXCEPTION) {
-            def throwable = (Throwable) internalData
-            throw new ExecutionException(throwable.message, throwable)
-        }
-        (V)internalData
+        if (!isDone())
+            await(0L)
+        report()
     }
 
     final V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        if (!tryAcquireSharedNanos(0, unit.toNanos(timeout)))
+        if (!isDone() && !await(Math.max(unit.toNanos(timeout), 1L)))
             throw new TimeoutException()
-        def s = getState()
+        report()
+    }
+
+    private V report() throws ExecutionException {
+        def s = state
         if (s == S_CANCELLED)
             throw new CancellationException()
         if (s == S_EXCEPTION) {
@@ -104,6 +114,37 @@ import java.util.concurrent.*
         (V)internalData
     }
 
+    /**
+     * Parks current thread until done or until nanos elapsed, 0 means no timeout. Returns false on timeout
+     */
+    private boolean await(long nanos) throws InterruptedException {
+        Waiter waiter = [Thread.currentThread()]
+        if (!addListener(waiter))
+            return true
+
+        long deadline = nanos ? System.nanoTime() + nanos : 0L
+        try {
+            while (!isDone()) {
+                if (Thread.interrupted())
+                    throw new InterruptedException()
+
+                if (nanos) {
+                    long left = deadline - System.nanoTime()
+                    if (left <= 0L)
+                        return false
+                    LockSupport.parkNanos(this, left)
+                }
+                else
+                    LockSupport.park(this)
+            }
+            true
+        }
+        finally {
+            if (!isDone())
+                removeListener(waiter)
+        }
+    }
+
     final BindLater<V> whenBound (Executor executor = null, Listener<V> listener) {
         if (!listener)
             return this
@@ -116,35 +157,157 @@ import java.util.concurrent.*
             }
           }
         }
-        
-        for (;;) {
-            def l = boundListeners
-            if (l == null) {
-                // it means done() worked already
-                listener.onBound(this)
-                return this
+
+        // false means done() worked already
+        if (!addListener(listener))
+            listener.onBound(this)
+        this
+    }
+
+    /**
+     * BindLater bound to result of the function applied to value of this one, or failed the same way as this one.
+     * If this one is already bound the function is called immediately by current thread, otherwise
+     * by thread binding this one or, if executor given, by executor
+     */
+    final <R> BindLater<R> thenApply(Executor executor = null, Function1<V, R> function) {
+        BindLater<R> result = []
+        Listener<V> listener = { BindLater<V> bl ->
+            if (bl.forwardFailure(result))
+                return
+
+            try {
+                result.set(function.call((V)bl.internalData))
+            }
+            catch (Throwable t) {
+                result.setException(t)
+            }
+        }
+        if (isDone())
+            listener.onBound(this)
+        else
+            whenBound(executor, listener)
+        result
+    }
+
+    /**
+     * BindLater bound when BindLater returned by the function applied to value of this one is bound.
+     * Function is called the same way as by thenApply()
+     */
+    final <R> BindLater<R> thenCompose(Executor executor = null, Function1<V, BindLater<R>> function) {
+        BindLater<R> result = []
+        Listener<V> listener = { BindLater<V> bl ->
+            if (bl.forwardFailure(result))
+                return
+
+            try {
+                function.call((V)bl.internalData).whenBound { BindLater<R> inner ->
+                    if (!inner.forwardFailure(result))
+                        result.set((R)inner.internalData)
+                }
+            }
+            catch (Throwable t) {
+                result.setException(t)
+            }
+        }
+        if (isDone())
+            listener.onBound(this)
+        else
+            whenBound(executor, listener)
+        result
+    }
+
+    /**
+     * BindLater bound to list of values of all given ones, when all of them are bound.
+     * Fails as soon as any of given ones fails
+     */
+    static <V> BindLater<List<V>> allOf(BindLater<V> ... all) {
+        allOf(Arrays.asList(all))
+    }
+
+    static <V> BindLater<List<V>> allOf(List<BindLater<V>> all) {
+        BindLater<List<V>> result = []
+        def values = new Object[all.size()]
+        if (!values.length) {
+            result.set((List<V>)Arrays.asList(values))
+            return result
+        }
+
+        AtomicInteger remaining = [values.length]
+        for (int i = 0; i != values.length; ++i) {
+            int index = i
+            all[i].whenBound { BindLater<V> bl ->
+                if (bl.forwardFailure(result))
+                    return
+
+                values[index] = bl.internalData
+                if (!remaining.decrementAndGet())
+                    result.set((List<V>)Arrays.asList(values))
             }
+        }
+        result
+    }
+
+    /**
+     * If this one is done but not set, makes the other one failed the same way and returns true
+     */
+    private boolean forwardFailure(BindLater other) {
+        switch (state) {
+            case S_SET:
+                return false
+
+            case S_EXCEPTION:
+                other.setException((Throwable)internalData)
+                return true
+
+            default:
+                other.cancel(false)
+                return true
+        }
+    }
+
+    /**
+     * Adds listener, returns false if listeners were already notified
+     */
+    private boolean addListener(Listener listener) {
+        for (;;) {
+            def l = listeners
+            if (l === NOTIFIED)
+                return false
+
+            def updated = l == null ? listener :
+                          l instanceof FList ? ((FList)l) + listener :
+                          FList.emptyList + l + listener
+            if (listeners.compareAndSet(l, updated))
+                return true
+        }
+    }
+
+    private void removeListener(Listener listener) {
+        for (;;) {
+            def l = listeners
+            def updated
+            if (l === listener)
+                updated = null
+            else if (l instanceof FList)
+                updated = ((FList)l) - listener
+            else
+                return
 
-            if(boundListeners.compareAndSet(l,l + listener))
-                return this
+            if (listeners.compareAndSet(l, updated))
+                return
         }
     }
 
     protected void done() {
         for (;;) {
-            def l = boundListeners
-            if (boundListeners.compareAndSet(l, null)) {
-                for (el in l.reverse()) {
-                  switch(el) {
-                    case BlockingQueue:
-                      el.put(this)
-                    break
-
-                    case Listener:
-                        el.onBound(this)
-                    break
-                  }
+            def l = listeners
+            if (listeners.compareAndSet(l, NOTIFIED)) {
+                if (l instanceof FList) {
+                    for (el in ((FList)l).reverse())
+                        ((Listener)el).onBound(this)
                 }
+                else if (l != null)
+                    ((Listener)l).onBound(this)
                 return
             }
         }
@@ -177,7 +340,7 @@ import java.util.concurrent.*
 
     final boolean set(V v) {
         for (;;) {
-            def s = getState()
+            def s = state
             if (s & S_DONE)
                 return false
 
@@ -188,9 +351,9 @@ import java.util.concurrent.*
               return setException(e)
             }
 
-            if (compareAndSetState(s, S_SET|S_RUNNING)) {
+            if (state.compareAndSet(s, S_SET|S_RUNNING)) {
                 internalData = v
-                releaseShared(S_SET)
+                state = S_SET
                 done()
                 return true
             }
@@ -199,38 +362,28 @@ import java.util.concurrent.*
 
     final boolean setException(Throwable t) {
         for (;;) {
-            def s = getState()
+            def s = state
             if (s & S_DONE)
                 return false
-            if (compareAndSetState(s, S_EXCEPTION|S_RUNNING)) {
-                def internal = internalData
+            if (state.compareAndSet(s, S_EXCEPTION|S_RUNNING)) {
                 internalData = t
-                releaseShared(S_EXCEPTION)
+                state = S_EXCEPTION
                 done()
                 return true
             }
         }
     }
 
-    protected final int tryAcquireShared(int ignore) {
-        isDone() ? 1 : -1
-    }
-
-    protected final boolean tryReleaseShared(int finalState) {
-        setState(finalState)
-        true
-    }
-
     protected final boolean setRunningThread () {
         def t = Thread.currentThread ()
         for (;;) {
-            def s = getState ()
+            def s = state
 
             if (s) {
                 return false
             }
 
-            if (compareAndSetState(0, S_RUNNING)) {
+            if (state.compareAndSet(0, S_RUNNING)) {
                 internalData = t
                 return true
             }
@@ -241,6 +394,18 @@ import java.util.concurrent.*
         abstract void onBound (BindLater<V> data)
     }
 
+    private static final class Waiter implements Listener {
+        final Thread thread
+
+        Waiter(Thread thread) {
+            this.thread = thread
+        }
+
+        void onBound(BindLater data) {
+            LockSupport.unpark(thread)
+        }
+    }
+
     static class Group<V> extends BindLater<V> {
         AtomicInteger counter
 
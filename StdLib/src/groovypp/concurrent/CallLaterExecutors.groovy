@@ -39,6 +39,29 @@ class CallLaterExecutors {
         new CallLaterPool(0, Integer.MAX_VALUE, 1L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>())
     }
 
+    /**
+     * Executor running every task in new virtual thread if JVM supports them or in new platform thread otherwise.
+     * Suitable for tasks blocking on I/O
+     */
+    static ThreadPerTaskExecutor newVirtualThreadPerTaskExecutor() {
+        new ThreadPerTaskExecutor(true)
+    }
+
+    /**
+     * Executor, which current thread belongs to, or null
+     */
+    static Executor currentExecutor() {
+        def thread = Thread.currentThread()
+        thread instanceof GroovyThread ? ((GroovyThread)thread).pool : ThreadPerTaskExecutor.current.get()
+    }
+
+    /**
+     * Checks if executor starts new thread for every task, so task blocking does not hold pooled thread
+     */
+    static boolean isThreadPerTask(Executor executor) {
+        executor instanceof ThreadPerTaskExecutor
+    }
+
     static <T> BindLater<T> callLater (Executor executor, CallLater<T> future) {
         executor.execute future
         future
@@ -82,9 +105,8 @@ class CallLaterExecutors {
     }
 
     static <T> BindLater.Listener<T> async(BindLater.Listener<T> listener) {
-        def thread = Thread.currentThread()
-        if(thread instanceof GroovyThread) {
-            def pool = ((GroovyThread)thread).pool
+        def pool = currentExecutor()
+        if(pool != null) {
             return { bl ->
                 pool.execute {
                     listener.onBound(bl)
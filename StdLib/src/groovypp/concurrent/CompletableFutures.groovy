@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.concurrent
+
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+
+/**
+ * Conversions between BindLater (and so CallLater) and java.util.concurrent.CompletionStage.
+ *
+ * CompletableFuture is looked up reflectively, so the class can be used on JVMs without it.
+ * Both directions wire listeners directly: the other side is completed by the thread, which completes
+ * the source, without executor task and without blocking get(). Cancellation is propagated both ways.
+ */
+@Typed final class CompletableFutures {
+    private static final Class completableFuture = findClass("java.util.concurrent.CompletableFuture")
+    private static final Class completionStage   = findClass("java.util.concurrent.CompletionStage")
+    private static final Class biConsumer        = findClass("java.util.function.BiConsumer")
+
+    private static final Method complete              = findMethod(completableFuture, "complete", Object)
+    private static final Method completeExceptionally = findMethod(completableFuture, "completeExceptionally", Throwable)
+    private static final Method whenComplete          = findMethod(completionStage, "whenComplete", biConsumer)
+
+    private CompletableFutures() {}
+
+    /**
+     * Whether JVM has CompletableFuture
+     */
+    static boolean isAvailable() {
+        whenComplete != null
+    }
+
+    /**
+     * CompletableFuture (typed as Future here) completed when the BindLater is bound
+     */
+    static <V> Future<V> toCompletableFuture(BindLater<V> bindLater) {
+        checkAvailable()
+
+        def future = (Future<V>)completableFuture.newInstance()
+        bindLater.whenBound { BindLater<V> bl ->
+            if (bl.set)
+                invoke(complete, future, bl.get())
+            else if (bl.exception) {
+                try {
+                    bl.get()
+                }
+                catch (ExecutionException e) {
+                    invoke(completeExceptionally, future, e.cause)
+                }
+            }
+            else
+                future.cancel(false)
+        }
+        onComplete(future) { Object value, Throwable failure ->
+            if (future.cancelled)
+                bindLater.cancel(false)
+        }
+        future
+    }
+
+    /**
+     * BindLater bound when the CompletionStage completes
+     */
+    static <V> BindLater<V> fromCompletionStage(Object stage) {
+        checkAvailable()
+        if (!completionStage.isInstance(stage))
+            throw new IllegalArgumentException("${stage} is not CompletionStage")
+
+        BindLater<V> result = []
+        onComplete(stage) { Object value, Throwable failure ->
+            if (failure == null) {
+                result.set((V)value)
+                return
+            }
+
+            // dependent stages wrap failure of the stage they depend on in CompletionException
+            if (failure.class.name == "java.util.concurrent.CompletionException" && failure.cause != null)
+                failure = failure.cause
+
+            if (failure instanceof CancellationException)
+                result.cancel(false)
+            else
+                result.setException(failure)
+        }
+        if (stage instanceof Future) {
+            result.whenBound { BindLater<V> bl ->
+                if (bl.cancelled)
+                    ((Future)stage).cancel(false)
+            }
+        }
+        result
+    }
+
+    private static void onComplete(Object stage, Function2<Object, Throwable, Object> action) {
+        InvocationHandler handler = { Object proxy, Method method, Object[] args ->
+            switch (method.name) {
+                case "accept":
+                    action.call(args[0], (Throwable)args[1])
+                    return null
+                case "equals":
+                    return proxy === args[0]
+                case "hashCode":
+                    return System.identityHashCode(proxy)
+                case "toString":
+                    return "BindLater listener"
+                default:
+                    throw new UnsupportedOperationException(method.name)
+            }
+        }
+        invoke(whenComplete, stage, Proxy.newProxyInstance(biConsumer.classLoader, [biConsumer] as Class[], handler))
+    }
+
+    private static Object invoke(Method method, Object target, Object ... args) {
+        try {
+            method.invoke(target, args)
+        }
+        catch (InvocationTargetException e) {
+            throw e.cause
+        }
+    }
+
+    private static void checkAvailable() {
+        if (!isAvailable())
+            throw new UnsupportedOperationException("CompletableFuture is not available")
+    }
+
+    private static Method findMethod(Class type, String name, Class param) {
+        try {
+            type != null && param != null ? type.getMethod(name, param) : null
+        }
+        catch (Throwable ignored) {
+            null
+        }
+    }
+
+    private static Class findClass(String name) {
+        try {
+            Class.forName(name)
+        }
+        catch (Throwable ignored) {
+            null
+        }
+    }
+}
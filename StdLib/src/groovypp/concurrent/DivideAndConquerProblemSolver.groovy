@@ -14,131 +14,235 @@
  * limitations under the License.
  */
 
+
 package groovypp.concurrent
 
-import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
 
+/**
+ * Solves SelfRecurringProblem by forking subproblems as tasks of work stealing executor.
+ *
+ * Every task tracks its pending subproblems with atomic counter, the last subproblem to complete combines
+ * results and completes parent task. One subproblem is always continued by the thread, which split the problem.
+ *
+ * Subproblems deeper than adaptive cutoff are solved sequentially, while there is enough forked work
+ * for other workers to steal. Cutoff is adjusted by measured time of sequential solving,
+ * so that sequential part takes about TARGET_NANOS.
+ */
 @Typed
 class DivideAndConquerProblemSolver {
+  // sequentially solved subproblem should take about that long to pay for scheduling of a task
+  static final long TARGET_NANOS = 50000L
 
-  def DivideAndConquerProblemSolver(SelfRecurringProblem problem, int nWorkers) {
-    workers = (1..nWorkers).map{ new Worker(it - 1) }.asList ()
+  final SelfRecurringProblem problem
 
-    // Prevent work stealing happening immediately, distribute the work.
-    root = new Job(problem, null)
-    List<Job> jobs = [root]
-    List<Job> atomics = []
-    while (jobs.size() > 0 && jobs.size() < nWorkers) {
-      jobs = removeAtomic(jobs, atomics)
-      jobs = jobs.map{ job -> job.problem.sub().map{ new Job(it, job) } }.flatten().asList()
-    }
-    for (int i = 0; i < jobs.size(); ++i) workers[i % nWorkers].jobs.addFirst(jobs[i])
-    for (int i = 0; i < atomics.size(); ++i) workers[i % nWorkers].jobs.addFirst(atomics[i])
+  private final Executor executor
+
+  private final int parallelism
+
+  private final BindLater<Object> result = []
+
+  private final AtomicInteger started = []
+
+  private Executor pool
+
+  // forked tasks not started yet
+  private final AtomicInteger queued = []
+
+  // depth from which subproblems are solved sequentially, -1 until first leaf solved
+  private volatile int cutoff = -1
+
+  // heuristic statistics of sequential solving, updated without synchronization
+  private long sequentialNanos
+  private int samples
+
+  /**
+   * Solver running on own WorkStealingPool of nWorkers threads, which is shut down when problem solved
+   */
+  DivideAndConquerProblemSolver(SelfRecurringProblem problem, int nWorkers) {
+    this.problem = problem
+    this.parallelism = nWorkers
+  }
+
+  /**
+   * Solver running on given executor, normally WorkStealingPool
+   */
+  DivideAndConquerProblemSolver(SelfRecurringProblem problem, Executor executor) {
+    this.problem = problem
+    this.executor = executor
+    this.parallelism = executor instanceof WorkStealingPool ?
+      ((WorkStealingPool)executor).parallelism :
+      Runtime.runtime.availableProcessors()
   }
 
   def solve() {
-    workers.map {
-      def t = new Thread(it)
-      t.start()
-      t
-    }.each { it.join() }
-    root.result
+    try {
+      solveLater().get()
+    }
+    catch (ExecutionException e) {
+      throw e.cause
+    }
   }
 
-  List<Job> removeAtomic(List<Job> jobs, List atomics) {
-    def result = []
-    for (job in jobs) {
-      (job.problem.complex() ? result : atomics) << job
+  /**
+   * Starts solving, returned BindLater is bound to the solution
+   */
+  BindLater<Object> solveLater() {
+    if (!started.compareAndSet(0, 1))
+      throw new IllegalStateException("Solver was started already")
+
+    if (executor == null) {
+      def own = new WorkStealingPool(parallelism)
+      result.whenBound { own.shutdown() }
+      pool = own
     }
+    else
+      pool = executor
+
+    fork(new Task(this, problem, null, 0, 0))
     result
   }
 
-  class Job {
-    final SelfRecurringProblem problem
-    final Job parent
-    volatile ConcurrentLinkedQueue<Job> children = []
-    volatile Object result
+  /**
+   * Stops solving, tasks in progress finish their current subproblem
+   */
+  boolean cancel() {
+    result.cancel(false)
+  }
 
-    Job(SelfRecurringProblem problem, Job parent) {
-      this.problem = problem
-      this.parent = parent
-      if (parent) parent.children << this
-    }
+  boolean isCancelled() {
+    result.cancelled
+  }
 
-    void setResult(Object result) {
-      this.result = result
-      if(parent === this)
-         throw new AssertionError("parent != this")
-      if (parent) {
-        synchronized (parent) {
-          def children = parent.children
-          if (children != null) {
-            if(children.isEmpty())
-              throw new AssertionError("!children.isEmpty()")
-            if (!children.any{it.result == null}) {
-              parent.setResult(problem.combine(children.map{it.result}))
-              parent.children = null
-            }
-          }
-        }
-      }
+  private void fork(Task task) {
+    queued.incrementAndGet()
+    pool.execute(task)
+  }
+
+  private boolean isSequential(int depth) {
+    int c = cutoff
+    c >= 0 && depth >= c && queued.get() >= parallelism
+  }
+
+  private Object solveSequentially(SelfRecurringProblem p, int depth) {
+    long start = System.nanoTime()
+    def value = sequential(p)
+    adapt(depth, System.nanoTime() - start)
+    value
+  }
+
+  private Object sequential(SelfRecurringProblem p) {
+    if (result.done)
+      throw new CancellationException()
+
+    if (!p.complex())
+      return p.solve()
+
+    def subs = p.sub()
+    List values = new ArrayList(subs.size())
+    for (s in subs)
+      values << sequential(s)
+    p.combine(values)
+  }
+
+  private void adapt(int depth, long nanos) {
+    if (cutoff < 0)
+      cutoff.compareAndSet(-1, depth)
+
+    def avg = sequentialNanos
+    avg = avg ? (avg * 7L + nanos) >> 3 : nanos
+    sequentialNanos = avg
+    if (++samples < parallelism)
+      return
+
+    samples = 0
+    int c = cutoff
+    if (avg < TARGET_NANOS >> 1 && c > 1) {
+      cutoff = c - 1
+      sequentialNanos = 0L
+    }
+    else if (avg > TARGET_NANOS << 1) {
+      cutoff = c + 1
+      sequentialNanos = 0L
     }
   }
 
-  class Worker implements Runnable{
-    Worker(int num) { this.num = num }
+  private static final class Task implements Runnable {
+    final DivideAndConquerProblemSolver solver
+    final SelfRecurringProblem problem
+    final Task parent
+    // index in results of parent
+    final int index
+    final int depth
 
-    int num
+    final AtomicInteger pending = []
+    Object [] results
 
-    // TODO(ven): maybe can do non locking?
-    class JobList extends Lockable {
-      LinkedList<Job> list = []
+    Task(DivideAndConquerProblemSolver solver, SelfRecurringProblem problem, Task parent, int index, int depth) {
+      this.solver = solver
+      this.problem = problem
+      this.parent = parent
+      this.index = index
+      this.depth = depth
+    }
 
-      def void addFirst(Job e) {
-        withLock {
-          list.addFirst e
-        }
+    void run() {
+      solver.queued.decrementAndGet()
+      try {
+        for (def task = this; task != null; )
+          task = task.step()
       }
+      catch (Throwable t) {
+        // does nothing if result is already cancelled
+        solver.result.setException(t)
+      }
+    }
 
-      Job removeFirst() {
-        withLock {
-          list.isEmpty() ? null : list.removeFirst()
-        }
+    /**
+     * Either solves the problem or splits it, returns subproblem to be continued by current thread
+     */
+    private Task step() {
+      def s = solver
+      if (s.result.done)
+        return null
+
+      if (!problem.complex() || s.isSequential(depth)) {
+        complete(s.solveSequentially(problem, depth))
+        return null
       }
 
-      Job removeLast() {
-        withLock {
-          list.isEmpty() ? null : list.removeLast()
-        }
+      def subs = problem.sub()
+      int n = subs.size()
+      if (!n) {
+        complete(problem.combine(subs))
+        return null
       }
-    }
 
-    JobList jobs = []
+      results = new Object[n]
+      pending.set(n)
+      for (int i = 0; i != n - 1; ++i)
+        s.fork(new Task(s, subs[i], this, i, depth + 1))
+      new Task(s, subs[n - 1], this, n - 1, depth + 1)
+    }
 
-    void run() {
-      Job job = null
-      while (true) {
-        if ((job = jobs.removeFirst()) == null) {
-          // Steal work from someone else.
-          int nWorkers = workers.size()
-          int i = (num + 1) % nWorkers
-          while (i != num) {
-            if ((job = workers[i].jobs.removeLast()) != null) break
-            i = (i + 1) % nWorkers
-          }
-        }
-        if (!job) break
-        if (job.problem.complex()) {
-          job.problem.sub().each {
-            jobs.addFirst(new Job(it, job))
-          }
-        } else {
-          job.result = job.problem.solve()
+    private void complete(Object value) {
+      for (def task = this;;) {
+        def p = task.parent
+        if (p == null) {
+          task.solver.result.set(value)
+          return
         }
+
+        p.results[task.index] = value
+        if (p.pending.decrementAndGet())
+          return
+
+        value = p.problem.combine(Arrays.asList(p.results))
+        task = p
       }
     }
   }
-
-  final List<Worker> workers
-  final Job root
 }
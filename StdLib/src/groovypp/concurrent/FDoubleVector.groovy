@@ -0,0 +1,337 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Persistent vector of double values.
+ *
+ * Same 32-way trie as FVector, but leaves and tail are double[] arrays, so elements are not boxed.
+ * Bulk operations (sum, min, max, binarySearch) walk leaf arrays directly.
+ */
+@Typed
+class FDoubleVector implements Iterable<Double>, Serializable {
+    final int length
+    final int shift
+    final Object[] root
+    final double[] tail
+
+    private FDoubleVector(int length, int shift, Object[] root, double[] tail) {
+        this.length = length
+        this.shift = shift
+        this.root = root
+        this.tail = tail
+    }
+
+    static final FDoubleVector emptyVector = new FDoubleVector(0, 5, new Object[0], new double[0])
+
+    private int tailOff() { length - tail.length }
+
+    double getAt(int i) {
+        if (i < 0)
+            i += length
+
+        if (i >= 0 && i < length)
+            return arrayFor(i)[i & 0x1f]
+
+        throw new IndexOutOfBoundsException("Tried to access FDoubleVector out of its bounds: " + i)
+    }
+
+    /**
+     * Leaf array containing element with given index
+     */
+    private double[] arrayFor(int i) {
+        if (i >= tailOff())
+            return tail
+
+        Object[] arr = root
+        for (int level = shift; level > 0; level -= 5)
+            arr = (Object[]) arr[(i >>> level) & 0x1f]
+        (double[])arr
+    }
+
+    FDoubleVector set(int i, double value) {
+        if (i < 0)
+            i += length
+
+        if (i >= 0 && i < length) {
+            if (i >= tailOff()) {
+                double[] newTail = (double[])tail.clone()
+                newTail[i & 0x1f] = value
+                return new FDoubleVector(length, shift, root, newTail)
+            } else {
+                return new FDoubleVector(length, shift, (Object[])doAssoc(shift, root, i, value), tail)
+            }
+        } else if (i == length) {
+            return this + value
+        } else {
+            throw new IndexOutOfBoundsException("Tried to update FDoubleVector out of its bounds: " + i)
+        }
+    }
+
+    private static Object doAssoc(int level, Object node, int i, double value) {
+        if (level == 0) {
+            double[] leaf = (double[])((double[])node).clone()
+            leaf[i & 0x1f] = value
+            return leaf
+        }
+
+        Object[] ret = (Object[])((Object[])node).clone()
+        def subi = (i >>> level) & 0x1f
+        ret[subi] = doAssoc(level - 5, ret[subi], i, value)
+        ret
+    }
+
+    FDoubleVector plus(double value) {
+        if (tail.length < 32) {
+            def newTail = new double[tail.length + 1]
+            System.arraycopy tail, 0, newTail, 0, tail.length
+            newTail[tail.length] = value
+            return new FDoubleVector(length + 1, shift, root, newTail)
+        }
+
+        double[] newTail = [value]
+        pushLeaf(newTail, 1)
+    }
+
+    /**
+     * Vector with values appended. Values are copied to leaf arrays by chunks.
+     */
+    FDoubleVector addAll(double[] values) {
+        def res = this
+        int pos = 0
+        while (pos != values.length) {
+            def t = res.tail
+            int n = Math.min(32 - t.length, values.length - pos)
+            if (n) {
+                def newTail = new double[t.length + n]
+                System.arraycopy t, 0, newTail, 0, t.length
+                System.arraycopy values, pos, newTail, t.length, n
+                res = new FDoubleVector(res.length + n, res.shift, res.root, newTail)
+                pos += n
+            }
+            else {
+                n = Math.min(32, values.length - pos)
+                def newTail = new double[n]
+                System.arraycopy values, pos, newTail, 0, n
+                res = res.pushLeaf(newTail, n)
+                pos += n
+            }
+        }
+        res
+    }
+
+    FDoubleVector addAll(Iterable<Double> values) {
+        def buf = new double[32]
+        int n = 0
+        def res = this
+        for (v in values) {
+            buf[n++] = v
+            if (n == 32) {
+                res = res.addAll(buf)
+                n = 0
+            }
+        }
+        if (n) {
+            def rest = new double[n]
+            System.arraycopy buf, 0, rest, 0, n
+            res = res.addAll(rest)
+        }
+        res
+    }
+
+    /**
+     * Moves full tail to the trie and makes newTail containing count elements the new tail
+     */
+    private FDoubleVector pushLeaf(double[] newTail, int count) {
+        def pushed = pushTail(shift - 5, root, tail)
+        Object[] newRoot = pushed.first
+        def newShift = shift
+        if (pushed.second) {
+            newShift += 5
+            newRoot = [newRoot, pushed.second]
+        }
+        new FDoubleVector(length + count, newShift, newRoot, newTail)
+    }
+
+    private static Pair<Object[], Object> pushTail(int level, Object[] arr, Object tailNode) {
+        def newChild
+        if (level == 0) newChild = tailNode else {
+            def rec = pushTail(level - 5, (Object[]) arr[arr.length - 1], tailNode)
+            def subexp = rec.second
+            if (subexp != null) newChild = subexp else {
+                Object[] ret = (Object[])arr.clone()
+                ret[arr.length - 1] = rec.first
+                return [ret, null]
+            }
+        }
+        if (arr.length == 32) {
+            return [arr, (Object[]) [newChild]]
+        } else {
+            def ret = new Object[arr.length + 1]
+            System.arraycopy arr, 0, ret, 0, arr.length
+            ret[arr.length] = newChild
+            return [ret, null]
+        }
+    }
+
+    /**
+     * Sum of all elements
+     */
+    double sum() {
+        double res = 0
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            for (int j = 0; j != leaf.length; ++j)
+                res += leaf[j]
+        }
+        res
+    }
+
+    double min() {
+        if (!length)
+            throw new NoSuchElementException()
+
+        double res = tail[0]
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            for (int j = 0; j != leaf.length; ++j)
+                if (leaf[j] < res)
+                    res = leaf[j]
+        }
+        res
+    }
+
+    double max() {
+        if (!length)
+            throw new NoSuchElementException()
+
+        double res = tail[0]
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            for (int j = 0; j != leaf.length; ++j)
+                if (leaf[j] > res)
+                    res = leaf[j]
+        }
+        res
+    }
+
+    /**
+     * Searches sorted vector for the key. Result has the same meaning as for Arrays.binarySearch:
+     * index of the key if found, (-(insertion point) - 1) otherwise.
+     *
+     * Leaf is chosen by binary search over first elements of leaves, then searched by Arrays.binarySearch
+     */
+    int binarySearch(double key) {
+        if (!length)
+            return -1
+
+        int lo = 0, hi = ((length + 31) >>> 5) - 1
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1
+            if (arrayFor(mid << 5)[0] <= key)
+                lo = mid
+            else
+                hi = mid - 1
+        }
+
+        int base = lo << 5
+        int r = Arrays.binarySearch(arrayFor(base), key)
+        r >= 0 ? base + r : r - base
+    }
+
+    double[] toArray() {
+        def res = new double[length]
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            System.arraycopy leaf, 0, res, i, leaf.length
+        }
+        res
+    }
+
+    Iterator<Double> iterator() {
+        [
+            index: 0,
+            leaf: (double[])null,
+            hasNext: { index < length },
+            next: {
+                if (index >= length)
+                    throw new NoSuchElementException()
+
+                if (!(index & 0x1f))
+                    leaf = arrayFor(index)
+                (Double)leaf[index++ & 0x1f]
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    /**
+     * Iterates leaf arrays of the vector. Arrays are shared with the vector and should not be modified.
+     */
+    Iterator<double[]> chunkIterator() {
+        [
+            index: 0,
+            hasNext: { index < length },
+            next: {
+                if (index >= length)
+                    throw new NoSuchElementException()
+
+                def leaf = arrayFor(index)
+                index += leaf.length
+                leaf
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    protected final Object writeReplace() {
+        new Serial(vector:this)
+    }
+
+    static class Serial implements Externalizable {
+        FDoubleVector vector
+
+        protected final Object readResolve() {
+            vector
+        }
+
+        void writeExternal(ObjectOutput out) {
+            out.writeInt vector.length
+            for (int i = 0; i < vector.length; i += 32) {
+                def leaf = vector.arrayFor(i)
+                for (int j = 0; j != leaf.length; ++j)
+                    out.writeDouble leaf[j]
+            }
+        }
+
+        void readExternal(ObjectInput input) {
+            def sz = input.readInt()
+            def res = FDoubleVector.emptyVector
+            def buf = new double[32]
+            while (sz) {
+                int n = Math.min(32, sz)
+                if (n != buf.length)
+                    buf = new double[n]
+                for (int j = 0; j != n; ++j)
+                    buf[j] = input.readDouble()
+                res = res.addAll(buf)
+                sz -= n
+            }
+            vector = res
+        }
+    }
+}
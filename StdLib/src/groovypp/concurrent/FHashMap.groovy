@@ -42,17 +42,45 @@ import java.util.concurrent.Callable
     final V getUnresolvedProperty(K key) { getAt(0, key, key.hashCode()) }
 
     final FHashMap<K, V> putAll(Map<K,V> map) {
-        def res = this
-        for(e in map.entrySet())
-            res = res.put(e.key, e.value)
-        res
+        asTransient().putAll(map).persistent()
     }
 
     final FHashMap<K, V> putAll(FHashMap<K,V> map) {
-        def res = this
-        for(e in map.entrySet())
-            res = res.put(e.key, e.value)
-        res
+        merge(map)
+    }
+
+    /**
+     * Union of this and other map, values from other map win.
+     * Subtrees shared by both maps are reused without walking them.
+     */
+    final FHashMap<K, V> merge(FHashMap<K,V> other) {
+        mergeNodes(0, this, other, null)
+    }
+
+    /**
+     * Union of this and other map. For keys present in both maps value is result of
+     * resolve called with the key, value from this map and value from other map.
+     */
+    final FHashMap<K, V> merge(FHashMap<K,V> other, Function3<K, V, V, V> resolve) {
+        mergeNodes(0, this, other, resolve)
+    }
+
+    /**
+     * Calls op for each key, which is not mapped to equal values by this and other map, with the key,
+     * value in this map and value in other map (null if the key is absent).
+     *
+     * Subtrees shared by both maps are skipped, so comparing two versions of a map costs proportionally
+     * to number of changes between them rather than to size of the map.
+     */
+    final void diff(FHashMap<K,V> other, Function3<K, V, V, Object> op) {
+        diffNodes(0, this, other, op)
+    }
+
+    /**
+     * Creates mutable copy of the map, which updates nodes created by itself in place
+     */
+    final Transient<K, V> asTransient() {
+        new Transient<K, V>(this)
     }
 
     final FHashMap<K, V> plus(FHashMap<K,V> map) {
@@ -95,6 +123,13 @@ import java.util.concurrent.Callable
 
     protected abstract FHashMap<K, V> remove(int shift, K key, int hash)
 
+    /**
+     * Same as update but nodes owned by edit may be modified instead of copied
+     */
+    protected FHashMap<K, V> updateInPlace(int shift, K key, int hash, V value, Object edit) {
+        update(shift, key, hash, value)
+    }
+
     final AbstractSet<Map.Entry<K, V>> entrySet () { new EntrySet() }
     final AbstractSet<K> keySet () { new KeySet() }
     final Collection<V>  values () { new Values() }
@@ -107,24 +142,30 @@ import java.util.concurrent.Callable
         values().contains(value)
     }
 
+    /**
+     * Maps with the same entries have the same shape, so nodes are compared pairwise
+     * and comparison stops at first node with different bitmaps
+     */
     boolean equals(Object obj) {
-        if(obj instanceof FHashMap) {
-            if(((FHashMap)obj).size() == size()) {
-                for(e in ((FHashMap)obj).entrySet()) {
-                    if(this[e.key] != e.value)
-                        return false
-                }
-                return true
-            }
-        }
+        if (obj === this)
+            return true
+
+        obj instanceof FHashMap && ((FHashMap)obj).size() == size() && equalNodes((FHashMap)obj)
     }
 
+    /**
+     * Compares node with node at the same position of another trie
+     */
+    protected abstract boolean equalNodes(FHashMap<K, V> other)
+
+    /**
+     * Same as for java.util.Map: sum of hash codes of entries. BitmappedNode caches computed value.
+     */
     int hashCode() {
-        def hash = 0
-        for(e in entrySet()) {
-            hash += e.key.hashCode()
-            hash += e.value.hashCode()
-        }
+        int hash = 0
+        for(e in this)
+            hash += e.key.hashCode() ^ (e.value == null ? 0 : e.value.hashCode())
+        hash
     }
 
     public static final FHashMap emptyMap = new EmptyNode()
@@ -138,11 +179,13 @@ import java.util.concurrent.Callable
 
         FHashMap<K, V> update(int shift, K key, int hash, V value) {
             def bits = 1 << ((hash >>> shift) & 0x1f)
-            new BitmappedNode(bits, bits, 1, key, value)
+            new BitmappedNode(bits, 0, 1, key, value)
         }
 
         FHashMap<K, V> remove(K key, int hash) { this }
 
+        protected boolean equalNodes(FHashMap<K, V> other) { other instanceof EmptyNode }
+
         Iterator<Map.Entry<K, V>> iterator() {
             [
                 hasNext: {false},
@@ -172,24 +215,73 @@ import java.util.concurrent.Callable
         Integer.bitCount(mask & (bit - 1))
     }
 
-    static BitmappedNode bitmap(int shift, int hash, K key, V value, K key2, V value2) {
-        int bits1 = 1 << ((hash >>> shift) & 0x1f)
-        int bits2 = 1 << ((key2.hashCode() >>> shift) & 0x1f)
+    /**
+     * Node of given level containing two different keys
+     */
+    private static FHashMap pair(int shift, Object key1, int hash1, Object value1, Object key2, int hash2, Object value2) {
+        if (hash1 == hash2)
+            return new CollisionNode(hash1, key1, value1, key2, value2)
+
+        int i1 = (hash1 >>> shift) & 0x1f
+        int i2 = (hash2 >>> shift) & 0x1f
+        if (i1 == i2)
+            return new BitmappedNode(0, 1 << i1, 2, pair(shift + 5, key1, hash1, value1, key2, hash2, value2))
+
+        i1 < i2 ?
+            new BitmappedNode((1 << i1) | (1 << i2), 0, 2, key1, value1, key2, value2) :
+            new BitmappedNode((1 << i1) | (1 << i2), 0, 2, key2, value2, key1, value1)
+    }
+
+    private static FHashMap mergeNodes(int shift, FHashMap a, FHashMap b, Function3 resolve) {
+        if (b instanceof EmptyNode || (a === b && resolve == null))
+            return a
+
+        if (a instanceof EmptyNode)
+            return b
+
+        if (a instanceof BitmappedNode && b instanceof BitmappedNode)
+            return ((BitmappedNode)a).mergeWith(shift, (BitmappedNode)b, resolve)
+
+        // collision node on one of sides, smaller map is inserted to bigger one
+        if (b.size() <= a.size()) {
+            def res = a
+            for (e in b) {
+                int hash = e.key.hashCode()
+                def old = a.getAt(shift, e.key, hash)
+                res = res.update(shift, e.key, hash, old == null || resolve == null ? e.value : resolve.call(e.key, old, e.value))
+            }
+            return res
+        }
+
+        def res = b
+        for (e in a) {
+            int hash = e.key.hashCode()
+            def old = b.getAt(shift, e.key, hash)
+            if (old == null)
+                res = res.update(shift, e.key, hash, e.value)
+            else if (resolve != null)
+                res = res.update(shift, e.key, hash, resolve.call(e.key, e.value, old))
+        }
+        res
+    }
 
-        int mask = bits1 | bits2
+    private static void diffNodes(int shift, FHashMap a, FHashMap b, Function3 op) {
+        if (a === b)
+            return
 
-        int shift1 = bitIndex(bits1, mask) << 1
-        int shift2 = bitIndex(bits2, mask) << 1
+        if (a instanceof BitmappedNode && b instanceof BitmappedNode) {
+            ((BitmappedNode)a).diffWith(shift, (BitmappedNode)b, op)
+            return
+        }
 
-        if (shift1 == shift2) {
-            new BitmappedNode(bits2, bits2, 1, key2, value2).update(shift, key, hash, value)
-        } else {
-            def newTable = new Object[4]
-            newTable[shift1] = key
-            newTable[shift1 + 1] = value
-            newTable[shift2] = key2
-            newTable[shift2 + 1] = value2
-            new BitmappedNode(mask, mask, 2, newTable)
+        for (e in a) {
+            def other = b.getAt(shift, e.key, e.key.hashCode())
+            if (other != e.value)
+                op.call(e.key, e.value, other)
+        }
+        for (e in b) {
+            if (a.getAt(shift, e.key, e.key.hashCode()) == null)
+                op.call(e.key, null, e.value)
         }
     }
 
@@ -267,7 +359,7 @@ import java.util.concurrent.Callable
             }
             else {
                 int bit = 1 << ((hash >>> shift) & 0x1f)
-                FHashMap bitmap = new BitmappedNode(bit, bit, 1, key, value)
+                FHashMap bitmap = new BitmappedNode(bit, 0, 1, key, value)
                 for (int i = 0; i != table.length; i += 2) {
                     bitmap = bitmap.update(shift, table[i], this.hash, table[i + 1])
                 }
@@ -282,11 +374,11 @@ import java.util.concurrent.Callable
                         // no collision any more
                         if (i == 0) {
                             int bit = 1 << ((table[2].hashCode() >>> shift) & 0x1f)
-                            return new BitmappedNode(bit, bit, 1, table[2], table[3])
+                            return new BitmappedNode(bit, 0, 1, table[2], table[3])
                         }
                         else {
                             int bit = 1 << ((table[0].hashCode() >>> shift) & 0x1f)
-                            return new BitmappedNode(bit, bit, 1, table[0], table[1])
+                            return new BitmappedNode(bit, 0, 1, table[0], table[1])
                         }
                     }
                     else {
@@ -298,6 +390,17 @@ import java.util.concurrent.Callable
             this
         }
 
+        protected boolean equalNodes(FHashMap<K, V> other) {
+            if (!(other instanceof CollisionNode) || ((CollisionNode)other).hash != hash || other.size() != size())
+                return false
+
+            for (int i = 0; i != table.length; i += 2) {
+                if (other.getAt(0, (K)table[i], hash) != table[i + 1])
+                    return false
+            }
+            true
+        }
+
         void writeExternal(ObjectOutput out) {
             out.writeInt hash
             out.writeByte table.length
@@ -314,218 +417,465 @@ import java.util.concurrent.Callable
         }
     }
 
+    /**
+     * CHAMP node. Table keeps key/value pairs of entries stored in the node itself in order of dataMap bits
+     * followed by child nodes in order of nodeMap bits.
+     *
+     * Tries are kept in canonical form: child with single entry is merged into its parent and node,
+     * which would contain only collision node, is replaced by it. So maps with the same entries have the same shape.
+     */
     private static class BitmappedNode<K, V> extends FHashMap<K, V> implements Externalizable {
-        int bits, leafBits, size
-        Object[] table // either (key,value) or (node)
+        int dataMap, nodeMap, size
+        Object[] table
+
+        // token of transient, which created this node and can modify it
+        private Object edit
+
+        // cached hashCode, 0 if not calculated yet
+        private int entriesHash
+
+        // map built by readExternal
+        private transient FHashMap<K, V> resolved
 
         BitmappedNode() {}
 
-        BitmappedNode(int bits, int leafBits, int size, Object[] table) {
-            this.bits = bits
-            this.leafBits = leafBits
+        BitmappedNode(int dataMap, int nodeMap, int size, Object[] table) {
+            this.dataMap = dataMap
+            this.nodeMap = nodeMap
             this.table = table
             this.size = size
         }
 
+        private int nodeIndex(int bit) {
+            (Integer.bitCount(dataMap) << 1) + bitIndex(bit, nodeMap)
+        }
+
         V getAt(int shift, K key, int hash) {
-            int i = (hash >>> shift) & 0x1f
-            int bit = 1 << i
-            if (bits & bit) {
-                int index = bitIndex(bit, bits) + bitIndex(bit, leafBits)
-                if (bit & leafBits) {
-                    // leaf - t[index] - key, t [index+1] - value
-                    key.equals(table[index]) ? table[index + 1] : null
-                }
-                else {
-                    // node - t[index]
-                    ((FHashMap) table[index]).getAt(shift + 5, key, hash)
-                }
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap) << 1
+                return key.equals(table[i]) ? (V)table[i + 1] : null
             }
+            if (nodeMap & bit)
+                return ((FHashMap<K, V>) table[nodeIndex(bit)]).getAt(shift + 5, key, hash)
+            null
         }
 
         FHashMap<K, V> update(int shift, K key, int hash, V value) {
-            int i = (hash >>> shift) & 0x1f
-            int bit = 1 << i
-            if (bits & bit) {
-                i = bitIndex(bit, bits) + bitIndex(bit, leafBits)
-                if (leafBits & bit) {
-                    // table [i] - key, table [i+1] - value
-                    if (table[i].equals(key)) {
-                        if (table[i + 1] === value)
-                            return this
-                        else {
-                            replaceLeafValue(value, i)
-                        }
-                    }
-                    else {
-                        leafToNode(i, hash, key, value, shift, bit)
-                    }
-                }
-                else {
-                    // table [i] is node
-                    def node = ((FHashMap) table[i]).update(shift + 5, key, hash, value)
-                    if (node === table[i])
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap) << 1
+                def k = table[i]
+                if (k.equals(key)) {
+                    if (table[i + 1] === value)
                         return this
-                    else {
-                        Object[] newTable = table.clone()
-                        newTable[i] = node
-                        return new BitmappedNode(bits, leafBits, size - ((FHashMap) table[i]).size() + node.size(), newTable)
-                    }
+
+                    Object[] newTable = table.clone()
+                    newTable[i + 1] = value
+                    return new BitmappedNode(dataMap, nodeMap, size, newTable)
                 }
-            } else {
-                insertLeaf(bit, key, value)
+
+                def child = pair(shift + 5, k, k.hashCode(), table[i + 1], key, hash, value)
+                if (size == 1 && child instanceof CollisionNode)
+                    return child
+
+                return new BitmappedNode(dataMap & ~bit, nodeMap | bit, size + 1, dataToNode(bit, i, child))
             }
-        }
 
-        private def insertLeaf(int bit, K key, V value) {
-            int newBits = bits | bit
-            int newLeafBits = leafBits | bit
-            int i = bitIndex(bit, newBits) + bitIndex(bit, newLeafBits)
+            if (nodeMap & bit) {
+                int j = nodeIndex(bit)
+                def child = (FHashMap<K, V>) table[j]
+                def node = child.update(shift + 5, key, hash, value)
+                if (node === child)
+                    return this
 
-            def newTable = new Object[table.length + 2]
-            if (i < table.length) {
-                if (i > 0)
-                    System.arraycopy table, 0, newTable, 0, i
-                if (i < table.length)
-                    System.arraycopy table, i, newTable, i + 2, table.length - i
+                Object[] newTable = table.clone()
+                newTable[j] = node
+                return new BitmappedNode(dataMap, nodeMap, size - child.size() + node.size(), newTable)
             }
-            else {
-                System.arraycopy table, 0, newTable, 0, table.length
+
+            new BitmappedNode(dataMap | bit, nodeMap, size + 1, insertData(bit, key, value))
+        }
+
+        protected FHashMap<K, V> updateInPlace(int shift, K key, int hash, V value, Object edit) {
+            if (this.edit !== edit) {
+                def res = update(shift, key, hash, value)
+                if (res !== this && res instanceof BitmappedNode)
+                    ((BitmappedNode)res).edit = edit
+                return res
             }
 
-            newTable[i] = key
-            newTable[i + 1] = value
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap) << 1
+                def k = table[i]
+                if (k.equals(key)) {
+                    table[i + 1] = value
+                    return this
+                }
+
+                def child = pair(shift + 5, k, k.hashCode(), table[i + 1], key, hash, value)
+                if (size == 1 && child instanceof CollisionNode)
+                    return child
+
+                table = dataToNode(bit, i, child)
+                dataMap &= ~bit
+                nodeMap |= bit
+                size++
+                return this
+            }
 
-            return new BitmappedNode(newBits, newLeafBits, size + 1, newTable)
+            if (nodeMap & bit) {
+                int j = nodeIndex(bit)
+                def child = (FHashMap) table[j]
+                int childSize = child.size()
+                def node = child.updateInPlace(shift + 5, key, hash, value, edit)
+                table[j] = node
+                size += node.size() - childSize
+                return this
+            }
+
+            table = insertData(bit, key, value)
+            dataMap |= bit
+            size++
+            this
         }
 
-        private FHashMap leafToNode(int i, int hash, K key, V value, int shift, int bit) {
-            if (hash == table[i].hashCode()) {
-                def collisionNode = new CollisionNode(hash, table[i], table[i + 1], key, value)
+        FHashMap<K, V> remove(int shift, K key, int hash) {
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap) << 1
+                if (!key.equals(table[i]))
+                    return this
 
-                if (table.length == 2)
-                    collisionNode
-                else {
-                    def newTable = table.remove(i + 1)
-                    newTable[i] = collisionNode
-                    return new BitmappedNode(bits, leafBits & (~bit), size + 1, newTable)
+                if (size == 1)
+                    return emptyMap
+
+                if (dataMap == bit && Integer.bitCount(nodeMap) == 1 && table[2] instanceof CollisionNode)
+                    return (FHashMap<K, V>) table[2]
+
+                return new BitmappedNode(dataMap & ~bit, nodeMap, size - 1, table.remove(i, 2))
+            }
+
+            if (nodeMap & bit) {
+                int j = nodeIndex(bit)
+                def child = (FHashMap<K, V>) table[j]
+                def node = child.remove(shift + 5, key, hash)
+                if (node === child)
+                    return this
+
+                if (node.size() == 1) {
+                    // last entry of the child moves to this node
+                    def single = ((BitmappedNode)node).table
+                    return new BitmappedNode(dataMap | bit, nodeMap & ~bit, size - 1, nodeToData(bit, j, single[0], single[1]))
                 }
+
+                if (!dataMap && nodeMap == bit && node instanceof CollisionNode)
+                    return node
+
+                Object[] newTable = table.clone()
+                newTable[j] = node
+                return new BitmappedNode(dataMap, nodeMap, size - 1, newTable)
             }
-            else {
-                def newTable = table.remove(i + 1)
-                newTable[i] = bitmap(shift + 5, hash, key, value, table[i], table[i + 1])
-                return new BitmappedNode(bits, leafBits & (~bit), size + 1, newTable)
+
+            this
+        }
+
+        /**
+         * Copy of table with entry at index i replaced by child node for given bit
+         */
+        private Object[] dataToNode(int bit, int i, Object child) {
+            int nodeStart = Integer.bitCount(dataMap) << 1
+            int j = bitIndex(bit, nodeMap)
+            def res = new Object[table.length - 1]
+            System.arraycopy table, 0, res, 0, i
+            System.arraycopy table, i + 2, res, i, nodeStart - i - 2
+            System.arraycopy table, nodeStart, res, nodeStart - 2, j
+            res[nodeStart - 2 + j] = child
+            System.arraycopy table, nodeStart + j, res, nodeStart - 1 + j, table.length - nodeStart - j
+            res
+        }
+
+        /**
+         * Copy of table with child node at index j replaced by entry for given bit
+         */
+        private Object[] nodeToData(int bit, int j, Object key, Object value) {
+            int i = bitIndex(bit, dataMap) << 1
+            def res = new Object[table.length + 1]
+            System.arraycopy table, 0, res, 0, i
+            res[i] = key
+            res[i + 1] = value
+            System.arraycopy table, i, res, i + 2, j - i
+            System.arraycopy table, j + 1, res, j + 2, table.length - j - 1
+            res
+        }
+
+        private Object[] insertData(int bit, Object key, Object value) {
+            int i = bitIndex(bit, dataMap) << 1
+            def res = new Object[table.length + 2]
+            System.arraycopy table, 0, res, 0, i
+            res[i] = key
+            res[i + 1] = value
+            System.arraycopy table, i, res, i + 2, table.length - i
+            res
+        }
+
+        protected boolean equalNodes(FHashMap<K, V> other) {
+            if (other === this)
+                return true
+
+            if (!(other instanceof BitmappedNode))
+                return false
+
+            def o = (BitmappedNode) other
+            if (o.dataMap != dataMap || o.nodeMap != nodeMap || o.size != size)
+                return false
+
+            int nodeStart = Integer.bitCount(dataMap) << 1
+            for (int i = 0; i != nodeStart; i += 2) {
+                if (!table[i].equals(o.table[i]) || table[i + 1] != o.table[i + 1])
+                    return false
+            }
+            for (int j = nodeStart; j != table.length; ++j) {
+                if (table[j] !== o.table[j] && !((FHashMap) table[j]).equalNodes((FHashMap) o.table[j]))
+                    return false
             }
+            true
         }
 
-        private FHashMap replaceLeafValue(V value, int i) {
-            Object[] newTable = table.clone()
-            newTable[i + 1] = value
-            new BitmappedNode(bits, leafBits, size, newTable)
+        int hashCode() {
+            int hash = entriesHash
+            if (!hash) {
+                int nodeStart = Integer.bitCount(dataMap) << 1
+                for (int i = 0; i != nodeStart; i += 2)
+                    hash += table[i].hashCode() ^ (table[i + 1] == null ? 0 : table[i + 1].hashCode())
+                for (int j = nodeStart; j != table.length; ++j)
+                    hash += table[j].hashCode()
+                entriesHash = hash
+            }
+            hash
         }
 
-        FHashMap<K, V> remove(int shift, K key, int hash) {
-            int i = (hash >>> shift) & 0x1f
-            int bit = 1 << i
-            if (bits & bit) {
-                i = bitIndex(bit, bits) + bitIndex(bit, leafBits)
-                if (leafBits & bit) {
-                    if (table[i].equals(key)) {
-                        def newBits = bits & ~bit
-                        if (newBits) {
-                            new BitmappedNode(newBits, leafBits & (~bit), size - 1, table.remove(i, 2))
-                        }
-                        else {
-                            // it was only one
-                            emptyMap
+        /**
+         * Walks slots of both nodes, slots present in one node only are reused as is
+         */
+        private FHashMap<K, V> mergeWith(int shift, BitmappedNode<K, V> b, Function3<K, V, V, V> resolve) {
+            def data = new Object[64]
+            def nodes = new Object[32]
+            int newDataMap = 0, newNodeMap = 0, newSize = 0, dn = 0, nn = 0
+            boolean sameAsThis = true, sameAsOther = true
+
+            for (int rest = dataMap | nodeMap | b.dataMap | b.nodeMap; rest; rest &= rest - 1) {
+                int bit = Integer.lowestOneBit(rest)
+                FHashMap child = null
+
+                if (dataMap & bit) {
+                    int i = bitIndex(bit, dataMap) << 1
+                    def k = table[i], v = table[i + 1]
+                    if (b.dataMap & bit) {
+                        int bi = bitIndex(bit, b.dataMap) << 1
+                        def bk = b.table[bi], bv = b.table[bi + 1]
+                        if (k.equals(bk)) {
+                            def nv = resolve == null ? bv : resolve.call((K)k, (V)v, (V)bv)
+                            sameAsThis = sameAsThis && nv === v
+                            sameAsOther = sameAsOther && nv === bv
+                            data[dn++] = k
+                            data[dn++] = nv
+                            newDataMap |= bit
+                            newSize++
+                            continue
                         }
+                        child = pair(shift + 5, k, k.hashCode(), v, bk, bk.hashCode(), bv)
+                        sameAsThis = sameAsOther = false
+                    }
+                    else if (b.nodeMap & bit) {
+                        def bn = (FHashMap) b.table[b.nodeIndex(bit)]
+                        int hash = k.hashCode()
+                        def bv = bn.getAt(shift + 5, k, hash)
+                        child = bv == null ? bn.update(shift + 5, k, hash, v) :
+                                resolve != null ? bn.update(shift + 5, k, hash, resolve.call((K)k, (V)v, (V)bv)) : bn
+                        sameAsThis = false
+                        sameAsOther = sameAsOther && child === bn
+                    }
+                    else {
+                        data[dn++] = k
+                        data[dn++] = v
+                        newDataMap |= bit
+                        newSize++
+                        sameAsOther = false
+                        continue
+                    }
+                }
+                else if (nodeMap & bit) {
+                    def an = (FHashMap) table[nodeIndex(bit)]
+                    if (b.dataMap & bit) {
+                        int bi = bitIndex(bit, b.dataMap) << 1
+                        def bk = b.table[bi], bv = b.table[bi + 1]
+                        int hash = bk.hashCode()
+                        def v = an.getAt(shift + 5, bk, hash)
+                        child = an.update(shift + 5, bk, hash, v == null || resolve == null ? bv : resolve.call((K)bk, (V)v, (V)bv))
+                        sameAsThis = sameAsThis && child === an
+                        sameAsOther = false
+                    }
+                    else if (b.nodeMap & bit) {
+                        def bn = (FHashMap) b.table[b.nodeIndex(bit)]
+                        child = mergeNodes(shift + 5, an, bn, resolve)
+                        sameAsThis = sameAsThis && child === an
+                        sameAsOther = sameAsOther && child === bn
                     }
                     else {
-                        this
+                        child = an
+                        sameAsOther = false
                     }
                 }
+                else if (b.dataMap & bit) {
+                    int bi = bitIndex(bit, b.dataMap) << 1
+                    data[dn++] = b.table[bi]
+                    data[dn++] = b.table[bi + 1]
+                    newDataMap |= bit
+                    newSize++
+                    sameAsThis = false
+                    continue
+                }
                 else {
-                    def node = ((FHashMap) table[i]).remove(shift + 5, key, hash)
-                    if (node === table[i]) {
-                        return this
-                    } else if (node === emptyMap) {
-                        int adjustedBits = bits & ~bit
-                        if (!adjustedBits)
-                            return emptyMap
-                        return new BitmappedNode(adjustedBits, leafBits, size - 1, table.remove(i))
-                    } else {
-                        Object[] newTable = table.clone()
-                        newTable[i] = node
-                        return new BitmappedNode(bits, leafBits, size - ((FHashMap) table[i]).size() + node.size(), newTable)
+                    child = (FHashMap) b.table[b.nodeIndex(bit)]
+                    sameAsThis = false
+                }
+
+                nodes[nn++] = child
+                newNodeMap |= bit
+                newSize += child.size()
+            }
+
+            if (sameAsThis)
+                return this
+
+            if (sameAsOther)
+                return b
+
+            if (!newDataMap && nn == 1 && nodes[0] instanceof CollisionNode)
+                return (FHashMap<K, V>) nodes[0]
+
+            def newTable = new Object[dn + nn]
+            System.arraycopy data, 0, newTable, 0, dn
+            System.arraycopy nodes, 0, newTable, dn, nn
+            new BitmappedNode(newDataMap, newNodeMap, newSize, newTable)
+        }
+
+        private void diffWith(int shift, BitmappedNode<K, V> b, Function3<K, V, V, Object> op) {
+            for (int rest = dataMap | nodeMap | b.dataMap | b.nodeMap; rest; rest &= rest - 1) {
+                int bit = Integer.lowestOneBit(rest)
+                if ((dataMap & bit) && (b.dataMap & bit)) {
+                    int i = bitIndex(bit, dataMap) << 1, bi = bitIndex(bit, b.dataMap) << 1
+                    def k = table[i], v = table[i + 1], bk = b.table[bi], bv = b.table[bi + 1]
+                    if (k.equals(bk)) {
+                        if (v != bv)
+                            op.call((K)k, (V)v, (V)bv)
+                    }
+                    else {
+                        op.call((K)k, (V)v, null)
+                        op.call((K)bk, null, (V)bv)
                     }
                 }
+                else {
+                    diffNodes(shift + 5, slot(shift, bit), b.slot(shift, bit), op)
+                }
             }
-            else {
-                this
+        }
+
+        /**
+         * Content of the slot as node of next level
+         */
+        private FHashMap<K, V> slot(int shift, int bit) {
+            if (nodeMap & bit)
+                return (FHashMap<K, V>) table[nodeIndex(bit)]
+
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap) << 1
+                return new BitmappedNode(1 << ((table[i].hashCode() >>> (shift + 5)) & 0x1f), 0, 1, table[i], table[i + 1])
             }
+
+            emptyMap
         }
 
         Iterator<Map.Entry<K, V>> iterator() {
             [
-                    curBit: 0,
-                    curIterator: (Iterator<Map.Entry<K, V>>) null,
+                    index: 0,
+                    cur: (Iterator<Map.Entry<K, V>>) null,
                     hasNext: {
-                        if (curIterator != null) {
-                            if (curIterator.hasNext())
-                                return true
-                            curIterator = null
-                            curBit++
-                        }
+                        if (index < (Integer.bitCount(dataMap) << 1))
+                            return true
 
-                        for(; curBit != 32; curBit++) {
-                            int bit = 1 << curBit
-                            if(bits & bit) {
-                                if (leafBits & bit) {
-                                    return true
-                                }
-                                else {
-                                    int index = bitIndex(bit, bits) + bitIndex(bit, leafBits)
-                                    curIterator = ((FHashMap<K, V>) table[index]).iterator()
-                                    return curIterator.hasNext()
-                                }
-                            }
+                        while (cur == null || !cur.hasNext()) {
+                            if (index == table.length)
+                                return false
+                            cur = ((FHashMap<K, V>) table[index++]).iterator()
                         }
+                        true
                     },
                     next: {
-                        if (curIterator != null) {
-                            return curIterator.next()
+                        if (index < (Integer.bitCount(dataMap) << 1)) {
+                            index += 2
+                            return mapEntry(index - 2, table)
                         }
 
-                        def bit = 1 << curBit
-                        if (leafBits & bit) {
-                            curBit++
-                            return mapEntry(bitIndex(bit, bits) + bitIndex(bit, leafBits), table)
-                        }
-                        else {
-                            throw new NoSuchElementException()
+                        while (cur == null || !cur.hasNext()) {
+                            if (index == table.length)
+                                throw new NoSuchElementException()
+                            cur = ((FHashMap<K, V>) table[index++]).iterator()
                         }
+                        cur.next()
                     },
                     remove: { throw new UnsupportedOperationException() }
             ]
         }
 
+        /**
+         * Map is written as flat list of entries after 0 marker, so layout of nodes can change
+         * without breaking serial form. Nested nodes are never written
+         */
         void writeExternal(ObjectOutput out) {
-            out.writeInt bits
-            out.writeInt leafBits
+            out.writeInt 0
             out.writeInt size
-            out.writeByte table.length
-            for (t in table)
-                out.writeObject t
+            for (e in this) {
+                out.writeObject e.key
+                out.writeObject e.value
+            }
         }
 
+        /**
+         * Reads flat list of entries or node written by versions before CHAMP layout,
+         * which starts from bitmap of used positions and so never from 0
+         */
         void readExternal(ObjectInput input) {
-            bits = input.readInt()
-            leafBits = input.readInt()
-            size = input.readInt()
-            int len = input.readByte()
-            table = new Object[len]
-            for (int i = 0; i != table.length; ++i)
-                table[i] = input.readObject()
+            def t = new Transient<K, V>(FHashMap.emptyMap)
+            int bits = input.readInt()
+            if (!bits) {
+                int n = input.readInt()
+                for (int i = 0; i != n; ++i)
+                    t.put((K)input.readObject(), (V)input.readObject())
+            }
+            else {
+                // positions in order of bits, leaf takes key and value, child node takes one slot
+                int leafBits = input.readInt()
+                input.readInt()
+                input.readByte()
+                for (int i = 0; i != 32; ++i) {
+                    int bit = 1 << i
+                    if (bits & bit) {
+                        if (leafBits & bit)
+                            t.put((K)input.readObject(), (V)input.readObject())
+                        else
+                            // already resolved to map of its own entries
+                            t.putAll((FHashMap<K, V>)input.readObject())
+                    }
+                }
+            }
+            resolved = t.persistent()
+        }
+
+        protected final Object readResolve() {
+            resolved
         }
 
         @Override
@@ -552,6 +902,70 @@ import java.util.concurrent.Callable
         newArray
     }
 
+    /**
+     * Mutable map used for bulk updates. Nodes created by transient are modified in place
+     * until persistent() is called, so loading n entries does not copy path to the root n times.
+     *
+     * Transient should not be shared between threads and can't be used after persistent()
+     */
+    static final class Transient<K, V> {
+        private FHashMap<K, V> root
+
+        private Object edit = new Object()
+
+        private Transient(FHashMap<K, V> root) {
+            this.root = root
+        }
+
+        Transient<K, V> put(K key, V value) {
+            ensureEditable()
+            root = root.updateInPlace(0, key, key.hashCode(), value, edit)
+            this
+        }
+
+        Transient<K, V> putAll(Map<K,V> map) {
+            for(e in map.entrySet())
+                put(e.key, e.value)
+            this
+        }
+
+        Transient<K, V> putAll(FHashMap<K,V> map) {
+            for(e in map.entrySet())
+                put(e.key, e.value)
+            this
+        }
+
+        Transient<K, V> remove(K key) {
+            ensureEditable()
+            root = root.remove(key)
+            this
+        }
+
+        V getAt(K key) {
+            ensureEditable()
+            root.getAt(key)
+        }
+
+        int size() {
+            ensureEditable()
+            root.size()
+        }
+
+        /**
+         * Freezes all nodes modified by this transient and returns them as persistent map
+         */
+        FHashMap<K, V> persistent() {
+            ensureEditable()
+            edit = null
+            root
+        }
+
+        private void ensureEditable() {
+            if (edit == null)
+                throw new IllegalStateException("Transient used after persistent() call")
+        }
+    }
+
     private final class EntrySet<K,V> extends AbstractSet<Map.Entry<K, V>> {
         Iterator<Map.Entry<K, V>> iterator() {
             FHashMap.this.iterator()
@@ -63,31 +63,35 @@ abstract class FList<T> implements Iterable<T>, Serializable {
     }
 
     /**
-     * Creates new list containing all elements of this list except given one
+     * Creates new list containing all elements of this list except first occurrence of given one.
+     * Elements after removed one are shared with this list
      */
     final FList<T> remove (T element) {
-        contains(element) ? doRemove(element, FList.emptyList) : this
+        def prefix = new Object[Math.min(size, 16)]
+        int count = 0
+        for (def cur = this; cur.size; cur = cur.tail) {
+            if (cur.head == element)
+                return link(prefix, count, cur.tail)
+
+            if (count == prefix.length)
+                prefix = grow(prefix)
+            prefix[count++] = cur.head
+        }
+        this
     }
 
     /**
-     * Creates new list containing all elements of this list except given one
+     * Creates new list containing given element and then all element of this list
      */
-    private FList<T> doRemove (T element, FList<T> accumulated) {
-        !size ?
-            accumulated.reverse() :
-            head == element ?
-                tail.addAll(accumulated) :
-                tail.doRemove(element,accumulated + head)
+    final FList<T> addAll (Iterable<T> elements) {
+        asTransient().addAll(elements).persistent()
     }
 
     /**
-     * Creates new list containing given element and then all element of this list
+     * Creates builder prepending elements to this list
      */
-    final FList<T> addAll (Iterable<T> elements) {
-        def res = this
-        for (el in elements)
-            res += el
-        res
+    final Transient<T> asTransient () {
+        new Transient<T>(this)
     }
 
     /**
@@ -99,14 +103,121 @@ abstract class FList<T> implements Iterable<T>, Serializable {
      * Create reversed copy of the list
      */
     final FList<T> reverse (FList<T> accumulated = FList.emptyList) {
-        if(!size) { accumulated } else { tail.reverse(accumulated + head) }
+        def res = accumulated
+        for (def cur = this; cur.size; cur = cur.tail)
+            res = res + cur.head
+        res
     }
 
     /**
      * Checks is this list contains given element
      */
     final boolean contains (T element) {
-        size && (head == element || tail.contains(element))
+        for (def cur = this; cur.size; cur = cur.tail)
+            if (cur.head == element)
+                return true
+        false
+    }
+
+    /**
+     * Creates new list of results of applying op to elements of this list, in the same order
+     */
+    final <R> FList<R> map (Function1<T, R> op) {
+        def mapped = new Object[size]
+        int i = 0
+        for (def cur = this; cur.size; cur = cur.tail)
+            mapped[i++] = op.call(cur.head)
+        link(mapped, size, FList.emptyList)
+    }
+
+    /**
+     * Creates new list of elements satisfying predicate, in the same order.
+     * Longest suffix, which contains only such elements, is shared with this list
+     */
+    final FList<T> filter (Function1<T, Boolean> predicate) {
+        def kept = new Object[Math.min(size, 16)]
+        int count = 0, shared = -1
+        FList<T> suffix = this
+        for (def cur = this; cur.size; cur = cur.tail) {
+            if (predicate.call(cur.head)) {
+                if (count == kept.length)
+                    kept = grow(kept)
+                kept[count++] = cur.head
+            }
+            else {
+                shared = count
+                suffix = cur.tail
+            }
+        }
+        shared == -1 ? this : link(kept, shared, suffix)
+    }
+
+    /**
+     * Creates new list of first n elements of this list
+     */
+    final FList<T> take (int n) {
+        if (n >= size)
+            return this
+        if (n <= 0)
+            return FList.emptyList
+
+        def taken = new Object[n]
+        def cur = this
+        for (int i = 0; i != n; ++i) {
+            taken[i] = cur.head
+            cur = cur.tail
+        }
+        link(taken, n, FList.emptyList)
+    }
+
+    /**
+     * List of all elements of this list except first n. Shares all nodes with this list
+     */
+    final FList<T> drop (int n) {
+        if (n >= size)
+            return FList.emptyList
+
+        def cur = this
+        for (int i = 0; i < n; ++i)
+            cur = cur.tail
+        cur
+    }
+
+    /**
+     * Creates new list containing elements of this list followed by elements of other one.
+     * Nodes of other list are shared, only nodes of this list are copied
+     */
+    final FList<T> concat (FList<T> other) {
+        if (!other.size)
+            return this
+        if (!size)
+            return other
+
+        def copy = new Object[size]
+        int i = 0
+        for (def cur = this; cur.size; cur = cur.tail)
+            copy[i++] = cur.head
+        link(copy, size, other)
+    }
+
+    /**
+     * List of elements[0] .. elements[count-1] followed by elements of tail, creating exactly one node per element
+     */
+    private static FList link (Object [] elements, int count, FList tail) {
+        def res = tail
+        int i = count
+        if (res.empty && i) {
+            res = new OneElementList(elements[--i])
+        }
+        while (i)
+            res = new MoreThanOneElementList(elements[--i], res)
+        res
+    }
+
+    private static Object [] grow (Object [] array) {
+        def res = new Object[array.length << 1]
+        System.arraycopy array, 0, res, 0, array.length
+        res
     }
 
     protected final Object writeReplace() {
@@ -150,6 +261,71 @@ abstract class FList<T> implements Iterable<T>, Serializable {
         }
     }
 
+    /**
+     * Collects prepended elements in array and links all of them in one pass on persistent() call,
+     * creating exactly one node per element.
+     *
+     * Transient should not be shared between threads and can't be used after persistent()
+     */
+    static final class Transient<T> {
+        private final FList<T> base
+
+        private Object [] elements = new Object[16]
+
+        private int count
+
+        private Transient (FList<T> base) {
+            this.base = base
+        }
+
+        /**
+         * Prepends element, same as FList.plus
+         */
+        Transient<T> add (T element) {
+            ensureEditable()
+            if (count == elements.length) {
+                def newElements = new Object[count << 1]
+                System.arraycopy elements, 0, newElements, 0, count
+                elements = newElements
+            }
+            elements[count++] = element
+            this
+        }
+
+        Transient<T> leftShift (T element) {
+            add(element)
+        }
+
+        Transient<T> addAll (Iterable<T> items) {
+            for (el in items)
+                add(el)
+            this
+        }
+
+        int size () {
+            base.size + count
+        }
+
+        FList<T> persistent () {
+            ensureEditable()
+            FList<T> res = base
+            int i = 0
+            if (res.empty && count) {
+                res = new OneElementList<T>((T)elements[i++])
+            }
+            for ( ; i != count; ++i) {
+                res = new MoreThanOneElementList<T>((T)elements[i], res)
+            }
+            elements = null
+            res
+        }
+
+        private void ensureEditable () {
+            if (elements == null)
+                throw new IllegalStateException("Transient used after persistent() call")
+        }
+    }
+
     private static class EmptyList<T> extends FList<T> {
         EmptyList () { super(0) }
 
@@ -239,12 +415,9 @@ abstract class FList<T> implements Iterable<T>, Serializable {
 
         private void toString (StringBuilder sb) {
             sb << head
-            if (!tail.empty) {
+            for (def cur = tail; cur.size; cur = cur.tail) {
                 sb << ", "
-                if (tail instanceof MoreThanOneElementList)
-                    ((MoreThanOneElementList)tail).toString(sb)
-                else
-                    sb << ((OneElementList)tail).head.toString()
+                sb << cur.head
             }
         }
     }
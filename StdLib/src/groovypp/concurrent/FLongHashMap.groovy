@@ -0,0 +1,494 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Persistent hash trie keyed by long values.
+ *
+ * Works as FHashMap, but keys are never boxed: nodes keep keys in long[] array and values
+ * in parallel Object[] array, children are kept in separate array.
+ * Different keys with the same hash are kept in CollisionNode.
+ */
+@Typed abstract class FLongHashMap<V> implements Iterable<FLongHashMap.Entry<V>>, Serializable {
+    abstract int size()
+
+    final V getAt(long key) { getAt(0, key, hash(key)) }
+
+    final V get(long key) { getAt(0, key, hash(key)) }
+
+    final V get(long key, V defaultValue) { getAt(0, key, hash(key)) ?: defaultValue }
+
+    final boolean containsKey(long key) { getAt(0, key, hash(key)) != null }
+
+    final FLongHashMap<V> put(long key, V value) {
+        update(0, key, hash(key), value)
+    }
+
+    final FLongHashMap<V> remove(long key) {
+        remove(0, key, hash(key))
+    }
+
+    final FLongHashMap<V> putAll(FLongHashMap<V> map) {
+        def res = this
+        for (e in map)
+            res = res.put(e.longKey, e.value)
+        res
+    }
+
+    final FLongHashMap<V> plus(FLongHashMap<V> map) {
+        putAll(map)
+    }
+
+    final FLongHashMap<V> minus(FLongHashMap<V> map) {
+        def res = this
+        for (e in map)
+            res = res.remove(e.longKey)
+        res
+    }
+
+    boolean isEmpty() { !size() }
+
+    boolean equals(Object obj) {
+        if (obj === this)
+            return true
+
+        if (!(obj instanceof FLongHashMap) || ((FLongHashMap)obj).size() != size())
+            return false
+
+        for (e in (FLongHashMap<V>)obj) {
+            if (getAt(e.longKey) != e.value)
+                return false
+        }
+        true
+    }
+
+    int hashCode() {
+        int res = 0
+        for (e in this)
+            res += hash(e.longKey) ^ (e.value == null ? 0 : e.value.hashCode())
+        res
+    }
+
+    protected abstract V getAt(int shift, long key, int hash)
+
+    protected abstract FLongHashMap<V> update(int shift, long key, int hash, V value)
+
+    protected abstract FLongHashMap<V> remove(int shift, long key, int hash)
+
+    public static final FLongHashMap emptyMap = new EmptyNode()
+
+    private static final Object[] EMPTY = new Object[0]
+
+    private static final long[] EMPTY_KEYS = new long[0]
+
+    /**
+     * Spreads bits of the key. Different keys may still have same hash, such keys are kept in CollisionNode
+     */
+    static int hash(long key) {
+        int h = (int)(key ^ (key >>> 32))
+        h ^= h >>> 16
+        h *= 0x7feb352d
+        h ^ (h >>> 15)
+    }
+
+    /**
+     * Entry returned by iterator. Primitive key is available as longKey
+     */
+    static final class Entry<V> implements Map.Entry<Long, V> {
+        private final long key
+        private final V value
+
+        Entry(long key, V value) {
+            this.key = key
+            this.value = value
+        }
+
+        Long getKey() { key }
+
+        long getLongKey() { key }
+
+        V getValue() { value }
+
+        V setValue(V value) { throw new UnsupportedOperationException() }
+
+        String toString() { "[$key, $value]" }
+    }
+
+    private static class EmptyNode<V> extends FLongHashMap<V> {
+        private EmptyNode() {}
+
+        int size() { 0 }
+
+        protected V getAt(int shift, long key, int hash) { null }
+
+        protected FLongHashMap<V> update(int shift, long key, int hash, V value) {
+            single(shift, key, hash, value)
+        }
+
+        protected FLongHashMap<V> remove(int shift, long key, int hash) {
+            this
+        }
+
+        Iterator<Entry<V>> iterator() {
+            [
+                hasNext: {false},
+                next: {throw new NoSuchElementException()},
+                remove: {throw new UnsupportedOperationException()}
+            ]
+        }
+
+        protected final Object writeReplace() {
+            Serial.instance
+        }
+
+        static class Serial implements Serializable {
+            static final Serial instance = []
+
+            protected final Object readResolve() {
+                FLongHashMap.emptyMap
+            }
+        }
+    }
+
+    private static class BitmappedNode<V> extends FLongHashMap<V> implements Externalizable {
+        int dataMap, nodeMap, size
+        long[] keys       // keys of leaves in order of bits of dataMap
+        Object[] values // values of leaves
+        Object[] nodes  // children in order of bits of nodeMap
+
+        BitmappedNode() {}
+
+        BitmappedNode(int dataMap, int nodeMap, int size, long[] keys, Object[] values, Object[] nodes) {
+            this.dataMap = dataMap
+            this.nodeMap = nodeMap
+            this.size = size
+            this.keys = keys
+            this.values = values
+            this.nodes = nodes
+        }
+
+        int size() { size }
+
+        protected V getAt(int shift, long key, int hash) {
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap)
+                return keys[i] == key ? (V)values[i] : null
+            }
+            if (nodeMap & bit)
+                return ((FLongHashMap<V>)nodes[bitIndex(bit, nodeMap)]).getAt(shift + 5, key, hash)
+            null
+        }
+
+        protected FLongHashMap<V> update(int shift, long key, int hash, V value) {
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap)
+                if (keys[i] == key) {
+                    if (values[i] === value)
+                        return this
+
+                    Object[] newValues = (Object[])values.clone()
+                    newValues[i] = value
+                    return new BitmappedNode(dataMap, nodeMap, size, keys, newValues, nodes)
+                }
+
+                // both keys go to new child
+                def child = pair(shift + 5, keys[i], hash(keys[i]), values[i], key, hash, value)
+                return new BitmappedNode(dataMap & ~bit, nodeMap | bit, size + 1,
+                        removeKey(keys, i), remove(values, i), insert(nodes, bitIndex(bit, nodeMap), child))
+            }
+
+            if (nodeMap & bit) {
+                int j = bitIndex(bit, nodeMap)
+                def child = (FLongHashMap<V>)nodes[j]
+                def newChild = child.update(shift + 5, key, hash, value)
+                if (newChild === child)
+                    return this
+
+                Object[] newNodes = (Object[])nodes.clone()
+                newNodes[j] = newChild
+                return new BitmappedNode(dataMap, nodeMap, size - child.size() + newChild.size(), keys, values, newNodes)
+            }
+
+            int i = bitIndex(bit, dataMap)
+            new BitmappedNode(dataMap | bit, nodeMap, size + 1, insertKey(keys, i, key), insert(values, i, value), nodes)
+        }
+
+        protected FLongHashMap<V> remove(int shift, long key, int hash) {
+            int bit = 1 << ((hash >>> shift) & 0x1f)
+            if (dataMap & bit) {
+                int i = bitIndex(bit, dataMap)
+                if (keys[i] != key)
+                    return this
+
+                if (size == 1)
+                    return emptyMap
+
+                return new BitmappedNode(dataMap & ~bit, nodeMap, size - 1, removeKey(keys, i), remove(values, i), nodes)
+            }
+
+            if (nodeMap & bit) {
+                int j = bitIndex(bit, nodeMap)
+                def child = (FLongHashMap<V>)nodes[j]
+                def newChild = child.remove(shift + 5, key, hash)
+                if (newChild === child)
+                    return this
+
+                if (newChild.size() == 1) {
+                    // last entry of the child moves to this node
+                    def last = (BitmappedNode)newChild
+                    int i = bitIndex(bit, dataMap)
+                    return new BitmappedNode(dataMap | bit, nodeMap & ~bit, size - 1,
+                            insertKey(keys, i, last.keys[0]), insert(values, i, last.values[0]), remove(nodes, j))
+                }
+
+                Object[] newNodes = (Object[])nodes.clone()
+                newNodes[j] = newChild
+                return new BitmappedNode(dataMap, nodeMap, size - 1, keys, values, newNodes)
+            }
+
+            this
+        }
+
+        Iterator<Entry<V>> iterator() {
+            [
+                index: 0,
+                child: 0,
+                cur: (Iterator<Entry<V>>)null,
+                hasNext: {
+                    if (index < keys.length)
+                        return true
+
+                    while (cur == null || !cur.hasNext()) {
+                        if (child == nodes.length)
+                            return false
+                        cur = ((FLongHashMap<V>)nodes[child++]).iterator()
+                    }
+                    true
+                },
+                next: {
+                    if (index < keys.length) {
+                        index++
+                        return new Entry<V>(keys[index - 1], (V)values[index - 1])
+                    }
+
+                    while (cur == null || !cur.hasNext()) {
+                        if (child == nodes.length)
+                            throw new NoSuchElementException()
+                        cur = ((FLongHashMap<V>)nodes[child++]).iterator()
+                    }
+                    cur.next()
+                },
+                remove: { throw new UnsupportedOperationException() }
+            ]
+        }
+
+        void writeExternal(ObjectOutput out) {
+            out.writeInt dataMap
+            out.writeInt nodeMap
+            out.writeInt size
+            for (int i = 0; i != keys.length; ++i) {
+                out.writeLong keys[i]
+                out.writeObject values[i]
+            }
+            for (n in nodes)
+                out.writeObject n
+        }
+
+        void readExternal(ObjectInput input) {
+            dataMap = input.readInt()
+            nodeMap = input.readInt()
+            size = input.readInt()
+            int n = Integer.bitCount(dataMap)
+            keys = new long[n]
+            values = new Object[n]
+            for (int i = 0; i != n; ++i) {
+                keys[i] = input.readLong()
+                values[i] = input.readObject()
+            }
+            nodes = new Object[Integer.bitCount(nodeMap)]
+            for (int i = 0; i != nodes.length; ++i)
+                nodes[i] = input.readObject()
+        }
+    }
+
+    private static class CollisionNode<V> extends FLongHashMap<V> implements Externalizable {
+        int hash
+        long[] keys
+        Object[] values
+
+        CollisionNode() {}
+
+        CollisionNode(int hash, long[] keys, Object[] values) {
+            this.hash = hash
+            this.keys = keys
+            this.values = values
+        }
+
+        int size() { keys.length }
+
+        protected V getAt(int shift, long key, int hash) {
+            for (int i = 0; i != keys.length; ++i) {
+                if (keys[i] == key)
+                    return (V)values[i]
+            }
+            null
+        }
+
+        protected FLongHashMap<V> update(int shift, long key, int hash, V value) {
+            if (hash != this.hash)
+                return nest(shift, this, this.hash, key, hash, value)
+
+            for (int i = 0; i != keys.length; ++i) {
+                if (keys[i] == key) {
+                    if (values[i] === value)
+                        return this
+
+                    Object[] newValues = (Object[])values.clone()
+                    newValues[i] = value
+                    return new CollisionNode(hash, keys, newValues)
+                }
+            }
+            new CollisionNode(hash, insertKey(keys, keys.length, key), insert(values, values.length, value))
+        }
+
+        protected FLongHashMap<V> remove(int shift, long key, int hash) {
+            for (int i = 0; i != keys.length; ++i) {
+                if (keys[i] == key) {
+                    if (keys.length == 2)
+                        return single(shift, keys[1 - i], hash, values[1 - i])
+                    return new CollisionNode(hash, removeKey(keys, i), remove(values, i))
+                }
+            }
+            this
+        }
+
+        Iterator<Entry<V>> iterator() {
+            [
+                index: 0,
+                hasNext: { index < keys.length },
+                next: {
+                    if (index >= keys.length)
+                        throw new NoSuchElementException()
+                    index++
+                    new Entry<V>(keys[index - 1], (V)values[index - 1])
+                },
+                remove: { throw new UnsupportedOperationException() }
+            ]
+        }
+
+        void writeExternal(ObjectOutput out) {
+            out.writeInt hash
+            out.writeInt keys.length
+            for (int i = 0; i != keys.length; ++i) {
+                out.writeLong keys[i]
+                out.writeObject values[i]
+            }
+        }
+
+        void readExternal(ObjectInput input) {
+            hash = input.readInt()
+            int n = input.readInt()
+            keys = new long[n]
+            values = new Object[n]
+            for (int i = 0; i != n; ++i) {
+                keys[i] = input.readLong()
+                values[i] = input.readObject()
+            }
+        }
+    }
+
+    private static int bitIndex(int bit, int mask) {
+        Integer.bitCount(mask & (bit - 1))
+    }
+
+    private static BitmappedNode single(int shift, long key, int hash, Object value) {
+        long[] keys = [key]
+        Object[] values = [value]
+        new BitmappedNode(1 << ((hash >>> shift) & 0x1f), 0, 1, keys, values, EMPTY)
+    }
+
+    /**
+     * Node of given level containing two different keys
+     */
+    private static FLongHashMap pair(int shift, long key1, int hash1, Object value1, long key2, int hash2, Object value2) {
+        if (hash1 == hash2) {
+            long[] keys = [key1, key2]
+            Object[] values = [value1, value2]
+            return new CollisionNode(hash1, keys, values)
+        }
+
+        int i1 = (hash1 >>> shift) & 0x1f
+        int i2 = (hash2 >>> shift) & 0x1f
+        if (i1 == i2) {
+            Object[] nodes = [pair(shift + 5, key1, hash1, value1, key2, hash2, value2)]
+            return new BitmappedNode(0, 1 << i1, 2, EMPTY_KEYS, EMPTY, nodes)
+        }
+
+        long[] keys = i1 < i2 ? [key1, key2] : [key2, key1]
+        Object[] values = i1 < i2 ? [value1, value2] : [value2, value1]
+        new BitmappedNode((1 << i1) | (1 << i2), 0, 2, keys, values, EMPTY)
+    }
+
+    /**
+     * Node of given level containing node with all keys having nodeHash and one more key
+     */
+    private static FLongHashMap nest(int shift, FLongHashMap node, int nodeHash, long key, int hash, Object value) {
+        int i1 = (nodeHash >>> shift) & 0x1f
+        int i2 = (hash >>> shift) & 0x1f
+        if (i1 == i2) {
+            Object[] nodes = [nest(shift + 5, node, nodeHash, key, hash, value)]
+            return new BitmappedNode(0, 1 << i1, node.size() + 1, EMPTY_KEYS, EMPTY, nodes)
+        }
+
+        long[] keys = [key]
+        Object[] values = [value]
+        Object[] nodes = [node]
+        new BitmappedNode(1 << i2, 1 << i1, node.size() + 1, keys, values, nodes)
+    }
+
+    private static Object[] insert(Object[] array, int index, Object value) {
+        def res = new Object[array.length + 1]
+        System.arraycopy array, 0, res, 0, index
+        System.arraycopy array, index, res, index + 1, array.length - index
+        res[index] = value
+        res
+    }
+
+    private static Object[] remove(Object[] array, int index) {
+        def res = new Object[array.length - 1]
+        System.arraycopy array, 0, res, 0, index
+        System.arraycopy array, index + 1, res, index, res.length - index
+        res
+    }
+
+    private static long[] insertKey(long[] array, int index, long value) {
+        def res = new long[array.length + 1]
+        System.arraycopy array, 0, res, 0, index
+        System.arraycopy array, index, res, index + 1, array.length - index
+        res[index] = value
+        res
+    }
+
+    private static long[] removeKey(long[] array, int index) {
+        def res = new long[array.length - 1]
+        System.arraycopy array, 0, res, 0, index
+        System.arraycopy array, index + 1, res, index, res.length - index
+        res
+    }
+}
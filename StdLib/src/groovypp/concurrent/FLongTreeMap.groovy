@@ -0,0 +1,533 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Persistent sorted map with primitive long keys.
+ *
+ * Height balanced (AVL) binary tree with path copying: put and remove copy O(log n) nodes
+ * and share the rest with previous version. Range views (subMap, headMap, tailMap) are new trees
+ * built by joining shared subtrees, which also takes O(log n).
+ *
+ * Same as FTreeMap, but keys are kept in nodes as long values and compared without boxing.
+ */
+@Typed final class FLongTreeMap<V> implements Iterable<FLongTreeMap.Entry<V>>, Serializable {
+    private final Node root
+
+    private FLongTreeMap(Node root) {
+        this.root = root
+    }
+
+    static final FLongTreeMap emptyMap = new FLongTreeMap(null)
+
+    int size() { size(root) }
+
+    boolean isEmpty() { root == null }
+
+    V getAt(long key) {
+        def n = find(root, key)
+        n == null ? null : (V)n.value
+    }
+
+    V get(long key) { getAt(key) }
+
+    boolean containsKey(long key) { find(root, key) != null }
+
+    FLongTreeMap<V> put(long key, V value) {
+        def newRoot = put(root, key, value, null)
+        newRoot === root ? this : new FLongTreeMap<V>(newRoot)
+    }
+
+    FLongTreeMap<V> remove(long key) {
+        def newRoot = remove(root, key, null)
+        newRoot === root ? this : new FLongTreeMap<V>(newRoot)
+    }
+
+    /**
+     * Creates mutable copy of the map, which updates nodes created by itself in place
+     */
+    Transient<V> asTransient() {
+        new Transient<V>(root)
+    }
+
+    Entry<V> firstEntry() {
+        def n = root
+        if (n != null)
+            while (n.left != null)
+                n = n.left
+        entry(n)
+    }
+
+    Entry<V> lastEntry() {
+        def n = root
+        if (n != null)
+            while (n.right != null)
+                n = n.right
+        entry(n)
+    }
+
+    /**
+     * Throws NoSuchElementException if map is empty
+     */
+    long firstKey() { firstNode().key }
+
+    long lastKey() { lastNode().key }
+
+    /**
+     * Entry with the greatest key less than or equal to given one
+     */
+    Entry<V> floorEntry(long key) { entry(lowerNode(key, true)) }
+
+    /**
+     * Entry with the greatest key strictly less than given one
+     */
+    Entry<V> lowerEntry(long key) { entry(lowerNode(key, false)) }
+
+    /**
+     * Entry with the least key greater than or equal to given one
+     */
+    Entry<V> ceilingEntry(long key) { entry(higherNode(key, true)) }
+
+    /**
+     * Entry with the least key strictly greater than given one
+     */
+    Entry<V> higherEntry(long key) { entry(higherNode(key, false)) }
+
+    /**
+     * Map of entries with keys from from (inclusive) to to (exclusive)
+     */
+    FLongTreeMap<V> subMap(long from, long to) {
+        new FLongTreeMap<V>(headTo(tailFrom(root, from), to))
+    }
+
+    /**
+     * Map of entries with keys less than to
+     */
+    FLongTreeMap<V> headMap(long to) {
+        new FLongTreeMap<V>(headTo(root, to))
+    }
+
+    /**
+     * Map of entries with keys greater than or equal to from
+     */
+    FLongTreeMap<V> tailMap(long from) {
+        new FLongTreeMap<V>(tailFrom(root, from))
+    }
+
+    Iterator<Entry<V>> iterator() {
+        // height of AVL tree is less than 1.45 log2(n + 2)
+        def stack = new Node[48]
+        [
+            depth: pushLeft(stack, 0, root),
+            hasNext: { depth > 0 },
+            next: {
+                if (!depth)
+                    throw new NoSuchElementException()
+
+                def n = stack[--depth]
+                depth = pushLeft(stack, depth, n.right)
+                entry(n)
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    boolean equals(Object obj) {
+        if (obj === this)
+            return true
+
+        if (!(obj instanceof FLongTreeMap) || ((FLongTreeMap)obj).size() != size())
+            return false
+
+        def it = ((FLongTreeMap<V>)obj).iterator()
+        for (e in this) {
+            def o = it.next()
+            if (e.longKey != o.longKey || e.value != o.value)
+                return false
+        }
+        true
+    }
+
+    int hashCode() {
+        int hash = 0
+        for (e in this)
+            hash += (int)(e.longKey ^ (e.longKey >>> 32)) ^ (e.value == null ? 0 : e.value.hashCode())
+        hash
+    }
+
+    String toString() {
+        def sb = new StringBuilder("[")
+        for (e in this) {
+            if (sb.length() > 1)
+                sb.append(", ")
+            sb.append(e.key).append(":").append(e.value)
+        }
+        sb.append("]").toString()
+    }
+
+    private Node lowerNode(long key, boolean inclusive) {
+        Node res = null
+        for (def n = root; n != null; ) {
+            int c = compare(n.key, key)
+            if (c < 0 || (inclusive && c == 0)) {
+                res = n
+                if (!c)
+                    break
+                n = n.right
+            }
+            else
+                n = n.left
+        }
+        res
+    }
+
+    private Node higherNode(long key, boolean inclusive) {
+        Node res = null
+        for (def n = root; n != null; ) {
+            int c = compare(n.key, key)
+            if (c > 0 || (inclusive && c == 0)) {
+                res = n
+                if (!c)
+                    break
+                n = n.left
+            }
+            else
+                n = n.right
+        }
+        res
+    }
+
+    private Node firstNode() {
+        def n = root
+        if (n == null)
+            throw new NoSuchElementException()
+        while (n.left != null)
+            n = n.left
+        n
+    }
+
+    private Node lastNode() {
+        def n = root
+        if (n == null)
+            throw new NoSuchElementException()
+        while (n.right != null)
+            n = n.right
+        n
+    }
+
+    private static Entry entry(Node n) {
+        n == null ? null : new Entry(n.key, n.value)
+    }
+
+    private static int compare(long a, long b) {
+        a < b ? -1 : a == b ? 0 : 1
+    }
+
+    private static Node find(Node n, long key) {
+        while (n != null) {
+            int c = compare(key, n.key)
+            if (!c)
+                return n
+            n = c < 0 ? n.left : n.right
+        }
+        null
+    }
+
+    private static Node put(Node n, long key, Object value, Object edit) {
+        if (n == null)
+            return new Node(key, value, null, null, edit)
+
+        int c = compare(key, n.key)
+        if (c < 0) {
+            def l = put(n.left, key, value, edit)
+            return l === n.left && edit == null ? n : balanced(n, l, n.right, edit)
+        }
+        if (c > 0) {
+            def r = put(n.right, key, value, edit)
+            return r === n.right && edit == null ? n : balanced(n, n.left, r, edit)
+        }
+
+        if (n.value === value)
+            return n
+
+        if (edit != null && n.edit === edit) {
+            n.value = value
+            return n
+        }
+        new Node(n.key, value, n.left, n.right, edit)
+    }
+
+    private static Node remove(Node n, long key, Object edit) {
+        if (n == null)
+            return null
+
+        int c = compare(key, n.key)
+        if (c < 0) {
+            def l = remove(n.left, key, edit)
+            return l === n.left && edit == null ? n : balanced(n, l, n.right, edit)
+        }
+        if (c > 0) {
+            def r = remove(n.right, key, edit)
+            return r === n.right && edit == null ? n : balanced(n, n.left, r, edit)
+        }
+
+        if (n.left == null)
+            return n.right
+        if (n.right == null)
+            return n.left
+
+        def min = n.right
+        while (min.left != null)
+            min = min.left
+        balanced(min, n.left, removeMin(n.right, edit), edit)
+    }
+
+    private static Node removeMin(Node n, Object edit) {
+        n.left == null ? n.right : balanced(n, removeMin(n.left, edit), n.right, edit)
+    }
+
+    /**
+     * Nodes with keys greater than or equal to from
+     */
+    private static Node tailFrom(Node n, long from) {
+        if (n == null)
+            return null
+
+        if (compare(n.key, from) < 0)
+            return tailFrom(n.right, from)
+
+        join(tailFrom(n.left, from), n, n.right)
+    }
+
+    /**
+     * Nodes with keys less than to
+     */
+    private static Node headTo(Node n, long to) {
+        if (n == null)
+            return null
+
+        if (compare(n.key, to) >= 0)
+            return headTo(n.left, to)
+
+        join(n.left, n, headTo(n.right, to))
+    }
+
+    /**
+     * Tree containing nodes of left, mid and nodes of right, where all keys of left are less than key of mid
+     * and all keys of right are greater
+     */
+    private static Node join(Node left, Node mid, Node right) {
+        int hl = height(left), hr = height(right)
+        if (hl > hr + 1)
+            return balanced(left, left.left, join(left.right, mid, right), null)
+        if (hr > hl + 1)
+            return balanced(right, join(left, mid, right.left), right.right, null)
+        node(mid, left, right, null)
+    }
+
+    /**
+     * Node with key and value of n and given children, rotated if heights of children differ by 2
+     */
+    private static Node balanced(Node n, Node left, Node right, Object edit) {
+        int hl = height(left), hr = height(right)
+        if (hl > hr + 1) {
+            if (height(left.left) >= height(left.right))
+                return node(left, left.left, node(n, left.right, right, edit), edit)
+
+            def lr = left.right
+            return node(lr, node(left, left.left, lr.left, edit), node(n, lr.right, right, edit), edit)
+        }
+        if (hr > hl + 1) {
+            if (height(right.right) >= height(right.left))
+                return node(right, node(n, left, right.left, edit), right.right, edit)
+
+            def rl = right.left
+            return node(rl, node(n, left, rl.left, edit), node(right, rl.right, right.right, edit), edit)
+        }
+        node(n, left, right, edit)
+    }
+
+    /**
+     * Node with key and value of n and given children. n is modified in place if it is owned by edit
+     */
+    private static Node node(Node n, Node left, Node right, Object edit) {
+        if (edit != null && n.edit === edit) {
+            n.left = left
+            n.right = right
+            n.update()
+            return n
+        }
+        new Node(n.key, n.value, left, right, edit)
+    }
+
+    private static int height(Node n) { n == null ? 0 : n.height }
+
+    private static int size(Node n) { n == null ? 0 : n.size }
+
+    private static int pushLeft(Node[] stack, int depth, Node n) {
+        for (; n != null; n = n.left)
+            stack[depth++] = n
+        depth
+    }
+
+    private static final class Node {
+        long key
+        Object value
+        Node left, right
+        int height, size
+
+        // token of transient, which created this node and can modify it
+        Object edit
+
+        Node(long key, Object value, Node left, Node right, Object edit) {
+            this.key = key
+            this.value = value
+            this.left = left
+            this.right = right
+            this.edit = edit
+            update()
+        }
+
+        void update() {
+            height = Math.max(FLongTreeMap.height(left), FLongTreeMap.height(right)) + 1
+            size = FLongTreeMap.size(left) + FLongTreeMap.size(right) + 1
+        }
+    }
+
+    /**
+     * Entry returned by iterator and navigation methods. Primitive key is available as longKey
+     */
+    static final class Entry<V> implements Map.Entry<Long, V> {
+        private final long key
+        private final V value
+
+        Entry(long key, V value) {
+            this.key = key
+            this.value = value
+        }
+
+        Long getKey() { key }
+
+        long getLongKey() { key }
+
+        V getValue() { value }
+
+        V setValue(V value) { throw new UnsupportedOperationException() }
+
+        String toString() { "[$key, $value]" }
+    }
+
+    /**
+     * Mutable map used for bulk updates. Nodes created by transient are modified in place
+     * until persistent() is called.
+     *
+     * Transient should not be shared between threads and can't be used after persistent()
+     */
+    static final class Transient<V> {
+        private Node root
+        private Object edit = new Object()
+
+        private Transient(Node root) {
+            this.root = root
+        }
+
+        Transient<V> put(long key, V value) {
+            ensureEditable()
+            root = FLongTreeMap.put(root, key, value, edit)
+            this
+        }
+
+        Transient<V> putAll(Map<Long, V> map) {
+            for (e in map.entrySet())
+                put(e.key, e.value)
+            this
+        }
+
+        Transient<V> remove(long key) {
+            ensureEditable()
+            if (FLongTreeMap.find(root, key) != null)
+                root = FLongTreeMap.remove(root, key, edit)
+            this
+        }
+
+        V getAt(long key) {
+            ensureEditable()
+            def n = FLongTreeMap.find(root, key)
+            n == null ? null : (V)n.value
+        }
+
+        int size() {
+            ensureEditable()
+            FLongTreeMap.size(root)
+        }
+
+        /**
+         * Freezes all nodes modified by this transient and returns them as persistent map
+         */
+        FLongTreeMap<V> persistent() {
+            ensureEditable()
+            edit = null
+            root == null ? (FLongTreeMap<V>)FLongTreeMap.emptyMap : new FLongTreeMap<V>(root)
+        }
+
+        private void ensureEditable() {
+            if (edit == null)
+                throw new IllegalStateException("Transient used after persistent() call")
+        }
+    }
+
+    protected final Object writeReplace() {
+        new Serial(map:this)
+    }
+
+    static class Serial implements Externalizable {
+        FLongTreeMap map
+
+        protected final Object readResolve() {
+            map
+        }
+
+        void writeExternal(ObjectOutput out) {
+            out.writeInt map.size()
+            for (e in map) {
+                out.writeLong e.longKey
+                out.writeObject e.value
+            }
+        }
+
+        void readExternal(ObjectInput input) {
+            int size = input.readInt()
+            def keys = new long[size], values = new Object[size]
+            for (int i = 0; i != size; ++i) {
+                keys[i] = input.readLong()
+                values[i] = input.readObject()
+            }
+            map = size ? new FLongTreeMap(build(keys, values, 0, size)) : FLongTreeMap.emptyMap
+        }
+
+        /**
+         * Balanced tree of sorted entries from (inclusive) to (exclusive)
+         */
+        private static Node build(long[] keys, Object[] values, int from, int to) {
+            if (from == to)
+                return null
+
+            int mid = (from + to) >>> 1
+            new Node(keys[mid], values[mid], build(keys, values, from, mid), build(keys, values, mid + 1, to), null)
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Persistent vector of long values.
+ *
+ * Same 32-way trie as FVector, but leaves and tail are long[] arrays, so elements are not boxed.
+ * Bulk operations (sum, min, max, binarySearch) walk leaf arrays directly.
+ */
+@Typed
+class FLongVector implements Iterable<Long>, Serializable {
+    final int length
+    final int shift
+    final Object[] root
+    final long[] tail
+
+    private FLongVector(int length, int shift, Object[] root, long[] tail) {
+        this.length = length
+        this.shift = shift
+        this.root = root
+        this.tail = tail
+    }
+
+    static final FLongVector emptyVector = new FLongVector(0, 5, new Object[0], new long[0])
+
+    private int tailOff() { length - tail.length }
+
+    long getAt(int i) {
+        if (i < 0)
+            i += length
+
+        if (i >= 0 && i < length)
+            return arrayFor(i)[i & 0x1f]
+
+        throw new IndexOutOfBoundsException("Tried to access FLongVector out of its bounds: " + i)
+    }
+
+    /**
+     * Leaf array containing element with given index
+     */
+    private long[] arrayFor(int i) {
+        if (i >= tailOff())
+            return tail
+
+        Object[] arr = root
+        for (int level = shift; level > 0; level -= 5)
+            arr = (Object[]) arr[(i >>> level) & 0x1f]
+        (long[])arr
+    }
+
+    FLongVector set(int i, long value) {
+        if (i < 0)
+            i += length
+
+        if (i >= 0 && i < length) {
+            if (i >= tailOff()) {
+                long[] newTail = (long[])tail.clone()
+                newTail[i & 0x1f] = value
+                return new FLongVector(length, shift, root, newTail)
+            } else {
+                return new FLongVector(length, shift, (Object[])doAssoc(shift, root, i, value), tail)
+            }
+        } else if (i == length) {
+            return this + value
+        } else {
+            throw new IndexOutOfBoundsException("Tried to update FLongVector out of its bounds: " + i)
+        }
+    }
+
+    private static Object doAssoc(int level, Object node, int i, long value) {
+        if (level == 0) {
+            long[] leaf = (long[])((long[])node).clone()
+            leaf[i & 0x1f] = value
+            return leaf
+        }
+
+        Object[] ret = (Object[])((Object[])node).clone()
+        def subi = (i >>> level) & 0x1f
+        ret[subi] = doAssoc(level - 5, ret[subi], i, value)
+        ret
+    }
+
+    FLongVector plus(long value) {
+        if (tail.length < 32) {
+            def newTail = new long[tail.length + 1]
+            System.arraycopy tail, 0, newTail, 0, tail.length
+            newTail[tail.length] = value
+            return new FLongVector(length + 1, shift, root, newTail)
+        }
+
+        long[] newTail = [value]
+        pushLeaf(newTail, 1)
+    }
+
+    /**
+     * Vector with values appended. Values are copied to leaf arrays by chunks.
+     */
+    FLongVector addAll(long[] values) {
+        def res = this
+        int pos = 0
+        while (pos != values.length) {
+            def t = res.tail
+            int n = Math.min(32 - t.length, values.length - pos)
+            if (n) {
+                def newTail = new long[t.length + n]
+                System.arraycopy t, 0, newTail, 0, t.length
+                System.arraycopy values, pos, newTail, t.length, n
+                res = new FLongVector(res.length + n, res.shift, res.root, newTail)
+                pos += n
+            }
+            else {
+                n = Math.min(32, values.length - pos)
+                def newTail = new long[n]
+                System.arraycopy values, pos, newTail, 0, n
+                res = res.pushLeaf(newTail, n)
+                pos += n
+            }
+        }
+        res
+    }
+
+    FLongVector addAll(Iterable<Long> values) {
+        def buf = new long[32]
+        int n = 0
+        def res = this
+        for (v in values) {
+            buf[n++] = v
+            if (n == 32) {
+                res = res.addAll(buf)
+                n = 0
+            }
+        }
+        if (n) {
+            def rest = new long[n]
+            System.arraycopy buf, 0, rest, 0, n
+            res = res.addAll(rest)
+        }
+        res
+    }
+
+    /**
+     * Moves full tail to the trie and makes newTail containing count elements the new tail
+     */
+    private FLongVector pushLeaf(long[] newTail, int count) {
+        def pushed = pushTail(shift - 5, root, tail)
+        Object[] newRoot = pushed.first
+        def newShift = shift
+        if (pushed.second) {
+            newShift += 5
+            newRoot = [newRoot, pushed.second]
+        }
+        new FLongVector(length + count, newShift, newRoot, newTail)
+    }
+
+    private static Pair<Object[], Object> pushTail(int level, Object[] arr, Object tailNode) {
+        def newChild
+        if (level == 0) newChild = tailNode else {
+            def rec = pushTail(level - 5, (Object[]) arr[arr.length - 1], tailNode)
+            def subexp = rec.second
+            if (subexp != null) newChild = subexp else {
+                Object[] ret = (Object[])arr.clone()
+                ret[arr.length - 1] = rec.first
+                return [ret, null]
+            }
+        }
+        if (arr.length == 32) {
+            return [arr, (Object[]) [newChild]]
+        } else {
+            def ret = new Object[arr.length + 1]
+            System.arraycopy arr, 0, ret, 0, arr.length
+            ret[arr.length] = newChild
+            return [ret, null]
+        }
+    }
+
+    /**
+     * Sum of all elements
+     */
+    long sum() {
+        long res = 0
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            for (int j = 0; j != leaf.length; ++j)
+                res += leaf[j]
+        }
+        res
+    }
+
+    long min() {
+        if (!length)
+            throw new NoSuchElementException()
+
+        long res = tail[0]
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            for (int j = 0; j != leaf.length; ++j)
+                if (leaf[j] < res)
+                    res = leaf[j]
+        }
+        res
+    }
+
+    long max() {
+        if (!length)
+            throw new NoSuchElementException()
+
+        long res = tail[0]
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            for (int j = 0; j != leaf.length; ++j)
+                if (leaf[j] > res)
+                    res = leaf[j]
+        }
+        res
+    }
+
+    /**
+     * Searches sorted vector for the key. Result has the same meaning as for Arrays.binarySearch:
+     * index of the key if found, (-(insertion point) - 1) otherwise.
+     *
+     * Leaf is chosen by binary search over first elements of leaves, then searched by Arrays.binarySearch
+     */
+    int binarySearch(long key) {
+        if (!length)
+            return -1
+
+        int lo = 0, hi = ((length + 31) >>> 5) - 1
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1
+            if (arrayFor(mid << 5)[0] <= key)
+                lo = mid
+            else
+                hi = mid - 1
+        }
+
+        int base = lo << 5
+        int r = Arrays.binarySearch(arrayFor(base), key)
+        r >= 0 ? base + r : r - base
+    }
+
+    long[] toArray() {
+        def res = new long[length]
+        for (int i = 0; i < length; i += 32) {
+            def leaf = arrayFor(i)
+            System.arraycopy leaf, 0, res, i, leaf.length
+        }
+        res
+    }
+
+    Iterator<Long> iterator() {
+        [
+            index: 0,
+            leaf: (long[])null,
+            hasNext: { index < length },
+            next: {
+                if (index >= length)
+                    throw new NoSuchElementException()
+
+                if (!(index & 0x1f))
+                    leaf = arrayFor(index)
+                (Long)leaf[index++ & 0x1f]
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    /**
+     * Iterates leaf arrays of the vector. Arrays are shared with the vector and should not be modified.
+     */
+    Iterator<long[]> chunkIterator() {
+        [
+            index: 0,
+            hasNext: { index < length },
+            next: {
+                if (index >= length)
+                    throw new NoSuchElementException()
+
+                def leaf = arrayFor(index)
+                index += leaf.length
+                leaf
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    protected final Object writeReplace() {
+        new Serial(vector:this)
+    }
+
+    static class Serial implements Externalizable {
+        FLongVector vector
+
+        protected final Object readResolve() {
+            vector
+        }
+
+        void writeExternal(ObjectOutput out) {
+            out.writeInt vector.length
+            for (int i = 0; i < vector.length; i += 32) {
+                def leaf = vector.arrayFor(i)
+                for (int j = 0; j != leaf.length; ++j)
+                    out.writeLong leaf[j]
+            }
+        }
+
+        void readExternal(ObjectInput input) {
+            def sz = input.readInt()
+            def res = FLongVector.emptyVector
+            def buf = new long[32]
+            while (sz) {
+                int n = Math.min(32, sz)
+                if (n != buf.length)
+                    buf = new long[n]
+                for (int j = 0; j != n; ++j)
+                    buf[j] = input.readLong()
+                res = res.addAll(buf)
+                sz -= n
+            }
+            vector = res
+        }
+    }
+}
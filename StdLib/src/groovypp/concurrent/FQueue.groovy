@@ -38,10 +38,19 @@ abstract class FQueue<T> implements Iterable<T>, Serializable {
 
     static final FQueue emptyQueue = new EmptyQueue()
 
+    /**
+     * Empty queue with worst case O(1) addFirst, addLast and removeFirst.
+     *
+     * Default queue reverses whole input list once in a while, which is cheap on average but is lost
+     * if compareAndSet of new queue fails and has to be redone by the next attempt.
+     * Queues derived from this one never do more than constant work per operation.
+     */
+    static final FQueue emptyRealTimeQueue = new RealTimeQueue(null, 0, FList.emptyList, null)
+
     abstract int size ()
 
     protected final Object writeReplace() {
-        new Serial(fqueue:this)
+        this instanceof RealTimeQueue ? new RealTimeSerial(fqueue:this) : new Serial(fqueue:this)
     }
 
     static class Serial implements Externalizable {
@@ -58,13 +67,26 @@ abstract class FQueue<T> implements Iterable<T>, Serializable {
         }
 
         void readExternal(ObjectInput input) {
+            def res = initialQueue()
             def sz = input.readInt()
-            def res = FQueue.emptyQueue
             while(sz--) {
                 res += input.readObject()
             }
             fqueue = res
         }
+
+        protected FQueue initialQueue() {
+            FQueue.emptyQueue
+        }
+    }
+
+    /**
+     * Serial form of real-time queues. Separate class keeps stream format of Serial unchanged
+     */
+    static class RealTimeSerial extends Serial {
+        protected FQueue initialQueue() {
+            FQueue.emptyRealTimeQueue
+        }
     }
 
     private static final class EmptyQueue<T> extends FQueue<T> {
@@ -225,6 +247,145 @@ abstract class FQueue<T> implements Iterable<T>, Serializable {
         boolean isEmpty () { false }
     }
 
+    /**
+     * Okasaki's real-time queue.
+     *
+     * Front is a stream, which tail is computed on first access. When rear becomes longer than front
+     * they are replaced by lazy rotation front ++ rear.reverse(), which is evaluated one cell
+     * per operation via schedule, so all of it is evaluated before the next rotation is due.
+     * addFirst just conses evaluated cell to the front, which only postpones the rotation.
+     */
+    private static final class RealTimeQueue<T> extends FQueue<T> {
+        private final Cell front
+        private final int frontSize
+        private final FList<T> rear
+
+        // first cell of the front not evaluated yet
+        private final Cell schedule
+
+        RealTimeQueue (Cell front, int frontSize, FList<T> rear, Cell schedule) {
+            this.front = front
+            this.frontSize = frontSize
+            this.rear = rear
+            this.schedule = schedule
+        }
+
+        FQueue<T> addLast (T element) {
+            exec(front, frontSize, rear + element, schedule)
+        }
+
+        FQueue<T> addFirst (T element) {
+            (RealTimeQueue<T>)[new Cell(element, front), frontSize + 1, rear, schedule]
+        }
+
+        T getFirst () {
+            if (front == null)
+                throw new NoSuchElementException()
+            (T)front.head
+        }
+
+        Pair<T, FQueue<T>> removeFirst() {
+            if (front == null)
+                throw new NoSuchElementException()
+            [(T)front.head, exec(front.tail(), frontSize - 1, rear, schedule)]
+        }
+
+        FQueue<T> remove(T element) {
+            FQueue<T> res = FQueue.emptyRealTimeQueue
+            boolean found = false
+            for (e in this) {
+                if (!found && e == element)
+                    found = true
+                else
+                    res = res.addLast(e)
+            }
+            found ? res : this
+        }
+
+        Iterator<T> iterator () {
+            Iterator<T> frontIterator = [
+                    cur:     front,
+                    hasNext: { cur != null },
+                    next:    {
+                        if (cur == null)
+                            throw new NoSuchElementException()
+                        def res = (T)cur.head
+                        cur = cur.tail()
+                        res
+                    },
+                    remove:  { throw new UnsupportedOperationException() }
+            ]
+            frontIterator | rear.reverse().iterator()
+        }
+
+        String toString () {
+            iterator().asList().toString()
+        }
+
+        final int size () {
+            frontSize + rear.size
+        }
+
+        boolean isEmpty () { front == null }
+
+        private static <T> FQueue<T> exec(Cell front, int frontSize, FList<T> rear, Cell schedule) {
+            if (schedule != null)
+                return (RealTimeQueue<T>)[front, frontSize, rear, schedule.tail()]
+
+            if (rear.size <= frontSize)
+                return front == null ? (FQueue<T>)FQueue.emptyRealTimeQueue : (RealTimeQueue<T>)[front, frontSize, rear, null]
+
+            def rotated = rotate(front, rear, null)
+            (RealTimeQueue<T>)[rotated, frontSize + rear.size, FList.emptyList, rotated]
+        }
+
+        /**
+         * Lazy front ++ rear.reverse() ++ acc, where rear is one element longer than front
+         */
+        private static Cell rotate(Cell front, FList rear, Cell acc) {
+            front == null ? new Cell(rear.head, acc) : new Cell(front.head, new Rotation(front, rear, acc))
+        }
+    }
+
+    private static final class Cell {
+        final Object head
+
+        // next Cell, null at the end of stream or Rotation producing next cell.
+        // Two threads may evaluate the same rotation, which is harmless as result is the same
+        private volatile Object rest
+
+        Cell (Object head, Object rest) {
+            this.head = head
+            this.rest = rest
+        }
+
+        Cell tail () {
+            def r = rest
+            if (r instanceof Rotation) {
+                def next = ((Rotation)r).run()
+                rest = next
+                return next
+            }
+            (Cell)r
+        }
+    }
+
+    private static final class Rotation {
+        final Cell front
+        final FList rear
+        final Cell acc
+
+        Rotation (Cell front, FList rear, Cell acc) {
+            this.front = front
+            this.rear = rear
+            this.acc = acc
+        }
+
+        Cell run () {
+            RealTimeQueue.rotate(front.tail(), rear.tail, new Cell(rear.head, acc))
+        }
+    }
+
     static class Ref<T> extends AtomicReference<FQueue<T>> {
         Ref (FQueue<T> init = FQueue.emptyQueue) {
             super(init)
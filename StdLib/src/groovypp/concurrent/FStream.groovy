@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Lazy immutable sequence with memoized tails.
+ *
+ * Cells are shaped like FList nodes (head and tail), but tail is computed by a function on first access
+ * and then remembered, so every element is produced at most once even if the stream is traversed
+ * several times or shared between threads. Size of the stream is unknown until it is traversed and may be infinite.
+ *
+ * map, filter, take, drop and concat compose pipelines without materializing intermediate lists
+ */
+@Typed
+abstract class FStream<T> implements Iterable<T> {
+    /**
+     * Singleton for empty stream
+     */
+    static final FStream emptyStream = new EmptyStream ()
+
+    abstract boolean isEmpty ()
+
+    /**
+     * First element of the stream
+     */
+    abstract T getHead ()
+
+    /**
+     * Rest of the stream, computed on first call
+     */
+    abstract FStream<T> getTail ()
+
+    /**
+     * Creates stream with given head and tail computed on demand
+     */
+    static <T> FStream<T> cons (T head, Function0<FStream<T>> tail) {
+        new Cons<T>(head, tail)
+    }
+
+    /**
+     * Stream of elements returned by iterator. Iterator is advanced only when next cell is requested
+     */
+    static <T> FStream<T> from (Iterator<T> iterator) {
+        iterator.hasNext() ? cons(iterator.next(), { FStream.from(iterator) }) : (FStream<T>)emptyStream
+    }
+
+    static <T> FStream<T> from (Iterable<T> elements) {
+        from(elements.iterator())
+    }
+
+    /**
+     * Infinite stream seed, next(seed), next(next(seed)), ...
+     */
+    static <T> FStream<T> iterate (T seed, Function1<T, T> next) {
+        cons(seed, { FStream.iterate(next.call(seed), next) })
+    }
+
+    /**
+     * Utility method allowing convenient syntax <code>fstream ()</code> for accessing head of the stream
+     */
+    final T call () { head }
+
+    final <R> FStream<R> map (Function1<T, R> op) {
+        empty ? (FStream<R>)emptyStream : cons(op.call(head), { tail.map(op) })
+    }
+
+    /**
+     * Stream of elements satisfying predicate. Skips non matching elements up to the first matching one
+     */
+    final FStream<T> filter (Function1<T, Boolean> predicate) {
+        def cur = this
+        while (!cur.empty && !predicate.call(cur.head))
+            cur = cur.tail
+
+        if (cur.empty)
+            return emptyStream
+
+        def found = cur
+        cons(found.head, { found.tail.filter(predicate) })
+    }
+
+    final FStream<T> take (int n) {
+        n <= 0 || empty ? (FStream<T>)emptyStream : cons(head, { tail.take(n - 1) })
+    }
+
+    /**
+     * Stream without first n elements, which are evaluated by this call
+     */
+    final FStream<T> drop (int n) {
+        def cur = this
+        for (int i = 0; i < n && !cur.empty; ++i)
+            cur = cur.tail
+        cur
+    }
+
+    /**
+     * Stream of elements of this stream followed by elements of other one
+     */
+    final FStream<T> concat (FStream<T> other) {
+        empty ? other : cons(head, { tail.concat(other) })
+    }
+
+    /**
+     * Evaluates whole stream and returns its elements as FList in the same order
+     */
+    final FList<T> toList () {
+        def elements = new ArrayList<T>()
+        for (e in this)
+            elements.add(e)
+
+        def res = FList.emptyList.asTransient()
+        for (int i = elements.size() - 1; i >= 0; --i)
+            res.add(elements.get(i))
+        (FList<T>)res.persistent()
+    }
+
+    Iterator<T> iterator () {
+        [
+            cur:     this,
+            hasNext: { !cur.empty },
+            next:    {
+                if (cur.empty)
+                    throw new NoSuchElementException()
+                def that = cur
+                cur = cur.tail
+                that.head
+            },
+            remove:  { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    /**
+     * Prints evaluated part of the stream, unevaluated rest is shown as ...
+     */
+    String toString () {
+        def sb = new StringBuilder ("[")
+        def cur = this
+        while (cur instanceof Cons) {
+            def cell = (Cons)cur
+            if (sb.length() > 1)
+                sb << ", "
+            sb << cell.head
+            cur = cell.evaluatedTail
+            if (cur == null) {
+                sb << ", ..."
+                break
+            }
+        }
+        sb << "]"
+        sb.toString()
+    }
+
+    private static class EmptyStream<T> extends FStream<T> {
+        boolean isEmpty () { true }
+
+        T getHead () { throw new NoSuchElementException() }
+
+        FStream<T> getTail () { throw new NoSuchElementException() }
+    }
+
+    private static final class Cons<T> extends FStream<T> {
+        private final T head
+
+        private Function0<FStream<T>> thunk
+
+        private volatile FStream<T> tail
+
+        Cons (T head, Function0<FStream<T>> thunk) {
+            this.head = head
+            this.thunk = thunk
+        }
+
+        boolean isEmpty () { false }
+
+        T getHead () { head }
+
+        FStream<T> getTail () {
+            def t = tail
+            if (t == null) {
+                synchronized (this) {
+                    t = tail
+                    if (t == null) {
+                        t = thunk.call()
+                        tail = t
+                        // let evaluated part of the stream not keep its sources
+                        thunk = null
+                    }
+                }
+            }
+            t
+        }
+
+        /**
+         * Tail if it is already computed or null
+         */
+        FStream<T> getEvaluatedTail () { tail }
+    }
+}
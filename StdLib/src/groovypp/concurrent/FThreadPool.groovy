@@ -24,7 +24,9 @@ import java.util.concurrent.locks.LockSupport
  */
 @Typed class FThreadPool implements Executor {
 
-  protected volatile FQueue<Runnable> queue = FQueue.emptyQueue
+  protected volatile FQueue<Runnable> queue
+
+  private final FQueue<Runnable> emptyQueue
 
   private static final Runnable stopMarker = {}
 
@@ -32,7 +34,13 @@ import java.util.concurrent.locks.LockSupport
 
   private CountDownLatch termination
 
-  FThreadPool(int num = Runtime.getRuntime().availableProcessors(), ThreadFactory threadFactory = Executors.defaultThreadFactory()) {
+  /**
+   * @param emptyQueue selects queue implementation, FQueue.emptyRealTimeQueue avoids occasional O(n) work
+   * in tryRun, which is thrown away if compareAndSet fails
+   */
+  FThreadPool(int num = Runtime.getRuntime().availableProcessors(), ThreadFactory threadFactory = Executors.defaultThreadFactory(), FQueue<Runnable> emptyQueue = FQueue.emptyQueue) {
+    this.emptyQueue = emptyQueue
+    queue = emptyQueue
     for(i in 0..<num) {
       termination = [num]
       def thread = threadFactory.newThread {
@@ -108,7 +116,7 @@ import java.util.concurrent.locks.LockSupport
     for(;;) {
       def q = queue
       if (q.empty) {
-        if(queue.compareAndSet(q, FQueue.emptyQueue + stopMarker)) {
+        if(queue.compareAndSet(q, emptyQueue + stopMarker)) {
           break
         }
       }
@@ -130,7 +138,7 @@ import java.util.concurrent.locks.LockSupport
   List<Runnable> shutdownNow() {
     for(;;) {
       def q = queue
-      if(queue.compareAndSet(q, FQueue.emptyQueue + stopMarker)) {
+      if(queue.compareAndSet(q, emptyQueue + stopMarker)) {
         semaphore.release(Integer.MAX_VALUE)
         return q.iterator().asList()
       }
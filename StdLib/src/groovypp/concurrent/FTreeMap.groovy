@@ -0,0 +1,529 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Persistent sorted map.
+ *
+ * Height balanced (AVL) binary tree with path copying: put and remove copy O(log n) nodes
+ * and share the rest with previous version. Range views (subMap, headMap, tailMap) are new trees
+ * built by joining shared subtrees, which also takes O(log n).
+ *
+ * Keys are ordered by comparator or, if it is null, by their natural ordering
+ * (Comparable keys are compared directly without comparator call).
+ */
+@Typed final class FTreeMap<K, V> implements Iterable<Map.Entry<K, V>>, Serializable {
+    private final Node root
+    private final Comparator<K> comparator
+
+    private FTreeMap(Node root, Comparator<K> comparator) {
+        this.root = root
+        this.comparator = comparator
+    }
+
+    /**
+     * Empty map with natural ordering of keys
+     */
+    static final FTreeMap emptyMap = new FTreeMap(null, null)
+
+    /**
+     * Empty map with keys ordered by comparator
+     */
+    static <K, V> FTreeMap<K, V> create(Comparator<K> comparator) {
+        new FTreeMap<K, V>(null, comparator)
+    }
+
+    Comparator<K> getComparator() { comparator }
+
+    int size() { size(root) }
+
+    boolean isEmpty() { root == null }
+
+    V getAt(K key) {
+        def n = find(root, key, comparator)
+        n == null ? null : (V)n.value
+    }
+
+    V get(K key) { getAt(key) }
+
+    boolean containsKey(K key) { find(root, key, comparator) != null }
+
+    FTreeMap<K, V> put(K key, V value) {
+        def newRoot = put(root, key, value, comparator, null)
+        newRoot === root ? this : new FTreeMap<K, V>(newRoot, comparator)
+    }
+
+    FTreeMap<K, V> remove(K key) {
+        def newRoot = remove(root, key, comparator, null)
+        newRoot === root ? this : new FTreeMap<K, V>(newRoot, comparator)
+    }
+
+    /**
+     * Creates mutable copy of the map, which updates nodes created by itself in place
+     */
+    Transient<K, V> asTransient() {
+        new Transient<K, V>(root, comparator)
+    }
+
+    Map.Entry<K, V> firstEntry() {
+        def n = root
+        if (n != null)
+            while (n.left != null)
+                n = n.left
+        entry(n)
+    }
+
+    Map.Entry<K, V> lastEntry() {
+        def n = root
+        if (n != null)
+            while (n.right != null)
+                n = n.right
+        entry(n)
+    }
+
+    K firstKey() { (K)firstEntry()?.key }
+
+    K lastKey() { (K)lastEntry()?.key }
+
+    /**
+     * Entry with the greatest key less than or equal to given one
+     */
+    Map.Entry<K, V> floorEntry(K key) { entry(lowerNode(key, true)) }
+
+    /**
+     * Entry with the greatest key strictly less than given one
+     */
+    Map.Entry<K, V> lowerEntry(K key) { entry(lowerNode(key, false)) }
+
+    /**
+     * Entry with the least key greater than or equal to given one
+     */
+    Map.Entry<K, V> ceilingEntry(K key) { entry(higherNode(key, true)) }
+
+    /**
+     * Entry with the least key strictly greater than given one
+     */
+    Map.Entry<K, V> higherEntry(K key) { entry(higherNode(key, false)) }
+
+    K floorKey(K key) { (K)lowerNode(key, true)?.key }
+
+    K lowerKey(K key) { (K)lowerNode(key, false)?.key }
+
+    K ceilingKey(K key) { (K)higherNode(key, true)?.key }
+
+    K higherKey(K key) { (K)higherNode(key, false)?.key }
+
+    /**
+     * Map of entries with keys from from (inclusive) to to (exclusive)
+     */
+    FTreeMap<K, V> subMap(K from, K to) {
+        new FTreeMap<K, V>(headTo(tailFrom(root, from, comparator), to, comparator), comparator)
+    }
+
+    /**
+     * Map of entries with keys less than to
+     */
+    FTreeMap<K, V> headMap(K to) {
+        new FTreeMap<K, V>(headTo(root, to, comparator), comparator)
+    }
+
+    /**
+     * Map of entries with keys greater than or equal to from
+     */
+    FTreeMap<K, V> tailMap(K from) {
+        new FTreeMap<K, V>(tailFrom(root, from, comparator), comparator)
+    }
+
+    Iterator<Map.Entry<K, V>> iterator() {
+        // height of AVL tree is less than 1.45 log2(n + 2)
+        def stack = new Node[48]
+        [
+            depth: pushLeft(stack, 0, root),
+            hasNext: { depth > 0 },
+            next: {
+                if (!depth)
+                    throw new NoSuchElementException()
+
+                def n = stack[--depth]
+                depth = pushLeft(stack, depth, n.right)
+                entry(n)
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    boolean equals(Object obj) {
+        if (obj === this)
+            return true
+
+        if (!(obj instanceof FTreeMap) || ((FTreeMap)obj).size() != size())
+            return false
+
+        def it = ((FTreeMap)obj).iterator()
+        for (e in this) {
+            def o = it.next()
+            if (e.key != o.key || e.value != o.value)
+                return false
+        }
+        true
+    }
+
+    int hashCode() {
+        int hash = 0
+        for (e in this)
+            hash += e.key.hashCode() ^ (e.value == null ? 0 : e.value.hashCode())
+        hash
+    }
+
+    String toString() {
+        def sb = new StringBuilder("[")
+        for (e in this) {
+            if (sb.length() > 1)
+                sb.append(", ")
+            sb.append(e.key).append(":").append(e.value)
+        }
+        sb.append("]").toString()
+    }
+
+    private Node lowerNode(K key, boolean inclusive) {
+        Node res = null
+        for (def n = root; n != null; ) {
+            int c = compare(comparator, n.key, key)
+            if (c < 0 || (inclusive && c == 0)) {
+                res = n
+                if (!c)
+                    break
+                n = n.right
+            }
+            else
+                n = n.left
+        }
+        res
+    }
+
+    private Node higherNode(K key, boolean inclusive) {
+        Node res = null
+        for (def n = root; n != null; ) {
+            int c = compare(comparator, n.key, key)
+            if (c > 0 || (inclusive && c == 0)) {
+                res = n
+                if (!c)
+                    break
+                n = n.left
+            }
+            else
+                n = n.right
+        }
+        res
+    }
+
+    private static Map.Entry entry(Node n) {
+        n == null ? null : new Entry(n.key, n.value)
+    }
+
+    private static int compare(Comparator comparator, Object a, Object b) {
+        comparator == null ? ((Comparable)a).compareTo(b) : comparator.compare(a, b)
+    }
+
+    private static Node find(Node n, Object key, Comparator comparator) {
+        while (n != null) {
+            int c = compare(comparator, key, n.key)
+            if (!c)
+                return n
+            n = c < 0 ? n.left : n.right
+        }
+        null
+    }
+
+    private static Node put(Node n, Object key, Object value, Comparator comparator, Object edit) {
+        if (n == null)
+            return new Node(key, value, null, null, edit)
+
+        int c = compare(comparator, key, n.key)
+        if (c < 0) {
+            def l = put(n.left, key, value, comparator, edit)
+            return l === n.left && edit == null ? n : balanced(n, l, n.right, edit)
+        }
+        if (c > 0) {
+            def r = put(n.right, key, value, comparator, edit)
+            return r === n.right && edit == null ? n : balanced(n, n.left, r, edit)
+        }
+
+        if (n.value === value)
+            return n
+
+        if (edit != null && n.edit === edit) {
+            n.value = value
+            return n
+        }
+        new Node(n.key, value, n.left, n.right, edit)
+    }
+
+    private static Node remove(Node n, Object key, Comparator comparator, Object edit) {
+        if (n == null)
+            return null
+
+        int c = compare(comparator, key, n.key)
+        if (c < 0) {
+            def l = remove(n.left, key, comparator, edit)
+            return l === n.left && edit == null ? n : balanced(n, l, n.right, edit)
+        }
+        if (c > 0) {
+            def r = remove(n.right, key, comparator, edit)
+            return r === n.right && edit == null ? n : balanced(n, n.left, r, edit)
+        }
+
+        if (n.left == null)
+            return n.right
+        if (n.right == null)
+            return n.left
+
+        def min = n.right
+        while (min.left != null)
+            min = min.left
+        balanced(min, n.left, removeMin(n.right, edit), edit)
+    }
+
+    private static Node removeMin(Node n, Object edit) {
+        n.left == null ? n.right : balanced(n, removeMin(n.left, edit), n.right, edit)
+    }
+
+    /**
+     * Nodes with keys greater than or equal to from
+     */
+    private static Node tailFrom(Node n, Object from, Comparator comparator) {
+        if (n == null)
+            return null
+
+        if (compare(comparator, n.key, from) < 0)
+            return tailFrom(n.right, from, comparator)
+
+        join(tailFrom(n.left, from, comparator), n, n.right)
+    }
+
+    /**
+     * Nodes with keys less than to
+     */
+    private static Node headTo(Node n, Object to, Comparator comparator) {
+        if (n == null)
+            return null
+
+        if (compare(comparator, n.key, to) >= 0)
+            return headTo(n.left, to, comparator)
+
+        join(n.left, n, headTo(n.right, to, comparator))
+    }
+
+    /**
+     * Tree containing nodes of left, mid and nodes of right, where all keys of left are less than key of mid
+     * and all keys of right are greater
+     */
+    private static Node join(Node left, Node mid, Node right) {
+        int hl = height(left), hr = height(right)
+        if (hl > hr + 1)
+            return balanced(left, left.left, join(left.right, mid, right), null)
+        if (hr > hl + 1)
+            return balanced(right, join(left, mid, right.left), right.right, null)
+        node(mid, left, right, null)
+    }
+
+    /**
+     * Node with key and value of n and given children, rotated if heights of children differ by 2
+     */
+    private static Node balanced(Node n, Node left, Node right, Object edit) {
+        int hl = height(left), hr = height(right)
+        if (hl > hr + 1) {
+            if (height(left.left) >= height(left.right))
+                return node(left, left.left, node(n, left.right, right, edit), edit)
+
+            def lr = left.right
+            return node(lr, node(left, left.left, lr.left, edit), node(n, lr.right, right, edit), edit)
+        }
+        if (hr > hl + 1) {
+            if (height(right.right) >= height(right.left))
+                return node(right, node(n, left, right.left, edit), right.right, edit)
+
+            def rl = right.left
+            return node(rl, node(n, left, rl.left, edit), node(right, rl.right, right.right, edit), edit)
+        }
+        node(n, left, right, edit)
+    }
+
+    /**
+     * Node with key and value of n and given children. n is modified in place if it is owned by edit
+     */
+    private static Node node(Node n, Node left, Node right, Object edit) {
+        if (edit != null && n.edit === edit) {
+            n.left = left
+            n.right = right
+            n.update()
+            return n
+        }
+        new Node(n.key, n.value, left, right, edit)
+    }
+
+    private static int height(Node n) { n == null ? 0 : n.height }
+
+    private static int size(Node n) { n == null ? 0 : n.size }
+
+    private static int pushLeft(Node[] stack, int depth, Node n) {
+        for (; n != null; n = n.left)
+            stack[depth++] = n
+        depth
+    }
+
+    private static final class Node {
+        Object key, value
+        Node left, right
+        int height, size
+
+        // token of transient, which created this node and can modify it
+        Object edit
+
+        Node(Object key, Object value, Node left, Node right, Object edit) {
+            this.key = key
+            this.value = value
+            this.left = left
+            this.right = right
+            this.edit = edit
+            update()
+        }
+
+        void update() {
+            height = Math.max(FTreeMap.height(left), FTreeMap.height(right)) + 1
+            size = FTreeMap.size(left) + FTreeMap.size(right) + 1
+        }
+    }
+
+    static final class Entry<K, V> implements Map.Entry<K, V> {
+        final K key
+        final V value
+
+        Entry(K key, V value) {
+            this.key = key
+            this.value = value
+        }
+
+        V setValue(V value) { throw new UnsupportedOperationException() }
+
+        String toString() { "[$key, $value]" }
+    }
+
+    /**
+     * Mutable map used for bulk updates. Nodes created by transient are modified in place
+     * until persistent() is called.
+     *
+     * Transient should not be shared between threads and can't be used after persistent()
+     */
+    static final class Transient<K, V> {
+        private Node root
+        private final Comparator<K> comparator
+        private Object edit = new Object()
+
+        private Transient(Node root, Comparator<K> comparator) {
+            this.root = root
+            this.comparator = comparator
+        }
+
+        Transient<K, V> put(K key, V value) {
+            ensureEditable()
+            root = FTreeMap.put(root, key, value, comparator, edit)
+            this
+        }
+
+        Transient<K, V> putAll(Map<K, V> map) {
+            for (e in map.entrySet())
+                put(e.key, e.value)
+            this
+        }
+
+        Transient<K, V> remove(K key) {
+            ensureEditable()
+            if (FTreeMap.find(root, key, comparator) != null)
+                root = FTreeMap.remove(root, key, comparator, edit)
+            this
+        }
+
+        V getAt(K key) {
+            ensureEditable()
+            def n = FTreeMap.find(root, key, comparator)
+            n == null ? null : (V)n.value
+        }
+
+        int size() {
+            ensureEditable()
+            FTreeMap.size(root)
+        }
+
+        /**
+         * Freezes all nodes modified by this transient and returns them as persistent map
+         */
+        FTreeMap<K, V> persistent() {
+            ensureEditable()
+            edit = null
+            root == null && comparator == null ? (FTreeMap<K, V>)FTreeMap.emptyMap : new FTreeMap<K, V>(root, comparator)
+        }
+
+        private void ensureEditable() {
+            if (edit == null)
+                throw new IllegalStateException("Transient used after persistent() call")
+        }
+    }
+
+    protected final Object writeReplace() {
+        new Serial(map:this)
+    }
+
+    static class Serial implements Externalizable {
+        FTreeMap map
+
+        protected final Object readResolve() {
+            map
+        }
+
+        void writeExternal(ObjectOutput out) {
+            out.writeObject map.comparator
+            out.writeInt map.size()
+            for (e in map) {
+                out.writeObject e.key
+                out.writeObject e.value
+            }
+        }
+
+        void readExternal(ObjectInput input) {
+            def comparator = (Comparator)input.readObject()
+            int size = input.readInt()
+            def keys = new Object[size], values = new Object[size]
+            for (int i = 0; i != size; ++i) {
+                keys[i] = input.readObject()
+                values[i] = input.readObject()
+            }
+            map = size || comparator != null ? new FTreeMap(build(keys, values, 0, size), comparator) : FTreeMap.emptyMap
+        }
+
+        /**
+         * Balanced tree of sorted entries from (inclusive) to (exclusive)
+         */
+        private static Node build(Object[] keys, Object[] values, int from, int to) {
+            if (from == to)
+                return null
+
+            int mid = (from + to) >>> 1
+            new Node(keys[mid], values[mid], build(keys, values, from, mid), build(keys, values, mid + 1, to), null)
+        }
+    }
+}
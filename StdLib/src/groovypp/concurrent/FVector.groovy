@@ -18,6 +18,11 @@ package groovypp.concurrent
 
 /*
   A straight port of Clojure's <code>PersistentVector</code> class.
+
+  slice, concat and insert produce relaxed nodes (RRB-tree): internal node, which has not full child
+  except the last one, keeps table of cumulative sizes of children as its last element.
+  Lookups in dense nodes use radix indexing as before.
+
   @author Daniel Spiewak
   @author Rich Hickey
 */
@@ -43,17 +48,61 @@ class FVector<T> implements Iterable<T>, Serializable {
         if (i < 0)
             i += length
 
-    if (i >= 0 && i < length) {
-      if (i >= tailOff()) {
-        return tail[i & 0x1f]
-      } else {
-        def arr = (shift..<0).step(5).foldLeft(root) {level, arr -> (Object[])arr[(i >>> level) & 0x1f] }
-        return (T)arr[i & 0x1f]
-      }
-    } else {
-      throw new IndexOutOfBoundsException("Tried to access FVector out of its bounds: " + i)
+        if (i >= 0 && i < length) {
+            int off = tailOff()
+            if (i >= off)
+                return tail[i - off]
+
+            Object[] arr = root
+            for (int level = shift; level > 0; level -= 5) {
+                def last = arr[arr.length - 1]
+                if (last instanceof int[]) {
+                    int[] sizes = (int[])last
+                    if (level < 26)
+                        i &= (1 << (level + 5)) - 1
+                    int slot = i >>> level
+                    while (sizes[slot] <= i)
+                        slot++
+                    if (slot)
+                        i -= sizes[slot - 1]
+                    arr = (Object[]) arr[slot]
+                }
+                else {
+                    arr = (Object[]) arr[(i >>> level) & 0x1f]
+                }
+            }
+            (T)arr[i & 0x1f]
+        } else {
+            throw new IndexOutOfBoundsException("Tried to access FVector out of its bounds: " + i)
+        }
+    }
+
+    /**
+     * Leaf array starting at given index
+     */
+    private Object[] arrayFor(int i) {
+        if (i >= tailOff())
+            return tail
+
+        Object[] arr = root
+        for (int level = shift; level > 0; level -= 5) {
+            if (isRelaxed(arr)) {
+                int[] sizes = (int[])arr[arr.length - 1]
+                if (level < 26)
+                    i &= (1 << (level + 5)) - 1
+                int slot = i >>> level
+                while (sizes[slot] <= i)
+                    slot++
+                if (slot)
+                    i -= sizes[slot - 1]
+                arr = (Object[]) arr[slot]
+            }
+            else {
+                arr = (Object[]) arr[(i >>> level) & 0x1f]
+            }
+        }
+        arr
     }
-  }
 
     FVector<T> set(int i, T obj) {
         if (i < 0)
@@ -76,10 +125,18 @@ class FVector<T> implements Iterable<T>, Serializable {
     }
 
     private Object[] doAssoc(int level, Object[] arr, int i, T obj) {
-        def ret = new T[arr.length]
+        def ret = new Object[arr.length]
         System.arraycopy arr, 0, ret, 0, arr.length
         if (level == 0) {
             ret[i & 0x1f] = obj
+        } else if (isRelaxed(arr)) {
+            int[] sizes = (int[])arr[arr.length - 1]
+            if (level < 26)
+                i &= (1 << (level + 5)) - 1
+            int slot = i >>> level
+            while (sizes[slot] <= i)
+                slot++
+            ret[slot] = doAssoc(level - 5, (Object[]) arr[slot], slot ? i - sizes[slot - 1] : i, obj)
         } else {
             def subi = (i >>> level) & 0x1f
             ret[subi] = doAssoc(level - 5, (Object[]) arr[subi], i, obj)
@@ -88,7 +145,14 @@ class FVector<T> implements Iterable<T>, Serializable {
     }
 
     FVector<T> addAll(Iterable<T> other) {
-        other.foldLeft(this) {e, vec -> vec + e}
+        asTransient().addAll(other).persistent()
+    }
+
+    /**
+     * Creates mutable copy of the vector for bulk appends
+     */
+    Transient<T> asTransient() {
+        new Transient<T>(this)
     }
 
     FVector<T> plus(T obj) {
@@ -100,35 +164,153 @@ class FVector<T> implements Iterable<T>, Serializable {
         } else {
             def pushed = pushTail(shift - 5, root, tail)
             Object[] newRoot = pushed.first
-            T expansion = pushed.second
             def newShift = shift
-            if (expansion) {
+            if (pushed.second) {
+                newRoot = growRoot(newRoot, shift, (Object[])pushed.second)
                 newShift += 5
-                newRoot = [newRoot, expansion]
             }
             T[] newTail = [obj]
             return new FVector<T>(length + 1, newShift, newRoot, newTail)
         }
     }
 
-    private Pair<Object[], Object> pushTail(int level, Object[] arr, T[] tailNode) {
+    /**
+     * Elements from (inclusive) to (exclusive) sharing structure with this vector
+     */
+    FVector<T> slice(int from, int to) {
+        if (from < 0 || to > length || from > to)
+            throw new IndexOutOfBoundsException("Tried to slice FVector out of its bounds: " + from + ".." + to)
+
+        if (from == 0 && to == length)
+            return this
+
+        if (to - from <= 32) {
+            def res = FVector.emptyVector.asTransient()
+            for (int i = from; i != to; ++i)
+                res.add(this[i])
+            return (FVector<T>)res.persistent()
+        }
+
+        def full = fullTree()
+        int level = full.second
+        Object[] node = sliceTree(full.first, level, from, to)
+        while (level > 5 && childCount(node) == 1) {
+            node = (Object[]) node[0]
+            level -= 5
+        }
+        withTailFromTree(to - from, level, node)
+    }
+
+    /**
+     * Vector containing elements of this one followed by elements of other, sharing structure with both
+     */
+    FVector<T> concat(FVector<T> other) {
+        if (!other.length)
+            return this
+
+        if (!length)
+            return other
+
+        if (other.length <= 32)
+            return addAll(other)
+
+        def full = fullTree()
+        int leftLevel = full.second
+        Object[] right = other.root
+        int rightLevel = other.shift
+        if (!childCount(right))
+            return addAll(other)
+
+        Object[] nodes = leftLevel >= rightLevel ?
+            joinRight(full.first, leftLevel, right, rightLevel) :
+            joinLeft(full.first, leftLevel, right, rightLevel)
+
+        int level = Math.max(leftLevel, rightLevel)
+        Object[] newRoot
+        if (nodes.length == 1) {
+            newRoot = (Object[]) nodes[0]
+        }
+        else {
+            newRoot = makeNode(nodes, nodes.length, level + 5)
+            level += 5
+        }
+        new FVector<T>(length + other.length, level, newRoot, other.tail)
+    }
+
+    /**
+     * Vector with obj inserted before element with index i
+     */
+    FVector<T> insert(int i, T obj) {
+        if (i < 0)
+            i += length
+
+        if (i == length)
+            return this + obj
+
+        if (i < 0 || i > length)
+            throw new IndexOutOfBoundsException("Tried to insert to FVector out of its bounds: " + i)
+
+        (slice(0, i) + obj).concat(slice(i, length))
+    }
+
+    /**
+     * Tree containing all elements including tail and its level
+     */
+    private Pair<Object[], Integer> fullTree() {
+        def pushed = pushTail(shift - 5, root, tail)
+        if (pushed.second)
+            return [growRoot(pushed.first, shift, (Object[])pushed.second), shift + 5]
+        [pushed.first, shift]
+    }
+
+    /**
+     * Splits last leaf of the tree to become tail of new vector
+     */
+    private static FVector withTailFromTree(int length, int level, Object[] node) {
+        def popped = popTail(level - 5, node)
+        Object[] newRoot = popped.first
+        if (newRoot == null)
+            newRoot = new Object[0]
+        while (level > 5 && childCount(newRoot) == 1) {
+            newRoot = (Object[]) newRoot[0]
+            level -= 5
+        }
+        new FVector(length, level, newRoot, (Object[])popped.second)
+    }
+
+    /**
+     * New root containing old full root and expansion
+     */
+    private static Object[] growRoot(Object[] root, int shift, Object[] expansion) {
+        Object[] children = [root, expansion]
+        sizeOf(root, shift) == 1 << (shift + 5) ? children : makeNode(children, 2, shift + 5)
+    }
+
+    private static Pair<Object[], Object> pushTail(int level, Object[] arr, Object[] tailNode) {
+        int count = childCount(arr)
         def newChild
-        if (level == 0) newChild = tailNode else {
-            def rec = pushTail(level - 5, (Object[]) arr[arr.length - 1], tailNode)
+        boolean lastFull
+        if (level == 0) {
+            newChild = tailNode
+            lastFull = !count || ((Object[])arr[count - 1]).length == 32
+        } else {
+            def rec = pushTail(level - 5, (Object[]) arr[count - 1], tailNode)
             def subexp = rec.second
-            if (subexp != null) newChild = subexp else {
-                def ret = new Object[arr.length]
-                System.arraycopy arr, 0, ret, 0, arr.length
-                ret[arr.length - 1] = rec.first
-                return [ret, null]
+            if (subexp != null) {
+                newChild = subexp
+                lastFull = sizeOf((Object[]) arr[count - 1], level) == 1 << (level + 5)
+            } else {
+                return [replaceLast(arr, count, rec.first, level), null]
             }
         }
-        if (arr.length == 32) {
+        if (count == 32) {
             return [arr, (Object[]) [newChild]]
         } else {
-            def ret = new Object[arr.length + 1]
-            System.arraycopy arr, 0, ret, 0, arr.length
-            ret[arr.length] = newChild
+            def ret = new Object[count + 1]
+            System.arraycopy arr, 0, ret, 0, count
+            ret[count] = newChild
+            if (isRelaxed(arr) || !lastFull)
+                return [makeNode(ret, count + 1, level + 5), null]
             return [ret, null]
         }
     }
@@ -143,47 +325,278 @@ class FVector<T> implements Iterable<T>, Serializable {
             System.arraycopy tail, 0, newTail, 0, newTail.length
             return [tail[tail.length - 1], new FVector<T>(length - 1, shift, root, newTail)]
         } else {
-            def popped = popTail(shift - 5, root)
-            def newRoot = popped.first
-            def pTail = popped.second
-            if (newRoot == null) newRoot = new Object[0]
-            def newShift = shift
-            if (shift > 5 && newRoot.length == 1) {
-                newRoot = (Object[]) newRoot[0]
-                newShift -= 5
-            }
-            return [tail[0], new FVector<T>(length - 1, newShift, newRoot, (T[]) pTail)]
+            return [tail[0], withTailFromTree(length - 1, shift, root)]
         }
     }
 
-    private Pair<Object[], Object> popTail(int shift, Object[] arr) {
+    private static Pair<Object[], Object> popTail(int level, Object[] arr) {
+        int count = childCount(arr)
         def newTail
-        if (shift > 0) {
-            def popped = popTail(shift - 5, (Object[]) arr[arr.length - 1])
+        if (level > 0) {
+            def popped = popTail(level - 5, (Object[]) arr[count - 1])
             def newChild = popped.first
             def subPTail = popped.second
             if (newChild != null) {
-                def ret = new Object[arr.length]
-                System.arraycopy arr, 0, ret, 0, arr.length
-                ret[arr.length - 1] = newChild
-                return [ret, subPTail]
+                return [replaceLast(arr, count, newChild, level), subPTail]
             }
             newTail = subPTail
         } else {
-            newTail = arr[arr.length - 1]
+            newTail = arr[count - 1]
         }
-        if (arr.length == 1) {
+        if (count == 1) {
             return [null, newTail]
         } else {
-            def ret = new Object[arr.length - 1]
-            System.arraycopy arr, 0, ret, 0, ret.length
+            def ret = new Object[isRelaxed(arr) ? count : count - 1]
+            System.arraycopy arr, 0, ret, 0, count - 1
+            if (isRelaxed(arr)) {
+                def sizes = new int[count - 1]
+                System.arraycopy arr[count], 0, sizes, 0, count - 1
+                ret[count - 1] = sizes
+            }
             return [ret, newTail]
         }
     }
 
+    /**
+     * Copy of the node with last child replaced. Child level is node level - 5
+     */
+    private static Object[] replaceLast(Object[] arr, int count, Object[] child, int childLevel) {
+        def ret = new Object[arr.length]
+        System.arraycopy arr, 0, ret, 0, arr.length
+        ret[count - 1] = child
+        if (isRelaxed(arr)) {
+            def sizes = ((int[])arr[count]).clone()
+            sizes[count - 1] = (count > 1 ? sizes[count - 2] : 0) + sizeOf(child, childLevel)
+            ret[count] = sizes
+        }
+        ret
+    }
+
+    /**
+     * Copy of elements from (inclusive) to (exclusive) of the node. Indexes are relative to the node.
+     */
+    private static Object[] sliceTree(Object[] node, int level, int from, int to) {
+        if (level == 0) {
+            def leaf = new Object[to - from]
+            System.arraycopy node, from, leaf, 0, leaf.length
+            return leaf
+        }
+
+        int count = childCount(node)
+        int[] sizes = isRelaxed(node) ? (int[])node[count] : null
+        def children = new Object[count]
+        int n = 0
+        int start = 0
+        for (int k = 0; k != count && start < to; ++k) {
+            def child = (Object[]) node[k]
+            int end = sizes ? sizes[k] : k < count - 1 ? start + (1 << level) : start + sizeOf(child, level - 5)
+            if (end > from) {
+                if (from <= start && end <= to)
+                    children[n++] = child
+                else
+                    children[n++] = sliceTree(child, level - 5, Math.max(from, start) - start, Math.min(to, end) - start)
+            }
+            start = end
+        }
+        makeNode(children, n, level)
+    }
+
+    /**
+     * Joins a and b, where a is not lower than b. Returns one or two nodes of level la
+     */
+    private static Object[] joinRight(Object[] a, int la, Object[] b, int lb) {
+        if (la == lb)
+            return mergeNodes(a, b, la)
+
+        int count = childCount(a)
+        def sub = joinRight((Object[]) a[count - 1], la - 5, b, lb)
+        def children = new Object[count - 1 + sub.length]
+        System.arraycopy a, 0, children, 0, count - 1
+        System.arraycopy sub, 0, children, count - 1, sub.length
+        split(children, children.length, la)
+    }
+
+    /**
+     * Joins a and b, where a is lower than b. Returns one or two nodes of level lb
+     */
+    private static Object[] joinLeft(Object[] a, int la, Object[] b, int lb) {
+        if (la == lb)
+            return mergeNodes(a, b, la)
+
+        int count = childCount(b)
+        def sub = joinLeft(a, la, (Object[]) b[0], lb - 5)
+        def children = new Object[count - 1 + sub.length]
+        System.arraycopy sub, 0, children, 0, sub.length
+        System.arraycopy b, 1, children, sub.length, count - 1
+        split(children, children.length, lb)
+    }
+
+    /**
+     * Concatenates children (elements for leaves) of two nodes of the same level
+     */
+    private static Object[] mergeNodes(Object[] a, Object[] b, int level) {
+        if (level == 0) {
+            int total = a.length + b.length
+            def all = new Object[total]
+            System.arraycopy a, 0, all, 0, a.length
+            System.arraycopy b, 0, all, a.length, b.length
+            if (total <= 32)
+                return [all]
+
+            def first = new Object[32]
+            def second = new Object[total - 32]
+            System.arraycopy all, 0, first, 0, 32
+            System.arraycopy all, 32, second, 0, total - 32
+            return [first, second]
+        }
+
+        int ca = childCount(a), cb = childCount(b)
+        def children = new Object[ca + cb]
+        System.arraycopy a, 0, children, 0, ca
+        System.arraycopy b, 0, children, ca, cb
+        int n = ca + cb
+
+        if (level == 5) {
+            // pack leaves meeting at the seam if they fit in one
+            def left = (Object[]) children[ca - 1], right = (Object[]) children[ca]
+            if (left.length + right.length <= 32) {
+                children[ca - 1] = mergeNodes(left, right, 0)[0]
+                System.arraycopy children, ca + 1, children, ca, n - ca - 1
+                n--
+            }
+        }
+        split(children, n, level)
+    }
+
+    /**
+     * One node of given level if there are at most 32 children, two otherwise
+     */
+    private static Object[] split(Object[] children, int n, int level) {
+        if (n <= 32)
+            return [makeNode(children, n, level)]
+
+        def first = new Object[32]
+        def second = new Object[n - 32]
+        System.arraycopy children, 0, first, 0, 32
+        System.arraycopy children, 32, second, 0, n - 32
+        [makeNode(first, 32, level), makeNode(second, n - 32, level)]
+    }
+
+    /**
+     * Creates node of given level from first n children. If some child except the last is not full,
+     * node gets table of cumulative sizes as additional last element.
+     */
+    private static Object[] makeNode(Object[] children, int n, int level) {
+        boolean dense = true
+        for (int k = 0; k < n - 1; ++k) {
+            if (sizeOf((Object[])children[k], level - 5) != 1 << level) {
+                dense = false
+                break
+            }
+        }
+
+        def res = new Object[dense ? n : n + 1]
+        System.arraycopy children, 0, res, 0, n
+        if (!dense) {
+            def sizes = new int[n]
+            int total = 0
+            for (int k = 0; k != n; ++k) {
+                total += sizeOf((Object[])children[k], level - 5)
+                sizes[k] = total
+            }
+            res[n] = sizes
+        }
+        res
+    }
+
+    private static boolean isRelaxed(Object[] node) {
+        node.length && node[node.length - 1] instanceof int[]
+    }
+
+    private static int childCount(Object[] node) {
+        isRelaxed(node) ? node.length - 1 : node.length
+    }
+
+    /**
+     * Number of elements in the node of given level (0 for leaves)
+     */
+    private static int sizeOf(Object[] node, int level) {
+        if (level == 0)
+            return node.length
+
+        int count = childCount(node)
+        if (!count)
+            return 0
+
+        if (isRelaxed(node))
+            return ((int[])node[count])[count - 1]
+
+        ((count - 1) << level) + sizeOf((Object[]) node[count - 1], level - 5)
+    }
+
     Iterator<T> iterator() {
-        (shift..<0).step(5).foldLeft(root.iterator()) { level, iter -> iter.map { ((Object[]) it).iterator() }.flatten() } |
-                tail.iterator()
+        [
+            index: 0,
+            chunk: (Object[])null,
+            chunkEnd: 0,
+            hasNext: { index < length },
+            next: {
+                if (index >= length)
+                    throw new NoSuchElementException()
+
+                if (index == chunkEnd) {
+                    chunk = arrayFor(index)
+                    chunkEnd += chunk.length
+                }
+                (T)chunk[chunk.length - (chunkEnd - index++)]
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    /**
+     * Iterates leaf arrays of the vector. Arrays are shared with the vector and should not be modified.
+     */
+    Iterator<Object[]> chunkIterator() {
+        [
+            index: 0,
+            hasNext: { index < length },
+            next: {
+                if (index >= length)
+                    throw new NoSuchElementException()
+
+                def chunk = arrayFor(index)
+                index += chunk.length
+                chunk
+            },
+            remove: { throw new UnsupportedOperationException() }
+        ]
+    }
+
+    /**
+     * Calls op for each element walking leaf arrays
+     */
+    void forEach(Function1<T,Object> op) {
+        for (int i = 0; i < length; ) {
+            def chunk = arrayFor(i)
+            for (int j = 0; j != chunk.length; ++j)
+                op.call((T)chunk[j])
+            i += chunk.length
+        }
+    }
+
+    /**
+     * Computes the aggregate of the vector walking leaf arrays
+     */
+    public <R> R foldLeft(R init, Function2<T, R, R> op) {
+        def res = init
+        for (int i = 0; i < length; ) {
+            def chunk = arrayFor(i)
+            for (int j = 0; j != chunk.length; ++j)
+                res = op.call((T)chunk[j], res)
+            i += chunk.length
+        }
+        res
     }
 
     protected final Object writeReplace() {
@@ -206,11 +619,146 @@ class FVector<T> implements Iterable<T>, Serializable {
 
         void readExternal(ObjectInput input) {
             def sz = input.readInt()
-            def res = FVector.emptyVector
+            def res = FVector.emptyVector.asTransient()
             while(sz--) {
-                res += input.readObject()
+                res.add(input.readObject())
+            }
+            fvector = res.persistent()
+        }
+    }
+
+    /**
+     * Mutable vector used for bulk appends. Elements are added to 32-element tail array in place,
+     * full tail is pushed to the trie without copying.
+     *
+     * Nodes of the right edge of the trie created by transient are owned by it and modified in place,
+     * so pushing the tail allocates only the node getting new child instead of copying whole path to the root.
+     * Nodes are plain arrays, which can't carry edit token as in FHashMap, but only right edge is ever modified
+     * by appends, so ownership is tracked by one node per level.
+     *
+     * Transient should not be shared between threads and can't be used after persistent()
+     */
+    static final class Transient<T> {
+        private int length
+        private int shift
+        private Object[] root
+        private Object[] tail
+        private int tailLength
+
+        // owned node of the right edge by level of its children / 5
+        private final Object[][] owned = new Object[8][]
+
+        private Transient(FVector<T> vector) {
+            length = vector.length
+            shift = vector.shift
+            root = vector.root
+            tail = new Object[32]
+            tailLength = vector.tail.length
+            System.arraycopy vector.tail, 0, tail, 0, tailLength
+        }
+
+        Transient<T> add(T obj) {
+            ensureEditable()
+            if (tailLength == 32) {
+                // tail is owned by transient, so it goes to the trie as is
+                def pushed = pushTail(shift - 5, root, tail)
+                root = pushed.first
+                if (pushed.second) {
+                    root = growRoot(root, shift, (Object[])pushed.second)
+                    owned[(int)shift.intdiv(5)] = root
+                    shift += 5
+                }
+                tail = new Object[32]
+                tailLength = 0
+            }
+            tail[tailLength++] = obj
+            length++
+            this
+        }
+
+        Transient<T> leftShift(T obj) {
+            add(obj)
+        }
+
+        Transient<T> addAll(Iterable<T> other) {
+            for (e in other)
+                add(e)
+            this
+        }
+
+        int size() {
+            length
+        }
+
+        /**
+         * Returns persistent vector with all added elements. Transient can't be used after that
+         */
+        FVector<T> persistent() {
+            ensureEditable()
+            if (!length) {
+                tail = null
+                return (FVector<T>)emptyVector
             }
-            fvector = res
+
+            def newTail = new Object[tailLength]
+            System.arraycopy tail, 0, newTail, 0, tailLength
+            tail = null
+            new FVector<T>(length, shift, root, (T[])newTail)
+        }
+
+        /**
+         * Same as FVector.pushTail, but owned nodes are modified in place and new nodes become owned
+         */
+        private Pair<Object[], Object> pushTail(int level, Object[] arr, Object[] tailNode) {
+            int index = (int)level.intdiv(5)
+            int count = childCount(arr)
+            def newChild
+            boolean lastFull
+            if (level == 0) {
+                newChild = tailNode
+                lastFull = !count || ((Object[])arr[count - 1]).length == 32
+            } else {
+                def last = (Object[]) arr[count - 1]
+                def rec = pushTail(level - 5, last, tailNode)
+                def subexp = rec.second
+                if (subexp != null) {
+                    newChild = subexp
+                    lastFull = sizeOf(last, level) == 1 << (level + 5)
+                } else {
+                    if (arr !== owned[index]) {
+                        arr = replaceLast(arr, count, rec.first, level)
+                        owned[index] = arr
+                        return [arr, null]
+                    }
+
+                    arr[count - 1] = rec.first
+                    if (isRelaxed(arr)) {
+                        def sizes = (int[])arr[count]
+                        sizes[count - 1] = (count > 1 ? sizes[count - 2] : 0) + sizeOf(rec.first, level)
+                    }
+                    return [arr, null]
+                }
+            }
+
+            if (count == 32) {
+                // new sibling becomes right edge of its level
+                Object[] expansion = [newChild]
+                owned[index] = expansion
+                return [arr, expansion]
+            }
+
+            def res = new Object[count + 1]
+            System.arraycopy arr, 0, res, 0, count
+            res[count] = newChild
+            if (isRelaxed(arr) || !lastFull)
+                res = makeNode(res, count + 1, level + 5)
+            owned[index] = res
+            [res, null]
+        }
+
+        private void ensureEditable() {
+            if (tail == null)
+                throw new IllegalStateException("Transient used after persistent() call")
         }
     }
 }
\ No newline at end of file
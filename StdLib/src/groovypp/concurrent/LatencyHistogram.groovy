@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Histogram of non-negative long values (normally durations in nanoseconds) with log-linear buckets:
+ * every power of two range is split in to 16 buckets, so relative error of reported values is below 1/16.
+ *
+ * Recording is lock free and does not allocate. Queries are not atomic snapshot if histogram updated concurrently,
+ * copy() gives histogram, which can be queried consistently
+ */
+@Typed final class LatencyHistogram {
+    private static final int SUB_BITS = 4
+
+    private static final int SUB_COUNT = 1 << SUB_BITS
+
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT
+
+    private final AtomicLongArray counts = [BUCKETS]
+
+    private final AtomicLong total = []
+
+    private final AtomicLong max = []
+
+    void record(long value) {
+        if (value < 0L)
+            value = 0L
+
+        counts.incrementAndGet(bucket(value))
+        total.addAndGet(value)
+        for (;;) {
+            def m = max.get()
+            if (value <= m || max.compareAndSet(m, value))
+                return
+        }
+    }
+
+    long getCount() {
+        long res = 0L
+        for (int i = 0; i != BUCKETS; ++i)
+            res += counts.get(i)
+        res
+    }
+
+    long getMax() {
+        max.get()
+    }
+
+    /**
+     * Mean of recorded values, 0 if nothing was recorded
+     */
+    long getMean() {
+        def count = getCount()
+        count ? (long)total.get().intdiv(count) : 0L
+    }
+
+    /**
+     * Value, which given percent of recorded values do not exceed (up to bucket precision)
+     */
+    long percentile(double percent) {
+        def count = getCount()
+        if (!count)
+            return 0L
+
+        long rank = Math.max(1L, (long)Math.ceil(count * percent / 100d))
+        long seen = 0L
+        for (int i = 0; i != BUCKETS; ++i) {
+            seen += counts.get(i)
+            if (seen >= rank)
+                return Math.min(highest(i), max.get())
+        }
+        max.get()
+    }
+
+    void reset() {
+        for (int i = 0; i != BUCKETS; ++i)
+            counts.set(i, 0L)
+        total.set(0L)
+        max.set(0L)
+    }
+
+    LatencyHistogram copy() {
+        LatencyHistogram res = []
+        for (int i = 0; i != BUCKETS; ++i) {
+            def c = counts.get(i)
+            if (c)
+                res.counts.set(i, c)
+        }
+        res.total.set(total.get())
+        res.max.set(max.get())
+        res
+    }
+
+    String toString() {
+        "count=$count mean=$mean p50=${percentile(50d)} p99=${percentile(99d)} max=$max"
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT)
+            return (int)value
+
+        // top SUB_BITS + 1 bits of the value select the bucket
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS
+        (shift + 1) * SUB_COUNT + (int)((value >>> shift) & (SUB_COUNT - 1))
+    }
+
+    private static long highest(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket
+
+        int shift = (bucket >> SUB_BITS) - 1
+        long lowest = (long)(SUB_COUNT + (bucket & (SUB_COUNT - 1))) << shift
+        lowest + (1L << shift) - 1L
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Multi-producer single-consumer mailbox of linked nodes.
+ *
+ * add() costs one getAndSet and one node allocation, independent of number of queued messages.
+ * Last node reference is null when mailbox is empty and consumer is not scheduled, so exactly one
+ * producer learns that it has to schedule consumer (same role as busyEmptyQueue tag for FQueue based mailboxes).
+ *
+ * Consumer, once scheduled, reads first and calls advance() until it returns false. It may stop earlier
+ * and schedule itself again, in that case producers don't schedule it meanwhile
+ */
+@Typed final class LinkedMailbox<M> {
+    private final AtomicReference<Node> last = []
+
+    // first unprocessed node, accessed only by consumer or by producer, which schedules consumer
+    private Node first
+
+    /**
+     * Adds message to the mailbox. Returns true if mailbox was idle, so caller has to schedule consumer
+     */
+    boolean add(M message) {
+        Node node = [message]
+        def prev = last.getAndSet(node)
+        if (prev == null) {
+            first = node
+            return true
+        }
+        prev.next = node
+        false
+    }
+
+    /**
+     * Message to be processed by consumer
+     */
+    M getFirst() {
+        (M)first.message
+    }
+
+    /**
+     * Moves to the next message. If there is none, marks mailbox idle and returns false
+     */
+    boolean advance() {
+        def node = first
+        node.message = null
+
+        def next = node.next
+        if (next == null) {
+            if (last.compareAndSet(node, null))
+                return false
+
+            // producer already replaced last node, but not yet linked it
+            while ((next = node.next) == null)
+                Thread.yield()
+        }
+        first = next
+        true
+    }
+
+    private static final class Node {
+        Object message
+        volatile Node next
+
+        Node(Object message) {
+            this.message = message
+        }
+    }
+}
@@ -165,7 +165,7 @@ import java.util.concurrent.atomic.AtomicReference
             else {
                 def removed = s.first.removeFirst()
                 if(state.compareAndSet(s, [removed.second, s.second])) {
-                    if (runFair) {
+                    if (runFair && !CallLaterExecutors.isThreadPerTask(executor)) {
                         // schedule action
                         executor.execute {
                             scheduledAction(removed.first,resource)
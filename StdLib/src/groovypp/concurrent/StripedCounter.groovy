@@ -0,0 +1,222 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Counter spread over several cells to avoid contention on single memory location.
+ *
+ * Follows design of LongAdder: while there is no contention only base is updated. Cells are created after
+ * first failed compareAndSet and their number doubles (up to the number of processors rounded to power of 2)
+ * while threads keep colliding. Thread, which failed to update its cell, moves to another one.
+ * Cells are padded to separate cache lines.
+ * sum() is not atomic snapshot if counter updated concurrently.
+ *
+ * Used for fields annotated by @Striped
+ */
+@Typed final class StripedCounter {
+    private static final int MAX_CELLS = maxCells()
+
+    // xorshift probe of the thread choosing its cell, never 0
+    private static final ThreadLocal<int[]> probes = []
+
+    private volatile long base
+
+    private volatile Cell [] cells
+
+    // spin lock for creating and growing cells
+    private volatile int busy
+
+    final void add (long delta) {
+        def cs = cells
+        if (cs == null) {
+            long b = base
+            if (base.compareAndSet(b, b + delta))
+                return
+        }
+        else {
+            def c = cs[probe()[0] & (cs.length - 1)]
+            if (c != null) {
+                long v = c.get()
+                if (c.cas(v, v + delta))
+                    return
+            }
+        }
+        addContended(delta)
+    }
+
+    final void increment () {
+        add(1L)
+    }
+
+    final void decrement () {
+        add(-1L)
+    }
+
+    final long sum () {
+        long res = base
+        def cs = cells
+        if (cs != null) {
+            for (c in cs) {
+                if (c != null)
+                    res += c.get()
+            }
+        }
+        res
+    }
+
+    final void reset () {
+        base = 0L
+        def cs = cells
+        if (cs != null) {
+            for (c in cs) {
+                if (c != null)
+                    c.set(0L)
+            }
+        }
+    }
+
+    String toString () {
+        sum().toString()
+    }
+
+    private void addContended (long delta) {
+        def p = probe()
+        boolean collided = false
+        for (;;) {
+            def cs = cells
+            if (cs == null) {
+                if (!busy && busy.compareAndSet(0, 1)) {
+                    try {
+                        if (cells == null) {
+                            Cell [] created = new Cell [2]
+                            created[p[0] & 1] = new Cell(delta)
+                            cells = created
+                            return
+                        }
+                    }
+                    finally {
+                        busy = 0
+                    }
+                    continue
+                }
+
+                // somebody else creates cells
+                long b = base
+                if (base.compareAndSet(b, b + delta))
+                    return
+                continue
+            }
+
+            def c = cs[p[0] & (cs.length - 1)]
+            if (c == null) {
+                if (!busy && busy.compareAndSet(0, 1)) {
+                    try {
+                        def current = cells
+                        int i = p[0] & (current.length - 1)
+                        if (current[i] == null) {
+                            current[i] = new Cell(delta)
+                            return
+                        }
+                    }
+                    finally {
+                        busy = 0
+                    }
+                    continue
+                }
+                collided = false
+            }
+            else {
+                long v = c.get()
+                if (c.cas(v, v + delta))
+                    return
+
+                if (cs.length >= MAX_CELLS || cs !== cells)
+                    collided = false
+                else if (!collided)
+                    // first collision, try another cell before growing
+                    collided = true
+                else if (!busy && busy.compareAndSet(0, 1)) {
+                    try {
+                        if (cells === cs) {
+                            Cell [] grown = new Cell [cs.length << 1]
+                            System.arraycopy(cs, 0, grown, 0, cs.length)
+                            cells = grown
+                        }
+                    }
+                    finally {
+                        busy = 0
+                    }
+                    collided = false
+                    continue
+                }
+            }
+
+            // move to another cell
+            int x = p[0]
+            x ^= x << 13
+            x ^= x >>> 17
+            x ^= x << 5
+            p[0] = x
+        }
+    }
+
+    private static int[] probe () {
+        def p = probes.get()
+        if (p == null) {
+            int h = (int)Thread.currentThread().id
+            h ^= (h >>> 16)
+            h *= 0x7feb352d
+            h ^= (h >>> 13)
+            p = new int [1]
+            p[0] = h ?: 1
+            probes.set(p)
+        }
+        p
+    }
+
+    private static int maxCells () {
+        int n = 1
+        while (n < Runtime.runtime.availableProcessors())
+            n <<= 1
+        n
+    }
+
+    private static final class Cell {
+        // padding to keep value on its own cache line
+        private long p0, p1, p2, p3, p4, p5, p6
+
+        private volatile long value
+
+        private long q0, q1, q2, q3, q4, q5, q6
+
+        Cell (long value) {
+            this.value = value
+        }
+
+        long get () {
+            value
+        }
+
+        void set (long v) {
+            value = v
+        }
+
+        boolean cas (long expected, long update) {
+            value.compareAndSet(expected, update)
+        }
+    }
+}
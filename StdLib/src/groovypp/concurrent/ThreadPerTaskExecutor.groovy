@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.lang.reflect.Method
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import groovypp.concurrent.CallLaterPool.GroovyThread
+
+/**
+ * Executor starting new thread for every task, intended for tasks blocking on I/O.
+ *
+ * If JVM supports virtual threads (Thread.ofVirtual() is looked up reflectively) tasks run on them
+ * and blocking costs almost nothing; otherwise every task gets new platform GroovyThread.
+ * Virtual thread can't be GroovyThread, so executor running the task is also kept in thread local
+ * and CallLaterExecutors.currentExecutor() finds it in both cases.
+ *
+ * Virtual thread blocked inside synchronized block pins its carrier thread. BindLater waits by parking
+ * (LockSupport.park) and does not pin, so BindLater.get() is cheap here.
+ */
+@Typed class ThreadPerTaskExecutor extends AbstractExecutorService {
+    // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), null if JVM has no virtual threads
+    private static final Method ofVirtual = findMethod("java.lang.Thread", "ofVirtual")
+    private static final Method unstarted = findMethod("java.lang.Thread\$Builder", "unstarted", Runnable)
+
+    static final ThreadLocal<ThreadPerTaskExecutor> current = []
+
+    private static final AtomicInteger executorNumber = [1]
+
+    private final AtomicInteger threadNumber = [1]
+
+    private final String namePrefix = "groovy-executor-" + executorNumber.getAndIncrement() + "-thread-"
+
+    private final ThreadGroup group = Thread.currentThread().threadGroup
+
+    private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>())
+
+    private final boolean virtual
+
+    private volatile boolean shutdown
+
+    /**
+     * @param preferVirtual use virtual threads if JVM supports them
+     */
+    ThreadPerTaskExecutor(boolean preferVirtual = true) {
+        virtual = preferVirtual && ofVirtual != null && unstarted != null
+    }
+
+    /**
+     * Whether tasks run on virtual threads
+     */
+    boolean isVirtual() { virtual }
+
+    void execute(Runnable command) {
+        if (shutdown)
+            throw new RejectedExecutionException()
+
+        def executor = this
+        Runnable task = {
+            current.set(executor)
+            try {
+                command.run()
+            }
+            finally {
+                current.remove()
+                executor.finished(Thread.currentThread())
+            }
+        }
+
+        def thread = virtual ?
+            (Thread)unstarted.invoke(ofVirtual.invoke(null), task) :
+            new GroovyThread(this, group, task, namePrefix + threadNumber.getAndIncrement())
+
+        threads.add(thread)
+        if (shutdown) {
+            threads.remove(thread)
+            throw new RejectedExecutionException()
+        }
+        thread.start()
+    }
+
+    void shutdown() {
+        shutdown = true
+        signalIfTerminated()
+    }
+
+    /**
+     * Interrupts all running tasks. As there is no queue, returned list is always empty
+     */
+    List<Runnable> shutdownNow() {
+        shutdown = true
+        for (t in threads)
+            t.interrupt()
+        signalIfTerminated()
+        []
+    }
+
+    boolean isShutdown() { shutdown }
+
+    boolean isTerminated() { shutdown && threads.empty }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout)
+        synchronized (this) {
+            while (!terminated) {
+                long left = deadline - System.nanoTime()
+                if (left <= 0L)
+                    return false
+                TimeUnit.NANOSECONDS.timedWait(this, left)
+            }
+        }
+        true
+    }
+
+    private void finished(Thread thread) {
+        threads.remove(thread)
+        signalIfTerminated()
+    }
+
+    private void signalIfTerminated() {
+        if (terminated) {
+            synchronized (this) {
+                notifyAll()
+            }
+        }
+    }
+
+    private static Method findMethod(String className, String name, Class... params) {
+        try {
+            Class.forName(className).getMethod(name, params)
+        }
+        catch (Exception e) {
+            null
+        }
+    }
+}
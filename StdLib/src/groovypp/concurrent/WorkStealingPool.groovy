@@ -0,0 +1,397 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Fixed thread pool Executor, where every worker has its own deque of tasks.
+ *
+ * Tasks submitted from a worker thread (for example ExecutingChannel scheduling itself again) are pushed
+ * to the deque of that worker and normally executed by it without touching any shared state.
+ * Tasks submitted from other threads go to one of several submission queues chosen by thread id.
+ * Worker runs newest task of its deque first, but every FAIR_INTERVAL-th task it takes from its submission queue
+ * or from the oldest end of the deque, so a channel rescheduling itself forever can't starve other tasks.
+ * Idle worker steals from deques and submission queues starting from random victim,
+ * spins for a while and then parks until new task arrives.
+ *
+ * Has the same shutdown contract as FThreadPool
+ */
+@Typed class WorkStealingPool implements Executor {
+    private static final int RUNNING = 0, SHUTDOWN = 1, STOP = 2
+
+    // rescans before parking
+    private static final int SPINS = 64
+
+    // every FAIR_INTERVAL-th task is taken in FIFO order, must be power of 2
+    private static final int FAIR_INTERVAL = 32
+
+    private final Worker [] workers
+
+    private final ConcurrentLinkedQueue<Runnable> [] submissions
+
+    private final ThreadLocal<Worker> currentWorker = []
+
+    private final AtomicInteger idleCount = []
+
+    private volatile int state
+
+    private final CountDownLatch termination
+
+    WorkStealingPool(int num = Runtime.getRuntime().availableProcessors(), ThreadFactory threadFactory = Executors.defaultThreadFactory()) {
+        termination = [num]
+        workers = new Worker[num]
+        submissions = new ConcurrentLinkedQueue[num]
+        for (i in 0..<num) {
+            submissions[i] = new ConcurrentLinkedQueue<Runnable>()
+            workers[i] = new Worker(this, i)
+        }
+        for (w in workers) {
+            w.thread = threadFactory.newThread(w)
+            w.thread.start()
+        }
+    }
+
+    /**
+     * Number of worker threads
+     */
+    int getParallelism() {
+        workers.length
+    }
+
+    void execute(Runnable command) {
+        if (state != RUNNING)
+            throw new RejectedExecutionException()
+
+        def worker = currentWorker.get()
+        if (worker != null) {
+            // owner of the deque keeps running until it drained the deque, so the task can't be lost
+            worker.deque.push(command)
+        }
+        else {
+            def queue = submissions[submissionIndex()]
+            queue.offer(command)
+            if (state != RUNNING && queue.remove(command))
+                throw new RejectedExecutionException()
+        }
+        signalWork()
+    }
+
+    /**
+     * Initiate process of shutdown
+     * No new tasks can be scheduled after that point
+     */
+    void shutdown() {
+        if (state == RUNNING)
+            state = SHUTDOWN
+        wakeAll()
+    }
+
+    /**
+     * Initiate process of shutdown
+     * No new tasks can be scheduled after that point and all tasks, which not started execution yet, will be unscheduled
+     */
+    List<Runnable> shutdownNow() {
+        state = STOP
+        List<Runnable> res = []
+        for (q in submissions) {
+            for (def task = q.poll(); task != null; task = q.poll())
+                res.add(task)
+        }
+        for (w in workers) {
+            for (;;) {
+                def task = w.deque.steal()
+                if (task === WorkQueue.RETRY)
+                    continue
+                if (task == null)
+                    break
+                res.add(task)
+            }
+        }
+        wakeAll()
+        res
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit timeUnit) {
+        termination.await(timeout, timeUnit)
+    }
+
+    private void signalWork() {
+        if (idleCount.get() > 0) {
+            for (w in workers) {
+                if (w.idle.compareAndSet(true, false)) {
+                    idleCount.decrementAndGet()
+                    LockSupport.unpark(w.thread)
+                    return
+                }
+            }
+        }
+    }
+
+    private void wakeAll() {
+        for (w in workers)
+            LockSupport.unpark(w.thread)
+    }
+
+    private int submissionIndex() {
+        int h = (int)Thread.currentThread().id
+        h ^= (h >>> 16)
+        h *= 0x7feb352d
+        h ^= (h >>> 13)
+        (h & 0x7fffffff) % submissions.length
+    }
+
+    private static final class Worker implements Runnable {
+        final WorkStealingPool pool
+
+        final int index
+
+        final WorkQueue deque = []
+
+        final AtomicBoolean idle = []
+
+        Thread thread
+
+        // xorshift state for choosing victims
+        private int seed
+
+        // tasks taken so far, used for fair polling
+        private int ticks
+
+        Worker(WorkStealingPool pool, int index) {
+            this.pool = pool
+            this.index = index
+            seed = index * 0x61c88647 + 1
+        }
+
+        void run() {
+            pool.currentWorker.set(this)
+            try {
+                int spins = 0
+                for (;;) {
+                    if (pool.state == STOP)
+                        return
+
+                    def task = nextLocal()
+                    if (task == null)
+                        task = pool.submissions[index].poll()
+                    if (task == null)
+                        task = scan()
+
+                    if (task != null && task !== WorkQueue.RETRY) {
+                        spins = 0
+                        runTask(task)
+                        continue
+                    }
+
+                    if (task == null && pool.state == SHUTDOWN)
+                        return
+
+                    if (++spins < SPINS) {
+                        Thread.yield()
+                        continue
+                    }
+
+                    spins = 0
+                    park()
+                }
+            }
+            finally {
+                pool.termination.countDown()
+            }
+        }
+
+        /**
+         * Newest task of own deque or, every FAIR_INTERVAL-th call, oldest task of own deque or submission queue,
+         * both sources taking turns to be first
+         */
+        private Runnable nextLocal() {
+            if ((++ticks & (FAIR_INTERVAL - 1)) != 0)
+                return deque.pop()
+
+            def submitted = pool.submissions[index]
+            if ((ticks & FAIR_INTERVAL) != 0) {
+                def task = submitted.poll()
+                return task != null ? task : takeOldest()
+            }
+            def task = takeOldest()
+            task != null ? task : submitted.poll()
+        }
+
+        private Runnable takeOldest() {
+            for (;;) {
+                def task = deque.steal()
+                if (task !== WorkQueue.RETRY)
+                    return task
+            }
+        }
+
+        /**
+         * Tries to take task from other workers and submission queues, starting from random one.
+         * Returns RETRY if some steal failed because of contention, so the queues might be not empty
+         */
+        private Runnable scan() {
+            int n = pool.workers.length
+            int start = nextRandom() % n
+            boolean retry = false
+            for (int i = 0; i != n; ++i) {
+                int victim = (start + i) % n
+
+                def task = pool.submissions[victim].poll()
+                if (task != null)
+                    return task
+
+                if (victim != index) {
+                    task = pool.workers[victim].deque.steal()
+                    if (task === WorkQueue.RETRY)
+                        retry = true
+                    else if (task != null)
+                        return task
+                }
+            }
+            retry ? WorkQueue.RETRY : null
+        }
+
+        private void park() {
+            idle.set(true)
+            pool.idleCount.incrementAndGet()
+
+            // task might be pushed before we became visible as idle
+            def task = pool.state == RUNNING ? scan() : WorkQueue.RETRY
+            if (task == null)
+                LockSupport.park(this)
+
+            // nobody woke us: spurious wake up, shutdown or work found by rescan
+            if (idle.compareAndSet(true, false))
+                pool.idleCount.decrementAndGet()
+
+            if (task != null && task !== WorkQueue.RETRY)
+                runTask(task)
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run()
+            }
+            catch (Throwable t) {
+                thread.uncaughtExceptionHandler.uncaughtException(thread, t)
+            }
+        }
+
+        private int nextRandom() {
+            int x = seed
+            x ^= x << 13
+            x ^= x >>> 17
+            x ^= x << 5
+            seed = x
+            x & 0x7fffffff
+        }
+    }
+
+    /**
+     * Chase-Lev work stealing deque.
+     *
+     * Owner pushes and pops at bottom, thieves (and sometimes the owner itself, for fairness) take from top. Only taking the last element
+     * requires compareAndSet by owner. Array grows when full, old array is left to thieves still reading it.
+     */
+    static final class WorkQueue {
+        static final Runnable RETRY = {}
+
+        private final AtomicLong top = []
+
+        private volatile long bottom
+
+        private volatile AtomicReferenceArray<Runnable> array = [64]
+
+        /**
+         * Called only by owner
+         */
+        void push(Runnable task) {
+            long b = bottom, t = top.get()
+            def a = array
+            if (b - t >= a.length() - 1) {
+                a = grow(a, t, b)
+                array = a
+            }
+            a.set((int)b & (a.length() - 1), task)
+            bottom = b + 1
+        }
+
+        /**
+         * Called only by owner. Returns null if deque is empty
+         */
+        Runnable pop() {
+            long b = bottom - 1
+            def a = array
+            bottom = b
+            long t = top.get()
+            if (t > b) {
+                bottom = t
+                return null
+            }
+
+            int i = (int)b & (a.length() - 1)
+            def task = a.get(i)
+            if (t == b) {
+                // last element, thieves compete for it
+                if (!top.compareAndSet(t, t + 1))
+                    task = null
+                bottom = t + 1
+            }
+            else {
+                a.set(i, null)
+            }
+            task
+        }
+
+        /**
+         * Called by any thread. Returns null if deque is empty or RETRY if lost race for the element
+         */
+        Runnable steal() {
+            long t = top.get()
+            long b = bottom
+            if (t >= b)
+                return null
+
+            def a = array
+            int i = (int)t & (a.length() - 1)
+            def task = a.get(i)
+            if (task == null || !top.compareAndSet(t, t + 1))
+                return RETRY
+
+            // slot may be already reused by owner
+            a.compareAndSet(i, task, null)
+            task
+        }
+
+        int size() {
+            (int)Math.max(bottom - top.get(), 0L)
+        }
+
+        private static AtomicReferenceArray<Runnable> grow(AtomicReferenceArray<Runnable> a, long t, long b) {
+            AtomicReferenceArray<Runnable> res = [a.length() << 1]
+            for (long i = t; i != b; ++i)
+                res.set((int)i & (res.length() - 1), a.get((int)i & (a.length() - 1)))
+            res
+        }
+    }
+}
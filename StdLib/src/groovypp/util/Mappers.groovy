@@ -16,8 +16,9 @@
 
 package groovypp.util
 
+import groovypp.channels.MessageChannel
+import groovypp.concurrent.BindLater
 import java.util.concurrent.Executor
-import java.util.concurrent.FutureTask
 import java.util.concurrent.LinkedBlockingQueue
 import org.codehaus.groovy.runtime.DefaultGroovyMethodsSupport
 
@@ -185,6 +186,11 @@ public class Mappers extends DefaultGroovyMethodsSupport {
 
   private static def NULL = new Object ()  
 
+  /**
+   * Maps elements of the iterator using executor.
+   * Ordered results are collected by OrderedMapper, so slow element does not stop mapping of elements after it.
+   * @param maxConcurrentTasks maximal number of elements mapped at the same time, values less than number of processors are replaced by twice that number
+   */
   static <T, R> Iterator<R> mapConcurrently(Iterator<T> self,
                                             Executor executor,
                                             boolean ordered,
@@ -195,28 +201,7 @@ public class Mappers extends DefaultGroovyMethodsSupport {
       maxConcurrentTasks = 2 * processors
 
     if (ordered) {
-      [pending: 0,
-              waiting: new LinkedList<FutureTask<R>>(),
-
-              testPending: {->
-                while (self && pending < maxConcurrentTasks) {
-                  pending++
-                  waiting << op.future(self.next())
-                  executor.execute waiting.last
-                }
-              },
-
-              next: {->
-                def res = waiting.removeFirst().get()
-                pending--
-                testPending()
-                res
-              },
-
-              hasNext: {-> testPending(); pending > 0 },
-
-              remove: {-> throw new UnsupportedOperationException("remove () is unsupported by the iterator") },
-      ]
+      return new OrderedMapper<T, R>(self, executor, maxConcurrentTasks, 1, op)
     }
     else {
       [   pending: 0,
@@ -247,6 +232,37 @@ public class Mappers extends DefaultGroovyMethodsSupport {
     }
   }
 
+  /**
+   * Maps elements of the iterator in order, each task maps chunk of chunkSize elements.
+   * Returned iterator is lazy and can be cancelled.
+   * @param maxConcurrentTasks maximal number of chunks mapped ahead of the first not delivered element
+   */
+  static <T, R> OrderedMapper<T, R> mapConcurrently(Iterator<T> self,
+                                                    Executor executor,
+                                                    int maxConcurrentTasks,
+                                                    int chunkSize,
+                                                    Function1<T, R> op) {
+    new OrderedMapper<T, R>(self, executor, maxConcurrentTasks * chunkSize, chunkSize, op)
+  }
+
+  /**
+   * Maps elements of the iterator concurrently and posts results to the channel in order.
+   * @param maxConcurrentTasks maximal number of chunks mapped ahead of the first not posted element,
+   * 0 means twice the number of processors
+   * @return BindLater bound to number of posted results, cancelling it stops mapping
+   */
+  static <T, R> BindLater<Long> mapConcurrentlyTo(Iterator<T> self,
+                                                  Executor executor,
+                                                  MessageChannel<R> channel,
+                                                  int maxConcurrentTasks = 0,
+                                                  int chunkSize = 1,
+                                                  Function1<T, R> op) {
+    if (maxConcurrentTasks <= 0)
+      maxConcurrentTasks = 2 * Runtime.runtime.availableProcessors()
+
+    mapConcurrently(self, executor, maxConcurrentTasks, chunkSize, op).pushTo(channel)
+  }
+
   /**
    * Generate the concatenation of two iterators.
    * @param self first iterator
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.util
+
+import java.lang.ref.SoftReference
+import groovypp.concurrent.StripedCounter
+
+/**
+ * Cache of results of method annotated by @Memoized
+ *
+ * - int, long keys (and methods without parameters) are stored without boxing in lock striped LRU segments
+ *   of open addressing tables
+ * - other keys (argument or tuple of arguments) are stored in lock striped LRU segments,
+ *   or in SoftValueMap if cache is soft and not bounded
+ *
+ * get methods return MISS if there is no live value for the key
+ */
+@Typed final class MemoCache {
+    static final Object MISS = new Object ()
+
+    private static final int SEGMENT_SHIFT = 4
+
+    private static final int SEGMENTS = 1 << SEGMENT_SHIFT
+
+    private static final Object NULL = new Object ()
+
+    private final int maxSize
+
+    private final long expireAfterWrite
+
+    private final boolean soft
+
+    private final StripedCounter hits = []
+
+    private final StripedCounter misses = []
+
+    private volatile LongSegment [] longSegments
+
+    private volatile Object [] segments
+
+    private volatile SoftValueMap<Object,Entry> softMap
+
+    MemoCache (int maxSize = 0, long expireAfterWrite = 0L, boolean soft = true) {
+        this.maxSize = maxSize
+        this.expireAfterWrite = expireAfterWrite
+        this.soft = soft
+    }
+
+    final Object getLong (long key) {
+        int h = hash(key)
+        def s = longSegments
+        if (s) {
+            def segment = s[h >>> (32 - SEGMENT_SHIFT)]
+            LongEntry e
+            synchronized (segment) {
+                e = segment.get(key, h)
+            }
+            if (e)
+                return hitOrMiss(e)
+        }
+        misses.increment()
+        MISS
+    }
+
+    final Object putLong (long key, Object value) {
+        def s = longSegments
+        if (!s) {
+            synchronized (this) {
+                s = longSegments
+                if (!s) {
+                    s = new LongSegment [SEGMENTS]
+                    for (int i = 0; i != SEGMENTS; ++i)
+                        s[i] = new LongSegment(segmentSize())
+                    longSegments = s
+                }
+            }
+        }
+
+        int h = hash(key)
+        def segment = s[h >>> (32 - SEGMENT_SHIFT)]
+        def e = new LongEntry(key, wrap(value), System.currentTimeMillis())
+        synchronized (segment) {
+            segment.put(e, h)
+        }
+        value
+    }
+
+    final Object get (Object key) {
+        Entry e
+        if (!maxSize && soft) {
+            e = softMap?.get(key == null ? NULL : key)?.get()
+        }
+        else {
+            def segment = segmentFor(key, false)
+            if (segment) {
+                synchronized (segment) {
+                    e = (Entry)segment.get(key)
+                }
+            }
+        }
+
+        if (e)
+            return hitOrMiss(e)
+
+        misses.increment()
+        MISS
+    }
+
+    final Object put (Object key, Object value) {
+        if (!maxSize && soft) {
+            // entry itself is softly reachable, so value is not wrapped
+            def e = new Entry(value == null ? NULL : value, System.currentTimeMillis())
+            def map = softMap
+            if (!map) {
+                synchronized (this) {
+                    map = softMap
+                    if (!map) {
+                        map = new SoftEntryMap()
+                        softMap = map
+                    }
+                }
+            }
+            def k = key == null ? NULL : key
+            map.put(k, map.createValue(k, e))
+        }
+        else {
+            def e = new Entry(wrap(value), System.currentTimeMillis())
+            def segment = segmentFor(key, true)
+            synchronized (segment) {
+                segment.put(key, e)
+            }
+        }
+        value
+    }
+
+    final long getHitCount () {
+        hits.sum()
+    }
+
+    final long getMissCount () {
+        misses.sum()
+    }
+
+    final double getHitRate () {
+        def h = hitCount
+        def total = h + missCount
+        total ? ((double)h) / total : 0.0d
+    }
+
+    final void clear () {
+        longSegments = null
+        segments = null
+        softMap = null
+        hits.reset()
+        misses.reset()
+    }
+
+    String toString () {
+        "[hits: $hitCount, misses: $missCount]"
+    }
+
+    private Object hitOrMiss (Entry e) {
+        if (expireAfterWrite > 0L && System.currentTimeMillis() - e.written > expireAfterWrite) {
+            misses.increment()
+            return MISS
+        }
+
+        def v = e.value
+        if (v instanceof SoftReference) {
+            v = ((SoftReference)v).get()
+            if (v == null) {
+                misses.increment()
+                return MISS
+            }
+        }
+
+        hits.increment()
+        v === NULL ? null : v
+    }
+
+    private Object wrap (Object value) {
+        def v = value == null ? NULL : value
+        soft ? new SoftReference(v) : v
+    }
+
+    private int segmentSize () {
+        maxSize > 0 ? (maxSize + SEGMENTS - 1) >> SEGMENT_SHIFT : 0
+    }
+
+    // high bits select segment, low bits select slot in the segment
+    private static int hash (long key) {
+        int h = (int)(key ^ (key >>> 32))
+        h ^= (h >>> 16)
+        h *= 0x7feb352d
+        h ^= (h >>> 13)
+        h
+    }
+
+    private LinkedHashMap segmentFor (Object key, boolean create) {
+        def s = segments
+        if (!s) {
+            if (!create)
+                return null
+
+            synchronized (this) {
+                s = segments
+                if (!s) {
+                    s = new Object [SEGMENTS]
+                    for (int i = 0; i != SEGMENTS; ++i)
+                        s[i] = new Segment(segmentSize())
+                    segments = s
+                }
+            }
+        }
+
+        int h = key == null ? 0 : key.hashCode()
+        h ^= (h >>> 16)
+        (LinkedHashMap)s[h & (SEGMENTS - 1)]
+    }
+
+    private static class Entry {
+        final Object value
+        final long written
+
+        Entry (Object value, long written) {
+            this.value = value
+            this.written = written
+        }
+    }
+
+    private static final class LongEntry extends Entry {
+        final long key
+
+        // neighbours in LRU list of the segment
+        LongEntry before, after
+
+        LongEntry (long key, Object value, long written) {
+            super(value, written)
+            this.key = key
+        }
+
+        boolean isCollected () {
+            value instanceof SoftReference && ((SoftReference)value).get() == null
+        }
+    }
+
+    /**
+     * Linear probing table of long keys with LRU list, evicting eldest entry after reaching maxSize (0 means no limit).
+     * Entries with collected soft values are purged when table grows. Guarded by its monitor
+     */
+    private static final class LongSegment {
+        private final int maxSize
+
+        private LongEntry [] table = new LongEntry [16]
+
+        private int size
+
+        // eldest and youngest entries
+        private LongEntry head, tail
+
+        LongSegment (int maxSize) {
+            this.maxSize = maxSize
+        }
+
+        LongEntry get (long key, int h) {
+            int i = indexOf(key, h)
+            if (i < 0)
+                return null
+
+            def e = table[i]
+            unlink(e)
+            linkLast(e)
+            e
+        }
+
+        void put (LongEntry e, int h) {
+            int i = indexOf(e.key, h)
+            if (i >= 0) {
+                unlink(table[i])
+                table[i] = e
+                linkLast(e)
+                return
+            }
+
+            // keep load factor under 3/4, so probing always finds free slot
+            if ((size + 1) << 2 > table.length * 3)
+                rehash()
+            insert(e, h)
+            linkLast(e)
+
+            if (maxSize > 0 && size > maxSize) {
+                def eldest = head
+                unlink(eldest)
+                removeAt(indexOf(eldest.key, hash(eldest.key)))
+            }
+        }
+
+        private int indexOf (long key, int h) {
+            int mask = table.length - 1
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                def e = table[i]
+                if (e == null)
+                    return -1
+                if (e.key == key)
+                    return i
+            }
+        }
+
+        private void insert (LongEntry e, int h) {
+            int mask = table.length - 1
+            int i = h & mask
+            while (table[i] != null)
+                i = (i + 1) & mask
+            table[i] = e
+            size++
+        }
+
+        /**
+         * Backward shift deletion: entries following the gap move in to it unless it is before their home slot
+         */
+        private void removeAt (int i) {
+            int mask = table.length - 1
+            table[i] = null
+            size--
+            for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+                def e = table[j]
+                int home = hash(e.key) & mask
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    table[i] = e
+                    table[j] = null
+                    i = j
+                }
+            }
+        }
+
+        private void rehash () {
+            int live = 0
+            for (def e = head; e != null; e = e.after) {
+                if (!e.collected)
+                    live++
+            }
+
+            int length = 16
+            while ((live + 1) << 2 > length * 3)
+                length <<= 1
+            table = new LongEntry [length]
+            size = 0
+
+            for (def e = head; e != null; ) {
+                def next = e.after
+                if (e.collected)
+                    unlink(e)
+                else
+                    insert(e, hash(e.key))
+                e = next
+            }
+        }
+
+        private void linkLast (LongEntry e) {
+            e.after = null
+            e.before = tail
+            if (tail == null)
+                head = e
+            else
+                tail.after = e
+            tail = e
+        }
+
+        private void unlink (LongEntry e) {
+            if (e.before == null)
+                head = e.after
+            else
+                e.before.after = e.after
+
+            if (e.after == null)
+                tail = e.before
+            else
+                e.after.before = e.before
+
+            e.before = null
+            e.after = null
+        }
+    }
+
+    /**
+     * LRU map, evicting eldest entry after reaching maxSize (0 means no limit)
+     */
+    private static final class Segment extends LinkedHashMap {
+        private final int maxSize
+
+        Segment (int maxSize) {
+            super(16, 0.75f, true)
+            this.maxSize = maxSize
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            maxSize > 0 && size() > maxSize
+        }
+    }
+
+    private static final class SoftEntryMap extends SoftValueMap<Object,Entry> {
+        protected SoftValue<Object,Entry> createValue (Object key, Entry value) {
+            [this, key, value]
+        }
+    }
+}
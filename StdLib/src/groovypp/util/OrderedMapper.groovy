@@ -0,0 +1,320 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.util
+
+import groovypp.channels.MessageChannel
+import groovypp.concurrent.BindLater
+import java.util.concurrent.CancellationException
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Maps elements of iterator concurrently keeping their order.
+ *
+ * Elements are pulled lazily in chunks, every chunk is mapped by one executor task. Results are put to ring buffer
+ * indexed by sequence number of element, so slow element delays only its own delivery, while other tasks keep
+ * mapping elements ahead of it up to the size of the ring (look-ahead window).
+ *
+ * Results are either consumed via Iterator interface or, after pushTo(), posted to message channel
+ * by tasks themselves. Exception thrown by mapping function is rethrown (or reported) in place of
+ * the failed element after all elements before it were delivered.
+ */
+@Typed class OrderedMapper<T, R> implements Iterator<R> {
+    private static final Object NULL = new Object()
+
+    private static final class Failed {
+        final Throwable error
+
+        Failed(Throwable error) {
+            this.error = error
+        }
+    }
+
+    private static final class Chunk implements Runnable {
+        final OrderedMapper mapper
+        final long first
+        final Object [] elements
+
+        Chunk(OrderedMapper mapper, long first, Object [] elements) {
+            this.mapper = mapper
+            this.first = first
+            this.elements = elements
+        }
+
+        void run() {
+            def m = mapper
+            for (int i = 0; i != elements.length; ++i) {
+                long seq = first + i
+                if (m.cancelled || seq > m.failedAt)
+                    return
+
+                Object value
+                try {
+                    value = m.op.call(elements[i])
+                    if (value == null)
+                        value = NULL
+                }
+                catch (Throwable t) {
+                    value = new Failed(t)
+                    m.failed(seq)
+                }
+                elements[i] = null
+                m.ring.set((int)(seq & m.mask), value)
+                m.ready()
+
+                if (value instanceof Failed)
+                    return
+            }
+        }
+    }
+
+    private final Iterator<T> source
+
+    private final Executor executor
+
+    private final Function1<T, R> op
+
+    private final int chunkSize
+
+    private final AtomicReferenceArray<Object> ring
+
+    private final int mask
+
+    // owned by consuming thread, or by draining thread after pushTo()
+    private long submitted, consumed
+    private boolean exhausted
+
+    private volatile boolean cancelled
+
+    // sequence number of first failed element
+    private volatile long failedAt = Long.MAX_VALUE
+
+    private volatile Thread waiter
+
+    private MessageChannel<R> channel
+
+    private BindLater<Long> pushed
+
+    private final AtomicInteger wip = []
+
+    /**
+     * @param window maximal number of elements mapped ahead of the first not delivered one, rounded up to power of two
+     * @param chunkSize number of elements mapped by one task
+     */
+    OrderedMapper(Iterator<T> source, Executor executor, int window, int chunkSize, Function1<T, R> op) {
+        if (window <= 0 || chunkSize <= 0)
+            throw new IllegalArgumentException("window and chunkSize should be positive")
+
+        this.source = source
+        this.executor = executor
+        this.op = op
+        this.chunkSize = chunkSize
+
+        int capacity = 1
+        while (capacity < Math.max(window, chunkSize))
+            capacity <<= 1
+        ring = new AtomicReferenceArray<Object>(capacity)
+        mask = capacity - 1
+    }
+
+    boolean hasNext() {
+        if (consumed == submitted)
+            fill()
+        consumed != submitted && !cancelled
+    }
+
+    R next() {
+        if (!hasNext())
+            throw new NoSuchElementException()
+
+        int index = (int)(consumed & mask)
+        def value = ring.get(index)
+        if (value == null) {
+            waiter = Thread.currentThread()
+            try {
+                while ((value = ring.get(index)) == null) {
+                    if (Thread.interrupted()) {
+                        cancel()
+                        Thread.currentThread().interrupt()
+                    }
+                    if (cancelled)
+                        throw new CancellationException()
+                    LockSupport.park(this)
+                }
+            }
+            finally {
+                waiter = null
+            }
+        }
+        ring.set(index, null)
+        consumed++
+
+        if (value instanceof Failed) {
+            cancel()
+            throw ((Failed)value).error
+        }
+
+        fill()
+        value === NULL ? null : (R)value
+    }
+
+    void remove() {
+        throw new UnsupportedOperationException("remove () is unsupported by the iterator")
+    }
+
+    /**
+     * Stops mapping, elements already being mapped by tasks are finished but not delivered
+     */
+    void cancel() {
+        cancelled = true
+        def w = waiter
+        if (w != null)
+            LockSupport.unpark(w)
+        pushed?.cancel(false)
+    }
+
+    boolean isCancelled() {
+        cancelled
+    }
+
+    /**
+     * Maximal number of elements mapped ahead of the first not delivered one
+     */
+    int getWindow() {
+        ring.length()
+    }
+
+    /**
+     * Posts results to the channel in order instead of returning them from the iterator.
+     * Returned BindLater is bound to number of posted results when all elements are mapped, gets exception
+     * thrown by mapping function and cancels mapping when cancelled itself.
+     * Source iterator is accessed by executor threads after this call
+     */
+    BindLater<Long> pushTo(MessageChannel<R> channel) {
+        if (this.channel != null || consumed)
+            throw new IllegalStateException("Results are already consumed")
+
+        this.channel = channel
+        pushed = []
+        pushed.whenBound { bl ->
+            if (bl.cancelled)
+                cancel()
+        }
+        drain()
+        pushed
+    }
+
+    private void failed(long seq) {
+        for (;;) {
+            def f = failedAt
+            if (seq >= f || failedAt.compareAndSet(f, seq))
+                return
+        }
+    }
+
+    private void ready() {
+        if (channel != null)
+            drain()
+        else {
+            def w = waiter
+            if (w != null)
+                LockSupport.unpark(w)
+        }
+    }
+
+    /**
+     * Submits chunks while there is space in the ring
+     */
+    private void fill() {
+        while (!exhausted && !cancelled && failedAt == Long.MAX_VALUE) {
+            if (ring.length() - (int)(submitted - consumed) < chunkSize)
+                return
+
+            def elements = new Object[chunkSize]
+            int n = 0
+            while (n != chunkSize && source.hasNext())
+                elements[n++] = source.next()
+
+            if (n != chunkSize) {
+                exhausted = true
+                if (!n)
+                    return
+                elements = Arrays.copyOf(elements, n)
+            }
+
+            long first = submitted
+            submitted += n
+            executor.execute(new Chunk(this, first, elements))
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement())
+            return
+
+        int missed = 1
+        for (;;) {
+            try {
+                emit()
+            }
+            catch (Throwable t) {
+                cancelled = true
+                pushed.setException(t)
+            }
+
+            missed = wip.addAndGet(-missed)
+            if (!missed)
+                return
+        }
+    }
+
+    private void emit() {
+        for (;;) {
+            if (pushed.done)
+                return
+
+            if (consumed == submitted) {
+                fill()
+                if (consumed == submitted) {
+                    if (exhausted)
+                        pushed.set(consumed)
+                    return
+                }
+            }
+
+            int index = (int)(consumed & mask)
+            def value = ring.get(index)
+            if (value == null)
+                return
+
+            ring.set(index, null)
+            consumed++
+
+            if (value instanceof Failed) {
+                cancelled = true
+                pushed.setException(((Failed)value).error)
+                return
+            }
+
+            channel.post(value === NULL ? null : (R)value)
+            fill()
+        }
+    }
+}
@@ -38,4 +38,117 @@ public class AsyncTest extends GroovyShellTestCase {
             }
         """
     }
-}
\ No newline at end of file
+
+    void testCoalesce () {
+        shell.evaluate """
+            @Typed package p
+
+            import java.util.concurrent.*
+            import groovypp.concurrent.*
+
+            class Writer {
+                List<Integer> sizes = []
+
+                Executor executor
+
+                @Async(executor="executor", coalesce="storeAll") int store (String key, int value) {
+                    storeAll([new Pair(key, value)]).get(0)
+                }
+
+                synchronized List<Integer> storeAll (List<Pair<String,Integer>> batch) {
+                    sizes << batch.size()
+                    batch*.second
+                }
+            }
+
+            testWithFixedPool(1) {
+                CountDownLatch start = [1]
+                pool.execute { start.await() }
+
+                Writer writer = [executor:pool]
+                def futures = (0..<10).map{ writer.store("k\$it", it, null) }
+                start.countDown()
+
+                assert (0..<10) == futures*.get()
+                assert [10] == writer.sizes
+            }
+        """
+    }
+
+    void testCoalesceRejected () {
+        shell.evaluate """
+            @Typed package p
+
+            import java.util.concurrent.*
+            import groovypp.concurrent.*
+
+            class Writer {
+                int calls
+
+                Executor executor
+
+                @Async(executor="executor", coalesce="storeAll") int store (String key, int value) {
+                    value
+                }
+
+                List<Integer> storeAll (List<Pair<String,Integer>> batch) {
+                    calls++
+                    batch.size() == 1 ? [] : batch*.second
+                }
+            }
+
+            Writer writer = [executor:{ Runnable r -> throw new RejectedExecutionException() }]
+            def first = writer.store("a", 1, null)
+            assert first.exception
+            try {
+                first.get()
+                assert false
+            }
+            catch (ExecutionException e) {
+                assert e.cause instanceof RejectedExecutionException
+            }
+
+            def second = writer.store("b", 2, null)
+            assert second.exception
+            assert !writer.calls
+
+            testWithFixedPool {
+                writer.executor = pool
+                def third = writer.store("c", 3, null)
+                try {
+                    third.get()
+                    assert false
+                }
+                catch (ExecutionException e) {
+                    assert e.cause instanceof IllegalStateException
+                }
+                assert 1 == writer.calls
+            }
+        """
+    }
+
+    void testRejectWhenFull () {
+        shell.evaluate """
+            @Typed package p
+
+            import java.util.concurrent.*
+            import groovypp.concurrent.*
+
+            CountDownLatch start = [1]
+
+            @Async(maxInFlight=1, rejectWhenFull=true) int calculation (CountDownLatch latch, int a) {
+               latch.await()
+               a
+            }
+
+            testWithFixedPool {
+                def first  = calculation (start, 1, pool)
+                def second = calculation (start, 2, pool)
+                start.countDown()
+
+                assert 1 == first.get()
+                assert second.exception
+            }
+        """
+    }
+}
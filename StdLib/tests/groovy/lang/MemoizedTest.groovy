@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovy.lang
+
+public class MemoizedTest extends GroovyShellTestCase {
+    void testPrimitiveKey () {
+        shell.evaluate """
+            @Typed package p
+
+            class Fib {
+                int calls
+
+                @Memoized long fib (int n) {
+                    calls++
+                    n < 2 ? n : fib(n - 1) + fib(n - 2)
+                }
+            }
+
+            def f = new Fib ()
+            assert 12586269025L == f.fib(50)
+            assert 51 == f.calls
+            assert 12586269025L == f.fib(50)
+            assert 51 == f.calls
+            assert f.fibCache.hitCount > 0
+        """
+    }
+
+    void testPrimitiveKeyLimit () {
+        shell.evaluate """
+            @Typed package p
+
+            import groovypp.util.MemoCache
+
+            // keys, which used to share slot of direct mapped table, are all kept
+            def unbounded = new MemoCache (0, 0L, false)
+            for (long i = 0; i < 5000; ++i)
+                unbounded.putLong(i << 10, i)
+            for (long i = 0; i < 5000; ++i)
+                assert i == unbounded.getLong(i << 10)
+
+            def bounded = new MemoCache (64, 0L, false)
+            bounded.putLong(0L, "zero")
+            for (long i = 1; i < 5000; ++i) {
+                assert "zero" == bounded.getLong(0L)
+                bounded.putLong(i, i)
+            }
+
+            int cached = 0
+            for (long i = 1; i < 5000; ++i) {
+                if (bounded.getLong(i) !== MemoCache.MISS)
+                    cached++
+            }
+            assert cached > 0 && cached < 64
+            assert 4999 == bounded.getLong(4999L)
+        """
+    }
+
+    void testTupleKey () {
+        shell.evaluate """
+            @Typed package p
+
+            class Rules {
+                int calls
+
+                @Memoized(maxSize=100, soft=false) String lookup (String kind, int level) {
+                    calls++
+                    level ? kind + level : null
+                }
+            }
+
+            def r = new Rules ()
+            assert "a1" == r.lookup("a", 1)
+            assert "a1" == r.lookup("a", 1)
+            assert null == r.lookup("a", 0)
+            assert null == r.lookup("a", 0)
+            assert "b1" == r.lookup("b", 1)
+            assert 3 == r.calls
+            assert 2 == r.lookupCache.hitCount
+            assert 3 == r.lookupCache.missCount
+        """
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovy.lang
+
+public class StripedTest extends GroovyShellTestCase {
+    void testOutsideConcurrentPackage () {
+        shell.evaluate """
+            @Typed package p
+
+            class Stats {
+                @Striped volatile int requests
+
+                @Striped static volatile long bytes
+            }
+
+            def stats = new Stats ()
+            for (i in 0..<100) {
+                stats.incrementRequests()
+                Stats.addBytes(i)
+            }
+            assert 100 == stats.requests
+            assert 4950L == Stats.bytes
+        """
+    }
+}
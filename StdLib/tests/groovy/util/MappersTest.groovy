@@ -18,8 +18,13 @@
 
 package groovy.util
 
+import groovypp.channels.MessageChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import groovy.xml.MarkupBuilder
 
 @Typed
@@ -95,6 +100,91 @@ class MappersTest extends GroovyShellTestCase {
         assertEquals ((1..100001), res)
     }
 
+    void testMapConcurrentlyChunked () {
+        ExecutorService pool = Executors.newFixedThreadPool(10)
+        def res = (0..100000).iterator ().mapConcurrently (pool, 16, 64) {
+            it + 1
+        }.toList ()
+        assertEquals ((1..100001), res)
+        pool.shutdown()
+    }
+
+    void testSlowElementDoesNotBlock () {
+        ExecutorService pool = Executors.newFixedThreadPool(4)
+        def passed = new CountDownLatch(1)
+        def res = (0..<200).iterator ().mapConcurrently (pool, 16, 4) {
+            if (it == 0)
+                return passed.await(10, TimeUnit.SECONDS) ? 0 : -1
+            if (it == 50)
+                passed.countDown()
+            it
+        }.toList ()
+        assertEquals ((0..<200), res)
+        pool.shutdown()
+    }
+
+    void testMapConcurrentlyFailure () {
+        ExecutorService pool = Executors.newFixedThreadPool(4)
+        def iter = (0..10000).iterator ().mapConcurrently (pool, 8, 16) {
+            if (it == 500)
+                throw new IllegalStateException("500")
+            it
+        }
+        def res = []
+        def message = shouldFail(IllegalStateException) {
+            while (iter.hasNext())
+                res << iter.next()
+        }
+        assertEquals "500", message
+        assertEquals ((0..<500), res)
+        assertFalse iter.hasNext()
+        pool.shutdown()
+    }
+
+    void testMapConcurrentlyCancel () {
+        ExecutorService pool = Executors.newFixedThreadPool(4)
+        def mapped = new AtomicInteger()
+        def iter = (0..<100000).iterator ().mapConcurrently (pool, 4, 8) {
+            mapped.incrementAndGet()
+            it
+        }
+        for (i in 0..<10)
+            assertEquals i, iter.next()
+        iter.cancel()
+        assertFalse iter.hasNext()
+        pool.shutdown()
+        pool.awaitTermination(10, TimeUnit.SECONDS)
+        assertEquals 32, iter.window
+        assert mapped.get() <= 10 + iter.window
+    }
+
+    void testMapConcurrentlyTo () {
+        ExecutorService pool = Executors.newFixedThreadPool(10)
+        def received = []
+        MessageChannel<Integer> channel = { Integer m -> received << m }
+        def done = (0..10000).iterator ().mapConcurrentlyTo (pool, channel, 8, 16) {
+            it + 1
+        }
+        assertEquals 10001L, done.get()
+        assertEquals ((1..10001), received)
+
+        received.clear()
+        done = (0..10000).iterator ().mapConcurrentlyTo (pool, channel) {
+            if (it == 100)
+                throw new IllegalStateException("100")
+            it
+        }
+        try {
+            done.get(10, TimeUnit.SECONDS)
+            fail()
+        }
+        catch (ExecutionException e) {
+            assert e.cause instanceof IllegalStateException
+        }
+        assertEquals ((0..<100), received)
+        pool.shutdown()
+    }
+
     @Typed(TypePolicy.MIXED)
     void testConcurrentlyMixed () {
         ExecutorService pool = Executors.newFixedThreadPool(10)
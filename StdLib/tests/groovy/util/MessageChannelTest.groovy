@@ -16,6 +16,7 @@
 
 package groovy.util
 
+import groovypp.concurrent.Agent
 import groovypp.concurrent.FQueue
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.CountDownLatch
@@ -28,6 +29,10 @@ import groovypp.channels.MultiplexorChannel
 import static groovypp.channels.Channels.channel
 
 import groovypp.channels.ExecutingChannel
+import groovypp.channels.MailboxBound
+import groovypp.channels.ChannelMetrics
+import groovypp.channels.ChannelFlow
+import groovypp.channels.ChannelPublisher
 
 @Typed class MessageChannelTest extends GroovyTestCase {
 
@@ -149,6 +154,327 @@ import groovypp.channels.ExecutingChannel
         }
     }
 
+    void testBatched () {
+        testWithFixedPool {
+            def cdl = new CountDownLatch(1000)
+            CopyOnWriteArrayList results = []
+            ExecutingChannel channel = [executor:pool, quantum:16, quantumMicros:100L]
+            for (i in 0..<1000)
+                channel.schedule {
+                  results << i
+                  cdl.countDown()
+                }
+
+            cdl.await(10,TimeUnit.SECONDS)
+            assertEquals 0..<1000, results
+        }
+    }
+
+    void testLinkedMailbox () {
+        testWithFixedPool {
+            def cdl = new CountDownLatch(4000)
+            CopyOnWriteArrayList results = []
+            ExecutingChannel channel = [onMessage: { msg ->
+                results << msg
+                cdl.countDown()
+            },
+            executor:pool, linkedMailbox:true, runFair:true]
+
+            def producers = []
+            for (p in 0..<4) {
+                def producer = new Thread({
+                    for (i in 0..<1000)
+                        channel << p * 1000 + i
+                })
+                producer.start()
+                producers << producer
+            }
+
+            assertTrue cdl.await(10,TimeUnit.SECONDS)
+            assertEquals 4000, results.size()
+            for (p in 0..<4)
+                assertEquals p * 1000..<(p + 1) * 1000, results.findAll { int m -> m.intdiv(1000) == p }
+        }
+    }
+
+    void testLinkedMailboxPostFirst () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg }, executor: { Runnable r -> tasks << r }, linkedMailbox: true]
+        channel << 1 << 2
+        channel.postFirst 0
+        channel.postFirst(-1)
+        assertEquals 1, tasks.size()
+        tasks[0].run()
+        assertEquals([-1, 0, 1, 2], results)
+
+        channel.postFirst 3
+        assertEquals 2, tasks.size()
+        tasks[1].run()
+        assertEquals([-1, 0, 1, 2, 3], results)
+    }
+
+    void testBoundedDrop () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg }, executor: { Runnable r -> tasks << r }]
+        channel.bound = new MailboxBound(3, MailboxBound.Overflow.DROP_NEWEST)
+        for (i in 0..<5)
+            channel << i
+        assertEquals 3, channel.queueDepth
+        assertEquals 2L, channel.droppedCount
+        assertFalse channel.offer(5).get()
+
+        channel.bound = new MailboxBound(3, MailboxBound.Overflow.DROP_OLDEST)
+        channel << 6
+        assertEquals 3, channel.queueDepth
+        tasks[0].run()
+        assertEquals([1, 2, 6], results)
+    }
+
+    void testBoundedConflate () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg }, executor: { Runnable r -> tasks << r }]
+        channel.bound = new MailboxBound(10, MailboxBound.Overflow.CONFLATE, { String m -> m.substring(0, 1) })
+        channel << "a1" << "b1" << "a2"
+        assertEquals 2, channel.queueDepth
+        assertEquals 1L, channel.droppedCount
+        tasks[0].run()
+        assertEquals(["b1", "a2"], results)
+    }
+
+    void testBoundedSignal () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg }, executor: { Runnable r -> tasks << r }, runFair: true]
+        channel.bound = new MailboxBound(1, MailboxBound.Overflow.SIGNAL)
+        assertTrue channel.offer(0).get()
+        def later = channel.offer(1)
+        assertFalse later.done
+        tasks[0].run()
+        assertTrue later.get()
+        tasks[1].run()
+        assertEquals([0, 1], results)
+    }
+
+    void testBoundedSignalOrder () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg }, executor: { Runnable r -> tasks << r }]
+        channel.bound = new MailboxBound(2, MailboxBound.Overflow.SIGNAL)
+        // message put aside while queue was full
+        channel.bound.handleOverflow(0, null, { true })
+        channel << 1
+        assertEquals 0, channel.bound.pendingCount
+        tasks[0].run()
+        assertEquals([0, 1], results)
+    }
+
+    void testBoundWithLinkedMailbox () {
+        ExecutingChannel channel = [onMessage: { msg -> }, executor: { Runnable r -> r.run() }, linkedMailbox: true]
+        shouldFail(IllegalStateException) {
+            channel.bound = new MailboxBound(1, MailboxBound.Overflow.DROP_NEWEST)
+        }
+
+        channel = [onMessage: { msg -> }, executor: { Runnable r -> r.run() }]
+        channel.bound = new MailboxBound(1, MailboxBound.Overflow.DROP_NEWEST)
+        shouldFail(IllegalStateException) {
+            channel.linkedMailbox = true
+        }
+
+        Executor direct = { Runnable r -> r.run() }
+        def agent = new Agent<Integer>(0, direct)
+        agent.linkedMailbox = true
+        shouldFail(IllegalStateException) {
+            agent.bound = new MailboxBound(1, MailboxBound.Overflow.DROP_NEWEST)
+        }
+    }
+
+    void testBoundedBlock () {
+        testWithFixedPool {
+            def cdl = new CountDownLatch(1000)
+            ExecutingChannel channel = [onMessage: { msg -> cdl.countDown() }, executor: pool, runFair: true]
+            channel.bound = new MailboxBound(10, MailboxBound.Overflow.BLOCK)
+            int maxDepth = 0
+            for (i in 0..<1000) {
+                channel << i
+                maxDepth = Math.max(maxDepth, channel.queueDepth)
+            }
+            assertTrue cdl.await(10,TimeUnit.SECONDS)
+            assertTrue maxDepth <= 10
+            assertEquals 0L, channel.droppedCount
+        }
+    }
+
+    void testBoundedBlockSelfPost () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [
+            onMessage: { int msg ->
+                results << msg
+                // second message does not fit, but waiting for ourselves would never end
+                if (msg == 0) {
+                    post(1)
+                    post(2)
+                }
+            },
+            executor: { Runnable r -> tasks << r }
+        ]
+        channel.bound = new MailboxBound(1, MailboxBound.Overflow.BLOCK)
+        channel << 0
+        tasks[0].run()
+        assertEquals([0, 1, 2], results)
+        assertEquals 0L, channel.droppedCount
+
+        // postFirst is not limited by bound
+        channel << 3
+        channel.postFirst 4
+        assertEquals 2, channel.queueDepth
+
+        Executor direct = { Runnable r -> r.run() }
+        def agent = new Agent<Integer>(0, direct)
+        agent.bound = new MailboxBound(1, MailboxBound.Overflow.BLOCK)
+        agent.call { int v ->
+            agent.call { int w -> w + 1 }
+            agent.call { int w -> w + 10 }
+            v + 100
+        }
+        assertEquals 111, agent.get()
+    }
+
+    void testMetrics () {
+        List<Runnable> tasks = []
+        List results = []
+        Executor manual = { Runnable r -> tasks << r }
+
+        ExecutingChannel last = [onMessage: { msg -> results << msg }, executor: manual, metrics: new ChannelMetrics("last")]
+        MultiplexorChannel multi = [metrics: new ChannelMetrics("multi")]
+        multi.subscribe(last)
+        ExecutingChannel first = [onMessage: { int msg -> multi << msg * 10 }, executor: manual, metrics: new ChannelMetrics("first", 1)]
+
+        for (i in 0..<3)
+            first << i
+        assertEquals 3, first.metrics.queueDepthHighWater
+        tasks.remove(0).run()
+        tasks.remove(0).run()
+        assertEquals([0, 10, 20], results)
+
+        for (m in [first.metrics, multi.metrics, last.metrics]) {
+            assertEquals 3L, m.postedCount
+            assertEquals 3L, m.processedCount
+            assertEquals 3L, m.processingTime.count
+        }
+        assertEquals 3L, first.metrics.timeInQueue.count
+        assertEquals 0L, multi.metrics.timeInQueue.count
+
+        def trace = last.metrics.recentTraces[0]
+        assertEquals(["first", "multi", "last"], trace.path*.channel)
+        assertEquals 3, last.metrics.sampledTraces.length
+        assertEquals 3L, first.metrics.snapshot().processed
+
+        first.metrics.reset()
+        assertEquals 0L, first.metrics.postedCount
+        assertTrue first.metrics.recentTraces.empty
+    }
+
+    void testMetricsBounded () {
+        List<Runnable> tasks = []
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg; if (msg == "b2") throw new RuntimeException() },
+                                    executor: { Runnable r -> tasks << r }, metrics: new ChannelMetrics("bounded")]
+        channel.bound = new MailboxBound(10, MailboxBound.Overflow.CONFLATE, { String m -> m.substring(0, 1) })
+        channel << "a1" << "b1" << "a2"
+        assertTrue channel.offer("b2").get()
+        assertEquals 2, channel.queueDepth
+        shouldFail(RuntimeException) {
+            tasks[0].run()
+        }
+        assertEquals(["a2", "b2"], results)
+        assertEquals 1L, channel.metrics.failedCount
+        assertEquals 2L, channel.metrics.processedCount
+    }
+
+    void testPublisher () {
+        List<Runnable> tasks = []
+        ChannelPublisher<Integer> publisher = [executor: { Runnable r -> tasks << r }]
+        publisher.bound = new MailboxBound(4, MailboxBound.Overflow.DROP_NEWEST)
+        for (i in 0..<6)
+            publisher << i
+        assertEquals 4, publisher.queueDepth
+
+        List received = []
+        List<ChannelFlow.Subscription> subscriptions = []
+        ChannelFlow.Subscriber<Integer> subscriber = [
+            onSubscribe: { ChannelFlow.Subscription s -> subscriptions << s; s.request(3) },
+            onNext: { Integer i -> received << i },
+            onError: { Throwable t -> received << t },
+            onComplete: { -> received << "done" }
+        ]
+        publisher.subscribe(subscriber)
+        while (tasks)
+            tasks.remove(0).run()
+        assertEquals([0, 1, 2], received)
+        assertEquals 1, publisher.queueDepth
+
+        publisher.complete()
+        subscriptions[0].request(10)
+        while (tasks)
+            tasks.remove(0).run()
+        assertEquals([0, 1, 2, 3, "done"], received)
+
+        List errors = []
+        ChannelFlow.Subscriber<Integer> second = [
+            onSubscribe: { ChannelFlow.Subscription s -> },
+            onNext: { Integer i -> },
+            onError: { Throwable t -> errors << t },
+            onComplete: { -> }
+        ]
+        publisher.subscribe(second)
+        assertTrue errors[0] instanceof IllegalStateException
+    }
+
+    void testSubscriber () {
+        List<Runnable> tasks = []
+        Executor manual = { Runnable r -> tasks << r }
+        List results = []
+        ExecutingChannel channel = [onMessage: { msg -> results << msg }, executor: manual]
+        channel.bound = new MailboxBound(2, MailboxBound.Overflow.SIGNAL)
+
+        ChannelPublisher<Integer> publisher = [executor: manual]
+        def subscriber = channel.asSubscriber(2)
+        List completed = []
+        subscriber.afterComplete = { completed << true }
+        publisher.subscribe(subscriber)
+        for (i in 0..<10)
+            publisher << i
+        publisher.complete()
+
+        for (int n = 0; tasks && n != 1000; ++n) {
+            tasks.remove(0).run()
+            // publisher never gets ahead of the channel by more than requested batch
+            assertTrue channel.bound.pendingCount <= 2
+        }
+        assertEquals((0..<10).toList(), results)
+        assertEquals([true], completed)
+    }
+
+    void testFlowAdapters () {
+        if (!ChannelFlow.available)
+            return
+
+        testWithFixedPool {
+            def cdl = new CountDownLatch(100)
+            ExecutingChannel channel = [onMessage: { msg -> cdl.countDown() }, executor: pool]
+            ChannelPublisher<Integer> publisher = [executor: pool]
+            def flowPublisher = ChannelFlow.toFlowPublisher(publisher)
+            ChannelFlow.fromFlowPublisher(flowPublisher).subscribe(channel.asSubscriber())
+            for (i in 0..<100)
+                publisher << i
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+        }
+    }
+
     void testRingFair () {
         testWithFixedPool {
           runRing(pool,true)
@@ -103,4 +103,48 @@ public class AtomicsTest extends GroovyTestCase {
         cdl.await()
         assertEquals (n, map.get().size ())
     }
-}
\ No newline at end of file
+
+    void testStriped () {
+        def stats = new StripedStats()
+
+        CountDownLatch cdl = [n]
+        for(i in 0..<n) {
+            pool.callLater {
+                stats.incrementRequests()
+                stats.addBytes(i)
+                cdl.countDown()
+            }
+        }
+
+        cdl.await()
+        assertEquals (n, stats.requests)
+        assertEquals ((((long)n) * (n - 1)) >> 1, stats.bytes)
+    }
+
+    void testStripedCounter () {
+        StripedCounter counter = []
+        counter.increment()
+        assertEquals 1L, counter.sum()
+
+        CountDownLatch cdl = [n]
+        for(i in 0..<n) {
+            pool.callLater {
+                counter.add(i)
+                counter.increment()
+                counter.decrement()
+                cdl.countDown()
+            }
+        }
+
+        cdl.await()
+        assertEquals ((((long)n) * (n - 1) >> 1) + 1L, counter.sum())
+        counter.reset()
+        assertEquals 0L, counter.sum()
+    }
+
+    static class StripedStats {
+        @Striped volatile int requests
+
+        @Striped volatile long bytes
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.concurrent
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+@Typed
+public class BindLaterTest extends GroovyTestCase {
+    void testListenersOrder() {
+        BindLater<Integer> bl = []
+        List<Integer> calls = []
+        for (i in 0..<5)
+            bl.whenBound { calls << i }
+        assertTrue bl.set(7)
+        assertFalse bl.set(8)
+        bl.whenBound { calls << 5 }
+        assertEquals([0, 1, 2, 3, 4, 5], calls)
+        assertEquals 7, bl.get()
+        assertTrue bl.set
+    }
+
+    void testBlockingGet() {
+        BindLater<String> bl = []
+        def started = new CountDownLatch(3)
+        List<Thread> threads = []
+        List<String> results = Collections.synchronizedList([])
+        for (i in 0..<3) {
+            def t = new Thread({
+                started.countDown()
+                results << bl.get()
+            })
+            t.start()
+            threads << t
+        }
+        started.await()
+        Thread.sleep(50)
+        bl.set("done")
+        for (t in threads)
+            t.join(10000)
+        assertEquals(["done", "done", "done"], results)
+    }
+
+    void testTimeoutAndInterrupt() {
+        BindLater bl = []
+        shouldFail(TimeoutException) {
+            bl.get(10, TimeUnit.MILLISECONDS)
+        }
+        shouldFail(TimeoutException) {
+            bl.get(0, TimeUnit.MILLISECONDS)
+        }
+
+        Thread.currentThread().interrupt()
+        shouldFail(InterruptedException) {
+            bl.get()
+        }
+        assertFalse Thread.interrupted()
+
+        // waiters which gave up do not prevent completion
+        bl.set(1)
+        assertEquals 1, bl.get(0, TimeUnit.MILLISECONDS)
+    }
+
+    void testFailure() {
+        BindLater bl = []
+        bl.setException(new IOException("failed"))
+        assertTrue bl.exception
+        shouldFail(ExecutionException) {
+            bl.get()
+        }
+
+        BindLater cancelled = []
+        assertTrue cancelled.cancel(false)
+        assertTrue cancelled.cancelled
+        shouldFail(CancellationException) {
+            cancelled.get()
+        }
+    }
+
+    void testThenApply() {
+        BindLater<Integer> bl = []
+        def squared = bl.thenApply { int v -> v * v }
+        def failed = bl.thenApply { int v ->
+            if (v > 0)
+                throw new IllegalStateException()
+            v
+        }
+        assertFalse squared.done
+        bl.set(5)
+        assertEquals 25, squared.get()
+        assertTrue failed.exception
+
+        // already bound value is mapped by current thread, executor is not used
+        Executor executor = { Runnable r -> fail() }
+        def plusOne = bl.thenApply(executor) { int v -> v + 1 }
+        assertTrue plusOne.done
+        assertEquals 6, plusOne.get()
+
+        BindLater<Integer> broken = []
+        broken.setException(new IOException())
+        def mapped = broken.thenApply { int v -> v }
+        assertTrue mapped.exception
+    }
+
+    void testThenCompose() {
+        BindLater<Integer> bl = []
+        BindLater<String> inner = []
+        def composed = bl.thenCompose { int v -> inner }
+        bl.set(1)
+        assertFalse composed.done
+        inner.set("one")
+        assertEquals "one", composed.get()
+
+        BindLater<Integer> cancelled = []
+        cancelled.cancel(false)
+        assertTrue cancelled.thenCompose { int v -> inner }.cancelled
+    }
+
+    void testAllOf() {
+        BindLater<Integer> a = [], b = [], c = []
+        def all = BindLater.allOf(a, b, c)
+        b.set(2)
+        a.set(1)
+        assertFalse all.done
+        c.set(3)
+        assertEquals([1, 2, 3], all.get())
+
+        BindLater<Integer> d = [], e = []
+        def failing = BindLater.allOf(d, e)
+        e.setException(new IOException())
+        assertTrue failing.exception
+
+        assertTrue BindLater.allOf(new ArrayList<BindLater<Integer>>()).get().empty
+    }
+}
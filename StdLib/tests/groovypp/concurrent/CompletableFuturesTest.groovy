@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.concurrent
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+
+@Typed
+public class CompletableFuturesTest extends GroovyTestCase {
+    void testToCompletableFuture() {
+        if (!CompletableFutures.available)
+            return
+
+        BindLater<Integer> bl = []
+        def future = CompletableFutures.toCompletableFuture(bl)
+        assertFalse future.done
+        bl.set(5)
+        assertTrue future.done
+        assertEquals 5, future.get()
+
+        BindLater<Integer> failing = []
+        def failed = CompletableFutures.toCompletableFuture(failing)
+        failing.setException(new IOException())
+        shouldFail(ExecutionException) {
+            failed.get()
+        }
+
+        BindLater<Integer> cancelled = []
+        CompletableFutures.toCompletableFuture(cancelled).cancel(false)
+        assertTrue cancelled.cancelled
+    }
+
+    void testFromCompletionStage() {
+        if (!CompletableFutures.available)
+            return
+
+        BindLater<String> source = []
+        Future<String> stage = CompletableFutures.toCompletableFuture(source)
+        def bl = CompletableFutures.<String>fromCompletionStage(stage)
+        assertFalse bl.done
+        source.set("value")
+        assertEquals "value", bl.get()
+
+        // bound by the thread completing the stage, before set() returns
+        BindLater<String> failing = []
+        def failed = CompletableFutures.<String>fromCompletionStage(CompletableFutures.toCompletableFuture(failing))
+        failing.setException(new IOException())
+        assertTrue failed.exception
+
+        BindLater<String> other = []
+        def otherStage = CompletableFutures.toCompletableFuture(other)
+        CompletableFutures.<String>fromCompletionStage(otherStage).cancel(false)
+        assertTrue otherStage.cancelled
+        assertTrue other.cancelled
+
+        shouldFail(IllegalArgumentException) {
+            CompletableFutures.fromCompletionStage("not a stage")
+        }
+    }
+}
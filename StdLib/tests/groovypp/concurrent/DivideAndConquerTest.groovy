@@ -18,6 +18,9 @@
 
 package groovypp.concurrent
 
+import java.util.concurrent.CancellationException
+import java.util.concurrent.TimeUnit
+
 @Typed
 class DivideAndConquerTest extends GroovyShellTestCase {
   // Test simple tree height calculation.
@@ -58,4 +61,62 @@ class DivideAndConquerTest extends GroovyShellTestCase {
     int h = new DivideAndConquerProblemSolver(problem, 10).solve()
     assertEquals(height(node), h)
   }
+
+  SelfRecurringProblem fibProblem(int n) {
+    [
+       complex : { n > 1 },
+       sub     : { [fibProblem(n - 1), fibProblem(n - 2)] },
+       solve   : { n },
+       combine : { Collection results ->
+         int sum = 0
+         for (r in results)
+           sum += (Integer)r
+         sum
+       }
+    ]
+  }
+
+  void testSolveOnPool() {
+    def pool = new WorkStealingPool(4)
+    try {
+      assertEquals 75025, new DivideAndConquerProblemSolver(fibProblem(25), pool).solve()
+      assertEquals 1, new DivideAndConquerProblemSolver(fibProblem(1), pool).solve()
+    }
+    finally {
+      pool.shutdown()
+      assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+    }
+  }
+
+  void testCancel() {
+    def solver = new DivideAndConquerProblemSolver(fibProblem(45), 4)
+    def result = solver.solveLater()
+    Thread.sleep(50)
+    assertTrue solver.cancel()
+    assertTrue solver.cancelled
+    shouldFail(CancellationException) {
+      result.get()
+    }
+    shouldFail(IllegalStateException) {
+      solver.solveLater()
+    }
+  }
+
+  void testException() {
+    SelfRecurringProblem broken = [
+       complex : { false },
+       sub     : { [] },
+       solve   : { throw new ArithmeticException() },
+       combine : { results -> 0 }
+    ]
+    SelfRecurringProblem failing = [
+       complex : { true },
+       sub     : { [fibProblem(10), broken] },
+       solve   : { 0 },
+       combine : { results -> 0 }
+    ]
+    shouldFail(ArithmeticException) {
+      new DivideAndConquerProblemSolver(failing, 2).solve()
+    }
+  }
 }
@@ -36,4 +36,42 @@ package groovypp.concurrent
         assert r[33] == "33"
         assert r.size() == 3
     }
-}
\ No newline at end of file
+
+    void testOldLayout() {
+        def map = FHashMap.emptyMap.put(1, "2").put(2, "3")
+
+        // previous versions wrote bitmap of used positions, bitmap of leaves, size and table length
+        // instead of 0 marker and number of entries, leaves follow in the same order
+        def flat = bytes(0x77, 8, 0, 0, 0, 0, 0, 0, 0, 2)
+        def old = bytes(0x77, 13, 0, 0, 0, 6, 0, 0, 0, 6, 0, 0, 0, 2, 4)
+
+        def res = replace(map.toSerialBytes(), flat, old).fromSerialBytes()
+        assert res instanceof FHashMap
+        FHashMap r = res
+        assert r.size() == 2
+        assert r[1] == "2"
+        assert r[2] == "3"
+        assert r == map
+    }
+
+    private static byte[] bytes(int... values) {
+        def res = new byte[values.length]
+        for (int i = 0; i != values.length; ++i)
+            res[i] = (byte)values[i]
+        res
+    }
+
+    private static byte[] replace(byte[] data, byte[] what, byte[] with) {
+        for (int i = 0; i <= data.length - what.length; ++i) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + what.length), what)) {
+                def res = new byte[data.length - what.length + with.length]
+                System.arraycopy(data, 0, res, 0, i)
+                System.arraycopy(with, 0, res, i, with.length)
+                System.arraycopy(data, i + what.length, res, i + with.length, data.length - i - what.length)
+                return res
+            }
+        }
+        fail("node header not found")
+        null
+    }
+}
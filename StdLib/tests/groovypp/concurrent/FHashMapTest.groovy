@@ -130,6 +130,199 @@ public class FHashMapTest extends GroovyShellTestCase {
         assertEquals (-25,map [25])
     }
 
+    void testTransient () {
+        FHashMap<Integer,Integer> base = FHashMap.emptyMap.put(1, -1).put(2, -2)
+
+        Map<Integer,Integer> data = [:]
+        for(i in 0..<100000) {
+            data[i] = i
+        }
+
+        def map = base.putAll(data)
+        assertEquals 100000, map.size()
+        for(i in 0..<100000) {
+            assertEquals i, map[i]
+        }
+        assertEquals (-1, base[1])
+        assertEquals 2, base.size()
+
+        def t = map.asTransient()
+        t.put(1, 1000).put(-5, 5).remove(2)
+        def changed = t.persistent()
+        assertEquals 1000, changed[1]
+        assertEquals 5, changed[-5]
+        assertNull changed[2]
+        assertEquals 100000, changed.size()
+        assertEquals 1, map[1]
+        assertEquals 2, map[2]
+
+        shouldFail(IllegalStateException) {
+            t.put(3, 3)
+        }
+    }
+
+    void testMergeDiff () {
+        FHashMap<Integer,Integer> base = FHashMap.emptyMap
+        for(i in 0..<10000)
+            base = base.put(i, i)
+
+        def changed = base.put(5, -5).remove(7).put(20000, 1)
+        def added = FHashMap.emptyMap.put(5, 100).put(30000, 3)
+
+        def merged = changed.merge(added)
+        assertEquals 10001, merged.size()
+        assertEquals 100, merged[5]
+        assertEquals 3, merged[30000]
+        assertEquals 1, merged[20000]
+
+        def summed = changed.merge(added) { k, a, b -> a + b }
+        assertEquals 95, summed[5]
+
+        assert base.merge(base) === base
+        assert base.merge(FHashMap.emptyMap) === base
+
+        def diff = [:]
+        base.diff(changed) { k, a, b -> diff[k] = [a, b] }
+        assertEquals ([5:[5, -5], 7:[7, null], 20000:[null, 1]], diff)
+    }
+
+    void testEqualsHashCode () {
+        FHashMap<Integer,Integer> a = FHashMap.emptyMap, b = FHashMap.emptyMap
+        for(i in 0..<1000) {
+            a = a.put(i, -i)
+            b = b.put(999 - i, i - 999)
+        }
+
+        assert a == b
+        assertEquals a.hashCode(), b.hashCode()
+
+        def m = new HashMap()
+        for(e in a)
+            m[e.key] = e.value
+        assertEquals m.hashCode(), a.hashCode()
+
+        assert a != b.put(5, 5)
+        assert a != b.remove(5)
+        assert a.remove(5) == b.remove(5)
+    }
+
+    void testRemoveToEmpty () {
+        FHashMap<Integer,Integer> map = FHashMap.emptyMap
+        def keys = new ArrayList<Integer>()
+        for(i in 0..<5000) {
+            map = map.put(i * 31, i)
+            keys << i * 31
+        }
+
+        Collections.shuffle(keys, new Random(17))
+        for(k in keys)
+            map = map.remove(k)
+
+        assert map === FHashMap.emptyMap
+        assert map.remove(5) === FHashMap.emptyMap
+    }
+
+    void testCompaction () {
+        // 1, 33 and 65 have the same lowest 5 bits of hash, so they share child node of the root
+        FHashMap<Integer,Integer> map = FHashMap.emptyMap.put(1, -1).put(33, -33).put(65, -65)
+        def root = (FHashMap.BitmappedNode) map
+        assertEquals 0, root.dataMap
+        assertEquals 2, root.nodeMap
+
+        root = (FHashMap.BitmappedNode) map.remove(33)
+        assertEquals 0, root.dataMap
+        assertEquals 2, root.nodeMap
+
+        // child with single entry is merged in to the root
+        root = (FHashMap.BitmappedNode) map.remove(33).remove(65)
+        assertEquals 2, root.dataMap
+        assertEquals 0, root.nodeMap
+        assertEquals([1, -1], root.table as List)
+        assert root == FHashMap.emptyMap.put(1, -1)
+
+        // 1 and 1025 share lowest 10 bits, entry left two levels deep moves up to the root
+        root = (FHashMap.BitmappedNode) FHashMap.emptyMap.put(1, -1).put(1025, -1025).remove(1)
+        assertEquals 2, root.dataMap
+        assertEquals 0, root.nodeMap
+        assertEquals([1025, -1025], root.table as List)
+    }
+
+    void testCollisionExpandCollapse () {
+        def k0 = new Collision(value: 0), k7 = new Collision(value: 7), k14 = new Collision(value: 14)
+
+        FHashMap m = FHashMap.emptyMap.put(k0, 0).put(k7, 7)
+        assert m instanceof FHashMap.CollisionNode
+
+        // hash 32 differs from hash 0 only in second level, so collision node goes two levels deep
+        m = m.put(32, 32)
+        assert m instanceof FHashMap.BitmappedNode
+        assertEquals 3, m.size()
+        assertEquals 7, m[k7]
+        assertEquals 32, m[32]
+
+        m = m.put(k14, 14)
+        assertEquals 4, m.size()
+
+        // node containing only collision node is replaced by it on every level
+        def collapsed = m.remove(32)
+        assert collapsed instanceof FHashMap.CollisionNode
+        assertEquals 3, collapsed.size()
+        assert collapsed == FHashMap.emptyMap.put(k14, 14).put(k7, 7).put(k0, 0)
+
+        // collision node with single entry becomes regular node
+        def single = collapsed.remove(k7).remove(k14)
+        assert single instanceof FHashMap.BitmappedNode
+        assertEquals 0, single[k0]
+        assert single.remove(k0) === FHashMap.emptyMap
+
+        def expanded = m.remove(k0).remove(k7)
+        assert expanded instanceof FHashMap.BitmappedNode
+        assertEquals 2, expanded.size()
+        assertEquals 14, expanded[k14]
+        assert expanded == FHashMap.emptyMap.put(32, 32).put(k14, 14)
+    }
+
+    void testEqualsDifferentHistory () {
+        def random = new Random(239)
+        def keys = new ArrayList<Object>()
+        for(i in 0..<3000)
+            keys << i
+        for(i in 0..<50)
+            keys << new Collision(value: i * 7)
+
+        FHashMap a = FHashMap.emptyMap
+        for(k in keys)
+            a = a.put(k, k.hashCode())
+
+        Collections.shuffle(keys, random)
+        FHashMap b = FHashMap.emptyMap
+        for(i in 0..<2000)
+            b = b.put(-i - 1, i)
+        for(k in keys)
+            b = b.put(k, -1)
+        for(k in keys)
+            b = b.put(k, k.hashCode())
+        for(i in 0..<2000)
+            b = b.remove(-i - 1)
+
+        Collections.shuffle(keys, random)
+        def t = FHashMap.emptyMap.put(-1, -1).asTransient()
+        for(k in keys)
+            t.put(k, k.hashCode())
+        t.remove(-1)
+        def c = t.persistent()
+
+        assert a == b
+        assert b == c
+        assertEquals a.hashCode(), b.hashCode()
+        assertEquals a.hashCode(), c.hashCode()
+
+        def changed = b.put(keys[0], -5)
+        assert a != changed
+        assert a.hashCode() != changed.hashCode()
+        assert a == changed.put(keys[0], keys[0].hashCode())
+    }
+
     void testSet () {
         FHashMap map = FHashMap.emptyMap.put(11,-11).put(10,12).put(4,5)
         assert map.keySet() == [4,10,11] as Set
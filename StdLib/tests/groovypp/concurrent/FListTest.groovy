@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovypp.concurrent
+
+@Typed
+public class FListTest extends GroovyTestCase {
+    void testLongList() {
+        FList<Integer> list = FList.emptyList
+        for (i in 0..<100000)
+            list = list + i
+
+        assertEquals 0, list.reverse().head
+        assertTrue list.contains(0)
+        assertFalse list.contains(-1)
+
+        def removed = list.remove(0)
+        assertEquals 99999, removed.size()
+        assertEquals 99999, removed.head
+        assert list.remove(-1) === list
+
+        assertTrue list.toString().endsWith(", 1, 0]")
+    }
+
+    void testRemoveSharesSuffix() {
+        def list = FList.emptyList + 5 + 4 + 3 + 2 + 1
+        def removed = list.remove(3)
+        assertEquals([1, 2, 4, 5], removed.iterator().asList())
+        assert removed.tail.tail === list.drop(3)
+    }
+
+    void testBulk() {
+        def list = FList.emptyList + 5 + 4 + 3 + 2 + 1
+
+        assertEquals([2, 4, 6, 8, 10], list.map { it * 2 }.iterator().asList())
+
+        def odd = list.filter { it % 2 == 1 }
+        assertEquals([1, 3, 5], odd.iterator().asList())
+        assert odd.tail.tail === list.drop(4)
+        assert list.filter { true } === list
+
+        assertEquals([1, 2], list.take(2).iterator().asList())
+        assert list.take(10) === list
+        assert list.take(0) === FList.emptyList
+
+        assertEquals([4, 5], list.drop(3).iterator().asList())
+        assert list.drop(5) === FList.emptyList
+
+        def other = FList.emptyList + 7 + 6
+        def all = list.concat(other)
+        assertEquals([1, 2, 3, 4, 5, 6, 7], all.iterator().asList())
+        assert all.drop(5) === other
+        assert list.concat(FList.emptyList) === list
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+@Typed
+public class FPrimitiveHashMapTest extends GroovyTestCase {
+    void testLongMap() {
+        def map = FLongHashMap.emptyMap
+        for (long i = 0; i != 10000; ++i)
+            map = map.put(i * 1000003L, i)
+
+        assertEquals 10000, map.size()
+        for (long i = 0; i != 10000; ++i)
+            assertEquals i, map[i * 1000003L]
+        assertNull map[1L]
+
+        def same = map.put(5L * 1000003L, map[5L * 1000003L])
+        assert same === map
+
+        for (long i = 0; i != 10000; i += 2)
+            map = map.remove(i * 1000003L)
+        assertEquals 5000, map.size()
+        assertNull map[2L * 1000003L]
+        assertEquals 3L, map[3L * 1000003L]
+
+        long sum = 0
+        for (e in map)
+            sum += e.longKey
+        assertEquals 25000000L * 1000003L, sum
+    }
+
+    void testLongCollisions() {
+        // both keys fold to the same int before mixing
+        long k1 = 1L, k2 = 1L << 32
+        assertEquals FLongHashMap.hash(k1), FLongHashMap.hash(k2)
+
+        def map = FLongHashMap.emptyMap.put(k1, "a").put(k2, "b").put(2L, "c")
+        assertEquals 3, map.size()
+        assertEquals "a", map[k1]
+        assertEquals "b", map[k2]
+
+        map = map.remove(k1)
+        assertEquals 2, map.size()
+        assertNull map[k1]
+        assertEquals "b", map[k2]
+        assertEquals "c", map[2L]
+
+        assertEquals FLongHashMap.emptyMap, map.remove(k2).remove(2L)
+    }
+
+    void testIntMap() {
+        def map = FIntHashMap.emptyMap
+        for (i in 0..<10000)
+            map = map.put(-i, "v$i".toString())
+
+        assertEquals 10000, map.size()
+        assertEquals "v777", map[-777]
+        assert map.containsKey(-9999)
+        assert !map.containsKey(1)
+
+        def other = FIntHashMap.emptyMap
+        for (e in map)
+            other = other.put(e.intKey, e.value)
+        assertEquals map, other
+        assertEquals map.hashCode(), other.hashCode()
+
+        for (i in 0..<10000)
+            map = map.remove(-i)
+        assert map.isEmpty()
+    }
+
+    void testSerial() {
+        def map = FLongHashMap.emptyMap.put(1L, "2").put(3L, "4").put(1L << 40, "5")
+        FLongHashMap r = map.toSerialBytes().fromSerialBytes()
+        assertEquals 3, r.size()
+        assertEquals "2", r[1L]
+        assertEquals "5", r[1L << 40]
+
+        assert FIntHashMap.emptyMap === FIntHashMap.emptyMap.toSerialBytes().fromSerialBytes()
+    }
+}
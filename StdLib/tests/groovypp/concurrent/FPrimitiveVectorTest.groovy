@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+@Typed
+public class FPrimitiveVectorTest extends GroovyTestCase {
+    void testIntVector() {
+        def vec = FIntVector.emptyVector
+        for (i in 0..<10000)
+            vec = vec + i * 2
+
+        assertEquals 10000, vec.length
+        assertEquals 0, vec[0]
+        assertEquals 19998, vec[-1]
+        assertEquals 99990000L, vec.sum()
+        assertEquals 0, vec.min()
+        assertEquals 19998, vec.max()
+
+        assertEquals 500, vec.binarySearch(1000)
+        assertEquals(-502, vec.binarySearch(1001))
+        assertEquals(-1, vec.binarySearch(-5))
+        assertEquals(-10001, vec.binarySearch(20000))
+
+        def updated = vec.set(5000, -1)
+        assertEquals -1, updated.min()
+        assertEquals 10000, vec[5000]
+
+        int count = 0
+        for (e in vec)
+            assertEquals 2 * count++, e
+        assertEquals 10000, count
+    }
+
+    void testAddAll() {
+        def arr = new long[1000]
+        for (i in 0..<1000)
+            arr[i] = i
+
+        def vec = FLongVector.emptyVector + -1L
+        vec = vec.addAll(arr).addAll([1000L, 1001L])
+        assertEquals 1003, vec.length
+        assertEquals(-1L, vec[0])
+        for (i in 0..<1002)
+            assertEquals((long)i, vec[i + 1])
+        assertEquals 1003, vec.toArray().length
+    }
+
+    void testDoubleVector() {
+        def vec = FDoubleVector.emptyVector
+        for (i in 0..<100)
+            vec = vec + 0.5d * i
+
+        assertEquals 2475.0d, vec.sum()
+        assertEquals 49.5d, vec.max()
+        assertEquals 10, vec.binarySearch(5.0d)
+    }
+
+    void testSerial() {
+        def vec = FIntVector.emptyVector
+        for (i in 0..<100)
+            vec = vec + i
+
+        FIntVector res = vec.toSerialBytes().fromSerialBytes()
+        assertEquals 100, res.length
+        assertEquals 4950L, res.sum()
+
+        assert FIntVector.emptyVector === FIntVector.emptyVector.toSerialBytes().fromSerialBytes()
+    }
+}
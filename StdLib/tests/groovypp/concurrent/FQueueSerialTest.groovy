@@ -45,4 +45,14 @@ package groovypp.concurrent
         r = r.removeFirst().second
         assert r.first == "three"
     }
-}
\ No newline at end of file
+
+    void testRealTime() {
+        assert FQueue.emptyRealTimeQueue === FQueue.emptyRealTimeQueue.toSerialBytes().fromSerialBytes()
+
+        def q = FQueue.emptyRealTimeQueue + "one" + "two" + "three"
+        FQueue r = q.toSerialBytes().fromSerialBytes()
+        assert r.size() == 3
+        assert r.first == "one"
+        assert r.removeFirst().second.removeFirst().second.removeFirst().second === FQueue.emptyRealTimeQueue
+    }
+}
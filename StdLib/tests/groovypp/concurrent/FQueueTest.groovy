@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+@Typed
+public class FQueueTest extends GroovyTestCase {
+    void testRealTimeQueue() {
+        FQueue<Integer> q = FQueue.emptyRealTimeQueue
+        def expected = new LinkedList<Integer>()
+        def random = new Random(7)
+        for (i in 0..<10000) {
+            int op = random.nextInt(10)
+            if (op < 4) {
+                q = q.addLast(i)
+                expected.addLast(i)
+            }
+            else if (op < 6) {
+                q = q.addFirst(i)
+                expected.addFirst(i)
+            }
+            else if (!expected.empty) {
+                def removed = q.removeFirst()
+                assertEquals expected.removeFirst(), removed.first
+                q = removed.second
+            }
+            assertEquals expected.size(), q.size()
+            assertEquals expected.empty, q.empty
+        }
+        assertEquals expected, q.iterator().asList()
+    }
+
+    void testRealTimeQueuePersistence() {
+        FQueue<Integer> q = FQueue.emptyRealTimeQueue
+        for (i in 0..<100)
+            q = q + i
+
+        def a = q.removeFirst().second + 100
+        def b = q.addFirst(-1)
+        assertEquals 100, q.size()
+        assertEquals 0, q.first
+        assertEquals 1, a.first
+        assertEquals(-1, b.first)
+        assertEquals((0..99).asList(), q.iterator().asList())
+    }
+
+    void testSerial() {
+        FQueue<Integer> q = FQueue.emptyQueue + 1 + 2 + 3
+        FQueue<Integer> res = q.toSerialBytes().fromSerialBytes()
+        assertEquals([1, 2, 3], res.iterator().asList())
+        assert !(res instanceof FQueue.RealTimeQueue)
+        assert FQueue.emptyQueue.toSerialBytes().fromSerialBytes() === FQueue.emptyQueue
+
+        FQueue<Integer> rt = FQueue.emptyRealTimeQueue + 1 + 2 + 3
+        res = rt.toSerialBytes().fromSerialBytes()
+        assertEquals([1, 2, 3], res.iterator().asList())
+        assert res instanceof FQueue.RealTimeQueue
+        assert FQueue.emptyRealTimeQueue.toSerialBytes().fromSerialBytes() === FQueue.emptyRealTimeQueue
+    }
+
+    void testRealTimeQueueRemove() {
+        def q = FQueue.emptyRealTimeQueue + 1 + 2 + 3 + 2
+        assertEquals([1, 3, 2], q.remove(2).iterator().asList())
+        assert q.remove(5) === q
+        assert (FQueue.emptyRealTimeQueue + 1).remove(1) === FQueue.emptyRealTimeQueue
+
+        shouldFail(NoSuchElementException) {
+            FQueue.emptyRealTimeQueue.removeFirst()
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovypp.concurrent
+
+@Typed
+public class FStreamTest extends GroovyTestCase {
+    void testLazy() {
+        int evaluated = 0
+        def naturals = FStream.iterate(0) { evaluated++; it + 1 }
+        def squares = naturals.map { it * it }.filter { it % 2 == 0 }.take(5)
+
+        assertEquals 0, evaluated
+        assertEquals([0, 4, 16, 36, 64], squares.toList().iterator().asList())
+        int afterFirstPass = evaluated
+        assertEquals([0, 4, 16, 36, 64], squares.iterator().asList())
+        assertEquals afterFirstPass, evaluated
+    }
+
+    void testFromIterator() {
+        def stream = FStream.from([1, 2, 3])
+        assertEquals 1, stream.head
+        assertEquals "[1, ...]", stream.toString()
+        assertEquals([2, 3], stream.drop(1).iterator().asList())
+        assertEquals "[1, 2, 3]", stream.toString()
+
+        def all = stream.concat(FStream.from([4]))
+        assertEquals([1, 2, 3, 4], all.toList().iterator().asList())
+        assertTrue FStream.from([]).empty
+    }
+
+    void testLongPipeline() {
+        def stream = FStream.iterate(0L) { it + 1L }.filter { it % 1000L == 0L }.drop(1000)
+        assertEquals 1000000L, stream.head
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+@Typed
+public class FTreeMapTest extends GroovyTestCase {
+    void testPutRemove() {
+        FTreeMap<Integer, String> map = FTreeMap.emptyMap
+        def random = new Random(17)
+        def expected = new TreeMap<Integer, String>()
+        for (i in 0..<5000) {
+            int k = random.nextInt(2000)
+            if (random.nextBoolean()) {
+                map = map.put(k, "v$k".toString())
+                expected[k] = "v$k".toString()
+            }
+            else {
+                map = map.remove(k)
+                expected.remove(k)
+            }
+        }
+
+        assertEquals expected.size(), map.size()
+        def it = expected.entrySet().iterator()
+        for (e in map) {
+            def x = it.next()
+            assertEquals x.key, e.key
+            assertEquals x.value, e.value
+        }
+        assertFalse it.hasNext()
+
+        def same = map.put(map.firstKey(), map[map.firstKey()])
+        assert same === map
+        assert map.remove(-1) === map
+    }
+
+    void testNavigation() {
+        FTreeMap<Integer, Integer> map = FTreeMap.emptyMap
+        for (i in 0..<100)
+            map = map.put(i * 10, i)
+
+        assertEquals 0, map.firstKey()
+        assertEquals 990, map.lastKey()
+        assertEquals 50, map.floorKey(55)
+        assertEquals 50, map.floorKey(50)
+        assertEquals 40, map.lowerKey(50)
+        assertEquals 60, map.ceilingKey(55)
+        assertEquals 50, map.ceilingKey(50)
+        assertEquals 60, map.higherKey(50)
+        assertNull map.lowerKey(0)
+        assertNull map.higherKey(990)
+
+        def sub = map.subMap(95, 305)
+        assertEquals 21, sub.size()
+        assertEquals 100, sub.firstKey()
+        assertEquals 300, sub.lastKey()
+
+        assertEquals 10, map.headMap(100).size()
+        assertEquals 90, map.tailMap(100).size()
+        assertEquals 0, map.subMap(1, 9).size()
+
+        def t = map.headMap(100).asTransient()
+        for (e in map.tailMap(100))
+            t.put(e.key, e.value)
+        assertEquals map, t.persistent()
+    }
+
+    void testComparator() {
+        def map = FTreeMap.<String, Integer>create(String.CASE_INSENSITIVE_ORDER)
+        map = map.put("b", 2).put("A", 1).put("C", 3).put("a", 4)
+        assertEquals 3, map.size()
+        assertEquals 4, map["A"]
+        assertEquals(["a", "b", "C"], map*.key)
+    }
+
+    void testTransient() {
+        FTreeMap<Integer, Integer> map = FTreeMap.emptyMap.put(-1, -1)
+        def t = map.asTransient()
+        for (i in 0..<1000)
+            t.put(i, i)
+        for (int i = 0; i < 1000; i += 3)
+            t.remove(i)
+        def res = t.persistent()
+
+        assertEquals 1, map.size()
+        assertEquals 667, res.size()
+        assertEquals(-1, res[-1])
+        assertNull res[3]
+        assertEquals 4, res[4]
+
+        shouldFail(IllegalStateException) {
+            t.put(1, 1)
+        }
+    }
+
+    void testSerial() {
+        assert FTreeMap.emptyMap === FTreeMap.emptyMap.toSerialBytes().fromSerialBytes()
+
+        FTreeMap<Integer, String> map = FTreeMap.emptyMap
+        for (i in 0..<100)
+            map = map.put(i, i.toString())
+        FTreeMap res = map.toSerialBytes().fromSerialBytes()
+        assertEquals map, res
+        assertEquals "99", res[99]
+    }
+
+    void testLongMap() {
+        FLongTreeMap<String> map = FLongTreeMap.emptyMap
+        for (long i = 0; i != 1000; ++i)
+            map = map.put(i * 1000003L, i.toString())
+
+        assertEquals 1000, map.size()
+        assertEquals "5", map[5L * 1000003L]
+        assertNull map[1L]
+        assertEquals 5L * 1000003L, map.floorEntry(5L * 1000003L + 1).longKey
+        assertEquals 6L * 1000003L, map.higherEntry(5L * 1000003L).longKey
+        assertEquals 10, map.subMap(10L * 1000003L, 20L * 1000003L).size()
+
+        long prev = -1L
+        for (e in map) {
+            assert e.longKey > prev
+            prev = e.longKey
+        }
+
+        for (long i = 0; i != 1000; i += 2)
+            map = map.remove(i * 1000003L)
+        assertEquals 500, map.size()
+        assertEquals 1000003L, map.firstKey()
+
+        assert FLongTreeMap.emptyMap === FLongTreeMap.emptyMap.toSerialBytes().fromSerialBytes()
+        assertEquals map, map.toSerialBytes().fromSerialBytes()
+    }
+}
@@ -52,6 +52,23 @@ public class FVectorTest extends GroovyTestCase {
         assertEquals range, l
     }
 
+    void testChunks() {
+        FVector<Integer> vec = FVector.emptyVector.addAll(0..<1000)
+
+        int count = 0
+        for (chunk in vec.chunkIterator()) {
+            for (e in chunk)
+                assertEquals count++, e
+        }
+        assertEquals 1000, count
+
+        assertEquals 499500L, vec.foldLeft(0L) { e, sum -> sum + e }
+
+        def l = []
+        vec.forEach { l << it }
+        assertEquals 0..<1000, l
+    }
+
     void testShuffle() {
         FVector<Integer> vec = FVector.emptyVector
 
@@ -69,4 +86,76 @@ public class FVectorTest extends GroovyTestCase {
             vec = vec.set(i2, v1).set(i1, v2)
         }
     }
-}
\ No newline at end of file
+
+    void testTransient() {
+        FVector<Integer> vec = FVector.emptyVector
+        for (i in 0..<40) {
+            vec = vec + i
+        }
+
+        def res = vec.addAll(40..<100000)
+        assertEquals 40, vec.length
+        assertEquals 100000, res.length
+        for (i in 0..<100000) {
+            assertEquals i, res[i]
+        }
+
+        def t = res.asTransient()
+        t << -1
+        assertEquals 100000, res.length
+        assertEquals 100001, t.persistent().length
+        shouldFail(IllegalStateException) {
+            t << -2
+        }
+    }
+
+    void testTransientKeepsSource() {
+        // right edge of relaxed tree is modified in place only after transient copied it
+        FVector<Integer> vec = FVector.emptyVector.addAll(0..<5000)
+        def cat = vec.slice(3, 2000).concat(vec.slice(10, 3000))
+        def before = cat.iterator().asList()
+
+        def res = cat.addAll(0..<50000)
+        assertEquals before, cat.iterator().asList()
+        assertEquals before.size() + 50000, res.length
+        assertEquals before + (0..<50000), res.iterator().asList()
+
+        def more = res.addAll(0..<100)
+        assertEquals before.size() + 50000, res.length
+        assertEquals 49999, res[-1]
+        assertEquals 99, more[-1]
+        assertEquals 49999, more[res.length - 1]
+    }
+
+    void testSliceConcatInsert() {
+        FVector<Integer> vec = FVector.emptyVector.addAll(0..<5000)
+
+        def slice = vec.slice(100, 4000)
+        assertEquals 3900, slice.length
+        assertEquals 100..<4000, slice.iterator().asList()
+        assertEquals 3999, slice[-1]
+
+        def cat = slice.concat(vec.slice(7, 1500))
+        assertEquals 3900 + 1493, cat.length
+        assertEquals ((100..<4000) + (7..<1500), cat.iterator().asList())
+        assertEquals 7, cat[3900]
+
+        def ins = cat.insert(1000, -1)
+        assertEquals cat.length + 1, ins.length
+        assertEquals -1, ins[1000]
+        assertEquals 1099, ins[999]
+        assertEquals 1100, ins[1001]
+
+        ins = ins.set(2000, -2) + 5000
+        assertEquals -2, ins[2000]
+        assertEquals 5000, ins[-1]
+
+        def l = cat.iterator().asList()
+        for (i in 0..<100) {
+            cat = cat.pop().second
+            l.remove(l.size() - 1)
+        }
+        assertEquals l, cat.iterator().asList()
+        assertEquals l.sum(), cat.foldLeft(0) { e, sum -> sum + e }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package groovypp.concurrent
+
+@Typed
+public class LatencyHistogramTest extends GroovyTestCase {
+    void testPercentiles() {
+        LatencyHistogram h = []
+        assertEquals 0L, h.percentile(50d)
+        for (long i = 1; i <= 1000; ++i)
+            h.record(i * 1000L)
+
+        assertEquals 1000L, h.count
+        assertEquals 1000000L, h.max
+        assertEquals 500500L, h.mean
+        for (p in [10d, 50d, 90d, 99d]) {
+            long exact = (long)(p * 10000d)
+            long reported = h.percentile(p)
+            assert reported >= exact && reported <= exact + exact.intdiv(16L)
+        }
+        assertEquals 1000000L, h.percentile(100d)
+    }
+
+    void testSmallAndLarge() {
+        LatencyHistogram h = []
+        h.record(-5L)
+        h.record(3L)
+        h.record(Long.MAX_VALUE)
+        assertEquals 3L, h.count
+        assertEquals 0L, h.percentile(30d)
+        assertEquals 3L, h.percentile(60d)
+        assertEquals Long.MAX_VALUE, h.percentile(100d)
+    }
+
+    void testCopyAndReset() {
+        LatencyHistogram h = []
+        for (i in 0..<100)
+            h.record(17L)
+        def copy = h.copy()
+        h.reset()
+        assertEquals 0L, h.count
+        assertEquals 100L, copy.count
+        assertEquals 17L, copy.percentile(50d)
+    }
+
+    void testConcurrentRecording() {
+        LatencyHistogram h = []
+        def threads = []
+        for (t in 0..<4) {
+            def thread = new Thread({
+                for (long i = 0; i != 10000; ++i)
+                    h.record(i)
+            })
+            thread.start()
+            threads << thread
+        }
+        for (Thread thread in threads)
+            thread.join()
+        assertEquals 40000L, h.count
+        assertEquals 9999L, h.max
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+@Typed
+public class ThreadPerTaskExecutorTest extends GroovyTestCase {
+    void testCurrentExecutor() {
+        def executor = CallLaterExecutors.newVirtualThreadPerTaskExecutor()
+        AtomicReference<Executor> seen = []
+        def done = new CountDownLatch(1)
+        executor.execute {
+            seen.set(CallLaterExecutors.currentExecutor())
+            done.countDown()
+        }
+        assertTrue done.await(10, TimeUnit.SECONDS)
+        assert seen.get() === executor
+        assertNull CallLaterExecutors.currentExecutor()
+        assertTrue CallLaterExecutors.isThreadPerTask(executor)
+
+        executor.shutdown()
+        assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+        assertTrue executor.terminated
+
+        shouldFail(RejectedExecutionException) {
+            executor.execute {}
+        }
+    }
+
+    void testShutdownNowInterrupts() {
+        def executor = CallLaterExecutors.newVirtualThreadPerTaskExecutor()
+        def started = new CountDownLatch(1)
+        executor.execute {
+            started.countDown()
+            try {
+                Thread.sleep(60000L)
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        started.await()
+        assertFalse executor.awaitTermination(10, TimeUnit.MILLISECONDS)
+        assertTrue executor.shutdownNow().empty
+        assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import groovypp.channels.ExecutingChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+@Typed
+public class WorkStealingPoolTest extends GroovyTestCase {
+    void testNestedSubmission() {
+        WorkStealingPool pool = [4]
+        def done = new CountDownLatch(1000)
+        AtomicInteger counter = []
+        for (i in 0..<10) {
+            pool.execute {
+                for (j in 0..<100) {
+                    pool.execute {
+                        counter.incrementAndGet()
+                        done.countDown()
+                    }
+                }
+            }
+        }
+        assertTrue done.await(10, TimeUnit.SECONDS)
+        assertEquals 1000, counter.get()
+
+        pool.shutdown()
+        assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+
+        shouldFail(RejectedExecutionException) {
+            pool.execute {}
+        }
+    }
+
+    void testShutdownRunsQueuedTasks() {
+        WorkStealingPool pool = [2]
+        AtomicInteger counter = []
+        for (i in 0..<1000)
+            pool.execute { counter.incrementAndGet() }
+        pool.shutdown()
+        assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+        assertEquals 1000, counter.get()
+    }
+
+    void testShutdownNow() {
+        WorkStealingPool pool = [1]
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        pool.execute {
+            started.countDown()
+            release.await()
+        }
+        started.await()
+        for (i in 0..<10)
+            pool.execute {}
+
+        assertEquals 10, pool.shutdownNow().size()
+        release.countDown()
+        assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+    }
+
+    void testSelfReschedulingChannelDoesNotStarveOthers() {
+        WorkStealingPool pool = [1]
+        AtomicBoolean stop = []
+        def done = new CountDownLatch(1)
+
+        ExecutingChannel spinner = [
+            onMessage: { msg ->
+                if (!stop.get())
+                    post(msg)
+            },
+            executor: pool,
+            runFair: true
+        ]
+        spinner.post("spin")
+
+        AtomicInteger progress = []
+        ExecutingChannel other = [
+            onMessage: { msg ->
+                if (progress.incrementAndGet() < 100)
+                    post(msg)
+                else
+                    done.countDown()
+            },
+            executor: pool,
+            runFair: true
+        ]
+        other.post("step")
+
+        try {
+            assertTrue done.await(10, TimeUnit.SECONDS)
+        }
+        finally {
+            stop.set(true)
+            pool.shutdown()
+        }
+        assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+    }
+
+    void testDeque() {
+        WorkStealingPool.WorkQueue deque = []
+        def tasks = new Runnable[200]
+        for (i in 0..<200) {
+            tasks[i] = {}
+            deque.push(tasks[i])
+        }
+        assertEquals 200, deque.size()
+        assert deque.steal() === tasks[0]
+        assert deque.pop() === tasks[199]
+        assertEquals 198, deque.size()
+    }
+}
@@ -65,6 +65,42 @@ public class IterationsTest extends GroovyShellTestCase {
         """)
     }
 
+    void testAccumulatorTailRecursive () {
+        def res = shell.evaluate("""
+            @Typed package p
+
+            static long sum (long n) {
+                n == 0 ? 0 : n + sum(n - 1)
+            }
+
+            static int fact (int n) {
+                if (n <= 1)
+                    return 1
+                fact(n - 1) * n
+            }
+
+            [sum(1000000), fact(10)]
+        """)
+        assertEquals ([500000500000L, 3628800], res)
+    }
+
+    void testMutualTailRecursive () {
+        def res = shell.evaluate("""
+            @Typed package p
+
+            static boolean isEven (int n) {
+                n == 0 ? true : isOdd(n - 1)
+            }
+
+            static boolean isOdd (int n) {
+                n == 0 ? false : isEven(n - 1)
+            }
+
+            [isEven(1000000), isOdd(1000001), isOdd(10)]
+        """)
+        assertEquals ([true, true, false], res)
+    }
+
     void testFunctions () {
         def res = shell.evaluate("""
 @Trait
@@ -53,6 +53,69 @@ public class TraitTest extends GroovyShellTestCase {
         """
     }
 
+    void testInlinedIntoFinalClass() {
+        shell.evaluate """
+            @Trait class Counter {
+                int count
+                String incrementedIn
+
+                int increment (int delta) {
+                   incrementedIn = new Throwable().stackTrace[0].className
+                   count += delta
+                   if (count > 100)
+                     count = 0
+                   count
+                }
+
+                int sum (int n) {
+                   int res = 0
+                   for (int i = 0; i < n; ++i)
+                     res += i
+                   for (k in 0..<n) {
+                     def twice = k * 2
+                     res += twice
+                   }
+                   try {
+                     res += Integer.parseInt("x")
+                   }
+                   catch (NumberFormatException e) {
+                     res += e.message ? 1 : 0
+                   }
+                   res
+                }
+
+                String where () {
+                   new Throwable().stackTrace[0].className
+                }
+            }
+
+            @Typed final class Hits implements Counter {
+            }
+
+            @Typed class Forwarded implements Counter {
+            }
+
+            def hits = new Hits ()
+            assert hits.increment(5) == 5
+            assert hits.increment(96) == 0
+            assert hits.count == 0
+            assert hits.sum(4) == 19
+
+            // inlined body runs in Hits itself, forwarding method calls Counter\$TraitImpl
+            assert hits.where() == 'Hits'
+            assert new Forwarded().where() == 'Counter\$TraitImpl'
+            assert new Forwarded().sum(4) == 19
+
+            // body touching trait fields is inlined only when they map to fields of Hits
+            assert hits.incrementedIn == 'Hits'
+            assert Hits.getDeclaredField('count').type == int
+
+            def forwarded = new Forwarded ()
+            assert forwarded.increment(3) == 3
+            assert forwarded.incrementedIn == 'Counter\$TraitImpl'
+        """
+    }
+
     void testWithFields() {
         shell.evaluate """
             @Trait class WithCoord<Own extends WithCoord> {